@@ -39,6 +39,12 @@
   private final AvaticaPrepareResult prepareResult;
   private final ResultSetMetaData resultSetMetaData;
 
+  /** Parameter values saved by {@link #addBatch()}, one array per execution.
+   * Each array holds the raw slot value of every parameter, including
+   * {@link AvaticaParameter#DUMMY_VALUE}. */
+  private final List<Object[]> batchedParameterValues =
+      new ArrayList<Object[]>();
+
   /**
    * Creates an AvaticaPreparedStatement.
    *
@@ -82,7 +88,7 @@ public ParameterMetaData getParameterMetaData() throws SQLException {
   }
 
   public int executeUpdate() throws SQLException {
-    throw new UnsupportedOperationException(); // TODO:
+    return updateCount(executeQuery());
   }
 
   public void setNull(int parameterIndex, int sqlType) throws SQLException {
@@ -159,7 +165,9 @@ public void setBinaryStream(
   }
 
   public void clearParameters() throws SQLException {
-    throw new UnsupportedOperationException();
+    for (AvaticaParameter parameter : prepareResult.getParameterList()) {
+      parameter.value = null;
+    }
   }
 
   public void setObject(
@@ -176,7 +184,50 @@ public boolean execute() throws SQLException {
   }
 
   public void addBatch() throws SQLException {
-    throw new UnsupportedOperationException();
+    final List<AvaticaParameter> parameters = prepareResult.getParameterList();
+    final Object[] values = new Object[parameters.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = parameters.get(i).value;
+    }
+    batchedParameterValues.add(values);
+  }
+
+  @Override public void addBatch(String sql) throws SQLException {
+    throw connection.helper.createException(
+        "cannot call addBatch(String) on a prepared statement");
+  }
+
+  @Override public void clearBatch() throws SQLException {
+    batchedParameterValues.clear();
+  }
+
+  /** {@inheritDoc}
+   *
+   * <p>The statement is prepared only once; each set of parameter values is
+   * bound in turn to the same prepared plan. The current parameter values are
+   * restored afterwards.</p> */
+  @Override public int[] executeBatch() throws SQLException {
+    final List<AvaticaParameter> parameters = prepareResult.getParameterList();
+    final Object[] savedValues = new Object[parameters.size()];
+    for (int i = 0; i < savedValues.length; i++) {
+      savedValues[i] = parameters.get(i).value;
+    }
+    final int[] updateCounts = new int[batchedParameterValues.size()];
+    try {
+      for (int i = 0; i < updateCounts.length; i++) {
+        final Object[] values = batchedParameterValues.get(i);
+        for (int j = 0; j < values.length; j++) {
+          parameters.get(j).value = values[j];
+        }
+        updateCounts[i] = executeUpdate();
+      }
+    } finally {
+      batchedParameterValues.clear();
+      for (int i = 0; i < savedValues.length; i++) {
+        parameters.get(i).value = savedValues[i];
+      }
+    }
+    return updateCounts;
   }
 
   public void setCharacterStream(
@@ -49,6 +49,9 @@
   private int fetchDirection;
   protected int maxRowCount;
 
+  /** SQL strings added by {@link #addBatch(String)} and not yet executed. */
+  private final List<String> batchedSql = new ArrayList<String>();
+
   protected AvaticaStatement(AvaticaConnection connection,
       int resultSetType,
       int resultSetConcurrency,
@@ -82,7 +85,12 @@ public ResultSet executeQuery(String sql) throws SQLException {
   }
 
   public int executeUpdate(String sql) throws SQLException {
-    ResultSet resultSet = executeQuery(sql);
+    return updateCount(executeQuery(sql));
+  }
+
+  /** Reads the row count from the result set of a DML statement, and closes
+   * the result set. */
+  protected static int updateCount(ResultSet resultSet) throws SQLException {
     if (resultSet.getMetaData().getColumnCount() != 1) {
       throw new SQLException("expected one result column");
     }
@@ -232,15 +240,23 @@ public int getResultSetType() throws SQLException {
   }
 
   public void addBatch(String sql) throws SQLException {
-    throw new UnsupportedOperationException();
+    batchedSql.add(sql);
   }
 
   public void clearBatch() throws SQLException {
-    throw new UnsupportedOperationException();
+    batchedSql.clear();
   }
 
   public int[] executeBatch() throws SQLException {
-    throw new UnsupportedOperationException();
+    final int[] updateCounts = new int[batchedSql.size()];
+    try {
+      for (int i = 0; i < updateCounts.length; i++) {
+        updateCounts[i] = executeUpdate(batchedSql.get(i));
+      }
+    } finally {
+      batchedSql.clear();
+    }
+    return updateCounts;
   }
 
   public AvaticaConnection getConnection() {
@@ -35,10 +35,13 @@
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.sql.DataSource;
 
 import static org.eigenbase.rel.metadata.BuiltInMetadata.*;
@@ -63,8 +66,15 @@ public enum BuiltinMethod {
   JDBC_SCHEMA_DATA_SOURCE(JdbcSchema.class, "getDataSource"),
   RESULT_SET_ENUMERABLE_OF(ResultSetEnumerable.class, "of", DataSource.class,
       String.class, Function1.class),
+  RESULT_SET_ENUMERABLE_OF_UPDATE(ResultSetEnumerable.class, "ofUpdate",
+      DataSource.class, String.class, ModifiableTable.class),
+  RESULT_SET_ENUMERABLE_OF_LOOKUP(ResultSetEnumerable.class, "ofLookup",
+      DataSource.class, String.class, String.class, int.class,
+      Enumerable.class, int.class, Function1.class),
   JOIN(ExtendedEnumerable.class, "join", Enumerable.class, Function1.class,
       Function1.class, Function2.class),
+  MERGE_JOIN(MergeJoin.class, "join", Enumerable.class, Enumerable.class,
+      Function1.class, Function1.class, Function2.class),
   SELECT(ExtendedEnumerable.class, "select", Function1.class),
   SELECT2(ExtendedEnumerable.class, "select", Function2.class),
   WHERE(ExtendedEnumerable.class, "where", Predicate1.class),
@@ -74,6 +84,11 @@ public enum BuiltinMethod {
   GROUP_BY(ExtendedEnumerable.class, "groupBy", Function1.class),
   GROUP_BY2(ExtendedEnumerable.class, "groupBy", Function1.class,
       Function0.class, Function2.class, Function2.class),
+  SORTED_GROUP_BY(SortedAggregate.class, "groupBy", Enumerable.class,
+      Function1.class, Function0.class, Function2.class, Function2.class,
+      EqualityComparer.class),
+  SORTED_DISTINCT(SortedAggregate.class, "distinct", Enumerable.class,
+      Function1.class, EqualityComparer.class),
   AGGREGATE(ExtendedEnumerable.class, "aggregate", Object.class,
       Function2.class, Function1.class),
   ORDER_BY(ExtendedEnumerable.class, "orderBy", Function1.class,
@@ -90,6 +105,7 @@ public enum BuiltinMethod {
   ARRAY_COMPARER(Functions.class, "arrayComparer"),
   FUNCTION0_APPLY(Function0.class, "apply"),
   FUNCTION1_APPLY(Function1.class, "apply", Object.class),
+  FUNCTION2_APPLY(Function2.class, "apply", Object.class, Object.class),
   ARRAYS_AS_LIST(FlatLists.class, "of", Object[].class),
   LIST2(FlatLists.class, "of", Object.class, Object.class),
   LIST3(FlatLists.class, "of", Object.class, Object.class, Object.class),
@@ -151,10 +167,33 @@ public enum BuiltinMethod {
   RTRIM(SqlFunctions.class, "rtrim", String.class),
   LIKE(SqlFunctions.class, "like", String.class, String.class),
   SIMILAR(SqlFunctions.class, "similar", String.class, String.class),
+  LIKE_COMPILE(Like.class, "compile", String.class),
+  PATTERN_MATCHER(Pattern.class, "matcher", CharSequence.class),
+  MATCHER_MATCHES(Matcher.class, "matches"),
+  STRING_EQUALS(String.class, "equals", Object.class),
+  STRING_STARTS_WITH(String.class, "startsWith", String.class),
+  STRING_ENDS_WITH(String.class, "endsWith", String.class),
+  STRING_CONTAINS(String.class, "contains", CharSequence.class),
+  TO_UNSCALED_LONG(SqlFunctions.class, "toUnscaledLong", BigDecimal.class,
+      int.class),
+  FROM_UNSCALED_LONG(SqlFunctions.class, "fromUnscaledLong", long.class,
+      int.class),
+  FROM_UNSCALED_LONG_CHECKED(SqlFunctions.class, "fromUnscaledLong",
+      long.class, int.class, int.class),
+  PLUS_EXACT(SqlFunctions.class, "plusExact", long.class, long.class),
   IS_TRUE(SqlFunctions.class, "isTrue", Boolean.class),
   IS_NOT_FALSE(SqlFunctions.class, "isNotFalse", Boolean.class),
   MODIFIABLE_TABLE_GET_MODIFIABLE_COLLECTION(ModifiableTable.class,
       "getModifiableCollection"),
+  INSERT(Utilities.class, "insert", ModifiableTable.class, Enumerable.class,
+      int.class),
+  INSERT_OR_BUFFER(Utilities.class, "insert", DataContext.class,
+      ModifiableTable.class, Enumerable.class, int.class),
+  RUNTIME_FILTER_BUILD(RuntimeFilter.class, "build", Enumerable.class,
+      Function1.class),
+  RUNTIME_FILTER_PREDICATE(RuntimeFilter.class, "predicate",
+      Function1.class),
+  SPOOL_CLOSING(Spool.class, "closing", Enumerable.class, Spool[].class),
   STRING_TO_BOOLEAN(SqlFunctions.class, "toBoolean", String.class),
   UNIX_DATE_TO_STRING(SqlFunctions.class, "unixDateToString", int.class),
   UNIX_TIME_TO_STRING(SqlFunctions.class, "unixTimeToString", int.class),
@@ -22,6 +22,7 @@
 import net.hydromatic.linq4j.expressions.ParameterExpression;
 
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.runtime.InsertBuffer;
 
 import org.eigenbase.util.Util;
 
@@ -77,7 +78,11 @@ enum Variable {
     /** Time zone in which the current statement is executing. Required;
      * defaults to the time zone of the JVM if the connection does not specify a
      * time zone. */
-    TIME_ZONE("timeZone", TimeZone.class);
+    TIME_ZONE("timeZone", TimeZone.class),
+
+    /** Buffer that collects inserted rows while a prepared statement executes
+     * a batch. Optional; if absent, rows are inserted immediately. */
+    INSERT_BUFFER("insertBuffer", InsertBuffer.class);
 
     public final String camelName;
     public final Class clazz;
@@ -17,7 +17,10 @@
 */
 package net.hydromatic.optiq;
 
+import org.eigenbase.rel.RelCollation;
+
 import java.util.BitSet;
+import java.util.List;
 
 /**
  * Statistics about a {@link Table}.
@@ -34,6 +37,15 @@ public interface Statistic {
    * of a unique key, of the table.
    */
   boolean isKey(BitSet columns);
+
+  /** Returns the collations by which the rows of the table are sorted.
+   *
+   * <p>A table may be sorted by several collations at once; for example, a
+   * table sorted on hire date is also sorted on id if ids are allocated in
+   * order of hiring. Returns an empty list if the table is not known to be
+   * sorted.</p>
+   */
+  List<RelCollation> getCollations();
 }
 
 // End Statistic.java
@@ -19,6 +19,10 @@
 
 import net.hydromatic.optiq.util.BitSets;
 
+import org.eigenbase.rel.RelCollation;
+
+import com.google.common.collect.ImmutableList;
+
 import java.util.*;
 
 /**
@@ -38,10 +42,21 @@ public Double getRowCount() {
         public boolean isKey(BitSet columns) {
           return false;
         }
+
+        public List<RelCollation> getCollations() {
+          return ImmutableList.of();
+        }
       };
 
   /** Returns a statistic with a given row count and set of unique keys. */
-  public static Statistic of(final double rowCount, final List<BitSet> keys) {
+  public static Statistic of(double rowCount, List<BitSet> keys) {
+    return of(rowCount, keys, ImmutableList.<RelCollation>of());
+  }
+
+  /** Returns a statistic with a given row count, set of unique keys, and
+   * collations. */
+  public static Statistic of(final double rowCount, final List<BitSet> keys,
+      final List<RelCollation> collations) {
     return new Statistic() {
       public Double getRowCount() {
         return rowCount;
@@ -55,6 +70,10 @@ public boolean isKey(BitSet columns) {
         }
         return false;
       }
+
+      public List<RelCollation> getCollations() {
+        return collations;
+      }
     };
   }
 }
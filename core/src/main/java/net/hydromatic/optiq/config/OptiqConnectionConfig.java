@@ -26,6 +26,10 @@
  * classes for system and statement properties. */
 public interface OptiqConnectionConfig extends ConnectionConfig {
   boolean autoTemp();
+  boolean codeCache();
+  boolean interpreter();
+  int interpreterCompileExecutions();
+  long interpreterCompileRows();
   boolean materializationsEnabled();
   String model();
   Lex lex();
@@ -34,6 +38,10 @@ public interface OptiqConnectionConfig extends ConnectionConfig {
   Casing quotedCasing();
   boolean caseSensitive();
   boolean spark();
+  boolean spool();
+  boolean resultCache();
+  long resultCacheTtl();
+  boolean scaledDecimals();
 }
 
 // End OptiqConnectionConfig.java
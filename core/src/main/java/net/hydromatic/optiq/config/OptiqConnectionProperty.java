@@ -32,6 +32,24 @@ public enum OptiqConnectionProperty implements ConnectionProperty {
   /** Whether to store query results in temporary tables. */
   AUTO_TEMP("autoTemp", Type.BOOLEAN, false),
 
+  /** Whether to reuse the class compiled for an earlier statement whose plan
+   * generated the same code, rather than compiling the code again. */
+  CODE_CACHE("codeCache", Type.BOOLEAN, false),
+
+  /** Whether to execute simple queries by interpreting their plans, and
+   * generate code only for queries that are executed often. Compiling
+   * generated code takes longer than executing a short-running query. */
+  INTERPRETER("interpreter", Type.BOOLEAN, false),
+
+  /** If {@link #INTERPRETER} is enabled, the number of times a statement is
+   * executed before its plan is compiled. */
+  INTERPRETER_COMPILE_EXECUTIONS("interpreterCompileExecutions", Type.STRING,
+      "10"),
+
+  /** If {@link #INTERPRETER} is enabled, the number of rows a statement
+   * produces, over all executions, before its plan is compiled. */
+  INTERPRETER_COMPILE_ROWS("interpreterCompileRows", Type.STRING, "100000"),
+
   /** Whether materializations are enabled. */
   MATERIALIZATIONS_ENABLED("materializationsEnabled", Type.BOOLEAN, true),
 
@@ -57,6 +75,20 @@ public enum OptiqConnectionProperty implements ConnectionProperty {
    *  If not specified, value from {@link #LEX} is used. */
   CASE_SENSITIVE("caseSensitive", Type.BOOLEAN, null),
 
+  /** Whether query results may be cached and reused by later executions of
+   * the same query. */
+  RESULT_CACHE("resultCache", Type.BOOLEAN, false),
+
+  /** How long, in milliseconds, a cached result that reads a table other
+   * than a modifiable table may be reused. Optiq cannot see changes to such
+   * tables. */
+  RESULT_CACHE_TTL("resultCacheTtl", Type.STRING, "60000"),
+
+  /** Whether generated code performs arithmetic on DECIMAL values of
+   * precision up to 18 using their unscaled values, as {@code long}, rather
+   * than {@link java.math.BigDecimal}. */
+  SCALED_DECIMALS("scaledDecimals", Type.BOOLEAN, false),
+
   /** Name of initial schema. */
   SCHEMA("schema", Type.STRING, null),
 
@@ -65,6 +97,11 @@ public enum OptiqConnectionProperty implements ConnectionProperty {
    * generates code that implements the Enumerable interface. */
   SPARK("spark", Type.BOOLEAN, false),
 
+  /** Whether an expression that occurs more than once in a plan is computed
+   * once, its rows held in a {@link net.hydromatic.optiq.runtime.Spool}
+   * that each consumer reads. */
+  SPOOL("spool", Type.BOOLEAN, false),
+
   /** Timezone, for example 'gmt-3'. Default is the JVM's time zone. */
   TIMEZONE("timezone", Type.STRING, null);
 
@@ -19,12 +19,21 @@
 
 import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.Primitive;
+import net.hydromatic.linq4j.function.Predicate1;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.AbstractTableQueryable;
 import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
+import net.hydromatic.optiq.rules.java.EnumerableConvention;
+import net.hydromatic.optiq.rules.java.JavaRules;
+import net.hydromatic.optiq.runtime.Hook;
 import net.hydromatic.optiq.util.BitSets;
 
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.relopt.RelOptCluster;
+import org.eigenbase.relopt.RelOptPlanner;
+import org.eigenbase.relopt.RelOptTable;
+import org.eigenbase.relopt.RelTraitSet;
 import org.eigenbase.reltype.*;
 import org.eigenbase.util.*;
 
@@ -33,6 +42,7 @@
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Type;
+import java.math.BigDecimal;
 import java.util.*;
 
 /**
@@ -40,8 +50,21 @@
  * Column store formats are chosen based on the type and distribution of the
  * values in the column; see {@link Representation} and
  * {@link RepresentationType}.
+ *
+ * <p>Rows are sorted on the first column that is a unique key, if there is
+ * one. A filter on that column is evaluated by binary search; see
+ * {@link ArrayTableRangeRel}.</p>
  */
-class ArrayTable extends AbstractQueryableTable {
+class ArrayTable extends AbstractQueryableTable implements TranslatableTable {
+  /** Type of a bound passed to {@link #range}: no bound. */
+  static final int UNBOUNDED = 0;
+
+  /** Type of a bound passed to {@link #range}: inclusive bound. */
+  static final int CLOSED = 1;
+
+  /** Type of a bound passed to {@link #range}: exclusive bound. */
+  static final int OPEN = 2;
+
   private final RelProtoDataType protoRowType;
   private final Supplier<Content> supplier;
 
@@ -68,6 +91,25 @@ public Statistic getStatistic() {
     return Statistics.of(content.size, keys);
   }
 
+  /** Returns the ordinal of the column on which rows are sorted, or -1. */
+  int sortField() {
+    return supplier.get().sortField;
+  }
+
+  /** Returns how the values of a given column are represented. */
+  RepresentationType representationType(int ordinal) {
+    return supplier.get().columns.get(ordinal).representation.getType();
+  }
+
+  public RelNode toRel(RelOptTable.ToRelContext context,
+      RelOptTable relOptTable) {
+    final RelOptCluster cluster = context.getCluster();
+    return new EnumerableTableAccessRel(
+        cluster, cluster.traitSetOf(EnumerableConvention.INSTANCE),
+        relOptTable,
+        elementType instanceof Class ? (Class) elementType : Object[].class);
+  }
+
   public <T> Queryable<T> asQueryable(final QueryProvider queryProvider,
       SchemaPlus schema, String tableName) {
     return new AbstractTableQueryable<T>(queryProvider, schema, this,
@@ -75,35 +117,332 @@ public <T> Queryable<T> asQueryable(final QueryProvider queryProvider,
       @SuppressWarnings("unchecked")
       public Enumerator<T> enumerator() {
         final Content content = supplier.get();
-        return new Enumerator() {
-          final int rowCount = content.size;
-          final int columnCount = content.columns.size();
-          int i = -1;
-
-          public Object[] current() {
-            Object[] objects = new Object[columnCount];
-            for (int j = 0; j < objects.length; j++) {
-              final Column pair = content.columns.get(j);
-              objects[j] = pair.representation.getObject(pair.dataSet, i);
-            }
-            return objects;
-          }
+        return new RangeEnumerator(content, new int[] {0, content.size},
+            false);
+      }
+    };
+  }
 
-          public boolean moveNext() {
-            return ++i < rowCount;
-          }
+  /** Returns the rows whose value of the sort column lies within any of a
+   * list of intervals.
+   *
+   * <p>Interval {@code i} is bounded below by {@code bounds[2 * i]} and
+   * above by {@code bounds[2 * i + 1]}; the corresponding elements of
+   * {@code boundTypes} are {@link #UNBOUNDED}, {@link #CLOSED} or
+   * {@link #OPEN}. Intervals must be sorted and disjoint. A null bound
+   * matches no rows.</p>
+   *
+   * <p>If the table has one column, each row is the value of that column;
+   * otherwise each row is an {@code Object[]}.</p>
+   */
+  Enumerable<Object> range(final Object[] bounds, final int[] boundTypes) {
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        final Content content = supplier.get();
+        //noinspection unchecked
+        return new RangeEnumerator(content,
+            content.ranges(bounds, boundTypes),
+            content.columns.size() == 1);
+      }
+    };
+  }
 
-          public void reset() {
-            i = -1;
-          }
+  /** Returns the codes of the values of a dictionary-encoded column that
+   * satisfy a predicate. The predicate is evaluated once for each distinct
+   * value, including null if the column contains null values. */
+  BitSet codes(int ordinal, Predicate1<Object> predicate) {
+    final Comparable[] codeValues = supplier.get().codeValues(ordinal);
+    final BitSet codes = new BitSet(codeValues.length);
+    for (int i = 0; i < codeValues.length; i++) {
+      if (predicate.apply(codeValues[i])) {
+        codes.set(i);
+      }
+    }
+    return codes;
+  }
 
-          public void close() {
+  /** Returns the codes of the values of a dictionary-encoded column that lie
+   * within a list of intervals. The format of the intervals is as for
+   * {@link #range}.
+   *
+   * <p>The dictionary is sorted, so each interval is a range of codes, found
+   * by binary search; the null value, which never lies in an interval, has
+   * the highest code.</p> */
+  BitSet codeRanges(int ordinal, Object[] bounds, int[] boundTypes) {
+    final Comparable[] codeValues = supplier.get().codeValues(ordinal);
+    int n = codeValues.length;
+    if (n > 0 && codeValues[n - 1] == null) {
+      --n;
+    }
+    final int[] ranges =
+        ranges(Arrays.asList(codeValues).subList(0, n), bounds, boundTypes);
+    final BitSet codes = new BitSet(codeValues.length);
+    for (int i = 0; i < ranges.length; i += 2) {
+      codes.set(ranges[i], ranges[i + 1]);
+    }
+    return codes;
+  }
+
+  /** Returns the rows in which the code of each of a list of
+   * dictionary-encoded columns is in the corresponding set of codes.
+   *
+   * <p>Testing a code requires no decoding or comparison of values; each
+   * set is typically computed by {@link #codes} or {@link #codeRanges}.</p>
+   *
+   * <p>Rows have the same format as for {@link #range}.</p> */
+  Enumerable<Object> filter(final int[] ordinals, final BitSet[] codes) {
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        final Content content = supplier.get();
+        final Representation[] representations =
+            new Representation[ordinals.length];
+        final Object[] dataSets = new Object[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+          final Column column = content.columns.get(ordinals[i]);
+          final ObjectDictionary dictionary =
+              (ObjectDictionary) column.representation;
+          //noinspection unchecked
+          final Pair<Object, Comparable[]> pair =
+              (Pair<Object, Comparable[]>) column.dataSet;
+          representations[i] = dictionary.representation;
+          dataSets[i] = pair.left;
+        }
+        //noinspection unchecked
+        return new RangeEnumerator(content, new int[] {0, content.size},
+            content.columns.size() == 1) {
+          @Override protected boolean accept(int row) {
+            for (int i = 0; i < codes.length; i++) {
+              final int code =
+                  representations[i].getInt(dataSets[i], row);
+              if (!codes[i].get(code)) {
+                return false;
+              }
+            }
+            return true;
           }
         };
       }
     };
   }
 
+  /** Returns the ranges of rows in blocks that may contain rows satisfying
+   * conditions on a list of columns.
+   *
+   * @see Content#blockRanges */
+  int[] blockRanges(int[] ordinals, Object[][] bounds, int[][] boundTypes,
+      boolean[] nulls) {
+    return supplier.get().blockRanges(ordinals, bounds, boundTypes, nulls);
+  }
+
+  /** Returns the rows in blocks that may contain rows satisfying conditions
+   * on a list of columns, skipping blocks whose zone maps show that they
+   * cannot. Returned rows do not necessarily satisfy the conditions.
+   *
+   * <p>See {@link Content#blockRanges} for the format of the conditions,
+   * and {@link #range} for the format of rows. Calls
+   * {@link Hook#ZONE_MAP_SCAN} with the number of blocks and rows
+   * skipped.</p> */
+  Enumerable<Object> blocks(final int[] ordinals, final Object[][] bounds,
+      final int[][] boundTypes, final boolean[] nulls) {
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        final Content content = supplier.get();
+        final int[] ranges =
+            content.blockRanges(ordinals, bounds, boundTypes, nulls);
+        int rows = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+          rows += ranges[i + 1] - ranges[i];
+        }
+        final int blockCount =
+            (content.size + ZoneMap.BLOCK_SIZE - 1) / ZoneMap.BLOCK_SIZE;
+        final int blocks =
+            (rows + ZoneMap.BLOCK_SIZE - 1) / ZoneMap.BLOCK_SIZE;
+        Hook.ZONE_MAP_SCAN.run(
+            new int[] {
+              blockCount, blockCount - blocks, content.size,
+              content.size - rows
+            });
+        //noinspection unchecked
+        return new RangeEnumerator(content, ranges,
+            content.columns.size() == 1);
+      }
+    };
+  }
+
+  /** Converts intervals of values into ranges of ordinals in a sorted list
+   * of distinct values. See {@link #range} for the format of the
+   * intervals. */
+  private static int[] ranges(List<?> values, Object[] bounds,
+      int[] boundTypes) {
+    final int[] ranges = new int[bounds.length];
+    int n = 0;
+    for (int i = 0; i < bounds.length; i += 2) {
+      if ((boundTypes[i] != UNBOUNDED && bounds[i] == null)
+          || (boundTypes[i + 1] != UNBOUNDED && bounds[i + 1] == null)) {
+        continue;
+      }
+      final int start;
+      switch (boundTypes[i]) {
+      case UNBOUNDED:
+        start = 0;
+        break;
+      case CLOSED:
+        start = search(values, bounds[i], false);
+        break;
+      default:
+        start = search(values, bounds[i], true);
+      }
+      final int end;
+      switch (boundTypes[i + 1]) {
+      case UNBOUNDED:
+        end = values.size();
+        break;
+      case CLOSED:
+        end = search(values, bounds[i + 1], true);
+        break;
+      default:
+        end = search(values, bounds[i + 1], false);
+      }
+      if (start < end) {
+        ranges[n++] = start;
+        ranges[n++] = end;
+      }
+    }
+    return n == ranges.length ? ranges : Arrays.copyOf(ranges, n);
+  }
+
+  /** Returns the ordinal of the first element of a sorted list that is
+   * greater than (or, if {@code after} is false, greater than or equal to) a
+   * given value; or the size of the list, if there is no such element. */
+  private static int search(List<?> values, Object value, boolean after) {
+    int lo = 0;
+    int hi = values.size();
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int c = compare(values.get(mid), value);
+      if (c < 0 || (after && c == 0)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Compares a value of a column to a bound. The bound may be of a
+   * different numeric type than the column, for example if it is the value
+   * of a parameter. */
+  private static int compare(Object v0, Object v1) {
+    if (v0.getClass() != v1.getClass()
+        && v0 instanceof Number
+        && v1 instanceof Number) {
+      return toBigDecimal((Number) v0).compareTo(toBigDecimal((Number) v1));
+    }
+    //noinspection unchecked
+    return ((Comparable) v0).compareTo(v1);
+  }
+
+  private static BigDecimal toBigDecimal(Number number) {
+    if (number instanceof BigDecimal) {
+      return (BigDecimal) number;
+    }
+    if (number instanceof Double || number instanceof Float) {
+      return BigDecimal.valueOf(number.doubleValue());
+    }
+    return BigDecimal.valueOf(number.longValue());
+  }
+
+  /** Scan of an {@link ArrayTable}. Registers the rules that read only the
+   * rows that satisfy a filter.
+   *
+   * <p>It has the same name as the class it extends, so that it appears the
+   * same way in plans.</p> */
+  static class EnumerableTableAccessRel
+      extends JavaRules.EnumerableTableAccessRel {
+    private final Class elementType;
+
+    EnumerableTableAccessRel(RelOptCluster cluster, RelTraitSet traitSet,
+        RelOptTable table, Class elementType) {
+      super(cluster, traitSet, table, elementType);
+      this.elementType = elementType;
+    }
+
+    @Override public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+      assert inputs.isEmpty();
+      return new EnumerableTableAccessRel(getCluster(), traitSet, table,
+          elementType);
+    }
+
+    @Override public void register(RelOptPlanner planner) {
+      planner.addRule(ArrayTableRangeRel.RULE);
+      planner.addRule(ArrayTableFilterRel.RULE);
+      planner.addRule(ArrayTableZoneMapRel.RULE);
+    }
+  }
+
+  /** Enumerator over ranges of rows. */
+  private static class RangeEnumerator implements Enumerator {
+    private final Content content;
+    private final int[] ranges;
+    private final boolean scalar;
+    private int range;
+    private int i;
+
+    /** Creates a RangeEnumerator.
+     *
+     * @param content Contents of the table
+     * @param ranges Pairs of row ordinals, each pair the start (inclusive)
+     *   and end (exclusive) of a range
+     * @param scalar Whether to return each row as the value of its only
+     *   column
+     */
+    RangeEnumerator(Content content, int[] ranges, boolean scalar) {
+      this.content = content;
+      this.ranges = ranges;
+      this.scalar = scalar;
+      reset();
+    }
+
+    /** Returns whether to return a given row. */
+    protected boolean accept(int row) {
+      return true;
+    }
+
+    public Object current() {
+      if (scalar) {
+        final Column column = content.columns.get(0);
+        return column.representation.getObject(column.dataSet, i);
+      }
+      Object[] objects = new Object[content.columns.size()];
+      for (int j = 0; j < objects.length; j++) {
+        final Column pair = content.columns.get(j);
+        objects[j] = pair.representation.getObject(pair.dataSet, i);
+      }
+      return objects;
+    }
+
+    public boolean moveNext() {
+      while (range < ranges.length) {
+        i = i < 0 ? ranges[range] : i + 1;
+        if (i >= ranges[range + 1]) {
+          range += 2;
+          i = -1;
+        } else if (accept(i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public void reset() {
+      range = 0;
+      i = -1;
+    }
+
+    public void close() {
+    }
+  }
+
   /** How a column's values are represented. */
   enum RepresentationType {
     /** Constant. Contains only one value.
@@ -196,13 +535,24 @@ public static class Column {
     final Representation representation;
     final Object dataSet;
     final int cardinality;
+    /** Summary of each block of rows, or null if not yet built. */
+    final ZoneMap zoneMap;
 
     Column(Representation representation, Object data, int cardinality) {
+      this(representation, data, cardinality, null);
+    }
+
+    Column(Representation representation, Object data, int cardinality,
+        ZoneMap zoneMap) {
       this.representation = representation;
       this.dataSet = data;
       this.cardinality = cardinality;
+      this.zoneMap = zoneMap;
     }
 
+    /** Returns a copy of this column with its rows in a different order.
+     * The zone map, if any, is discarded, because it no longer describes
+     * the blocks. */
     public Column permute(int[] sources) {
       return new Column(
           representation,
@@ -210,6 +560,15 @@ public Column permute(int[] sources) {
           cardinality);
     }
 
+    /** Returns a copy of this column with a zone map built from its
+     * first {@code size} rows. */
+    Column withZoneMap(int size) {
+      final List values = asList(representation, dataSet);
+      //noinspection unchecked
+      return new Column(representation, dataSet, cardinality,
+          ZoneMap.of(values.subList(0, size)));
+    }
+
     @Override
     public String toString() {
       return "Column(representation=" + representation
@@ -800,6 +1159,115 @@ public int size() {
     };
   }
 
+  /** Summary of the values of a column in each block of
+   * {@link #BLOCK_SIZE} consecutive rows: the least and greatest value that
+   * is not null, and the number of null values.
+   *
+   * <p>A scan can skip a block if the summary shows that no value in it can
+   * satisfy a condition. This is most effective if the values of the column
+   * are correlated with the order of the rows; for example, dates in a table
+   * sorted by its identifier, if identifiers are allocated in order.</p> */
+  static class ZoneMap {
+    /** Number of rows in each block, except perhaps the last. */
+    static final int BLOCK_SIZE = 4096;
+
+    /** Number of rows. */
+    final int size;
+    /** Least value in each block that is not null; null if every value in
+     * the block is null. */
+    final Comparable[] mins;
+    /** Greatest value in each block that is not null. */
+    final Comparable[] maxes;
+    /** Number of null values in each block. */
+    final int[] nullCounts;
+
+    private ZoneMap(int size, Comparable[] mins, Comparable[] maxes,
+        int[] nullCounts) {
+      this.size = size;
+      this.mins = mins;
+      this.maxes = maxes;
+      this.nullCounts = nullCounts;
+    }
+
+    /** Creates a zone map for a list of values. */
+    static ZoneMap of(List<? extends Comparable> values) {
+      final int size = values.size();
+      final int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      final Comparable[] mins = new Comparable[blockCount];
+      final Comparable[] maxes = new Comparable[blockCount];
+      final int[] nullCounts = new int[blockCount];
+      for (int i = 0; i < size; i++) {
+        final Comparable value = values.get(i);
+        final int block = i / BLOCK_SIZE;
+        if (value == null) {
+          ++nullCounts[block];
+        } else {
+          //noinspection unchecked
+          if (mins[block] == null || mins[block].compareTo(value) > 0) {
+            mins[block] = value;
+          }
+          //noinspection unchecked
+          if (maxes[block] == null || maxes[block].compareTo(value) < 0) {
+            maxes[block] = value;
+          }
+        }
+      }
+      return new ZoneMap(size, mins, maxes, nullCounts);
+    }
+
+    int blockCount() {
+      return mins.length;
+    }
+
+    /** Returns the ordinal of the first row of a block. */
+    int start(int block) {
+      return block * BLOCK_SIZE;
+    }
+
+    /** Returns the ordinal of the row after the last row of a block. */
+    int end(int block) {
+      return Math.min(size, (block + 1) * BLOCK_SIZE);
+    }
+
+    /** Returns whether a block may contain a value that lies within any of
+     * a list of intervals, in the format described in {@link #range}, or,
+     * if {@code nulls} is true, a null value. */
+    boolean mayMatch(int block, Object[] bounds, int[] boundTypes,
+        boolean nulls) {
+      if (nulls && nullCounts[block] > 0) {
+        return true;
+      }
+      final Comparable min = mins[block];
+      final Comparable max = maxes[block];
+      if (min == null) {
+        // Every value in the block is null.
+        return false;
+      }
+      for (int i = 0; i < bounds.length; i += 2) {
+        if ((boundTypes[i] != UNBOUNDED && bounds[i] == null)
+            || (boundTypes[i + 1] != UNBOUNDED && bounds[i + 1] == null)) {
+          continue;
+        }
+        if (boundTypes[i] != UNBOUNDED) {
+          final int c = compare(max, bounds[i]);
+          if (c < 0 || c == 0 && boundTypes[i] == OPEN) {
+            // Every value in the block is below the interval.
+            continue;
+          }
+        }
+        if (boundTypes[i + 1] != UNBOUNDED) {
+          final int c = compare(min, bounds[i + 1]);
+          if (c > 0 || c == 0 && boundTypes[i + 1] == OPEN) {
+            // Every value in the block is above the interval.
+            continue;
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+  }
+
   /** Contents of a table. */
   public static class Content {
     private final List<Column> columns;
@@ -811,6 +1279,90 @@ public Content(List<? extends Column> columns, int size, int sortField) {
       this.size = size;
       this.sortField = sortField;
     }
+
+    /** Converts intervals of values of the sort column into ranges of row
+     * ordinals, by binary search. The search reads values via the column's
+     * {@link Representation}, so works for all representations, including
+     * bit-sliced arrays and dictionaries. */
+    int[] ranges(Object[] bounds, int[] boundTypes) {
+      assert sortField >= 0;
+      final Column column = columns.get(sortField);
+      return ArrayTable.ranges(
+          new AbstractList<Object>() {
+            public Object get(int index) {
+              return column.representation.getObject(column.dataSet, index);
+            }
+
+            public int size() {
+              // Not representation.size(dataSet), which may be too high.
+              return size;
+            }
+          },
+          bounds, boundTypes);
+    }
+
+    /** Converts conditions on columns into ranges of row ordinals, by
+     * finding the blocks that, according to their zone maps, may contain
+     * rows that satisfy every condition. Adjacent blocks are merged into
+     * one range.
+     *
+     * <p>Condition {@code i} is on column {@code ordinals[i]}; its intervals
+     * are {@code bounds[i]} and {@code boundTypes[i]}, in the format
+     * described in {@link ArrayTable#range}, and {@code nulls[i]} is whether
+     * it is satisfied by the null value.</p> */
+    int[] blockRanges(int[] ordinals, Object[][] bounds, int[][] boundTypes,
+        boolean[] nulls) {
+      assert ordinals.length > 0;
+      final ZoneMap[] zoneMaps = new ZoneMap[ordinals.length];
+      for (int i = 0; i < ordinals.length; i++) {
+        zoneMaps[i] = columns.get(ordinals[i]).zoneMap;
+        if (zoneMaps[i] == null) {
+          // Zone maps were not built; read every row.
+          return new int[] {0, size};
+        }
+      }
+      final List<Integer> ranges = new ArrayList<Integer>();
+      int end = -1;
+      for (int block = 0; block < zoneMaps[0].blockCount(); block++) {
+        if (!mayMatch(zoneMaps, block, bounds, boundTypes, nulls)) {
+          continue;
+        }
+        final int start = zoneMaps[0].start(block);
+        if (start == end) {
+          // Extend the previous range.
+          ranges.remove(ranges.size() - 1);
+        } else {
+          ranges.add(start);
+        }
+        end = zoneMaps[0].end(block);
+        ranges.add(end);
+      }
+      final int[] ints = new int[ranges.size()];
+      for (int i = 0; i < ints.length; i++) {
+        ints[i] = ranges.get(i);
+      }
+      return ints;
+    }
+
+    private static boolean mayMatch(ZoneMap[] zoneMaps, int block,
+        Object[][] bounds, int[][] boundTypes, boolean[] nulls) {
+      for (int i = 0; i < zoneMaps.length; i++) {
+        if (!zoneMaps[i].mayMatch(block, bounds[i], boundTypes[i],
+            nulls[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns the sorted, distinct values of a dictionary-encoded column,
+     * indexed by code. */
+    Comparable[] codeValues(int ordinal) {
+      final Column column = columns.get(ordinal);
+      assert column.representation instanceof ObjectDictionary;
+      //noinspection unchecked
+      return ((Pair<Object, Comparable[]>) column.dataSet).right;
+    }
   }
 }
 
@@ -0,0 +1,324 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.expressions.*;
+import net.hydromatic.linq4j.function.Predicate1;
+
+import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.rules.java.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMdUtil;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+import org.eigenbase.sarg.*;
+import org.eigenbase.util.Util;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * Relational expression that reads the rows of an {@link ArrayTable} that
+ * satisfy conditions on dictionary-encoded columns.
+ *
+ * <p>Each condition references one column. Rather than decoding the value
+ * of the column in every row, it is evaluated once for each distinct value
+ * in the column's dictionary, producing a set of codes; then each row is
+ * tested by looking up its code in that set. If the condition is a
+ * comparison with literals, such as {@code x < 10} or {@code x = 'a'}, the
+ * condition is not even evaluated for each value: because the dictionary is
+ * sorted, the matching codes form ranges, found by binary search.</p>
+ */
+public class ArrayTableFilterRel extends TableAccessRelBase
+    implements EnumerableRel {
+  /** Rule that converts a filter on a scan of an {@link ArrayTable} into an
+   * {@code ArrayTableFilterRel}. */
+  static final RelOptRule RULE = new ArrayTableFilterRule();
+
+  private static final Method FILTER_METHOD =
+      Types.lookupMethod(ArrayTableFilterRel.class, "filter", Table.class,
+          int[].class, BitSet[].class);
+
+  private static final Method CODES_METHOD =
+      Types.lookupMethod(ArrayTableFilterRel.class, "codes", Table.class,
+          int.class, Predicate1.class);
+
+  private static final Method CODE_RANGES_METHOD =
+      Types.lookupMethod(ArrayTableFilterRel.class, "codeRanges", Table.class,
+          int.class, Object[].class, int[].class);
+
+  /** Conditions, each of which references precisely one column. */
+  private final ImmutableList<RexNode> conditions;
+
+  ArrayTableFilterRel(RelOptCluster cluster, RelTraitSet traitSet,
+      RelOptTable table, List<RexNode> conditions) {
+    super(cluster, traitSet, table);
+    assert getConvention() instanceof EnumerableConvention;
+    this.conditions = ImmutableList.copyOf(conditions);
+  }
+
+  @Override public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    assert inputs.isEmpty();
+    return new ArrayTableFilterRel(getCluster(), traitSet, table, conditions);
+  }
+
+  @Override public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("conditions", conditions);
+  }
+
+  @Override public double getRows() {
+    return table.getRowCount()
+        * RelMdUtil.guessSelectivity(
+            RexUtil.composeConjunction(getCluster().getRexBuilder(),
+                conditions, false));
+  }
+
+  @Override public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    // Testing a code is cheaper than reading a row and evaluating a
+    // condition; the cost of evaluating conditions on the dictionary is
+    // negligible.
+    final double rowCount = table.getRowCount();
+    return planner.getCostFactory().makeCost(getRows(),
+        rowCount * conditions.size() * 0.5d + 1d, 0);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    // Generate:
+    //   final Table table = schema.getTable("t");
+    //   return ArrayTableFilterRel.filter(table,
+    //       new int[] {3, 5},
+    //       new BitSet[] {
+    //           ArrayTableFilterRel.codes(table, 3,
+    //               new Predicate1() {
+    //                 public boolean apply(Object v) {
+    //                   return v != null && ((String) v).startsWith("San");
+    //                 }
+    //               }),
+    //           ArrayTableFilterRel.codeRanges(table, 5,
+    //               new Object[] {null, 10},
+    //               new int[] {0, 2})});
+    final PhysType physType =
+        PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+            JavaRowFormat.ARRAY);
+    final BlockBuilder builder = new BlockBuilder();
+    final Expression table_ =
+        builder.append("table", table.getExpression(Table.class));
+    final List<Expression> ordinals = new ArrayList<Expression>();
+    final List<Expression> codes = new ArrayList<Expression>();
+    for (RexNode condition : conditions) {
+      final int ordinal = RelOptUtil.InputFinder.bits(condition).nextSetBit(0);
+      ordinals.add(Expressions.constant(ordinal));
+      final RelDataType type =
+          getRowType().getFieldList().get(ordinal).getType();
+      final SargIntervalSequence intervals = intervals(condition, type);
+      if (intervals != null) {
+        final List<Expression> bounds = new ArrayList<Expression>();
+        final List<Expression> boundTypes = new ArrayList<Expression>();
+        ArrayTableRangeRel.addBounds(implementor, intervals, bounds,
+            boundTypes);
+        codes.add(
+            Expressions.call(
+                CODE_RANGES_METHOD,
+                table_,
+                Expressions.constant(ordinal),
+                Expressions.newArrayInit(Object.class, bounds),
+                Expressions.newArrayInit(int.class, boundTypes)));
+      } else {
+        codes.add(
+            Expressions.call(
+                CODES_METHOD,
+                table_,
+                Expressions.constant(ordinal),
+                predicate(implementor, condition, ordinal, type)));
+      }
+    }
+    builder.add(
+        Expressions.return_(null,
+            Expressions.call(
+                FILTER_METHOD,
+                table_,
+                Expressions.newArrayInit(int.class, ordinals),
+                Expressions.newArrayInit(BitSet.class, codes))));
+    return implementor.result(physType, builder.toBlock());
+  }
+
+  /** Returns the intervals of values that satisfy a condition, or null if
+   * the condition is not a comparison of the column with literals. */
+  private SargIntervalSequence intervals(RexNode condition, RelDataType type) {
+    if (!ArrayTableRangeRel.canSeek(type)) {
+      return null;
+    }
+    final SargFactory factory = new SargFactory(getCluster().getRexBuilder());
+    final SargBinding binding = factory.newRexAnalyzer().analyze(condition);
+    if (binding == null) {
+      return null;
+    }
+    final Set<RexDynamicParam> dynamicParams =
+        new HashSet<RexDynamicParam>();
+    binding.getExpr().collectDynamicParams(dynamicParams);
+    if (!dynamicParams.isEmpty()) {
+      return null;
+    }
+    final SargIntervalSequence intervals = binding.getExpr().evaluate();
+    if (!ArrayTableRangeRel.canSeek(intervals)) {
+      return null;
+    }
+    for (SargInterval interval : intervals.getList()) {
+      // The null value has no place in the sort order of the dictionary.
+      if (interval.getLowerBound().isNull()
+          && interval.getLowerBound().isClosed()
+          || interval.getUpperBound().isNull()
+          && interval.getUpperBound().isClosed()) {
+        return null;
+      }
+    }
+    return intervals;
+  }
+
+  /** Generates a predicate that evaluates a condition on a value of a
+   * column. */
+  private Expression predicate(EnumerableRelImplementor implementor,
+      RexNode condition, final int ordinal, RelDataType type) {
+    final RexProgramBuilder programBuilder =
+        new RexProgramBuilder(getRowType(), getCluster().getRexBuilder());
+    programBuilder.addCondition(condition);
+    final ParameterExpression value_ =
+        Expressions.parameter(Object.class, "v");
+    final Type javaClass = implementor.getTypeFactory().getJavaClass(type);
+    final BlockBuilder builder = new BlockBuilder();
+    final Expression expression =
+        RexToLixTranslator.translateCondition(
+            programBuilder.getProgram(),
+            implementor.getTypeFactory(),
+            builder,
+            new RexToLixTranslator.InputGetter() {
+              public Expression field(BlockBuilder list, int index) {
+                assert index == ordinal;
+                return RexToLixTranslator.convert(value_, javaClass);
+              }
+            },
+            implementor);
+    builder.add(Expressions.return_(null, expression));
+    return Expressions.lambda(Predicate1.class, builder.toBlock(), value_);
+  }
+
+  /** Returns the rows of a table in which the code of each of a list of
+   * dictionary-encoded columns is in the corresponding set of codes. Called
+   * from generated code.
+   *
+   * @see ArrayTable#filter(int[], BitSet[]) */
+  public static Enumerable<Object> filter(Table table, int[] ordinals,
+      BitSet[] codes) {
+    return ((ArrayTable) table).filter(ordinals, codes);
+  }
+
+  /** Returns the codes of the values of a dictionary-encoded column that
+   * satisfy a predicate. Called from generated code.
+   *
+   * @see ArrayTable#codes(int, Predicate1) */
+  public static BitSet codes(Table table, int ordinal,
+      Predicate1<Object> predicate) {
+    return ((ArrayTable) table).codes(ordinal, predicate);
+  }
+
+  /** Returns the codes of the values of a dictionary-encoded column that lie
+   * within a list of intervals. Called from generated code.
+   *
+   * @see ArrayTable#codeRanges(int, Object[], int[]) */
+  public static BitSet codeRanges(Table table, int ordinal, Object[] bounds,
+      int[] boundTypes) {
+    return ((ArrayTable) table).codeRanges(ordinal, bounds, boundTypes);
+  }
+
+  /** Rule that converts a {@link FilterRel} on an {@link ArrayTable} into an
+   * {@link ArrayTableFilterRel} that evaluates the conditions on
+   * dictionary-encoded columns, leaving a filter for any remaining
+   * conditions. */
+  private static class ArrayTableFilterRule extends RelOptRule {
+    ArrayTableFilterRule() {
+      super(
+          operand(FilterRel.class,
+              operand(JavaRules.EnumerableTableAccessRel.class, none())),
+          "ArrayTableFilterRule");
+    }
+
+    @Override public void onMatch(RelOptRuleCall call) {
+      final FilterRel filter = call.rel(0);
+      final JavaRules.EnumerableTableAccessRel scan = call.rel(1);
+      final ArrayTable arrayTable = scan.getTable().unwrap(ArrayTable.class);
+      if (arrayTable == null) {
+        return;
+      }
+      final List<RexNode> conditions = new ArrayList<RexNode>();
+      final List<RexNode> residual = new ArrayList<RexNode>();
+      for (RexNode condition
+          : RelOptUtil.conjunctions(filter.getCondition())) {
+        final BitSet bits = RelOptUtil.InputFinder.bits(condition);
+        if (bits.cardinality() == 1
+            && arrayTable.representationType(bits.nextSetBit(0))
+               == ArrayTable.RepresentationType.OBJECT_DICTIONARY
+            && isDeterministic(condition)) {
+          conditions.add(condition);
+        } else {
+          residual.add(condition);
+        }
+      }
+      if (conditions.isEmpty()) {
+        return;
+      }
+      RelNode rel =
+          new ArrayTableFilterRel(scan.getCluster(), scan.getTraitSet(),
+              scan.getTable(), conditions);
+      if (!residual.isEmpty()) {
+        rel = CalcRel.createFilter(rel,
+            RexUtil.composeConjunction(filter.getCluster().getRexBuilder(),
+                residual, false));
+      }
+      call.transformTo(rel);
+    }
+
+    /** Returns whether an expression always returns the same result for the
+     * same input, and so can be evaluated once per distinct value. */
+    private static boolean isDeterministic(RexNode node) {
+      try {
+        node.accept(
+            new RexVisitorImpl<Void>(true) {
+              @Override public Void visitCall(RexCall call) {
+                if (!call.getOperator().isDeterministic()
+                    || call.getOperator().isDynamicFunction()) {
+                  throw Util.FoundOne.NULL;
+                }
+                return super.visitCall(call);
+              }
+            });
+        return true;
+      } catch (Util.FoundOne e) {
+        return false;
+      }
+    }
+  }
+}
+
+// End ArrayTableFilterRel.java
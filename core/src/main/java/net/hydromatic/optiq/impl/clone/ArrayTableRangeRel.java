@@ -0,0 +1,341 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.BuiltinMethod;
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.rules.java.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMdUtil;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.sarg.*;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Relational expression that reads the rows of an {@link ArrayTable} whose
+ * sort column lies within a set of intervals.
+ *
+ * <p>Rows of an {@code ArrayTable} are sorted on a unique column, so the
+ * start and end of each interval can be found by binary search. A point or
+ * range lookup takes time proportional to the log of the number of rows in
+ * the table, plus the number of rows returned, rather than reading every
+ * row.</p>
+ *
+ * <p>The intervals are computed from a filter by {@link SargRexAnalyzer};
+ * their bounds are literals or parameters.</p>
+ */
+public class ArrayTableRangeRel extends TableAccessRelBase
+    implements EnumerableRel {
+  /** Rule that converts a filter on a scan of an {@link ArrayTable} into an
+   * {@code ArrayTableRangeRel}. */
+  static final RelOptRule RULE = new ArrayTableRangeRule();
+
+  private static final Method RANGE_METHOD =
+      Types.lookupMethod(ArrayTableRangeRel.class, "range", Table.class,
+          Object[].class, int[].class);
+
+  private final int sortField;
+  private final SargIntervalSequence intervals;
+  private final double rowCount;
+
+  ArrayTableRangeRel(RelOptCluster cluster, RelTraitSet traitSet,
+      RelOptTable table, int sortField, SargIntervalSequence intervals,
+      double rowCount) {
+    super(cluster, traitSet, table);
+    assert getConvention() instanceof EnumerableConvention;
+    this.sortField = sortField;
+    this.intervals = intervals;
+    this.rowCount = rowCount;
+  }
+
+  @Override public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    assert inputs.isEmpty();
+    return new ArrayTableRangeRel(getCluster(), traitSet, table, sortField,
+        intervals, rowCount);
+  }
+
+  @Override public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("field", sortField)
+        .item("intervals", intervals);
+  }
+
+  @Override public double getRows() {
+    return rowCount;
+  }
+
+  @Override public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    // Each interval costs a binary search.
+    final double searchCost =
+        intervals.getList().size()
+        * Math.log(table.getRowCount() + 1d) / Math.log(2d);
+    return planner.getCostFactory().makeCost(rowCount,
+        rowCount + searchCost + 1d, 0);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    // Generate:
+    //   ArrayTableRangeRel.range(schema.getTable("t"),
+    //       new Object[] {lower0, upper0, ...},
+    //       new int[] {lowerType0, upperType0, ...})
+    final PhysType physType =
+        PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+            JavaRowFormat.ARRAY);
+    final List<Expression> bounds = new ArrayList<Expression>();
+    final List<Expression> boundTypes = new ArrayList<Expression>();
+    addBounds(implementor, intervals, bounds, boundTypes);
+    final Expression expression =
+        Expressions.call(
+            RANGE_METHOD,
+            table.getExpression(Table.class),
+            Expressions.newArrayInit(Object.class, bounds),
+            Expressions.newArrayInit(int.class, boundTypes));
+    return implementor.result(physType, Blocks.toBlock(expression));
+  }
+
+  /** Generates the bounds of a list of intervals, in the format expected
+   * by {@link ArrayTable#range(Object[], int[])}. */
+  static void addBounds(EnumerableRelImplementor implementor,
+      SargIntervalSequence intervals, List<Expression> bounds,
+      List<Expression> boundTypes) {
+    for (SargInterval interval : intervals.getList()) {
+      final SargEndpoint lower = interval.getLowerBound();
+      final SargEndpoint upper = interval.getUpperBound();
+      if (upper.isNull()) {
+        // Only the null value is less than or equal to null, and the null
+        // value is never in a range.
+        continue;
+      }
+      if (lower.isNull()) {
+        // Every value is greater than null.
+        bounds.add(Expressions.constant(null));
+        boundTypes.add(Expressions.constant(ArrayTable.UNBOUNDED));
+      } else {
+        addBound(implementor, lower, bounds, boundTypes);
+      }
+      addBound(implementor, upper, bounds, boundTypes);
+    }
+  }
+
+  private static void addBound(EnumerableRelImplementor implementor,
+      SargEndpoint endpoint, List<Expression> bounds,
+      List<Expression> boundTypes) {
+    if (!endpoint.isFinite()) {
+      bounds.add(Expressions.constant(null));
+      boundTypes.add(Expressions.constant(ArrayTable.UNBOUNDED));
+      return;
+    }
+    final RexNode coordinate = endpoint.getCoordinate();
+    final Expression bound;
+    if (coordinate instanceof RexDynamicParam) {
+      bound =
+          Expressions.call(
+              DataContext.ROOT,
+              BuiltinMethod.DATA_CONTEXT_GET.method,
+              Expressions.constant(
+                  "?" + ((RexDynamicParam) coordinate).getIndex()));
+    } else {
+      // The literal may have a different numeric type than the column;
+      // ArrayTable compares such values as decimals.
+      final Expression e =
+          RexToLixTranslator.translateLiteral(coordinate,
+              coordinate.getType(), implementor.getTypeFactory(),
+              RexImpTable.NullAs.NULL);
+      bound = e.getType() instanceof Class
+          && ((Class) e.getType()).isPrimitive()
+          ? Expressions.box(e)
+          : e;
+    }
+    bounds.add(bound);
+    boundTypes.add(
+        Expressions.constant(
+            endpoint.isClosed() ? ArrayTable.CLOSED : ArrayTable.OPEN));
+  }
+
+  /** Returns whether values of a given type can be compared with bounds
+   * generated by {@link #addBounds}. Values of other types are represented
+   * differently in an {@link ArrayTable} than in literals, or (CHAR) compare
+   * differently. */
+  static boolean canSeek(RelDataType type) {
+    switch (type.getSqlTypeName()) {
+    case TINYINT:
+    case SMALLINT:
+    case INTEGER:
+    case BIGINT:
+    case DECIMAL:
+    case REAL:
+    case FLOAT:
+    case DOUBLE:
+    case VARCHAR:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether every endpoint of a list of intervals can be converted
+   * to a bound: infinite, or a literal or parameter. */
+  static boolean canSeek(SargIntervalSequence intervals) {
+    for (SargInterval interval : intervals.getList()) {
+      if (!isBound(interval.getLowerBound())
+          || !isBound(interval.getUpperBound())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBound(SargEndpoint endpoint) {
+    return !endpoint.isFinite()
+        || endpoint.getCoordinate() instanceof RexLiteral
+        || endpoint.getCoordinate() instanceof RexDynamicParam;
+  }
+
+  /** Returns the rows of a table whose sort column lies within a list of
+   * intervals. Called from generated code.
+   *
+   * @see ArrayTable#range(Object[], int[]) */
+  public static Enumerable<Object> range(Table table, Object[] bounds,
+      int[] boundTypes) {
+    return ((ArrayTable) table).range(bounds, boundTypes);
+  }
+
+  /** Rule that converts a {@link FilterRel} on the sort column of an
+   * {@link ArrayTable} into an {@link ArrayTableRangeRel}, leaving a filter
+   * for any remaining conditions. */
+  private static class ArrayTableRangeRule extends RelOptRule {
+    ArrayTableRangeRule() {
+      super(
+          operand(FilterRel.class,
+              operand(JavaRules.EnumerableTableAccessRel.class, none())),
+          "ArrayTableRangeRule");
+    }
+
+    @Override public void onMatch(RelOptRuleCall call) {
+      final FilterRel filter = call.rel(0);
+      final JavaRules.EnumerableTableAccessRel scan = call.rel(1);
+      final ArrayTable arrayTable = scan.getTable().unwrap(ArrayTable.class);
+      if (arrayTable == null) {
+        return;
+      }
+      final int sortField = arrayTable.sortField();
+      if (sortField < 0) {
+        return;
+      }
+      final RelDataTypeField field =
+          scan.getRowType().getFieldList().get(sortField);
+      if (!canSeek(field.getType())) {
+        return;
+      }
+
+      final RexBuilder rexBuilder = filter.getCluster().getRexBuilder();
+      final SargFactory factory = new SargFactory(rexBuilder);
+      final SargRexAnalyzer analyzer = factory.newRexAnalyzer();
+      final List<SargBinding> bindings =
+          analyzer.analyzeAll(filter.getCondition());
+
+      // Intersect the conditions on the sort column. A condition that
+      // contains a parameter can only be evaluated on its own.
+      final List<SargBinding> used = new ArrayList<SargBinding>();
+      final List<SargBinding> residual = new ArrayList<SargBinding>();
+      SargBinding parameterBinding = null;
+      for (SargBinding binding : bindings) {
+        if (binding.getInputRef().getIndex() != sortField) {
+          residual.add(binding);
+        } else if (!hasDynamicParams(binding.getExpr())) {
+          used.add(binding);
+        } else if (parameterBinding == null) {
+          parameterBinding = binding;
+        } else {
+          residual.add(binding);
+        }
+      }
+      if (used.isEmpty()) {
+        if (parameterBinding == null) {
+          return;
+        }
+        used.add(parameterBinding);
+      } else if (parameterBinding != null) {
+        residual.add(parameterBinding);
+      }
+      final SargExpr expr;
+      if (used.size() == 1) {
+        expr = used.get(0).getExpr();
+      } else {
+        final SargSetExpr setExpr =
+            factory.newSetExpr(field.getType(),
+                SargSetOperator.INTERSECTION);
+        for (SargBinding binding : used) {
+          setExpr.addChild(binding.getExpr());
+        }
+        expr = setExpr;
+      }
+      final SargIntervalSequence intervals = expr.evaluate();
+      if (!canSeek(intervals)) {
+        return;
+      }
+      boolean points = true;
+      for (SargInterval interval : intervals.getList()) {
+        points &= interval.isPoint();
+      }
+
+      // The sort column is unique, so each point matches at most one row.
+      final double rowCount =
+          points
+              ? intervals.getList().size()
+              : scan.getRows()
+                * RelMdUtil.guessSelectivity(
+                    analyzer.getSargBindingListToRexNode(used));
+      RelNode rel =
+          new ArrayTableRangeRel(scan.getCluster(), scan.getTraitSet(),
+              scan.getTable(), sortField, intervals, rowCount);
+      final List<RexNode> conditions = new ArrayList<RexNode>();
+      if (analyzer.getNonSargFilterRexNode() != null) {
+        conditions.add(analyzer.getNonSargFilterRexNode());
+      }
+      if (!residual.isEmpty()) {
+        conditions.add(analyzer.getSargBindingListToRexNode(residual));
+      }
+      final RexNode condition =
+          RexUtil.composeConjunction(rexBuilder, conditions, true);
+      if (condition != null) {
+        rel = CalcRel.createFilter(rel, condition);
+      }
+      call.transformTo(rel);
+    }
+
+    private static boolean hasDynamicParams(SargExpr expr) {
+      final Set<RexDynamicParam> dynamicParams =
+          new HashSet<RexDynamicParam>();
+      expr.collectDynamicParams(dynamicParams);
+      return !dynamicParams.isEmpty();
+    }
+  }
+}
+
+// End ArrayTableRangeRel.java
@@ -0,0 +1,313 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.clone;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.rules.java.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+import org.eigenbase.sarg.*;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Relational expression that reads the blocks of rows of an
+ * {@link ArrayTable} that may satisfy conditions on columns, skipping blocks
+ * that cannot.
+ *
+ * <p>Each column of an {@code ArrayTable} has a zone map
+ * ({@link ArrayTable.ZoneMap}) that records the least and greatest value,
+ * and the number of null values, in each block of rows. A block can be
+ * skipped if, for some condition, no value between the least and greatest
+ * value satisfies it.</p>
+ *
+ * <p>The rows that are read do not necessarily satisfy the conditions, so
+ * the filter remains above this relational expression.</p>
+ */
+public class ArrayTableZoneMapRel extends TableAccessRelBase
+    implements EnumerableRel {
+  /** Rule that converts a filter on a scan of an {@link ArrayTable} into a
+   * filter on an {@code ArrayTableZoneMapRel}. */
+  static final RelOptRule RULE = new ArrayTableZoneMapRule();
+
+  private static final Method BLOCKS_METHOD =
+      Types.lookupMethod(ArrayTableZoneMapRel.class, "blocks", Table.class,
+          int[].class, Object[][].class, int[][].class, boolean[].class);
+
+  private final ImmutableList<Integer> fields;
+  private final ImmutableList<SargIntervalSequence> intervalsList;
+  private final double rowCount;
+
+  ArrayTableZoneMapRel(RelOptCluster cluster, RelTraitSet traitSet,
+      RelOptTable table, List<Integer> fields,
+      List<SargIntervalSequence> intervalsList, double rowCount) {
+    super(cluster, traitSet, table);
+    assert getConvention() instanceof EnumerableConvention;
+    assert fields.size() == intervalsList.size();
+    this.fields = ImmutableList.copyOf(fields);
+    this.intervalsList = ImmutableList.copyOf(intervalsList);
+    this.rowCount = rowCount;
+  }
+
+  @Override public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    assert inputs.isEmpty();
+    return new ArrayTableZoneMapRel(getCluster(), traitSet, table, fields,
+        intervalsList, rowCount);
+  }
+
+  @Override public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("fields", fields)
+        .item("intervals", intervalsList);
+  }
+
+  @Override public double getRows() {
+    return rowCount;
+  }
+
+  @Override public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    // Each block costs a check of its zone map for each column.
+    final double blockCount =
+        Math.ceil(table.getRowCount() / ArrayTable.ZoneMap.BLOCK_SIZE);
+    return planner.getCostFactory().makeCost(rowCount,
+        rowCount + blockCount * fields.size() + 1d, 0);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    // Generate:
+    //   ArrayTableZoneMapRel.blocks(schema.getTable("t"),
+    //       new int[] {field0, ...},
+    //       new Object[][] {new Object[] {lower0, upper0, ...}, ...},
+    //       new int[][] {new int[] {lowerType0, upperType0, ...}, ...},
+    //       new boolean[] {nulls0, ...})
+    final PhysType physType =
+        PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+            JavaRowFormat.ARRAY);
+    final List<Expression> fieldList = new ArrayList<Expression>();
+    final List<Expression> boundsList = new ArrayList<Expression>();
+    final List<Expression> boundTypesList = new ArrayList<Expression>();
+    final List<Expression> nullsList = new ArrayList<Expression>();
+    for (int i = 0; i < fields.size(); i++) {
+      final SargIntervalSequence intervals = intervalsList.get(i);
+      final List<Expression> bounds = new ArrayList<Expression>();
+      final List<Expression> boundTypes = new ArrayList<Expression>();
+      ArrayTableRangeRel.addBounds(implementor, intervals, bounds,
+          boundTypes);
+      fieldList.add(Expressions.constant(fields.get(i)));
+      boundsList.add(Expressions.newArrayInit(Object.class, bounds));
+      boundTypesList.add(Expressions.newArrayInit(int.class, boundTypes));
+      nullsList.add(Expressions.constant(matchesNull(intervals)));
+    }
+    final Expression expression =
+        Expressions.call(
+            BLOCKS_METHOD,
+            table.getExpression(Table.class),
+            Expressions.newArrayInit(int.class, fieldList),
+            Expressions.newArrayInit(Object[].class, boundsList),
+            Expressions.newArrayInit(int[].class, boundTypesList),
+            Expressions.newArrayInit(boolean.class, nullsList));
+    return implementor.result(physType, Blocks.toBlock(expression));
+  }
+
+  /** Returns whether the null value lies within a list of intervals. */
+  private static boolean matchesNull(SargIntervalSequence intervals) {
+    for (SargInterval interval : intervals.getList()) {
+      if (interval.getLowerBound().isNull()
+          && interval.getLowerBound().isClosed()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Converts intervals whose bounds are literals into values, in the
+   * format generated by {@link ArrayTableRangeRel#addBounds}. */
+  private static void addBounds(SargIntervalSequence intervals,
+      List<Object> bounds, List<Integer> boundTypes) {
+    for (SargInterval interval : intervals.getList()) {
+      final SargEndpoint lower = interval.getLowerBound();
+      final SargEndpoint upper = interval.getUpperBound();
+      if (upper.isNull()) {
+        continue;
+      }
+      if (lower.isNull()) {
+        bounds.add(null);
+        boundTypes.add(ArrayTable.UNBOUNDED);
+      } else {
+        addBound(lower, bounds, boundTypes);
+      }
+      addBound(upper, bounds, boundTypes);
+    }
+  }
+
+  private static void addBound(SargEndpoint endpoint, List<Object> bounds,
+      List<Integer> boundTypes) {
+    if (!endpoint.isFinite()) {
+      bounds.add(null);
+      boundTypes.add(ArrayTable.UNBOUNDED);
+    } else {
+      bounds.add(((RexLiteral) endpoint.getCoordinate()).getValue3());
+      boundTypes.add(endpoint.isClosed() ? ArrayTable.CLOSED : ArrayTable.OPEN);
+    }
+  }
+
+  private static int[] toIntArray(List<Integer> list) {
+    final int[] ints = new int[list.size()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = list.get(i);
+    }
+    return ints;
+  }
+
+  /** Returns the rows in blocks of a table that may satisfy conditions on
+   * a list of columns. Called from generated code.
+   *
+   * @see ArrayTable#blocks(int[], Object[][], int[][], boolean[]) */
+  public static Enumerable<Object> blocks(Table table, int[] fields,
+      Object[][] bounds, int[][] boundTypes, boolean[] nulls) {
+    return ((ArrayTable) table).blocks(fields, bounds, boundTypes, nulls);
+  }
+
+  /** Rule that converts a {@link FilterRel} on an {@link ArrayTable} into a
+   * filter on an {@link ArrayTableZoneMapRel}, if zone maps show that some
+   * blocks of rows cannot satisfy the filter.
+   *
+   * <p>Only conditions that compare a column other than the sort column to
+   * literals are used to skip blocks. Conditions on the sort column are
+   * handled better by {@link ArrayTableRangeRel}; the values of parameters
+   * are not known at planning time, so their selectivity cannot be
+   * estimated.</p> */
+  private static class ArrayTableZoneMapRule extends RelOptRule {
+    ArrayTableZoneMapRule() {
+      super(
+          operand(FilterRel.class,
+              operand(JavaRules.EnumerableTableAccessRel.class, none())),
+          "ArrayTableZoneMapRule");
+    }
+
+    @Override public void onMatch(RelOptRuleCall call) {
+      final FilterRel filter = call.rel(0);
+      final JavaRules.EnumerableTableAccessRel scan = call.rel(1);
+      final ArrayTable arrayTable = scan.getTable().unwrap(ArrayTable.class);
+      if (arrayTable == null) {
+        return;
+      }
+      final SargFactory factory =
+          new SargFactory(filter.getCluster().getRexBuilder());
+      final List<SargBinding> bindings =
+          factory.newRexAnalyzer().analyzeAll(filter.getCondition());
+
+      // Gather the conditions on each column.
+      final SortedMap<Integer, List<SargExpr>> exprs =
+          new TreeMap<Integer, List<SargExpr>>();
+      for (SargBinding binding : bindings) {
+        final int field = binding.getInputRef().getIndex();
+        if (field == arrayTable.sortField()) {
+          continue;
+        }
+        final Set<RexDynamicParam> dynamicParams =
+            new HashSet<RexDynamicParam>();
+        binding.getExpr().collectDynamicParams(dynamicParams);
+        if (!dynamicParams.isEmpty()) {
+          continue;
+        }
+        List<SargExpr> list = exprs.get(field);
+        if (list == null) {
+          list = new ArrayList<SargExpr>();
+          exprs.put(field, list);
+        }
+        list.add(binding.getExpr());
+      }
+
+      final List<Integer> fields = new ArrayList<Integer>();
+      final List<SargIntervalSequence> intervalsList =
+          new ArrayList<SargIntervalSequence>();
+      final List<Object[]> boundsList = new ArrayList<Object[]>();
+      final List<int[]> boundTypesList = new ArrayList<int[]>();
+      final List<Boolean> nullsList = new ArrayList<Boolean>();
+      for (Map.Entry<Integer, List<SargExpr>> entry : exprs.entrySet()) {
+        final RelDataType type =
+            scan.getRowType().getFieldList().get(entry.getKey()).getType();
+        if (!ArrayTableRangeRel.canSeek(type)) {
+          continue;
+        }
+        final SargExpr expr;
+        if (entry.getValue().size() == 1) {
+          expr = entry.getValue().get(0);
+        } else {
+          final SargSetExpr setExpr =
+              factory.newSetExpr(type, SargSetOperator.INTERSECTION);
+          for (SargExpr e : entry.getValue()) {
+            setExpr.addChild(e);
+          }
+          expr = setExpr;
+        }
+        final SargIntervalSequence intervals = expr.evaluate();
+        if (!ArrayTableRangeRel.canSeek(intervals)) {
+          continue;
+        }
+        final List<Object> bounds = new ArrayList<Object>();
+        final List<Integer> boundTypes = new ArrayList<Integer>();
+        addBounds(intervals, bounds, boundTypes);
+        fields.add(entry.getKey());
+        intervalsList.add(intervals);
+        boundsList.add(bounds.toArray());
+        boundTypesList.add(toIntArray(boundTypes));
+        nullsList.add(matchesNull(intervals));
+      }
+      if (fields.isEmpty()) {
+        return;
+      }
+
+      // Evaluate the conditions against the zone maps now, to find out how
+      // many rows will be read.
+      final boolean[] nulls = new boolean[nullsList.size()];
+      for (int i = 0; i < nulls.length; i++) {
+        nulls[i] = nullsList.get(i);
+      }
+      final int[] ranges =
+          arrayTable.blockRanges(toIntArray(fields),
+              boundsList.toArray(new Object[boundsList.size()][]),
+              boundTypesList.toArray(new int[boundTypesList.size()][]),
+              nulls);
+      int rowCount = 0;
+      for (int i = 0; i < ranges.length; i += 2) {
+        rowCount += ranges[i + 1] - ranges[i];
+      }
+      if (rowCount >= scan.getRows()) {
+        // No block can be skipped.
+        return;
+      }
+      final RelNode rel =
+          new ArrayTableZoneMapRel(scan.getCluster(), scan.getTraitSet(),
+              scan.getTable(), fields, intervalsList, rowCount);
+      call.transformTo(CalcRel.createFilter(rel, filter.getCondition()));
+    }
+  }
+}
+
+// End ArrayTableZoneMapRel.java
@@ -246,6 +246,13 @@ public int size() {
       }
       representationValues.add(valueSet.freeze(pair.i, sources));
     }
+
+    // Rows are now in their final order. Summarize each block of rows of
+    // each column, so that scans can skip blocks.
+    for (int i = 0; i < representationValues.size(); i++) {
+      representationValues.set(i,
+          representationValues.get(i).withZoneMap(list.size()));
+    }
   }
 
   /** Adapt for some types that we represent differently internally than their
@@ -0,0 +1,407 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.jdbc;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Limits the number of concurrent statements that Optiq sends to a JDBC
+ * backend.
+ *
+ * <p>Each JDBC sub-query holds a connection while it runs, so the limiter
+ * counts open connections. A caller that would exceed the limit waits in a
+ * fair queue; if it has not been admitted within the timeout, it gets a
+ * {@link SQLException}.</p>
+ *
+ * <p>A statement that opens a second connection to the same backend while
+ * it holds one (for example, a bind join that reads one side while it
+ * queries the other) needs two permits. If its thread already holds every
+ * permit, no other thread can release one, so the limiter fails immediately
+ * rather than wait for the timeout. If it holds some permits, it may still
+ * wait on other threads that are doing the same, and the timeout breaks
+ * that deadlock. Set the limit to at least the number of connections that
+ * one statement opens.</p>
+ *
+ * <p>Schemas that read from the same backend (JDBC URL and user name) with
+ * the same limit and timeout share a limiter. A limiter is held only by the
+ * data sources that use it, and is discarded once they have been
+ * garbage-collected. If schemas give different settings for the same
+ * backend, each gets its own limiter, and a warning is logged because the
+ * backend may then receive more statements than either limit allows.</p>
+ */
+public class JdbcBackendLimiter {
+  private static final Logger LOGGER =
+      Logger.getLogger(JdbcBackendLimiter.class.getName());
+
+  /** Limiters, keyed by URL, user name, limit and timeout. Values are weak,
+   * so that a limiter does not outlive the data sources that use it. */
+  private static final LoadingCache<List<Object>, JdbcBackendLimiter> CACHE =
+      CacheBuilder.newBuilder()
+          .weakValues()
+          .build(
+              new CacheLoader<List<Object>, JdbcBackendLimiter>() {
+                @Override
+                public JdbcBackendLimiter load(List<Object> key) {
+                  return create(key);
+                }
+              });
+
+  private final String user;
+
+  private final String url;
+  private final int maxConcurrent;
+  private final long timeoutMillis;
+  private final Semaphore semaphore;
+
+  private final AtomicInteger waitingCount = new AtomicInteger();
+  private final AtomicLong admittedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+
+  /** Number of permits held by each thread. Guarded by itself. */
+  private final Map<Thread, Integer> heldCounts =
+      new HashMap<Thread, Integer>();
+
+  private JdbcBackendLimiter(String url, String user, int maxConcurrent,
+      long timeoutMillis) {
+    this.url = url;
+    this.user = user;
+    this.maxConcurrent = maxConcurrent;
+    this.timeoutMillis = timeoutMillis;
+    this.semaphore = new Semaphore(maxConcurrent, true);
+  }
+
+  /** Returns the limiter for a backend with given settings, creating it if
+   * necessary.
+   *
+   * @param url JDBC URL
+   * @param user User name
+   * @param maxConcurrent Maximum number of concurrent statements
+   * @param timeoutMillis Maximum time to wait for admission, in milliseconds;
+   *                      if not positive, wait indefinitely
+   */
+  public static JdbcBackendLimiter of(String url, String user,
+      int maxConcurrent, long timeoutMillis) {
+    assert maxConcurrent > 0;
+    return CACHE.getUnchecked(
+        Arrays.<Object>asList(url, user, maxConcurrent, timeoutMillis));
+  }
+
+  /** Creates a limiter, warning if the same backend already has a limiter
+   * with different settings. */
+  private static JdbcBackendLimiter create(List<Object> key) {
+    final JdbcBackendLimiter limiter =
+        new JdbcBackendLimiter((String) key.get(0), (String) key.get(1),
+            (Integer) key.get(2), (Long) key.get(3));
+    for (JdbcBackendLimiter other : CACHE.asMap().values()) {
+      if (other.url.equals(limiter.url)
+          && (other.user == null
+              ? limiter.user == null
+              : other.user.equals(limiter.user))) {
+        LOGGER.warning("JDBC backend '" + limiter.url + "' (user '"
+            + limiter.user + "') already has a limiter with "
+            + "maxConcurrentQueries=" + other.maxConcurrent
+            + " and queueTimeout=" + other.timeoutMillis
+            + "; creating a separate limiter with maxConcurrentQueries="
+            + limiter.maxConcurrent + " and queueTimeout="
+            + limiter.timeoutMillis + "; the backend may receive more "
+            + "concurrent statements than either limit allows");
+        break;
+      }
+    }
+    return limiter;
+  }
+
+  /** Wraps a data source so that each connection it creates holds a permit
+   * from this limiter until it is closed. */
+  public DataSource limit(DataSource dataSource) {
+    return new LimitingDataSource(dataSource, this);
+  }
+
+  /** Waits until a permit is available, and returns the thread that holds
+   * it. */
+  Thread acquire() throws SQLException {
+    final Thread thread = Thread.currentThread();
+    final int held = heldCount(thread);
+    if (held >= maxConcurrent) {
+      rejectedCount.incrementAndGet();
+      throw new SQLException(
+          "Cannot open another connection to '" + url + "': this thread "
+          + "already holds " + held + " of the " + maxConcurrent
+          + " allowed, and waiting would deadlock; increase "
+          + "maxConcurrentQueries");
+    }
+    final long start = System.currentTimeMillis();
+    waitingCount.incrementAndGet();
+    try {
+      if (timeoutMillis > 0) {
+        if (!semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          rejectedCount.incrementAndGet();
+          throw new SQLException(
+              "Timed out after " + timeoutMillis + " ms waiting to execute "
+              + "statement on '" + url + "'; " + maxConcurrent
+              + " statements already running"
+              + (held > 0
+                  ? ", " + held + " of them opened by this thread"
+                  : ""));
+        }
+      } else {
+        semaphore.acquire();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejectedCount.incrementAndGet();
+      throw new SQLException(
+          "Interrupted while waiting to execute statement on '" + url + "'");
+    } finally {
+      waitingCount.decrementAndGet();
+    }
+    synchronized (heldCounts) {
+      heldCounts.put(thread, heldCount(thread) + 1);
+    }
+    admittedCount.incrementAndGet();
+    totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+    return thread;
+  }
+
+  /** Returns a permit acquired by a given thread. */
+  void release(Thread thread) {
+    synchronized (heldCounts) {
+      final int held = heldCount(thread);
+      if (held <= 1) {
+        heldCounts.remove(thread);
+      } else {
+        heldCounts.put(thread, held - 1);
+      }
+    }
+    semaphore.release();
+  }
+
+  /** Returns the number of permits held by a thread. */
+  private int heldCount(Thread thread) {
+    synchronized (heldCounts) {
+      final Integer held = heldCounts.get(thread);
+      return held == null ? 0 : held;
+    }
+  }
+
+  /** Returns a snapshot of this limiter's statistics. */
+  public Metrics metrics() {
+    return new Metrics(maxConcurrent,
+        maxConcurrent - semaphore.availablePermits(), waitingCount.get(),
+        admittedCount.get(), rejectedCount.get(), totalWaitMillis.get());
+  }
+
+  /** Statistics about a {@link JdbcBackendLimiter}. */
+  public static class Metrics {
+    /** Maximum number of concurrent statements. */
+    public final int maxConcurrent;
+    /** Number of statements currently running. */
+    public final int runningCount;
+    /** Number of statements waiting to be admitted. */
+    public final int waitingCount;
+    /** Number of statements that have been admitted. */
+    public final long admittedCount;
+    /** Number of statements that timed out while waiting. */
+    public final long rejectedCount;
+    /** Total time that admitted statements spent waiting, in
+     * milliseconds. */
+    public final long totalWaitMillis;
+
+    Metrics(int maxConcurrent, int runningCount, int waitingCount,
+        long admittedCount, long rejectedCount, long totalWaitMillis) {
+      this.maxConcurrent = maxConcurrent;
+      this.runningCount = runningCount;
+      this.waitingCount = waitingCount;
+      this.admittedCount = admittedCount;
+      this.rejectedCount = rejectedCount;
+      this.totalWaitMillis = totalWaitMillis;
+    }
+
+    @Override public String toString() {
+      return "maxConcurrent=" + maxConcurrent
+          + ", runningCount=" + runningCount
+          + ", waitingCount=" + waitingCount
+          + ", admittedCount=" + admittedCount
+          + ", rejectedCount=" + rejectedCount
+          + ", totalWaitMillis=" + totalWaitMillis;
+    }
+  }
+
+  /** Data source whose connections are admitted by a
+   * {@link JdbcBackendLimiter}. */
+  static class LimitingDataSource implements DataSource {
+    final DataSource dataSource;
+    final JdbcBackendLimiter limiter;
+
+    LimitingDataSource(DataSource dataSource, JdbcBackendLimiter limiter) {
+      this.dataSource = dataSource;
+      this.limiter = limiter;
+    }
+
+    public Connection getConnection() throws SQLException {
+      return wrap(limiter.acquire(), null, null);
+    }
+
+    public Connection getConnection(String username, String password)
+        throws SQLException {
+      return wrap(limiter.acquire(), username, password);
+    }
+
+    private Connection wrap(Thread thread, String username,
+        String password) throws SQLException {
+      final Connection connection;
+      try {
+        connection = username == null
+            ? dataSource.getConnection()
+            : dataSource.getConnection(username, password);
+      } catch (SQLException e) {
+        limiter.release(thread);
+        throw e;
+      } catch (RuntimeException e) {
+        limiter.release(thread);
+        throw e;
+      }
+      return (Connection) Proxy.newProxyInstance(
+          Connection.class.getClassLoader(),
+          new Class[] {Connection.class},
+          new ConnectionHandler(connection, limiter, thread));
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+      return dataSource.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+      dataSource.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+      dataSource.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+      return dataSource.getLoginTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) {
+        return iface.cast(this);
+      }
+      return dataSource.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+      return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    // JDBC 4.1 support (JDK 1.7 and higher)
+    public Logger getParentLogger() {
+      return Logger.getLogger("");
+    }
+  }
+
+  /** Handler for a connection created by a {@link LimitingDataSource}.
+   * Returns its permit when the connection is first closed.
+   *
+   * <p>Wraps statements so that {@link Statement#getConnection()} returns the
+   * proxy, not the underlying connection, and therefore closing the
+   * connection obtained from a statement also returns the permit. Result sets
+   * are not wrapped, because that would slow down every row; callers should
+   * keep a reference to the connection rather than use
+   * {@link ResultSet#getStatement()}.</p> */
+  private static class ConnectionHandler implements InvocationHandler {
+    private final Connection connection;
+    private final JdbcBackendLimiter limiter;
+    private final Thread thread;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ConnectionHandler(Connection connection, JdbcBackendLimiter limiter,
+        Thread thread) {
+      this.connection = connection;
+      this.limiter = limiter;
+      this.thread = thread;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      if (method.getName().equals("close") && args == null) {
+        try {
+          return JdbcBackendLimiter.invoke(connection, method, args);
+        } finally {
+          if (released.compareAndSet(false, true)) {
+            limiter.release(thread);
+          }
+        }
+      }
+      final Object o = JdbcBackendLimiter.invoke(connection, method, args);
+      if (o instanceof Statement
+          && Statement.class.isAssignableFrom(method.getReturnType())) {
+        return Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class[] {method.getReturnType()},
+            new StatementHandler((Statement) o, (Connection) proxy));
+      }
+      return o;
+    }
+  }
+
+  /** Handler for a statement created by a connection from a
+   * {@link LimitingDataSource}. */
+  private static class StatementHandler implements InvocationHandler {
+    private final Statement statement;
+    private final Connection connectionProxy;
+
+    StatementHandler(Statement statement, Connection connectionProxy) {
+      this.statement = statement;
+      this.connectionProxy = connectionProxy;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      if (method.getName().equals("getConnection") && args == null) {
+        return connectionProxy;
+      }
+      return JdbcBackendLimiter.invoke(statement, method, args);
+    }
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+}
+
+// End JdbcBackendLimiter.java
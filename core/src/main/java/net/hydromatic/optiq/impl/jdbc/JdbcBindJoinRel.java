@@ -0,0 +1,238 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.jdbc;
+
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.BuiltinMethod;
+import net.hydromatic.optiq.Schemas;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.prepare.OptiqPrepareImpl;
+import net.hydromatic.optiq.rules.java.*;
+import net.hydromatic.optiq.runtime.Hook;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.RexNode;
+import org.eigenbase.sql.SqlDialect;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Join that reads its left input, then looks up matching rows of its right
+ * input in a JDBC database, a batch of keys at a time.
+ *
+ * <p>For each batch of distinct join keys from the left input, it executes
+ * a query "SELECT * FROM (right) WHERE key = ? OR key = ? ..." against the
+ * right input's database, then joins the left rows to the rows returned.
+ * If the left input is small and the right input is large, this is much
+ * cheaper than reading all of the right input.</p>
+ *
+ * <p>The left input is read once and held in memory.</p>
+ */
+public class JdbcBindJoinRel extends JavaRules.EnumerableJoinRel {
+  /** Default number of keys per query. */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /** Cost of one round trip to the database, expressed as a number of
+   * rows. */
+  private static final double ROUND_TRIP_ROWS = 100d;
+
+  final int batchSize;
+
+  protected JdbcBindJoinRel(
+      RelOptCluster cluster,
+      RelTraitSet traits,
+      RelNode left,
+      RelNode right,
+      RexNode condition,
+      Set<String> variablesStopped,
+      int batchSize)
+    throws InvalidRelException {
+    super(cluster, traits, left, right, condition, JoinRelType.INNER,
+        variablesStopped);
+    assert batchSize > 0;
+    assert right.getConvention() instanceof JdbcConvention;
+    this.batchSize = batchSize;
+    if (leftKeys.isEmpty()) {
+      throw new InvalidRelException("JdbcBindJoinRel requires join keys");
+    }
+  }
+
+  @Override
+  public JdbcBindJoinRel copy(RelTraitSet traitSet, RexNode conditionExpr,
+      RelNode left, RelNode right, JoinRelType joinType) {
+    assert joinType == JoinRelType.INNER;
+    try {
+      return new JdbcBindJoinRel(getCluster(), traitSet, left, right,
+          conditionExpr, variablesStopped, batchSize);
+    } catch (InvalidRelException e) {
+      // Semantic error not possible. Must be a bug. Convert to
+      // internal error.
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    // We read the left input, and receive each output row. Each batch of
+    // keys costs a round trip. The right input is never read in full, but
+    // the planner will add its cost anyway; we beat a hash join because we
+    // do not pay the cost of converting all of its rows.
+    final double leftRowCount = RelMetadataQuery.getRowCount(left);
+    final double roundTrips = Math.ceil(leftRowCount / batchSize);
+    final double rowCount = RelMetadataQuery.getRowCount(this)
+        + leftRowCount
+        + roundTrips * ROUND_TRIP_ROWS;
+    return planner.getCostFactory().makeCost(rowCount, 0, 0);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("batchSize", batchSize);
+  }
+
+  @Override
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    // Generate:
+    //   leftRows = Linq4j.asEnumerable(left.into(new ArrayList()));
+    //   right = ResultSetEnumerable.ofLookup(schema.getDataSource(),
+    //       "select ... where ", "\"t\".\"k\" = ?", 1,
+    //       leftRows.select(leftKeySelector), 100, rowBuilderFactory);
+    //   return leftRows.join(right, leftKeySelector, rightKeySelector,
+    //       resultSelector);
+    final BlockBuilder builder = new BlockBuilder();
+    final JavaTypeFactory typeFactory = implementor.getTypeFactory();
+    final Result leftResult =
+        implementor.visitChild(this, 0, (EnumerableRel) left, pref);
+    final Expression left_ =
+        builder.append("left", leftResult.block);
+    final Expression leftRows_ =
+        builder.append("leftRows",
+            Expressions.call(
+                BuiltinMethod.AS_ENUMERABLE2.method,
+                Expressions.call(
+                    left_,
+                    BuiltinMethod.INTO.method,
+                    Expressions.new_(ArrayList.class))));
+    final Expression keys_ =
+        builder.append("keys",
+            Expressions.call(
+                leftRows_,
+                BuiltinMethod.SELECT.method,
+                leftResult.physType.generateAccessor(leftKeys)));
+
+    final JdbcConvention jdbcConvention =
+        (JdbcConvention) right.getConvention();
+    final SqlDialect dialect = jdbcConvention.dialect;
+    final String sql = generateSql(dialect);
+    final String keyPredicate = generateKeyPredicate(dialect);
+    if (OptiqPrepareImpl.DEBUG) {
+      System.out.println("[" + sql + keyPredicate + "]");
+    }
+    Hook.QUERY_PLAN.run(sql + keyPredicate);
+    final PhysType rightPhysType =
+        PhysTypeImpl.of(typeFactory, right.getRowType(), JavaRowFormat.ARRAY);
+    final Expression dataSource_ =
+        Expressions.call(
+            Schemas.unwrap(jdbcConvention.expression, JdbcSchema.class),
+            BuiltinMethod.JDBC_SCHEMA_DATA_SOURCE.method);
+    final Expression rowBuilderFactory_ =
+        JdbcToEnumerableConverter.generateRowBuilderFactory(implementor,
+            builder, rightPhysType, dialect);
+    final Expression right_ =
+        builder.append("right",
+            Expressions.call(
+                BuiltinMethod.RESULT_SET_ENUMERABLE_OF_LOOKUP.method,
+                dataSource_,
+                Expressions.constant(sql),
+                Expressions.constant(keyPredicate),
+                Expressions.constant(leftKeys.size()),
+                keys_,
+                Expressions.constant(batchSize),
+                rowBuilderFactory_));
+
+    final PhysType physType =
+        PhysTypeImpl.of(typeFactory, getRowType(), pref.preferArray());
+    final PhysType keyPhysType =
+        leftResult.physType.project(leftKeys, JavaRowFormat.LIST);
+    return implementor.result(
+        physType,
+        builder.append(
+            Expressions.call(
+                leftRows_,
+                BuiltinMethod.JOIN.method,
+                Expressions.list(
+                    right_,
+                    leftResult.physType.generateAccessor(leftKeys),
+                    rightPhysType.generateAccessor(rightKeys),
+                    generateSelector(
+                        physType,
+                        ImmutableList.of(leftResult.physType, rightPhysType)))
+                    .appendIfNotNull(keyPhysType.comparer()))).toBlock());
+  }
+
+  /** Generates the query that reads the right input, up to and including
+   * the "WHERE" keyword, for example
+   * "SELECT * FROM (SELECT ... FROM "emp") "t" WHERE ". */
+  private String generateSql(SqlDialect dialect) {
+    final JdbcImplementor jdbcImplementor =
+        new JdbcImplementor(dialect,
+            (JavaTypeFactory) getCluster().getTypeFactory());
+    final JdbcImplementor.Result result =
+        jdbcImplementor.visitChild(1, right);
+    final String sql = result.asStatement().toSqlString(dialect).getSql();
+    // Omit "AS" before the alias; some databases (e.g. Oracle) do not
+    // allow it.
+    return "SELECT * FROM (" + sql + ") " + dialect.quoteIdentifier("t")
+        + " WHERE ";
+  }
+
+  /** Generates a predicate that matches one key, for example
+   * {@code "t"."deptno" = ?}, or
+   * {@code ("t"."deptno" = ? AND "t"."gender" = ?)} if there are several
+   * key columns. */
+  private String generateKeyPredicate(SqlDialect dialect) {
+    final List<String> fieldNames = right.getRowType().getFieldNames();
+    final StringBuilder buf = new StringBuilder();
+    if (rightKeys.size() > 1) {
+      buf.append("(");
+    }
+    for (int i = 0; i < rightKeys.size(); i++) {
+      if (i > 0) {
+        buf.append(" AND ");
+      }
+      buf.append(dialect.quoteIdentifier("t"))
+          .append(".")
+          .append(dialect.quoteIdentifier(fieldNames.get(rightKeys.get(i))))
+          .append(" = ?");
+    }
+    if (rightKeys.size() > 1) {
+      buf.append(")");
+    }
+    return buf.toString();
+  }
+}
+
+// End JdbcBindJoinRel.java
@@ -0,0 +1,138 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.jdbc;
+
+import net.hydromatic.optiq.rules.java.EnumerableConvention;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.relopt.volcano.RelSubset;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.RexNode;
+
+import java.util.*;
+
+/**
+ * Rule that converts an inner equi-join to a {@link JdbcBindJoinRel} whose
+ * right input is in a given {@link JdbcConvention}.
+ *
+ * <p>Does not fire if the left input reads only from the same database as
+ * the right input; {@link JdbcRules} will push the whole join to that
+ * database.</p>
+ */
+public class JdbcBindJoinRule extends RelOptRule {
+  private final JdbcConvention out;
+
+  JdbcBindJoinRule(JdbcConvention out) {
+    // The convention is part of the description, because each JDBC
+    // database in the query registers its own instance of this rule.
+    super(operand(JoinRel.class, any()), "JdbcBindJoinRule:" + out);
+    this.out = out;
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final JoinRel join = call.rel(0);
+    if (join.getJoinType() != JoinRelType.INNER) {
+      return;
+    }
+    final List<Integer> leftKeys = new ArrayList<Integer>();
+    final List<Integer> rightKeys = new ArrayList<Integer>();
+    final RexNode remaining =
+        RelOptUtil.splitJoinCondition(join.getLeft(), join.getRight(),
+            join.getCondition(), leftKeys, rightKeys);
+    if (leftKeys.isEmpty() || !remaining.isAlwaysTrue()) {
+      return;
+    }
+    final List<RelDataTypeField> rightFields =
+        join.getRight().getRowType().getFieldList();
+    for (int rightKey : rightKeys) {
+      if (!canBind(rightFields.get(rightKey))) {
+        return;
+      }
+    }
+    if (readsOnly(join.getLeft(), out, new HashSet<RelNode>())) {
+      return;
+    }
+    final RelTraitSet traitSet =
+        join.getTraitSet().replace(EnumerableConvention.INSTANCE);
+    final RelNode left = convert(join.getLeft(), traitSet);
+    final RelNode right =
+        convert(join.getRight(), join.getTraitSet().replace(out));
+    try {
+      call.transformTo(
+          new JdbcBindJoinRel(join.getCluster(), traitSet, left, right,
+              join.getCondition(), join.getVariablesStopped(),
+              JdbcBindJoinRel.DEFAULT_BATCH_SIZE));
+    } catch (InvalidRelException e) {
+      JdbcRules.LOGGER.fine(e.toString());
+    }
+  }
+
+  /** Returns whether we can pass values of a field's type as parameters to a
+   * JDBC statement. Optiq represents date-time values as numbers, which the
+   * database would not accept. */
+  private static boolean canBind(RelDataTypeField field) {
+    switch (field.getType().getSqlTypeName()) {
+    case BOOLEAN:
+    case TINYINT:
+    case SMALLINT:
+    case INTEGER:
+    case BIGINT:
+    case DECIMAL:
+    case FLOAT:
+    case REAL:
+    case DOUBLE:
+    case CHAR:
+    case VARCHAR:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether every table read by a relational expression is in the
+   * database of a given JDBC convention. Follows the first logical (or
+   * table scan) expression in each subset. */
+  private static boolean readsOnly(RelNode rel, JdbcConvention convention,
+      Set<RelNode> active) {
+    if (rel instanceof RelSubset) {
+      if (!active.add(rel)) {
+        return false;
+      }
+      for (RelNode rel2 : ((RelSubset) rel).getRelList()) {
+        if (rel2 instanceof TableAccessRelBase
+            || rel2.getConvention() == Convention.NONE) {
+          return readsOnly(rel2, convention, active);
+        }
+      }
+      return false;
+    }
+    if (rel instanceof TableAccessRelBase) {
+      final JdbcTable table = rel.getTable().unwrap(JdbcTable.class);
+      return table != null && table.jdbcSchema.convention == convention;
+    }
+    for (RelNode input : rel.getInputs()) {
+      if (!readsOnly(input, convention, active)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
+
+// End JdbcBindJoinRule.java
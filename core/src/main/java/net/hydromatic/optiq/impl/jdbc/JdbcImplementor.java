@@ -446,6 +446,16 @@ public SqlNode asQuery() {
       return asSelect();
     }
 
+    /** Converts a node into a statement that can be executed. DML statements
+     * (INSERT) remain as is; anything else is converted as by
+     * {@link #asQuery()}. */
+    public SqlNode asStatement() {
+      if (node.getKind() == SqlKind.INSERT) {
+        return node;
+      }
+      return asQuery();
+    }
+
     /** Returns a context that always qualifies identifiers. Useful if the
      * Context deals with just one arm of a join, yet we wish to generate
      * a join condition that qualifies column names to disambiguate them. */
@@ -488,6 +498,16 @@ public void setOrderBy(SqlNodeList nodeList) {
       select.setOrderBy(nodeList);
     }
 
+    public void setOffset(SqlNode node) {
+      assert clauses.contains(Clause.FETCH);
+      select.setOffset(node);
+    }
+
+    public void setFetch(SqlNode node) {
+      assert clauses.contains(Clause.FETCH);
+      select.setFetch(node);
+    }
+
     public Result result() {
       return JdbcImplementor.this.result(select, clauses, rel);
     }
@@ -496,7 +516,7 @@ public Result result() {
   /** Clauses in a SQL query. Ordered by evaluation order.
    * SELECT is set only when there is a NON-TRIVIAL SELECT clause. */
   enum Clause {
-    FROM, WHERE, GROUP_BY, HAVING, SELECT, SET_OP, ORDER_BY
+    FROM, WHERE, GROUP_BY, HAVING, SELECT, SET_OP, ORDER_BY, FETCH
   }
 }
 
@@ -0,0 +1,319 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.jdbc;
+
+import net.hydromatic.optiq.Schema;
+
+import org.eigenbase.reltype.RelProtoDataType;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Cache of the metadata (tables, and the columns of each table) of JDBC
+ * schemas.
+ *
+ * <p>Reading metadata via {@link java.sql.DatabaseMetaData#getTables} and
+ * {@link java.sql.DatabaseMetaData#getColumns} can take seconds on a large
+ * catalog. The list of tables is read when the schema is first used; the
+ * columns of a table are read when that table is first used.</p>
+ *
+ * <p>If a schema has no time-to-live, its metadata belongs to that schema
+ * (and therefore to its connection) and is read once, as before. If a schema
+ * has a time-to-live, its metadata is shared by all {@link JdbcSchema}
+ * instances that read the same database schema with the same time-to-live,
+ * so only the first connection pays, and is re-read in the background once
+ * per time-to-live interval. Queries continue to use the previous metadata
+ * until the refresh completes. Call {@link Entry#invalidate()} to discard
+ * metadata so that it is re-read on next use.</p>
+ *
+ * <p>A shared entry holds only a weak reference to the schemas that use it,
+ * and refreshes via the data source of the schema that used it most
+ * recently. Once that schema has been garbage-collected, the next refresh
+ * removes the entry from the cache and cancels its refresh task.</p>
+ */
+public class JdbcMetadataCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(JdbcMetadataCache.class.getName());
+
+  /** The cache shared by all JDBC schemas. */
+  public static final JdbcMetadataCache INSTANCE = new JdbcMetadataCache();
+
+  private final ConcurrentMap<List<Object>, Entry> map =
+      new ConcurrentHashMap<List<Object>, Entry>();
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              final Thread thread = new Thread(r, "optiq-jdbc-metadata");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  /** Returns the shared entry for a JDBC schema, creating it if necessary.
+   *
+   * @param schema JDBC schema
+   * @param ttlMillis Time-to-live of the metadata, in milliseconds; must be
+   *                  positive
+   */
+  Entry entry(JdbcSchema schema, long ttlMillis) {
+    assert ttlMillis > 0 : ttlMillis;
+    final List<Object> key =
+        Arrays.asList(dataSourceKey(schema.dataSource), schema.catalog,
+            schema.schema, ttlMillis);
+    Entry entry = map.get(key);
+    if (entry == null) {
+      final Entry newEntry = new Entry();
+      entry = map.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+        newEntry.future =
+            scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                  public void run() {
+                    if (!newEntry.refresh()) {
+                      remove(key, newEntry);
+                    }
+                  }
+                },
+                ttlMillis, ttlMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    entry.use(schema);
+    return entry;
+  }
+
+  /** Removes an entry from the cache and cancels its refresh. */
+  private void remove(List<Object> key, Entry entry) {
+    map.remove(key, entry);
+    final ScheduledFuture<?> future = entry.future;
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+  /** Discards the metadata of every schema in this cache. */
+  public void invalidateAll() {
+    for (Entry entry : map.values()) {
+      entry.invalidate();
+    }
+  }
+
+  /** Returns an object that identifies the database a data source connects
+   * to. Each connection creates its own {@link BasicDataSource}, so for those
+   * we use the URL and user name rather than the data source itself. */
+  private static Object dataSourceKey(DataSource dataSource) {
+    if (dataSource instanceof JdbcBackendLimiter.LimitingDataSource) {
+      dataSource = ((JdbcBackendLimiter.LimitingDataSource) dataSource)
+          .dataSource;
+    }
+    if (dataSource instanceof BasicDataSource) {
+      final BasicDataSource basicDataSource = (BasicDataSource) dataSource;
+      return Arrays.asList(basicDataSource.getUrl(),
+          basicDataSource.getUsername());
+    }
+    return dataSource;
+  }
+
+  /** Definition of a table, as returned by
+   * {@link java.sql.DatabaseMetaData#getTables}. */
+  static class TableDef {
+    final String catalogName;
+    final String schemaName;
+    final String tableName;
+    final Schema.TableType tableType;
+
+    TableDef(String catalogName, String schemaName, String tableName,
+        Schema.TableType tableType) {
+      this.catalogName = catalogName;
+      this.schemaName = schemaName;
+      this.tableName = tableName;
+      this.tableType = tableType;
+    }
+  }
+
+  /** Cached metadata of one JDBC schema. */
+  public static class Entry {
+    /** Schema that most recently used this entry; used to refresh. */
+    private volatile WeakReference<JdbcSchema> schemaRef;
+    /** Background refresh task, or null if this entry is not shared. */
+    private volatile ScheduledFuture<?> future;
+
+    private volatile ImmutableMap<String, TableDef> tables;
+    private final ConcurrentMap<List<String>, RelProtoDataType> columns =
+        new ConcurrentHashMap<List<String>, RelProtoDataType>();
+
+    /** Time that metadata was last read, or 0 if it has not been read. */
+    private long loadTime;
+    private int refreshCount;
+    private int failureCount;
+    private long lastRefreshMillis;
+    private long totalRefreshMillis;
+
+    Entry() {
+    }
+
+    /** Records that a schema is using this entry. */
+    private void use(JdbcSchema schema) {
+      final WeakReference<JdbcSchema> ref = schemaRef;
+      if (ref == null || ref.get() != schema) {
+        schemaRef = new WeakReference<JdbcSchema>(schema);
+      }
+    }
+
+    /** Returns the tables in the schema, reading them via the given schema
+     * if necessary. */
+    ImmutableMap<String, TableDef> tables(JdbcSchema schema) {
+      ImmutableMap<String, TableDef> tables = this.tables;
+      if (tables == null) {
+        synchronized (this) {
+          tables = this.tables;
+          if (tables == null) {
+            final long start = System.currentTimeMillis();
+            tables = schema.loadTables();
+            this.tables = tables;
+            recordLoad(start);
+          }
+        }
+      }
+      return tables;
+    }
+
+    /** Returns the columns of a table, reading them via the given schema if
+     * necessary. */
+    RelProtoDataType columns(JdbcSchema schema, String catalogName,
+        String schemaName, String tableName) throws SQLException {
+      final List<String> key =
+          Arrays.asList(catalogName, schemaName, tableName);
+      RelProtoDataType protoRowType = columns.get(key);
+      if (protoRowType == null) {
+        protoRowType =
+            schema.loadRelDataType(catalogName, schemaName, tableName);
+        final RelProtoDataType previous =
+            columns.putIfAbsent(key, protoRowType);
+        if (previous != null) {
+          protoRowType = previous;
+        }
+      }
+      return protoRowType;
+    }
+
+    /** Re-reads the list of tables, and the columns of every table whose
+     * columns have been read. Until this method completes, callers continue
+     * to see the previous metadata.
+     *
+     * @return false if no schema uses this entry any more */
+    boolean refresh() {
+      final WeakReference<JdbcSchema> ref = schemaRef;
+      final JdbcSchema schema = ref == null ? null : ref.get();
+      if (schema == null) {
+        return false;
+      }
+      final long start = System.currentTimeMillis();
+      try {
+        final ImmutableMap<String, TableDef> newTables = schema.loadTables();
+        final Map<List<String>, RelProtoDataType> newColumns =
+            new HashMap<List<String>, RelProtoDataType>();
+        for (List<String> key : columns.keySet()) {
+          if (newTables.containsKey(key.get(2))) {
+            newColumns.put(key,
+                schema.loadRelDataType(key.get(0), key.get(1), key.get(2)));
+          }
+        }
+        synchronized (this) {
+          tables = newTables;
+          columns.keySet().retainAll(newColumns.keySet());
+          columns.putAll(newColumns);
+          ++refreshCount;
+          recordLoad(start);
+        }
+      } catch (Exception e) {
+        synchronized (this) {
+          ++failureCount;
+        }
+        LOGGER.log(Level.WARNING, "Error while refreshing JDBC metadata", e);
+      }
+      return true;
+    }
+
+    /** Discards all metadata. It will be re-read on next use. */
+    public synchronized void invalidate() {
+      tables = null;
+      columns.clear();
+      loadTime = 0;
+    }
+
+    private synchronized void recordLoad(long start) {
+      loadTime = System.currentTimeMillis();
+      lastRefreshMillis = loadTime - start;
+      totalRefreshMillis += lastRefreshMillis;
+    }
+
+    /** Returns a snapshot of this entry's statistics. */
+    public synchronized Metrics metrics() {
+      return new Metrics(refreshCount, failureCount, lastRefreshMillis,
+          totalRefreshMillis,
+          loadTime == 0 ? -1 : System.currentTimeMillis() - loadTime);
+    }
+  }
+
+  /** Statistics about the metadata of a JDBC schema. */
+  public static class Metrics {
+    /** Number of background refreshes that have succeeded. */
+    public final int refreshCount;
+    /** Number of background refreshes that have failed. */
+    public final int failureCount;
+    /** Time taken by the most recent load or refresh, in milliseconds. */
+    public final long lastRefreshMillis;
+    /** Total time spent loading and refreshing, in milliseconds. */
+    public final long totalRefreshMillis;
+    /** Time since metadata was last read, in milliseconds, or -1 if it has
+     * not been read. */
+    public final long stalenessMillis;
+
+    Metrics(int refreshCount, int failureCount, long lastRefreshMillis,
+        long totalRefreshMillis, long stalenessMillis) {
+      this.refreshCount = refreshCount;
+      this.failureCount = failureCount;
+      this.lastRefreshMillis = lastRefreshMillis;
+      this.totalRefreshMillis = totalRefreshMillis;
+      this.stalenessMillis = stalenessMillis;
+    }
+
+    @Override public String toString() {
+      return "refreshCount=" + refreshCount
+          + ", failureCount=" + failureCount
+          + ", lastRefreshMillis=" + lastRefreshMillis
+          + ", totalRefreshMillis=" + totalRefreshMillis
+          + ", stalenessMillis=" + stalenessMillis;
+    }
+  }
+}
+
+// End JdbcMetadataCache.java
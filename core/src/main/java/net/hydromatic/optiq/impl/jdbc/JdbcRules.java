@@ -18,18 +18,18 @@
 package net.hydromatic.optiq.impl.jdbc;
 
 import net.hydromatic.linq4j.Ord;
-import net.hydromatic.linq4j.Queryable;
 import net.hydromatic.linq4j.expressions.*;
 
-import net.hydromatic.optiq.ModifiableTable;
 import net.hydromatic.optiq.prepare.Prepare;
 import net.hydromatic.optiq.util.BitSets;
 
 import org.eigenbase.rel.*;
 import org.eigenbase.rel.convert.ConverterRule;
 import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.rel.rules.SemiJoinRel;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.rex.*;
 import org.eigenbase.sql.*;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
@@ -64,6 +64,9 @@ public static List<RelOptRule> rules(JdbcConvention out) {
         new JdbcFilterRule(out),
         new JdbcAggregateRule(out),
         new JdbcSortRule(out),
+        new JdbcWindowRule(out),
+        new JdbcSemiJoinRule(out),
+        new JdbcBindJoinRule(out),
         new JdbcUnionRule(out),
         new JdbcIntersectRule(out),
         new JdbcMinusRule(out),
@@ -283,6 +286,155 @@ private static JoinType joinType(JoinRelType joinType) {
     }
   }
 
+  /** Rule that converts a semi-join to JDBC. */
+  private static class JdbcSemiJoinRule extends JdbcConverterRule {
+    private JdbcSemiJoinRule(JdbcConvention out) {
+      super(SemiJoinRel.class, Convention.NONE, out, "JdbcSemiJoinRule");
+    }
+
+    @Override
+    public RelNode convert(RelNode rel) {
+      final SemiJoinRel semiJoin = (SemiJoinRel) rel;
+      final RelTraitSet traitSet = semiJoin.getTraitSet().replace(out);
+      return new JdbcSemiJoinRel(rel.getCluster(), traitSet,
+          convert(semiJoin.getLeft(), traitSet),
+          convert(semiJoin.getRight(), traitSet),
+          semiJoin.getCondition(), semiJoin.getLeftKeys(),
+          semiJoin.getRightKeys());
+    }
+  }
+
+  /** Semi-join operator implemented in JDBC convention.
+   *
+   * <p>Generates "WHERE k IN (SELECT ...)" if there is one key, otherwise
+   * "WHERE EXISTS (SELECT ...)". The rows of the right input never leave
+   * the database.</p> */
+  public static class JdbcSemiJoinRel
+      extends JoinRelBase
+      implements JdbcRel {
+    final ImmutableIntList leftKeys;
+    final ImmutableIntList rightKeys;
+
+    protected JdbcSemiJoinRel(
+        RelOptCluster cluster,
+        RelTraitSet traits,
+        RelNode left,
+        RelNode right,
+        RexNode condition,
+        List<Integer> leftKeys,
+        List<Integer> rightKeys) {
+      super(cluster, traits, left, right, condition, JoinRelType.INNER,
+          Collections.<String>emptySet());
+      assert leftKeys.size() == rightKeys.size();
+      assert !leftKeys.isEmpty();
+      this.leftKeys = ImmutableIntList.copyOf(leftKeys);
+      this.rightKeys = ImmutableIntList.copyOf(rightKeys);
+    }
+
+    @Override
+    public JdbcSemiJoinRel copy(RelTraitSet traitSet, RexNode conditionExpr,
+        RelNode left, RelNode right, JoinRelType joinType) {
+      assert joinType == JoinRelType.INNER;
+      return new JdbcSemiJoinRel(getCluster(), traitSet, left, right,
+          conditionExpr, leftKeys, rightKeys);
+    }
+
+    @Override
+    public RelDataType deriveRowType() {
+      // Same as SemiJoinRel: only the fields of the left input.
+      return deriveJoinRowType(left.getRowType(), null, JoinRelType.INNER,
+          getCluster().getTypeFactory(), null,
+          Collections.<RelDataTypeField>emptyList());
+    }
+
+    @Override
+    public double getRows() {
+      return RelMetadataQuery.getRowCount(left)
+          * RexUtil.getSelectivity(condition);
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      double rowCount = RelMetadataQuery.getRowCount(this);
+      return planner.getCostFactory().makeCost(rowCount, 0, 0);
+    }
+
+    public JdbcImplementor.Result implement(JdbcImplementor implementor) {
+      final JdbcImplementor.Result leftResult =
+          implementor.visitChild(0, left);
+      final JdbcImplementor.Result rightResult =
+          implementor.visitChild(1, right);
+      if (leftKeys.size() == 1) {
+        // "SELECT ... FROM left WHERE k IN (SELECT k2 FROM right)"
+        final JdbcImplementor.Builder rightBuilder =
+            rightResult.builder(this, JdbcImplementor.Clause.SELECT);
+        rightBuilder.setSelect(
+            new SqlNodeList(
+                Collections.singletonList(
+                    rightBuilder.context.field(rightKeys.get(0))),
+                POS));
+        final JdbcImplementor.Builder builder =
+            leftResult.builder(this, JdbcImplementor.Clause.WHERE);
+        builder.setWhere(
+            SqlStdOperatorTable.IN.createCall(POS,
+                builder.context.field(leftKeys.get(0)),
+                rightBuilder.result().asSelect()));
+        return builder.result();
+      }
+      // "SELECT * FROM left AS t
+      //  WHERE EXISTS (SELECT 1 FROM right AS t0 WHERE t.k = t0.k ...)"
+      final JdbcImplementor.Context leftContext =
+          leftResult.qualifiedContext();
+      final JdbcImplementor.Context rightContext =
+          rightResult.qualifiedContext();
+      SqlNode sqlCondition = null;
+      for (Pair<Integer, Integer> pair : Pair.zip(leftKeys, rightKeys)) {
+        SqlNode x =
+            SqlStdOperatorTable.EQUALS.createCall(POS,
+                leftContext.field(pair.left),
+                rightContext.field(pair.right));
+        sqlCondition = sqlCondition == null
+            ? x
+            : SqlStdOperatorTable.AND.createCall(POS, sqlCondition, x);
+      }
+      final SqlSelect subQuery =
+          new SqlSelect(POS, SqlNodeList.EMPTY,
+              new SqlNodeList(
+                  Collections.<SqlNode>singletonList(
+                      SqlLiteral.createExactNumeric("1", POS)),
+                  POS),
+              rightResult.asFrom(), sqlCondition, null, null, null, null,
+              null, null);
+      final SqlSelect select = leftResult.subSelect();
+      select.setWhere(SqlStdOperatorTable.EXISTS.createCall(POS, subQuery));
+      return implementor.result(select,
+          Expressions.list(JdbcImplementor.Clause.FROM,
+              JdbcImplementor.Clause.WHERE),
+          this);
+    }
+  }
+
+  /** Returns whether any of a list of expressions contains a dynamic
+   * parameter. The SQL sent to the JDBC server does not carry parameter
+   * values, so such expressions are evaluated by Optiq. */
+  private static boolean containsDynamicParam(List<RexNode> nodes) {
+    final RexVisitor<Void> visitor =
+        new RexVisitorImpl<Void>(true) {
+          @Override public Void visitDynamicParam(
+              RexDynamicParam dynamicParam) {
+            throw Util.FoundOne.NULL;
+          }
+        };
+    try {
+      for (RexNode node : nodes) {
+        node.accept(visitor);
+      }
+      return false;
+    } catch (Util.FoundOne e) {
+      return true;
+    }
+  }
+
   /**
    * Rule to convert a {@link CalcRel} to an
    * {@link JdbcCalcRel}.
@@ -301,6 +453,9 @@ public RelNode convert(RelNode rel) {
       if (RexMultisetUtil.containsMultiset(calc.getProgram())) {
         return null;
       }
+      if (containsDynamicParam(calc.getProgram().getExprList())) {
+        return null;
+      }
 
       return new JdbcCalcRel(rel.getCluster(), rel.getTraitSet().replace(out),
           convert(calc.getChild(), calc.getTraitSet().replace(out)),
@@ -387,6 +542,9 @@ private JdbcProjectRule(JdbcConvention out) {
 
     public RelNode convert(RelNode rel) {
       final ProjectRel project = (ProjectRel) rel;
+      if (containsDynamicParam(project.getProjects())) {
+        return null;
+      }
 
       return new JdbcProjectRel(
           rel.getCluster(),
@@ -451,6 +609,10 @@ private JdbcFilterRule(JdbcConvention out) {
 
     public RelNode convert(RelNode rel) {
       final FilterRel filter = (FilterRel) rel;
+      if (containsDynamicParam(
+          Collections.singletonList(filter.getCondition()))) {
+        return null;
+      }
 
       return new JdbcFilterRel(
           rel.getCluster(),
@@ -576,17 +738,40 @@ private JdbcSortRule(JdbcConvention out) {
 
     public RelNode convert(RelNode rel) {
       final SortRel sort = (SortRel) rel;
-      if (sort.offset != null || sort.fetch != null) {
-        // Cannot implement "OFFSET n FETCH n" currently.
+      if (!canImplementFetch(out.dialect, sort.offset, sort.fetch)) {
         return null;
       }
       final RelTraitSet traitSet = sort.getTraitSet().replace(out);
       return new JdbcSortRel(rel.getCluster(), traitSet,
-          convert(sort.getChild(), traitSet), sort.getCollation());
+          convert(sort.getChild(), traitSet), sort.getCollation(),
+          sort.offset, sort.fetch);
+    }
+
+    /** Returns whether a dialect can express a given OFFSET and FETCH. Only
+     * literal values are pushed down; dynamic parameters are not available
+     * to the generated SQL. */
+    private static boolean canImplementFetch(SqlDialect dialect,
+        RexNode offset, RexNode fetch) {
+      if (offset == null && fetch == null) {
+        return true;
+      }
+      if (offset != null && !(offset instanceof RexLiteral)
+          || fetch != null && !(fetch instanceof RexLiteral)) {
+        return false;
+      }
+      if (dialect.supportsOffsetFetch()) {
+        return true;
+      }
+      // "LIMIT n OFFSET m" dialects such as MySQL do not allow OFFSET alone.
+      return dialect.supportsLimitOffset() && fetch != null;
     }
   }
 
-  /** Sort operator implemented in JDBC convention. */
+  /** Sort operator implemented in JDBC convention.
+   *
+   * <p>If it has an offset or fetch, generates "OFFSET n ROWS FETCH NEXT n ROWS
+   * ONLY" or "LIMIT n OFFSET n", depending on the dialect, so that only the
+   * requested rows are sent from the database.</p> */
   public static class JdbcSortRel
       extends SortRel
       implements JdbcRel {
@@ -595,36 +780,184 @@ public JdbcSortRel(
         RelTraitSet traitSet,
         RelNode child,
         RelCollation collation) {
-      super(cluster, traitSet, child, collation);
+      this(cluster, traitSet, child, collation, null, null);
+    }
+
+    public JdbcSortRel(
+        RelOptCluster cluster,
+        RelTraitSet traitSet,
+        RelNode child,
+        RelCollation collation,
+        RexNode offset,
+        RexNode fetch) {
+      super(cluster, traitSet, child, collation, offset, fetch);
       assert getConvention() instanceof JdbcConvention;
       assert getConvention() == child.getConvention();
     }
 
     @Override
     public JdbcSortRel copy(RelTraitSet traitSet, RelNode newInput,
-        RelCollation newCollation) {
-      return new JdbcSortRel(getCluster(), traitSet, newInput, newCollation);
+        RelCollation newCollation, RexNode offset, RexNode fetch) {
+      return new JdbcSortRel(getCluster(), traitSet, newInput, newCollation,
+          offset, fetch);
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      // Cheaper than sorting in memory, and much cheaper if the database
+      // returns only the first few rows.
+      final RelOptCost cost = super.computeSelfCost(planner);
+      return fetch == null ? cost : cost.multiplyBy(.1);
     }
 
     public JdbcImplementor.Result implement(JdbcImplementor implementor) {
       final JdbcImplementor.Result x = implementor.visitChild(0, getChild());
+      final List<JdbcImplementor.Clause> clauses =
+          new ArrayList<JdbcImplementor.Clause>();
+      if (!collation.getFieldCollations().isEmpty()) {
+        clauses.add(JdbcImplementor.Clause.ORDER_BY);
+      }
+      if (offset != null || fetch != null) {
+        clauses.add(JdbcImplementor.Clause.FETCH);
+      }
       final JdbcImplementor.Builder builder =
-          x.builder(this, JdbcImplementor.Clause.ORDER_BY);
-      List<SqlNode> orderByList = Expressions.list();
-      for (RelFieldCollation fieldCollation : collation.getFieldCollations()) {
-        if (fieldCollation.nullDirection
-            != RelFieldCollation.NullDirection.UNSPECIFIED
-            && implementor.dialect.getDatabaseProduct()
-               == SqlDialect.DatabaseProduct.MYSQL) {
-          orderByList.add(
-              ISNULL_FUNCTION.createCall(POS,
-                  builder.context.field(fieldCollation.getFieldIndex())));
-          fieldCollation = new RelFieldCollation(fieldCollation.getFieldIndex(),
-              fieldCollation.getDirection());
+          x.builder(this,
+              clauses.toArray(new JdbcImplementor.Clause[clauses.size()]));
+      if (!collation.getFieldCollations().isEmpty()) {
+        List<SqlNode> orderByList = Expressions.list();
+        for (RelFieldCollation fieldCollation
+            : collation.getFieldCollations()) {
+          if (fieldCollation.nullDirection
+              != RelFieldCollation.NullDirection.UNSPECIFIED
+              && implementor.dialect.getDatabaseProduct()
+                 == SqlDialect.DatabaseProduct.MYSQL) {
+            orderByList.add(
+                ISNULL_FUNCTION.createCall(POS,
+                    builder.context.field(fieldCollation.getFieldIndex())));
+            fieldCollation =
+                new RelFieldCollation(fieldCollation.getFieldIndex(),
+                    fieldCollation.getDirection());
+          }
+          orderByList.add(builder.context.toSql(fieldCollation));
         }
-        orderByList.add(builder.context.toSql(fieldCollation));
+        builder.setOrderBy(new SqlNodeList(orderByList, POS));
+      }
+      if (offset != null) {
+        builder.setOffset(builder.context.toSql(null, offset));
+      }
+      if (fetch != null) {
+        builder.setFetch(builder.context.toSql(null, fetch));
       }
-      builder.setOrderBy(new SqlNodeList(orderByList, POS));
+      return builder.result();
+    }
+  }
+
+  /**
+   * Rule to convert a {@link org.eigenbase.rel.WindowRel} to a
+   * {@link JdbcWindowRel}, if the database supports window functions.
+   */
+  private static class JdbcWindowRule extends JdbcConverterRule {
+    private JdbcWindowRule(JdbcConvention out) {
+      super(WindowRel.class, Convention.NONE, out, "JdbcWindowRule");
+    }
+
+    public RelNode convert(RelNode rel) {
+      final WindowRel window = (WindowRel) rel;
+      if (!out.dialect.supportsWindowFunctions()) {
+        return null;
+      }
+      final int fieldCount = window.getChild().getRowType().getFieldCount();
+      for (WindowRelBase.Window w : window.windows) {
+        for (WindowRelBase.RexWinAggCall aggCall : w.aggCalls) {
+          for (RexNode operand : aggCall.getOperands()) {
+            if (!(operand instanceof RexInputRef)
+                || ((RexInputRef) operand).getIndex() >= fieldCount) {
+              return null;
+            }
+          }
+        }
+      }
+      final RelTraitSet traitSet = window.getTraitSet().replace(out);
+      return new JdbcWindowRel(rel.getCluster(), traitSet,
+          convert(window.getChild(), traitSet), window.getRowType(),
+          window.windows);
+    }
+  }
+
+  /** Window operator implemented in JDBC convention.
+   *
+   * <p>Generates "SELECT t.*, agg(x) OVER (PARTITION BY ... ORDER BY ...
+   * ROWS ...) FROM t".</p> */
+  public static class JdbcWindowRel
+      extends WindowRelBase
+      implements JdbcRel {
+    public JdbcWindowRel(
+        RelOptCluster cluster,
+        RelTraitSet traitSet,
+        RelNode child,
+        RelDataType rowType,
+        List<Window> windows) {
+      super(cluster, traitSet, child, rowType, windows);
+      assert getConvention() instanceof JdbcConvention;
+    }
+
+    @Override
+    public JdbcWindowRel copy(RelTraitSet traitSet, List<RelNode> inputs) {
+      return new JdbcWindowRel(getCluster(), traitSet, sole(inputs), rowType,
+          windows);
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      // Same formula as EnumerableWindowRel, but cheaper, because the
+      // database does the work and we do not need to buffer partitions.
+      final double rowsIn = RelMetadataQuery.getRowCount(getChild());
+      int count = windows.size();
+      for (Window window : windows) {
+        count += window.aggCalls.size();
+      }
+      return planner.getCostFactory().makeCost(rowsIn, rowsIn * count, 0)
+          .multiplyBy(.1);
+    }
+
+    public JdbcImplementor.Result implement(JdbcImplementor implementor) {
+      final JdbcImplementor.Result x = implementor.visitChild(0, getChild());
+      final JdbcImplementor.Builder builder =
+          x.builder(this, JdbcImplementor.Clause.SELECT);
+      final List<SqlNode> selectList = new ArrayList<SqlNode>();
+      final int fieldCount = getChild().getRowType().getFieldCount();
+      for (int i = 0; i < fieldCount; i++) {
+        addSelect(selectList, builder.context.field(i), getRowType());
+      }
+      for (Window window : windows) {
+        final List<SqlNode> partitionList = Expressions.list();
+        for (int i : BitSets.toIter(window.groupSet)) {
+          partitionList.add(builder.context.field(i));
+        }
+        final List<SqlNode> orderList = Expressions.list();
+        for (RelFieldCollation fieldCollation
+            : window.orderKeys.getFieldCollations()) {
+          orderList.add(builder.context.toSql(fieldCollation));
+        }
+        SqlNode lowerBound = window.lowerBound;
+        final SqlNode upperBound = window.upperBound;
+        if (lowerBound == null && upperBound != null) {
+          lowerBound = SqlWindow.createUnboundedPreceding(POS);
+        }
+        final SqlWindow sqlWindow =
+            new SqlWindow(POS, null, null,
+                new SqlNodeList(partitionList, POS),
+                new SqlNodeList(orderList, POS),
+                SqlLiteral.createBoolean(window.isRows, POS),
+                lowerBound, upperBound, null);
+        for (RexWinAggCall aggCall : window.aggCalls) {
+          final SqlNode call = builder.context.toSql(null, aggCall);
+          addSelect(selectList,
+              SqlStdOperatorTable.OVER.createCall(POS, call, sqlWindow),
+              getRowType());
+        }
+      }
+      builder.setSelect(new SqlNodeList(selectList, POS));
       return builder.result();
     }
   }
@@ -781,7 +1114,13 @@ public JdbcImplementor.Result implement(JdbcImplementor implementor) {
     }
   }
 
-  /** Rule that converts a table-modification to JDBC. */
+  /** Rule that converts a table-modification to JDBC.
+   *
+   * <p>Only an INSERT into a table of the same JDBC schema is converted; the
+   * whole statement, including the query that produces the rows, is then
+   * executed by the JDBC server. Other modifications are handled by
+   * {@link net.hydromatic.optiq.rules.java.JavaRules.EnumerableTableModificationRel},
+   * which sends rows to the server in batches. */
   public static class JdbcTableModificationRule extends JdbcConverterRule {
     private JdbcTableModificationRule(JdbcConvention out) {
       super(
@@ -795,10 +1134,11 @@ private JdbcTableModificationRule(JdbcConvention out) {
     public RelNode convert(RelNode rel) {
       final TableModificationRel modify =
           (TableModificationRel) rel;
-      final ModifiableTable modifiableTable =
-          modify.getTable().unwrap(ModifiableTable.class);
-      if (modifiableTable == null
-          /* || modifiableTable.getExpression(tableInSchema) == null */) {
+      final JdbcTable jdbcTable = modify.getTable().unwrap(JdbcTable.class);
+      if (jdbcTable == null
+          || jdbcTable.jdbcSchema.convention != out
+          || modify.getOperation()
+              != TableModificationRelBase.Operation.INSERT) {
         return null;
       }
       final RelTraitSet traitSet =
@@ -818,7 +1158,7 @@ public RelNode convert(RelNode rel) {
   public static class JdbcTableModificationRel
       extends TableModificationRelBase
       implements JdbcRel {
-    private final Expression expression;
+    private final JdbcTable jdbcTable;
 
     public JdbcTableModificationRel(
         RelOptCluster cluster,
@@ -834,15 +1174,11 @@ public JdbcTableModificationRel(
           updateColumnList, flattened);
       assert child.getConvention() instanceof JdbcConvention;
       assert getConvention() instanceof JdbcConvention;
-      final ModifiableTable modifiableTable =
-          table.unwrap(ModifiableTable.class);
-      if (modifiableTable == null) {
-        throw new AssertionError(); // TODO: user error in validator
-      }
-      this.expression = table.getExpression(Queryable.class);
-      if (expression == null) {
+      this.jdbcTable = table.unwrap(JdbcTable.class);
+      if (jdbcTable == null) {
         throw new AssertionError(); // TODO: user error in validator
       }
+      assert operation == Operation.INSERT : operation;
     }
 
     @Override
@@ -854,7 +1190,13 @@ public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
     }
 
     public JdbcImplementor.Result implement(JdbcImplementor implementor) {
-      throw new AssertionError(); // TODO:
+      // "insert into t select ... from ( ... )"
+      final JdbcImplementor.Result x = implementor.visitChild(0, getChild());
+      final SqlInsert insert =
+          new SqlInsert(POS, SqlNodeList.EMPTY, jdbcTable.tableName(),
+              x.asQuery(), null);
+      return implementor.result(insert,
+          Collections.<JdbcImplementor.Clause>emptyList(), this);
     }
   }
 
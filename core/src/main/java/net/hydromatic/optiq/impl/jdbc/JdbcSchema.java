@@ -28,14 +28,14 @@
 import org.eigenbase.sql.type.SqlTypeName;
 import org.eigenbase.util.Util;
 
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import com.google.common.collect.*;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.sql.DataSource;
 
 /**
@@ -46,18 +46,20 @@
  * as much as possible of the query logic to SQL.</p>
  */
 public class JdbcSchema implements Schema {
+  /** How long a statement waits for admission to a backend whose concurrency
+   * is limited, if the schema does not specify "queueTimeout". */
+  public static final int DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+
   final DataSource dataSource;
   final String catalog;
   final String schema;
   public final SqlDialect dialect;
   final JdbcConvention convention;
-  private Supplier<Map<String, JdbcTable>> tableMapSupplier =
-      Suppliers.memoize(
-          new Supplier<Map<String, JdbcTable>>() {
-            public Map<String, JdbcTable> get() {
-              return computeTables();
-            }
-          });
+  private final long metadataTtlMillis;
+  /** Metadata of this schema, if it has no time-to-live. */
+  private JdbcMetadataCache.Entry metadata;
+  private final ConcurrentMap<String, JdbcTable> tableMap =
+      new ConcurrentHashMap<String, JdbcTable>();
 
   /**
    * Creates a JDBC schema.
@@ -70,12 +72,32 @@ public Map<String, JdbcTable> get() {
    */
   public JdbcSchema(DataSource dataSource, SqlDialect dialect,
       JdbcConvention convention, String catalog, String schema) {
+    this(dataSource, dialect, convention, catalog, schema, 0);
+  }
+
+  /**
+   * Creates a JDBC schema whose metadata is refreshed periodically.
+   *
+   * @param dataSource Data source
+   * @param dialect SQL dialect
+   * @param convention Calling convention
+   * @param catalog Catalog name, or null
+   * @param schema Schema name pattern
+   * @param metadataTtlMillis Interval between refreshes of cached metadata,
+   *                          in milliseconds; if not positive, metadata is
+   *                          read once, and is not shared with other
+   *                          schemas
+   */
+  public JdbcSchema(DataSource dataSource, SqlDialect dialect,
+      JdbcConvention convention, String catalog, String schema,
+      long metadataTtlMillis) {
     super();
     this.dataSource = dataSource;
     this.dialect = dialect;
     this.convention = convention;
     this.catalog = catalog;
     this.schema = schema;
+    this.metadataTtlMillis = metadataTtlMillis;
     assert dialect != null;
     assert dataSource != null;
   }
@@ -86,12 +108,23 @@ public static JdbcSchema create(
       DataSource dataSource,
       String catalog,
       String schema) {
+    return create(parentSchema, name, dataSource, catalog, schema, 0);
+  }
+
+  public static JdbcSchema create(
+      SchemaPlus parentSchema,
+      String name,
+      DataSource dataSource,
+      String catalog,
+      String schema,
+      long metadataTtlMillis) {
     final Expression expression =
         Schemas.subSchemaExpression(parentSchema, name, JdbcSchema.class);
     final SqlDialect dialect = createDialect(dataSource);
     final JdbcConvention convention =
         JdbcConvention.of(dialect, expression, name);
-    return new JdbcSchema(dataSource, dialect, convention, catalog, schema);
+    return new JdbcSchema(dataSource, dialect, convention, catalog, schema,
+        metadataTtlMillis);
   }
 
   /**
@@ -117,15 +150,18 @@ public static JdbcSchema create(
         final String jdbcDriver = (String) operand.get("jdbcDriver");
         final String jdbcUser = (String) operand.get("jdbcUser");
         final String jdbcPassword = (String) operand.get("jdbcPassword");
-        dataSource = dataSource(jdbcUrl, jdbcDriver, jdbcUser, jdbcPassword);
+        dataSource = dataSource(jdbcUrl, jdbcDriver, jdbcUser, jdbcPassword,
+            PoolConfig.of(operand));
       }
     } catch (Exception e) {
       throw new RuntimeException("Error while reading dataSource", e);
     }
     String jdbcCatalog = (String) operand.get("jdbcCatalog");
     String jdbcSchema = (String) operand.get("jdbcSchema");
+    final Number metadataCacheTtl = (Number) operand.get("metadataCacheTtl");
     return JdbcSchema.create(parentSchema, name, dataSource, jdbcCatalog,
-        jdbcSchema);
+        jdbcSchema,
+        metadataCacheTtl == null ? 0 : metadataCacheTtl.longValue() * 1000L);
   }
 
   /** Returns a suitable SQL dialect for the given data source. */
@@ -136,6 +172,14 @@ public static SqlDialect createDialect(DataSource dataSource) {
   /** Creates a JDBC data source with the given specification. */
   public static DataSource dataSource(String url, String driverClassName,
       String username, String password) {
+    return dataSource(url, driverClassName, username, password,
+        PoolConfig.DEFAULT);
+  }
+
+  /** Creates a JDBC data source with the given specification and connection
+   * pool settings. */
+  public static DataSource dataSource(String url, String driverClassName,
+      String username, String password, PoolConfig poolConfig) {
     if (url.startsWith("jdbc:hsqldb:")) {
       // Prevent hsqldb from screwing up java.util.logging.
       System.setProperty("hsqldb.reconfig_logging", "false");
@@ -145,9 +189,58 @@ public static DataSource dataSource(String url, String driverClassName,
     dataSource.setUsername(username);
     dataSource.setPassword(password);
     dataSource.setDriverClassName(driverClassName);
+    if (poolConfig.minIdle != null) {
+      dataSource.setMinIdle(poolConfig.minIdle);
+    }
+    if (poolConfig.maxIdle != null) {
+      dataSource.setMaxIdle(poolConfig.maxIdle);
+    }
+    if (poolConfig.maxActive != null) {
+      dataSource.setMaxActive(poolConfig.maxActive);
+    }
+    if (poolConfig.validationQuery != null) {
+      dataSource.setValidationQuery(poolConfig.validationQuery);
+      dataSource.setTestOnBorrow(true);
+    }
+    if (poolConfig.maxOpenPreparedStatements != null
+        && poolConfig.maxOpenPreparedStatements > 0) {
+      dataSource.setPoolPreparedStatements(true);
+      dataSource.setMaxOpenPreparedStatements(
+          poolConfig.maxOpenPreparedStatements);
+    }
+    if (poolConfig.maxConcurrentQueries != null
+        && poolConfig.maxConcurrentQueries > 0) {
+      final JdbcBackendLimiter limiter =
+          JdbcBackendLimiter.of(url, username,
+              poolConfig.maxConcurrentQueries,
+              poolConfig.queueTimeout == null
+                  ? DEFAULT_QUEUE_TIMEOUT_MILLIS
+                  : poolConfig.queueTimeout);
+      return limiter.limit(dataSource);
+    }
     return dataSource;
   }
 
+  /** Returns statistics about the connection pool and, if the backend has a
+   * concurrency limit, the queue of statements waiting to run. */
+  public PoolMetrics getPoolMetrics() {
+    DataSource dataSource = this.dataSource;
+    JdbcBackendLimiter.Metrics limiterMetrics = null;
+    if (dataSource instanceof JdbcBackendLimiter.LimitingDataSource) {
+      final JdbcBackendLimiter.LimitingDataSource limitingDataSource =
+          (JdbcBackendLimiter.LimitingDataSource) dataSource;
+      limiterMetrics = limitingDataSource.limiter.metrics();
+      dataSource = limitingDataSource.dataSource;
+    }
+    if (dataSource instanceof BasicDataSource) {
+      final BasicDataSource basicDataSource = (BasicDataSource) dataSource;
+      return new PoolMetrics(basicDataSource.getNumActive(),
+          basicDataSource.getNumIdle(), basicDataSource.getMaxActive(),
+          limiterMetrics);
+    }
+    return new PoolMetrics(-1, -1, -1, limiterMetrics);
+  }
+
   public boolean isMutable() {
     return false;
   }
@@ -174,7 +267,35 @@ public final Set<String> getFunctionNames() {
     return getFunctions().keySet();
   }
 
-  private ImmutableMap<String, JdbcTable> computeTables() {
+  /** Returns the cached metadata of this schema. If the schema has no
+   * time-to-live, the metadata belongs to this schema; otherwise it is shared
+   * with other schemas that read the same database schema. */
+  JdbcMetadataCache.Entry metadata() {
+    if (metadataTtlMillis > 0) {
+      return JdbcMetadataCache.INSTANCE.entry(this, metadataTtlMillis);
+    }
+    synchronized (this) {
+      if (metadata == null) {
+        metadata = new JdbcMetadataCache.Entry();
+      }
+      return metadata;
+    }
+  }
+
+  /** Returns statistics about this schema's cached metadata. */
+  public JdbcMetadataCache.Metrics getMetadataMetrics() {
+    return metadata().metrics();
+  }
+
+  /** Discards this schema's cached metadata (and that of other schemas
+   * that share it). It will be re-read on next use. */
+  public void invalidateMetadata() {
+    metadata().invalidate();
+  }
+
+  /** Reads the list of tables from the JDBC database. Called by
+   * {@link JdbcMetadataCache}. */
+  ImmutableMap<String, JdbcMetadataCache.TableDef> loadTables() {
     Connection connection = null;
     ResultSet resultSet = null;
     try {
@@ -185,7 +306,7 @@ private ImmutableMap<String, JdbcTable> computeTables() {
           schema,
           null,
           null);
-      final ImmutableMap.Builder<String, JdbcTable> builder =
+      final ImmutableMap.Builder<String, JdbcMetadataCache.TableDef> builder =
           ImmutableMap.builder();
       while (resultSet.next()) {
         final String tableName = resultSet.getString(3);
@@ -200,9 +321,9 @@ private ImmutableMap<String, JdbcTable> computeTables() {
             tableTypeName.toUpperCase().replace(' ', '_');
         final TableType tableType =
             Util.enumVal(TableType.class, tableTypeName2);
-        final JdbcTable table =
-            new JdbcTable(this, catalogName, schemaName, tableName, tableType);
-        builder.put(tableName, table);
+        builder.put(tableName,
+            new JdbcMetadataCache.TableDef(catalogName, schemaName, tableName,
+                tableType));
       }
       return builder.build();
     } catch (SQLException e) {
@@ -214,11 +335,31 @@ private ImmutableMap<String, JdbcTable> computeTables() {
   }
 
   public Table getTable(String name) {
-    return tableMapSupplier.get().get(name);
+    final JdbcMetadataCache.TableDef tableDef =
+        metadata().tables(this).get(name);
+    if (tableDef == null) {
+      return null;
+    }
+    JdbcTable table = tableMap.get(name);
+    if (table == null || table.tableDef != tableDef) {
+      // First use, or the metadata has been refreshed since the table was
+      // created.
+      table = new JdbcTable(this, tableDef);
+      tableMap.put(name, table);
+    }
+    return table;
   }
 
+  /** Returns the columns of a table, from the metadata cache. */
   RelProtoDataType getRelDataType(String catalogName, String schemaName,
       String tableName) throws SQLException {
+    return metadata().columns(this, catalogName, schemaName, tableName);
+  }
+
+  /** Reads the columns of a table from the JDBC database. Called by
+   * {@link JdbcMetadataCache}. */
+  RelProtoDataType loadRelDataType(String catalogName, String schemaName,
+      String tableName) throws SQLException {
     Connection connection = null;
     try {
       connection = dataSource.getConnection();
@@ -319,7 +460,7 @@ private RelDataType parseTypeString(RelDataTypeFactory typeFactory,
   }
 
   public Set<String> getTableNames() {
-    return tableMapSupplier.get().keySet();
+    return metadata().tables(this).keySet();
   }
 
   public Schema getSubSchema(String name) {
@@ -331,6 +472,96 @@ public Set<String> getSubSchemaNames() {
     return ImmutableSet.of();
   }
 
+  /** Connection pool settings for a JDBC schema. A null value means use the
+   * default setting of the pool. */
+  public static class PoolConfig {
+    public static final PoolConfig DEFAULT =
+        new PoolConfig(null, null, null, null, null, null, null);
+
+    /** Minimum number of idle connections kept in the pool. */
+    public final Integer minIdle;
+    /** Maximum number of idle connections kept in the pool. */
+    public final Integer maxIdle;
+    /** Maximum number of connections open at once. */
+    public final Integer maxActive;
+    /** Query used to validate a connection before it is borrowed from the
+     * pool, for example "SELECT 1". */
+    public final String validationQuery;
+    /** Size of the prepared statement cache of each connection; if positive,
+     * prepared statements are pooled. */
+    public final Integer maxOpenPreparedStatements;
+    /** Maximum number of statements run concurrently against the backend by
+     * all schemas in this JVM; if positive, further statements wait. */
+    public final Integer maxConcurrentQueries;
+    /** Maximum time, in milliseconds, that a statement waits for admission
+     * to the backend. */
+    public final Integer queueTimeout;
+
+    public PoolConfig(Integer minIdle, Integer maxIdle, Integer maxActive,
+        String validationQuery, Integer maxOpenPreparedStatements,
+        Integer maxConcurrentQueries, Integer queueTimeout) {
+      this.minIdle = minIdle;
+      this.maxIdle = maxIdle;
+      this.maxActive = maxActive;
+      this.validationQuery = validationQuery;
+      this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+      this.maxConcurrentQueries = maxConcurrentQueries;
+      this.queueTimeout = queueTimeout;
+    }
+
+    /** Creates a PoolConfig from the operand of a custom schema. */
+    public static PoolConfig of(Map<String, Object> operand) {
+      return new PoolConfig(
+          intValue(operand.get("poolMinIdle")),
+          intValue(operand.get("poolMaxIdle")),
+          intValue(operand.get("poolMaxActive")),
+          (String) operand.get("poolValidationQuery"),
+          intValue(operand.get("poolMaxOpenPreparedStatements")),
+          intValue(operand.get("maxConcurrentQueries")),
+          intValue(operand.get("queueTimeout")));
+    }
+
+    private static Integer intValue(Object o) {
+      return o == null ? null : ((Number) o).intValue();
+    }
+  }
+
+  /** Statistics about the connection pool of a JDBC schema. */
+  public static class PoolMetrics {
+    /** Number of connections in use, or -1 if not known. */
+    public final int numActive;
+    /** Number of idle connections in the pool, or -1 if not known. */
+    public final int numIdle;
+    /** Maximum number of connections, or -1 if not known. */
+    public final int maxActive;
+    /** Statistics of the backend's concurrency limiter, or null if the
+     * backend has no limit. */
+    public final JdbcBackendLimiter.Metrics limiter;
+
+    PoolMetrics(int numActive, int numIdle, int maxActive,
+        JdbcBackendLimiter.Metrics limiter) {
+      this.numActive = numActive;
+      this.numIdle = numIdle;
+      this.maxActive = maxActive;
+      this.limiter = limiter;
+    }
+
+    /** Returns the fraction of the pool's connections that are in use, or -1
+     * if not known. */
+    public double utilization() {
+      return numActive < 0 || maxActive <= 0
+          ? -1d
+          : (double) numActive / maxActive;
+    }
+
+    @Override public String toString() {
+      return "numActive=" + numActive
+          + ", numIdle=" + numIdle
+          + ", maxActive=" + maxActive
+          + (limiter == null ? "" : ", " + limiter);
+    }
+  }
+
   private static void close(
       Connection connection, Statement statement, ResultSet resultSet) {
     if (resultSet != null) {
@@ -25,10 +25,17 @@
 import net.hydromatic.optiq.impl.AbstractTableQueryable;
 import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
 import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.ResultCache;
 import net.hydromatic.optiq.runtime.ResultSetEnumerable;
 
+import net.hydromatic.optiq.prepare.Prepare;
+
 import org.eigenbase.rel.RelNode;
+import org.eigenbase.rel.TableModificationRel;
+import org.eigenbase.rel.TableModificationRelBase;
+import org.eigenbase.relopt.RelOptCluster;
 import org.eigenbase.relopt.RelOptTable;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
@@ -37,11 +44,14 @@
 import org.eigenbase.sql.*;
 import org.eigenbase.sql.parser.SqlParserPos;
 import org.eigenbase.sql.pretty.SqlPrettyWriter;
+import org.eigenbase.sql.type.SqlTypeFactoryImpl;
+import org.eigenbase.sql.type.SqlTypeName;
 import org.eigenbase.sql.util.SqlString;
 import org.eigenbase.util.Pair;
 import org.eigenbase.util.Util;
+import org.eigenbase.util14.DateTimeUtil;
 
-import java.sql.SQLException;
+import java.sql.*;
 import java.util.*;
 
 /**
@@ -52,23 +62,37 @@
  * such as {@link net.hydromatic.linq4j.Queryable#where(net.hydromatic.linq4j.function.Predicate2)}.
  * The resulting queryable can then be converted to a SQL query, which can be
  * executed efficiently on the JDBC server.</p>
+ *
+ * <p>The table is also modifiable. Rows added to its
+ * {@link #getModifiableCollection() modifiable collection} are sent to the
+ * JDBC server as batches of {@code INSERT} statements.</p>
+ *
+ * <p>Other clients of the JDBC server may modify the table, so cached
+ * results that read it expire.</p>
  */
-class JdbcTable extends AbstractQueryableTable implements TranslatableTable {
-  private RelProtoDataType protoRowType;
-  private final JdbcSchema jdbcSchema;
+class JdbcTable extends AbstractQueryableTable
+    implements TranslatableTable, ModifiableTable, ResultCache.ExternalTable {
+  /** Maximum number of rows sent to the JDBC server in one
+   * {@link java.sql.Statement#executeBatch()} call. */
+  static final int INSERT_BATCH_SIZE = 1000;
+
+  final JdbcSchema jdbcSchema;
+  /** Definition from the metadata cache; the schema creates a new table
+   * when the cache is refreshed. */
+  final JdbcMetadataCache.TableDef tableDef;
   private final String jdbcCatalogName;
   private final String jdbcSchemaName;
   private final String jdbcTableName;
   private final Schema.TableType jdbcTableType;
 
-  public JdbcTable(JdbcSchema jdbcSchema, String jdbcCatalogName,
-      String jdbcSchemaName, String tableName, Schema.TableType jdbcTableType) {
+  JdbcTable(JdbcSchema jdbcSchema, JdbcMetadataCache.TableDef tableDef) {
     super(Object[].class);
     this.jdbcSchema = jdbcSchema;
-    this.jdbcCatalogName = jdbcCatalogName;
-    this.jdbcSchemaName = jdbcSchemaName;
-    this.jdbcTableName = tableName;
-    this.jdbcTableType = jdbcTableType;
+    this.tableDef = tableDef;
+    this.jdbcCatalogName = tableDef.catalogName;
+    this.jdbcSchemaName = tableDef.schemaName;
+    this.jdbcTableName = tableDef.tableName;
+    this.jdbcTableType = tableDef.tableType;
   }
 
   public String toString() {
@@ -80,25 +104,27 @@ public String toString() {
   }
 
   public RelDataType getRowType(RelDataTypeFactory typeFactory) {
-    if (protoRowType == null) {
-      try {
-        protoRowType =
-            jdbcSchema.getRelDataType(
-                jdbcCatalogName,
-                jdbcSchemaName,
-                jdbcTableName);
-      } catch (SQLException e) {
-        throw new RuntimeException(
-            "Exception while reading definition of table '" + jdbcTableName
-            + "'", e);
-      }
+    return protoRowType().apply(typeFactory);
+  }
+
+  /** Returns the columns of this table. They are held in the metadata cache,
+   * and may change if the cache is refreshed. */
+  private RelProtoDataType protoRowType() {
+    try {
+      return jdbcSchema.getRelDataType(
+          jdbcCatalogName,
+          jdbcSchemaName,
+          jdbcTableName);
+    } catch (SQLException e) {
+      throw new RuntimeException(
+          "Exception while reading definition of table '" + jdbcTableName
+          + "'", e);
     }
-    return protoRowType.apply(typeFactory);
   }
 
   private List<Pair<Primitive, Integer>> fieldClasses(
       final JavaTypeFactory typeFactory) {
-    final RelDataType rowType = protoRowType.apply(typeFactory);
+    final RelDataType rowType = getRowType(typeFactory);
     return Functions.adapt(
         rowType.getFieldList(),
         new Function1<RelDataTypeField, Pair<Primitive, Integer>>() {
@@ -125,6 +151,20 @@ SqlString generateSql() {
     return writer.toSqlString();
   }
 
+  /** Generates "INSERT INTO t VALUES (?, ..., ?)", with a parameter for each
+   * column of this table. */
+  String generateInsertSql(int columnCount) {
+    final SqlPrettyWriter writer = new SqlPrettyWriter(jdbcSchema.dialect);
+    tableName().unparse(writer, 0, 0);
+    final StringBuilder buf = new StringBuilder("INSERT INTO ")
+        .append(writer.toSqlString().getSql())
+        .append(" VALUES (");
+    for (int i = 0; i < columnCount; i++) {
+      buf.append(i == 0 ? "?" : ", ?");
+    }
+    return buf.append(")").toString();
+  }
+
   SqlIdentifier tableName() {
     final List<String> strings = new ArrayList<String>();
     if (jdbcSchema.catalog != null) {
@@ -160,6 +200,132 @@ public Enumerator<T> enumerator() {
       }
     };
   }
+
+  public Collection getModifiableCollection() {
+    return new JdbcTableModifiableCollection();
+  }
+
+  public TableModificationRelBase toModificationRel(
+      RelOptCluster cluster,
+      RelOptTable table,
+      Prepare.CatalogReader catalogReader,
+      RelNode child,
+      TableModificationRelBase.Operation operation,
+      List<String> updateColumnList,
+      boolean flattened) {
+    return new TableModificationRel(
+        cluster, table, catalogReader, child, operation,
+        updateColumnList, flattened);
+  }
+
+  /** Collection that represents the rows of a {@link JdbcTable}.
+   *
+   * <p>Adding rows inserts them into the underlying table. The rows, each an
+   * array of objects, are bound to a single prepared {@code INSERT} statement
+   * and sent to the server in batches of {@link #INSERT_BATCH_SIZE}.
+   * Reading iterates over a {@code SELECT *} query.</p> */
+  private class JdbcTableModifiableCollection
+      extends AbstractCollection<Object[]> {
+    public Iterator<Object[]> iterator() {
+      // Build an array for every row, even if the table has one column.
+      final Enumerable<Object[]> enumerable =
+          ResultSetEnumerable.of(
+              jdbcSchema.getDataSource(),
+              generateSql().getSql(),
+              JdbcUtils.ObjectArrayRowBuilder.factory(
+                  fieldClasses(new JavaTypeFactoryImpl())));
+      return enumerable.iterator();
+    }
+
+    public int size() {
+      final SqlPrettyWriter writer = new SqlPrettyWriter(jdbcSchema.dialect);
+      tableName().unparse(writer, 0, 0);
+      final String sql =
+          "SELECT COUNT(*) FROM " + writer.toSqlString().getSql();
+      final Object count =
+          ResultSetEnumerable.of(jdbcSchema.getDataSource(), sql).single();
+      return ((Number) count).intValue();
+    }
+
+    @Override public boolean add(Object[] row) {
+      return addAll(Collections.singletonList(row));
+    }
+
+    @Override public boolean addAll(Collection<? extends Object[]> rows) {
+      if (rows.isEmpty()) {
+        return false;
+      }
+      final List<RelDataTypeField> fields =
+          getRowType(new SqlTypeFactoryImpl()).getFieldList();
+      final String sql = generateInsertSql(fields.size());
+      Connection connection = null;
+      PreparedStatement statement = null;
+      try {
+        connection = jdbcSchema.getDataSource().getConnection();
+        statement = connection.prepareStatement(sql);
+        int pending = 0;
+        for (Object[] row : rows) {
+          for (int i = 0; i < fields.size(); i++) {
+            statement.setObject(i + 1,
+                toJdbc(row[i], fields.get(i).getType().getSqlTypeName()));
+          }
+          statement.addBatch();
+          if (++pending == INSERT_BATCH_SIZE) {
+            statement.executeBatch();
+            pending = 0;
+          }
+        }
+        if (pending > 0) {
+          statement.executeBatch();
+        }
+        statement.close();
+        statement = null;
+        connection.close();
+        connection = null;
+        ResultCache.onModify(JdbcTable.this);
+        return true;
+      } catch (SQLException e) {
+        throw new RuntimeException("while executing SQL [" + sql + "]", e);
+      } finally {
+        if (statement != null) {
+          try {
+            statement.close();
+          } catch (SQLException e) {
+            // ignore
+          }
+        }
+        if (connection != null) {
+          try {
+            connection.close();
+          } catch (SQLException e) {
+            // ignore
+          }
+        }
+      }
+    }
+
+    /** Converts a value from Optiq's internal representation (for example,
+     * a DATE is an int number of days since the epoch) to the object that
+     * JDBC expects. Date-time values are shifted into the JVM's time zone,
+     * so that they read back unchanged. */
+    private Object toJdbc(Object o, SqlTypeName sqlTypeName) {
+      if (o == null) {
+        return null;
+      }
+      switch (sqlTypeName) {
+      case DATE:
+        return new java.sql.Date(
+            JdbcUtils.unshift(
+                ((Number) o).longValue() * DateTimeUtil.MILLIS_PER_DAY));
+      case TIME:
+        return new Time(JdbcUtils.unshift(((Number) o).longValue()));
+      case TIMESTAMP:
+        return new Timestamp(JdbcUtils.unshift(((Number) o).longValue()));
+      default:
+        return o;
+      }
+    }
+  }
 }
 
 // End JdbcTable.java
@@ -20,6 +20,7 @@
 import net.hydromatic.linq4j.expressions.*;
 
 import net.hydromatic.optiq.BuiltinMethod;
+import net.hydromatic.optiq.ModifiableTable;
 import net.hydromatic.optiq.Schemas;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.prepare.OptiqPrepareImpl;
@@ -85,12 +86,56 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
     Hook.QUERY_PLAN.run(sql);
     final Expression sql_ =
         builder0.append("sql", Expressions.constant(sql));
-    final int fieldCount = getRowType().getFieldCount();
+    final Expression dataSource_ =
+        Expressions.call(
+            Schemas.unwrap(jdbcConvention.expression, JdbcSchema.class),
+            BuiltinMethod.JDBC_SCHEMA_DATA_SOURCE.method);
+    if (child instanceof JdbcRules.JdbcTableModificationRel) {
+      // Generate:
+      //   ResultSetEnumerable.ofUpdate(schema.getDataSource(), "insert ...",
+      //       table)
+      // which removes cached results that read the table after the
+      // statement has executed.
+      final RelOptTable table =
+          ((JdbcRules.JdbcTableModificationRel) child).getTable();
+      builder0.add(
+          Expressions.return_(null,
+              Expressions.call(
+                  BuiltinMethod.RESULT_SET_ENUMERABLE_OF_UPDATE.method,
+                  dataSource_,
+                  sql_,
+                  table.getExpression(ModifiableTable.class))));
+      return implementor.result(physType, builder0.toBlock());
+    }
+    final Expression rowBuilderFactory_ =
+        generateRowBuilderFactory(implementor, builder0, physType,
+            jdbcConvention.dialect);
+    final Expression enumerable =
+        builder0.append(
+            "enumerable",
+            Expressions.call(
+                BuiltinMethod.RESULT_SET_ENUMERABLE_OF.method,
+                dataSource_,
+                sql_,
+                rowBuilderFactory_));
+    builder0.add(
+        Expressions.return_(null, enumerable));
+    return implementor.result(physType, builder0.toBlock());
+  }
+
+  /** Generates a function that, given a {@link ResultSet}, returns a function
+   * that converts the current row of that result set to a row of
+   * {@code physType}. Used by this converter and by
+   * {@link JdbcBindJoinRel}. */
+  static Expression generateRowBuilderFactory(
+      EnumerableRelImplementor implementor, BlockBuilder builder0,
+      PhysType physType, SqlDialect dialect) {
+    final int fieldCount = physType.getRowType().getFieldCount();
     BlockBuilder builder = new BlockBuilder();
     final ParameterExpression resultSet_ =
         Expressions.parameter(Modifier.FINAL, ResultSet.class,
             builder.newName("resultSet"));
-    CalendarPolicy calendarPolicy = CalendarPolicy.of(jdbcConvention.dialect);
+    CalendarPolicy calendarPolicy = CalendarPolicy.of(dialect);
     final Expression calendar_;
     switch (calendarPolicy) {
     case LOCAL:
@@ -124,39 +169,24 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
     }
     final ParameterExpression e_ =
         Expressions.parameter(SQLException.class, builder.newName("e"));
-    final Expression rowBuilderFactory_ =
-        builder0.append("rowBuilderFactory",
-            Expressions.lambda(
-                Expressions.block(
-                    Expressions.return_(null,
-                        Expressions.lambda(
-                            Expressions.block(
-                                Expressions.tryCatch(
-                                    builder.toBlock(),
-                                    Expressions.catch_(
-                                        e_,
-                                        Expressions.throw_(
-                                            Expressions.new_(
-                                                RuntimeException.class,
-                                                e_)))))))),
-                resultSet_));
-    final Expression enumerable =
-        builder0.append(
-            "enumerable",
-            Expressions.call(
-                BuiltinMethod.RESULT_SET_ENUMERABLE_OF.method,
-                Expressions.call(
-                    Schemas.unwrap(jdbcConvention.expression,
-                        JdbcSchema.class),
-                    BuiltinMethod.JDBC_SCHEMA_DATA_SOURCE.method),
-                sql_,
-                rowBuilderFactory_));
-    builder0.add(
-        Expressions.return_(null, enumerable));
-    return implementor.result(physType, builder0.toBlock());
+    return builder0.append("rowBuilderFactory",
+        Expressions.lambda(
+            Expressions.block(
+                Expressions.return_(null,
+                    Expressions.lambda(
+                        Expressions.block(
+                            Expressions.tryCatch(
+                                builder.toBlock(),
+                                Expressions.catch_(
+                                    e_,
+                                    Expressions.throw_(
+                                        Expressions.new_(
+                                            RuntimeException.class,
+                                            e_)))))))),
+            resultSet_));
   }
 
-  private UnaryExpression getTimeZoneExpression(
+  private static UnaryExpression getTimeZoneExpression(
       EnumerableRelImplementor implementor) {
     return Expressions.convert_(
         Expressions.call(
@@ -166,7 +196,7 @@ private UnaryExpression getTimeZoneExpression(
         TimeZone.class);
   }
 
-  private void generateGet(EnumerableRelImplementor implementor,
+  private static void generateGet(EnumerableRelImplementor implementor,
       PhysType physType, BlockBuilder builder, ParameterExpression resultSet_,
       int i, Expression target, Expression calendar_,
       CalendarPolicy calendarPolicy) {
@@ -218,7 +248,7 @@ private void generateGet(EnumerableRelImplementor implementor,
                 target, source)));
   }
 
-  private Method getMethod(SqlTypeName sqlTypeName, boolean nullable,
+  private static Method getMethod(SqlTypeName sqlTypeName, boolean nullable,
       boolean offset) {
     switch (sqlTypeName) {
     case DATE:
@@ -242,7 +272,7 @@ private Method getMethod(SqlTypeName sqlTypeName, boolean nullable,
     }
   }
 
-  private Method getMethod2(SqlTypeName sqlTypeName) {
+  private static Method getMethod2(SqlTypeName sqlTypeName) {
     switch (sqlTypeName) {
     case DATE:
       return BuiltinMethod.RESULT_SET_GET_DATE2.method;
@@ -256,7 +286,7 @@ private Method getMethod2(SqlTypeName sqlTypeName) {
   }
 
   /** E,g, {@code jdbcGetMethod(int)} returns "getInt". */
-  private String jdbcGetMethod(Primitive primitive) {
+  private static String jdbcGetMethod(Primitive primitive) {
     return primitive == null
         ? "getObject"
         : "get" + SqlFunctions.initcap(primitive.primitiveName);
@@ -268,7 +298,7 @@ private String generateSql(SqlDialect dialect) {
             (JavaTypeFactory) getCluster().getTypeFactory());
     final JdbcImplementor.Result result =
         jdbcImplementor.visitChild(0, getChild());
-    return result.asQuery().toSqlString(dialect).getSql();
+    return result.asStatement().toSqlString(dialect).getSql();
   }
 
   /** Whether this JDBC driver needs you to pass a Calendar object to methods
@@ -38,6 +38,16 @@ private JdbcUtils() {
     throw new AssertionError("no instances!");
   }
 
+  /** Converts a date-time value from Optiq's representation, milliseconds
+   * since the epoch in UTC that read as the local wall-clock time, to the
+   * milliseconds that JDBC expects in a {@link Date}, {@link Time} or
+   * {@link Timestamp}. It is the inverse of the shift that
+   * {@link ObjectArrayRowBuilder} applies to values read from JDBC. */
+  static long unshift(long time) {
+    final TimeZone timeZone = TimeZone.getDefault();
+    return time - timeZone.getOffset(time - timeZone.getOffset(time));
+  }
+
   /** Pool of dialects. */
   public static class DialectPool {
     final Map<List, SqlDialect> map = new HashMap<List, SqlDialect>();
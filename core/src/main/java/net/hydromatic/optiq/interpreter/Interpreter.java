@@ -0,0 +1,345 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.interpreter;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.QueryableTable;
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.rules.java.JavaRules;
+import net.hydromatic.optiq.runtime.Bindable;
+
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.util.NlsString;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes a plan of {@link net.hydromatic.optiq.rules.java.EnumerableRel}s
+ * by walking the tree, rather than by generating and compiling code.
+ *
+ * <p>Compiling a plan costs far more than executing a short-running query.
+ * The interpreter handles table scans, calcs and VALUES, which covers
+ * simple queries such as {@code SELECT * FROM t WHERE id = ?}; expressions
+ * are evaluated using {@link RexInterpreter}. Plans that contain anything
+ * else must be compiled.</p>
+ *
+ * <p>Within the interpreter, each row is an {@code Object[]} whose values
+ * have the Java types that generated code would use.</p>
+ */
+public class Interpreter {
+  private Interpreter() {
+  }
+
+  /** Returns a {@link Bindable} that executes a plan, or null if the plan
+   * contains a relational expression, expression or type that the
+   * interpreter does not support.
+   *
+   * <p>Rows have the same format as code generated with
+   * {@link net.hydromatic.optiq.rules.java.EnumerableRel.Prefer#ARRAY}:
+   * each row is an {@code Object[]}, unless the plan has just one column, in
+   * which case each row is the value of that column.</p> */
+  public static Bindable<Object> bindable(RelNode rel) {
+    final Node node;
+    try {
+      node = node(rel);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+    final boolean scalar = rel.getRowType().getFieldCount() == 1;
+    return new Bindable<Object>() {
+      public Enumerable<Object> bind(DataContext dataContext) {
+        final Enumerable<Object[]> rows = node.execute(dataContext);
+        if (!scalar) {
+          //noinspection unchecked
+          return (Enumerable) rows;
+        }
+        return rows.select(
+            new Function1<Object[], Object>() {
+              public Object apply(Object[] row) {
+                return row[0];
+              }
+            });
+      }
+    };
+  }
+
+  private static Node node(RelNode rel) {
+    if (rel instanceof JavaRules.EnumerableTableAccessRel) {
+      return scan((JavaRules.EnumerableTableAccessRel) rel);
+    }
+    if (rel instanceof JavaRules.EnumerableCalcRel) {
+      return calc((JavaRules.EnumerableCalcRel) rel);
+    }
+    if (rel instanceof JavaRules.EnumerableValuesRel) {
+      return values((JavaRules.EnumerableValuesRel) rel);
+    }
+    throw new UnsupportedOperationException("cannot interpret " + rel);
+  }
+
+  private static Node scan(JavaRules.EnumerableTableAccessRel rel) {
+    final OptiqSchema.TableEntry entry =
+        rel.getTable().unwrap(OptiqSchema.TableEntry.class);
+    if (entry == null || !(entry.getTable() instanceof QueryableTable)) {
+      throw new UnsupportedOperationException("cannot interpret " + rel);
+    }
+    final QueryableTable table = (QueryableTable) entry.getTable();
+    final SchemaPlus schema = entry.schema.plus();
+    final String name = entry.name;
+    final Function1<Object, Object[]> toArray =
+        toArray(table.getElementType(), rel.getRowType(), true);
+    return new Node() {
+      public Enumerable<Object[]> execute(DataContext dataContext) {
+        return table.asQueryable(dataContext.getQueryProvider(), schema, name)
+            .asEnumerable()
+            .select(toArray);
+      }
+    };
+  }
+
+  /** Returns a function that converts a row to an {@code Object[]}.
+   *
+   * <p>A row with one field is the value of that field. If the element type
+   * is an array, the row is already an {@code Object[]}; otherwise each
+   * field of the row type is a public field of the element type.</p>
+   *
+   * @param elementType Element type
+   * @param rowType Row type
+   * @param byName Whether to look up fields by the names in the row type,
+   *   as generated code does for a table; otherwise by position, as
+   *   {@link net.hydromatic.optiq.runtime.RecordEnumeratorCursor} does for a
+   *   result
+   */
+  static Function1<Object, Object[]> toArray(Type elementType,
+      RelDataType rowType, boolean byName) {
+    if (rowType.getFieldCount() == 1) {
+      return new Function1<Object, Object[]>() {
+        public Object[] apply(Object row) {
+          return new Object[] {row};
+        }
+      };
+    }
+    if (!(elementType instanceof Class)
+        || ((Class) elementType).isArray()) {
+      return new Function1<Object, Object[]>() {
+        public Object[] apply(Object row) {
+          return (Object[]) row;
+        }
+      };
+    }
+    final Class clazz = (Class) elementType;
+    final Field[] publicFields = clazz.getFields();
+    final List<Field> fieldList = new ArrayList<Field>();
+    for (RelDataTypeField field : rowType.getFieldList()) {
+      Field f = null;
+      if (!byName) {
+        if (field.getIndex() < publicFields.length) {
+          f = publicFields[field.getIndex()];
+        }
+      } else {
+        try {
+          f = clazz.getField(field.getName());
+        } catch (NoSuchFieldException e) {
+          // f remains null
+        }
+      }
+      if (f == null) {
+        throw new UnsupportedOperationException(
+            "cannot read field " + field.getName() + " of " + clazz);
+      }
+      fieldList.add(f);
+    }
+    final Field[] fields = fieldList.toArray(new Field[fieldList.size()]);
+    return new Function1<Object, Object[]>() {
+      public Object[] apply(Object row) {
+        final Object[] values = new Object[fields.length];
+        try {
+          for (int i = 0; i < fields.length; i++) {
+            values[i] = fields[i].get(row);
+          }
+        } catch (IllegalAccessException e) {
+          throw new RuntimeException(e);
+        }
+        return values;
+      }
+    };
+  }
+
+  private static Node calc(JavaRules.EnumerableCalcRel rel) {
+    final Node input = node(rel.getChild());
+    final RexProgram program = rel.getProgram();
+    final RexInterpreter.Scalar condition =
+        program.getCondition() == null
+            ? null
+            : RexInterpreter.scalar(
+                program.expandLocalRef(program.getCondition()));
+    final List<RexLocalRef> projectList = program.getProjectList();
+    final RexInterpreter.Scalar[] projects =
+        new RexInterpreter.Scalar[projectList.size()];
+    for (int i = 0; i < projects.length; i++) {
+      final RexNode node = program.expandLocalRef(projectList.get(i));
+      if (node instanceof RexInputRef) {
+        // A field of the input already has the right Java type.
+        projects[i] = RexInterpreter.scalar(node);
+      } else {
+        projects[i] = toJava(RexInterpreter.scalar(node), node.getType());
+      }
+    }
+    return new Node() {
+      public Enumerable<Object[]> execute(final DataContext dataContext) {
+        Enumerable<Object[]> rows = input.execute(dataContext);
+        if (condition != null) {
+          rows = rows.where(
+              new Predicate1<Object[]>() {
+                public boolean apply(Object[] row) {
+                  return Boolean.TRUE.equals(
+                      condition.execute(row, dataContext));
+                }
+              });
+        }
+        return rows.select(
+            new Function1<Object[], Object[]>() {
+              public Object[] apply(Object[] row) {
+                final Object[] values = new Object[projects.length];
+                for (int i = 0; i < projects.length; i++) {
+                  values[i] = projects[i].execute(row, dataContext);
+                }
+                return values;
+              }
+            });
+      }
+    };
+  }
+
+  private static Node values(JavaRules.EnumerableValuesRel rel) {
+    final List<RelDataTypeField> fields = rel.getRowType().getFieldList();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (List<RexLiteral> tuple : rel.getTuples()) {
+      final Object[] values = new Object[tuple.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] =
+            toJava(RexInterpreter.scalar(tuple.get(i)),
+                fields.get(i).getType())
+                .execute(null, null);
+      }
+      rows.add(values);
+    }
+    return new Node() {
+      public Enumerable<Object[]> execute(DataContext dataContext) {
+        return Linq4j.asEnumerable(rows);
+      }
+    };
+  }
+
+  /** Wraps a scalar so that its result has the Java type that generated code
+   * would use for a given SQL type. */
+  private static RexInterpreter.Scalar toJava(
+      final RexInterpreter.Scalar scalar, RelDataType type) {
+    final Function1<Object, Object> converter;
+    switch (type.getSqlTypeName()) {
+    case TINYINT:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).byteValue();
+        }
+      };
+      break;
+    case SMALLINT:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).shortValue();
+        }
+      };
+      break;
+    case INTEGER:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).intValue();
+        }
+      };
+      break;
+    case BIGINT:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).longValue();
+        }
+      };
+      break;
+    case REAL:
+    case FLOAT:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).floatValue();
+        }
+      };
+      break;
+    case DOUBLE:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return ((Number) o).doubleValue();
+        }
+      };
+      break;
+    case DECIMAL:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return o instanceof BigDecimal
+              ? o
+              : BigDecimal.valueOf(((Number) o).longValue());
+        }
+      };
+      break;
+    case CHAR:
+    case VARCHAR:
+      converter = new Function1<Object, Object>() {
+        public Object apply(Object o) {
+          return o instanceof String ? o : ((NlsString) o).getValue();
+        }
+      };
+      break;
+    case BOOLEAN:
+      return scalar;
+    default:
+      throw new UnsupportedOperationException(
+          "cannot interpret values of type " + type);
+    }
+    return new RexInterpreter.Scalar() {
+      public Object execute(Object[] values, DataContext dataContext) {
+        final Object o = scalar.execute(values, dataContext);
+        return o == null ? null : converter.apply(o);
+      }
+    };
+  }
+
+  /** Relational expression that has been prepared for interpretation. */
+  private interface Node {
+    Enumerable<Object[]> execute(DataContext dataContext);
+  }
+}
+
+// End Interpreter.java
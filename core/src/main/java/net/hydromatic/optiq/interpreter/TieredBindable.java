@@ -0,0 +1,191 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.interpreter;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.Function0;
+import net.hydromatic.linq4j.function.Function1;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.runtime.Bindable;
+import net.hydromatic.optiq.runtime.Typed;
+
+import org.eigenbase.reltype.RelDataType;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Statement that is interpreted until it has been used enough to be worth
+ * compiling.
+ *
+ * <p>Execution starts with a {@link Bindable} created by
+ * {@link Interpreter}. When the statement has been executed a given number
+ * of times, or the interpreter has produced a given number of rows, the plan
+ * is compiled in a background thread; executions that start after
+ * compilation has finished use the compiled code. Executions never wait for
+ * compilation. If compilation fails, the statement continues to be
+ * interpreted.</p>
+ *
+ * <p>Rows have the interpreter's format whichever tier produces them.</p>
+ */
+public class TieredBindable implements Bindable<Object>, Typed {
+  private static final Logger LOGGER =
+      Logger.getLogger(TieredBindable.class.getName());
+
+  /** Compiles plans. A single daemon thread, so that compilation does not
+   * compete with queries for more than one processor, and does not prevent
+   * the JVM from exiting. */
+  private static final ExecutorService COMPILER =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              final Thread thread = new Thread(r, "optiq-compiler");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  private final Bindable<Object> interpreted;
+  private final Function0<Bindable> compiler;
+  private final RelDataType rowType;
+  private final int compileExecutions;
+  private final long compileRows;
+
+  private final AtomicInteger executionCount = new AtomicInteger();
+  private final AtomicLong rowCount = new AtomicLong();
+  private final AtomicBoolean compileStarted = new AtomicBoolean();
+  private volatile Bindable<Object> compiled;
+
+  /** Creates a TieredBindable.
+   *
+   * @param interpreted Interpreted statement
+   * @param compiler Generates and compiles code for the statement; called
+   *   at most once, in a background thread
+   * @param rowType Row type of the statement
+   * @param compileExecutions Number of executions after which to compile
+   * @param compileRows Number of rows after which to compile
+   */
+  public TieredBindable(Bindable<Object> interpreted,
+      Function0<Bindable> compiler, RelDataType rowType,
+      int compileExecutions, long compileRows) {
+    this.interpreted = interpreted;
+    this.compiler = compiler;
+    this.rowType = rowType;
+    this.compileExecutions = compileExecutions;
+    this.compileRows = compileRows;
+  }
+
+  public Type getElementType() {
+    return Object[].class;
+  }
+
+  /** Returns whether the compiled code is ready, and will be used by
+   * subsequent executions. */
+  public boolean isCompiled() {
+    return compiled != null;
+  }
+
+  public Enumerable<Object> bind(DataContext dataContext) {
+    final Bindable<Object> compiled = this.compiled;
+    if (compiled != null) {
+      return compiled.bind(dataContext);
+    }
+    if (executionCount.incrementAndGet() >= compileExecutions) {
+      compile();
+    }
+    final Enumerable<Object> rows = interpreted.bind(dataContext);
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        final Enumerator<Object> enumerator = rows.enumerator();
+        return new Enumerator<Object>() {
+          public Object current() {
+            return enumerator.current();
+          }
+
+          public boolean moveNext() {
+            if (!enumerator.moveNext()) {
+              return false;
+            }
+            if (rowCount.incrementAndGet() >= compileRows) {
+              compile();
+            }
+            return true;
+          }
+
+          public void reset() {
+            enumerator.reset();
+          }
+
+          public void close() {
+            enumerator.close();
+          }
+        };
+      }
+    };
+  }
+
+  /** Starts compiling the statement, unless compilation has already
+   * started. */
+  private void compile() {
+    if (compileStarted.get() || !compileStarted.compareAndSet(false, true)) {
+      return;
+    }
+    COMPILER.execute(
+        new Runnable() {
+          public void run() {
+            try {
+              compiled = adapt(compiler.apply());
+            } catch (Throwable e) {
+              LOGGER.log(Level.WARNING,
+                  "Error while compiling statement; will continue to "
+                  + "interpret it", e);
+            }
+          }
+        });
+  }
+
+  /** Converts the rows of the compiled statement to the format of the
+   * interpreter, if they differ. Generated code may return a record for
+   * each row; the interpreter always returns an array, or a scalar if there
+   * is one column. */
+  private Bindable<Object> adapt(final Bindable bindable) {
+    final Type elementType = ((Typed) bindable).getElementType();
+    if (rowType.getFieldCount() == 1
+        || !(elementType instanceof Class)
+        || ((Class) elementType).isArray()) {
+      //noinspection unchecked
+      return bindable;
+    }
+    final Function1<Object, Object[]> toArray =
+        Interpreter.toArray(elementType, rowType, false);
+    return new Bindable<Object>() {
+      public Enumerable<Object> bind(DataContext dataContext) {
+        //noinspection unchecked
+        final Enumerable<Object> rows = bindable.bind(dataContext);
+        //noinspection unchecked
+        return (Enumerable) rows.select(toArray);
+      }
+    };
+  }
+}
+
+// End TieredBindable.java
@@ -25,6 +25,7 @@
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.config.OptiqConnectionConfig;
 import net.hydromatic.optiq.impl.AbstractTableQueryable;
 import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
@@ -589,11 +590,24 @@ public ResultSet getPseudoColumns(
 
   public Cursor createCursor(AvaticaResultSet resultSet_) {
     OptiqResultSet resultSet = (OptiqResultSet) resultSet_;
+    final List<Object> parameterValues =
+        OptiqConnectionImpl.TROJAN.getParameterValues(
+            resultSet.getStatement());
+    final InsertBuffer insertBuffer =
+        resultSet.getStatement() instanceof OptiqPreparedStatement
+            ? ((OptiqPreparedStatement) resultSet.getStatement()).insertBuffer
+            : null;
     final DataContext dataContext =
-        connection.createDataContext(
-            OptiqConnectionImpl.TROJAN.getParameterValues(
-                resultSet.getStatement()));
+        connection.createDataContext(parameterValues, insertBuffer);
     OptiqPrepare.PrepareResult prepareResult = resultSet.getPrepareResult();
+    final OptiqConnectionConfig config = connection.config();
+    if (config.resultCache() && prepareResult.tables != null
+        && insertBuffer == null) {
+      return prepareResult.createCursor(
+          ResultCache.instance().enumerator(connection.rootSchema,
+              prepareResult, parameterValues, dataContext,
+              config.resultCacheTtl()));
+    }
     return prepareResult.createCursor(dataContext);
   }
 
@@ -30,6 +30,7 @@
 import net.hydromatic.optiq.config.OptiqConnectionProperty;
 import net.hydromatic.optiq.impl.AbstractSchema;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.runtime.InsertBuffer;
 import net.hydromatic.optiq.server.OptiqServer;
 import net.hydromatic.optiq.server.OptiqServerStatement;
 
@@ -197,10 +198,18 @@ public <T> Enumerator<T> executeQuery(Queryable<T> queryable) {
   }
 
   public DataContext createDataContext(List<Object> parameterValues) {
+    return createDataContext(parameterValues, null);
+  }
+
+  /** Creates a data context for executing a statement. If
+   * {@code insertBuffer} is not null, the statement is part of a batch, and
+   * collects the rows it inserts in the buffer. */
+  DataContext createDataContext(List<Object> parameterValues,
+      InsertBuffer insertBuffer) {
     if (config().spark()) {
       return new SlimDataContext();
     }
-    return new DataContextImpl(this, parameterValues);
+    return new DataContextImpl(this, parameterValues, insertBuffer);
   }
 
   // do not make public
@@ -262,7 +271,7 @@ static class DataContextImpl implements DataContext {
     private final JavaTypeFactory typeFactory;
 
     DataContextImpl(OptiqConnectionImpl connection,
-        List<Object> parameterValues) {
+        List<Object> parameterValues, InsertBuffer insertBuffer) {
       this.queryProvider = connection;
       this.typeFactory = connection.getTypeFactory();
       this.rootSchema = connection.rootSchema;
@@ -280,6 +289,9 @@ static class DataContextImpl implements DataContext {
           .put("currentTimestamp", time + currentOffset)
           .put("localTimestamp", time + localOffset)
           .put("timeZone", timeZone);
+      if (insertBuffer != null) {
+        builder.put("insertBuffer", insertBuffer);
+      }
       for (Ord<Object> value : Ord.zip(parameterValues)) {
         Object e = value.e;
         if (e == null) {
@@ -379,6 +391,26 @@ public boolean autoTemp() {
       return OptiqConnectionProperty.AUTO_TEMP.wrap(properties).getBoolean();
     }
 
+    public boolean codeCache() {
+      return OptiqConnectionProperty.CODE_CACHE.wrap(properties).getBoolean();
+    }
+
+    public boolean interpreter() {
+      return OptiqConnectionProperty.INTERPRETER.wrap(properties).getBoolean();
+    }
+
+    public int interpreterCompileExecutions() {
+      return Integer.parseInt(
+          OptiqConnectionProperty.INTERPRETER_COMPILE_EXECUTIONS
+              .wrap(properties).getString());
+    }
+
+    public long interpreterCompileRows() {
+      return Long.parseLong(
+          OptiqConnectionProperty.INTERPRETER_COMPILE_ROWS.wrap(properties)
+              .getString());
+    }
+
     public boolean materializationsEnabled() {
       return OptiqConnectionProperty.MATERIALIZATIONS_ENABLED.wrap(properties)
           .getBoolean();
@@ -415,6 +447,26 @@ public boolean caseSensitive() {
     public boolean spark() {
       return OptiqConnectionProperty.SPARK.wrap(properties).getBoolean();
     }
+
+    public boolean spool() {
+      return OptiqConnectionProperty.SPOOL.wrap(properties).getBoolean();
+    }
+
+    public boolean resultCache() {
+      return OptiqConnectionProperty.RESULT_CACHE.wrap(properties)
+          .getBoolean();
+    }
+
+    public long resultCacheTtl() {
+      return Long.parseLong(
+          OptiqConnectionProperty.RESULT_CACHE_TTL.wrap(properties)
+              .getString());
+    }
+
+    public boolean scaledDecimals() {
+      return OptiqConnectionProperty.SCALED_DECIMALS.wrap(properties)
+          .getBoolean();
+    }
   }
 }
 
@@ -205,10 +205,14 @@ public ParseResult(OptiqPrepareImpl prepare, SqlValidator validator,
     public final List<AvaticaParameter> parameterList;
     public final RelDataType rowType;
     public final List<ColumnMetaData> columnList;
-    private final int maxRowCount;
+    final int maxRowCount;
     private final Bindable<T> bindable;
     public final Class resultClazz;
 
+    /** Tables that the query reads, if its result may be cached; null if it
+     * may not, for example because it calls a non-deterministic function. */
+    public final List<Table> tables;
+
     public PrepareResult(String sql,
         List<AvaticaParameter> parameterList,
         RelDataType rowType,
@@ -216,6 +220,18 @@ public PrepareResult(String sql,
         int maxRowCount,
         Bindable<T> bindable,
         Class resultClazz) {
+      this(sql, parameterList, rowType, columnList, maxRowCount, bindable,
+          resultClazz, null);
+    }
+
+    public PrepareResult(String sql,
+        List<AvaticaParameter> parameterList,
+        RelDataType rowType,
+        List<ColumnMetaData> columnList,
+        int maxRowCount,
+        Bindable<T> bindable,
+        Class resultClazz,
+        List<Table> tables) {
       super();
       this.sql = sql;
       this.parameterList = parameterList;
@@ -224,10 +240,16 @@ public PrepareResult(String sql,
       this.maxRowCount = maxRowCount;
       this.bindable = bindable;
       this.resultClazz = resultClazz;
+      this.tables = tables;
     }
 
     public Cursor createCursor(DataContext dataContext) {
-      Enumerator<?> enumerator = enumerator(dataContext);
+      return createCursor(enumerator(dataContext));
+    }
+
+    /** Creates a cursor over rows that have already been produced, for
+     * example by a {@link ResultCache}. */
+    Cursor createCursor(Enumerator<?> enumerator) {
       //noinspection unchecked
       return columnList.size() == 1
           ? new ObjectEnumeratorCursor((Enumerator) enumerator)
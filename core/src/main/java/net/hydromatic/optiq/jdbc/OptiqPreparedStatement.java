@@ -20,6 +20,7 @@
 import net.hydromatic.avatica.AvaticaPrepareResult;
 import net.hydromatic.avatica.AvaticaPreparedStatement;
 
+import net.hydromatic.optiq.runtime.InsertBuffer;
 import net.hydromatic.optiq.server.OptiqServerStatement;
 
 import java.sql.*;
@@ -34,6 +35,10 @@
 abstract class OptiqPreparedStatement
     extends AvaticaPreparedStatement
     implements OptiqServerStatement {
+  /** Collects inserted rows while {@link #executeBatch()} is running; null
+   * otherwise. */
+  InsertBuffer insertBuffer;
+
   /**
    * Creates an OptiqPreparedStatement.
    *
@@ -62,6 +67,30 @@ public OptiqConnectionImpl getConnection() {
   public OptiqConnectionImpl.ContextImpl createPrepareContext() {
     return new OptiqConnectionImpl.ContextImpl(getConnection());
   }
+
+  /** {@inheritDoc}
+   *
+   * <p>If the statement inserts rows that it does not read from a table,
+   * such as {@code INSERT INTO t VALUES (?, ?)}, the rows of every set of
+   * parameter values are collected, and are added to the table at the end, so
+   * that a JDBC table receives them as a few large batches.</p> */
+  @Override public int[] executeBatch() throws SQLException {
+    final InsertBuffer buffer = new InsertBuffer();
+    insertBuffer = buffer;
+    final int[] updateCounts;
+    try {
+      updateCounts = super.executeBatch();
+    } finally {
+      insertBuffer = null;
+    }
+    try {
+      buffer.flush();
+    } catch (RuntimeException e) {
+      throw getConnection().helper.createException(
+          "Error while inserting rows of batch", e);
+    }
+    return updateCounts;
+  }
 }
 
 // End OptiqPreparedStatement.java
@@ -19,14 +19,30 @@
 
 import net.hydromatic.optiq.Schema;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Root schema.
  */
 public class OptiqRootSchema extends OptiqSchema {
+  /** Incremented whenever a table, function or schema is added anywhere
+   * under this root. */
+  private final AtomicLong version = new AtomicLong();
+
   /** Creates a root schema. */
   OptiqRootSchema(Schema schema) {
     super(null, schema, "");
   }
+
+  /** Returns the version of this root schema and its descendants. It
+   * changes whenever a table, function or schema is added or replaced. */
+  public long getVersion() {
+    return version.get();
+  }
+
+  void changed() {
+    version.incrementAndGet();
+  }
 }
 
 // End OptiqRootSchema.java
@@ -126,6 +126,7 @@ public TableEntry add(String tableName, Table table) {
         new TableEntryImpl(this, tableName, table);
     tableMap.put(tableName, entry);
     tableMapInsensitive.put(tableName, entry);
+    root().changed();
     return entry;
   }
 
@@ -136,6 +137,7 @@ private FunctionEntry add(String name, Function function) {
     if (function.getParameters().isEmpty()) {
       nullaryFunctionMapInsensitive.put(name, entry);
     }
+    root().changed();
     return entry;
   }
 
@@ -175,6 +177,7 @@ public OptiqSchema add(String name, Schema schema) {
     final OptiqSchema optiqSchema = new OptiqSchema(this, schema, name);
     subSchemaMap.put(name, optiqSchema);
     subSchemaMapInsensitive.put(name, optiqSchema);
+    root().changed();
     return optiqSchema;
   }
 
@@ -0,0 +1,381 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.jdbc;
+
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.Linq4j;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.ModifiableTable;
+import net.hydromatic.optiq.Table;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results, shared by all connections.
+ *
+ * <p>A result is keyed by the root schema, the SQL text, the maximum row
+ * count, and the values of the parameters. It is only cached if the query is
+ * deterministic; see {@link OptiqPrepare.PrepareResult#tables}.</p>
+ *
+ * <p>The SQL text is used as is, so queries that differ only in white space
+ * or in the case of keywords are cached separately. Keying by a normalized
+ * form, such as the plan, would require each lookup to parse and plan the
+ * query, which is often the greater part of the cost of a short query;
+ * applications that issue the same query repeatedly usually issue the same
+ * text.</p>
+ *
+ * <p>A result is removed when rows are inserted into a
+ * {@link ModifiableTable} that it read, and is not used after a table,
+ * function or schema has been added to its root schema. Code that modifies
+ * a table other than by executing a statement, for example by adding rows
+ * directly to its modifiable collection, must call
+ * {@link #onModify(ModifiableTable)}.</p>
+ *
+ * <p>Other tables, and tables that are an {@link ExternalTable}, such as a
+ * table in a JDBC database, may change without Optiq knowing, so a result
+ * that reads them expires after a time-to-live set by the
+ * connection.</p>
+ *
+ * <p>The cache is bounded by the estimated size of the results it holds, and
+ * evicts the least recently used result first. A result is recorded as the
+ * consumer reads it, and is only added to the cache if it is read to the
+ * end.</p>
+ *
+ * <p>The cache is used only by connections whose
+ * {@link net.hydromatic.optiq.config.OptiqConnectionProperty#RESULT_CACHE}
+ * property is true.</p>
+ */
+public class ResultCache {
+  /** Default maximum size of the cache, in bytes. */
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  private static final ResultCache INSTANCE =
+      new ResultCache(DEFAULT_MAX_BYTES);
+
+  /** Estimated overhead of an entry, in bytes, not counting its rows. */
+  private static final int ENTRY_BYTES = 128;
+
+  private final LinkedHashMap<Key, Entry> map =
+      new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private long maxBytes;
+  private long byteCount;
+
+  /** Incremented whenever a table is modified. A result that was being
+   * computed during a modification is not added to the cache. */
+  private final AtomicLong modificationCount = new AtomicLong();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  ResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the cache. */
+  public static ResultCache instance() {
+    return INSTANCE;
+  }
+
+  /** Called after rows have been inserted into a table. Removes results
+   * that read the table. */
+  public static void onModify(ModifiableTable table) {
+    INSTANCE.invalidate(table);
+  }
+
+  /** Returns an enumerator over the result of a query, from the cache if
+   * possible, otherwise by executing the query. */
+  <T> Enumerator<T> enumerator(OptiqRootSchema rootSchema,
+      OptiqPrepare.PrepareResult<T> prepareResult,
+      List<Object> parameterValues, DataContext dataContext,
+      long timeToLiveMillis) {
+    final Key key =
+        new Key(rootSchema, prepareResult.sql, prepareResult.maxRowCount,
+            parameterValues);
+    final long version = rootSchema.getVersion();
+    synchronized (this) {
+      final Entry entry = map.get(key);
+      if (entry != null) {
+        if (entry.version == version
+            && (!entry.expires
+                || System.currentTimeMillis() - entry.createdMillis
+                    <= timeToLiveMillis)) {
+          hitCount.incrementAndGet();
+          //noinspection unchecked
+          return Linq4j.enumerator((List<T>) entry.rows);
+        }
+        remove(key);
+      }
+    }
+    missCount.incrementAndGet();
+    return new RecordingEnumerator<T>(prepareResult.enumerator(dataContext),
+        key, version, prepareResult.tables, modificationCount.get());
+  }
+
+  /** Removes results that read a given table. */
+  public synchronized void invalidate(Table table) {
+    modificationCount.incrementAndGet();
+    for (Iterator<Map.Entry<Key, Entry>> iterator =
+             map.entrySet().iterator(); iterator.hasNext();) {
+      final Map.Entry<Key, Entry> e = iterator.next();
+      if (e.getValue().tables.contains(table)) {
+        byteCount -= e.getValue().bytes;
+        iterator.remove();
+        invalidationCount.incrementAndGet();
+      }
+    }
+  }
+
+  /** Removes all results. */
+  public synchronized void clear() {
+    map.clear();
+    byteCount = 0;
+  }
+
+  /** Sets the maximum size of the cache, in bytes, evicting results if
+   * necessary. */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  private synchronized void put(Key key, long version, List<Table> tables,
+      List<Object> rows, long bytes, long modificationCount) {
+    if (bytes > maxBytes
+        || modificationCount != this.modificationCount.get()) {
+      return;
+    }
+    remove(key);
+    boolean expires = false;
+    for (Table table : tables) {
+      if (canChangeOutsideOptiq(table)) {
+        expires = true;
+      }
+    }
+    map.put(key,
+        new Entry(version, tables, rows, bytes, expires,
+            System.currentTimeMillis()));
+    byteCount += bytes;
+    evict();
+  }
+
+  /** Returns whether the contents of a table can change without Optiq
+   * knowing. Only a table whose every modification goes through Optiq, and
+   * so calls {@link #onModify}, can be cached without a time-to-live. */
+  static boolean canChangeOutsideOptiq(Table table) {
+    return !(table instanceof ModifiableTable)
+        || table instanceof ExternalTable;
+  }
+
+  private void remove(Key key) {
+    final Entry entry = map.remove(key);
+    if (entry != null) {
+      byteCount -= entry.bytes;
+    }
+  }
+
+  /** Removes least recently used results until the cache is within its
+   * size limit. */
+  private void evict() {
+    final Iterator<Entry> iterator = map.values().iterator();
+    while (byteCount > maxBytes && iterator.hasNext()) {
+      byteCount -= iterator.next().bytes;
+      iterator.remove();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  /** Returns the number of queries whose result was found in the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of queries whose result was not in the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of results removed to make space. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the number of results removed because a table they read was
+   * modified. */
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  /** Returns the estimated size of the results in the cache, in bytes. */
+  public synchronized long getByteCount() {
+    return byteCount;
+  }
+
+  /** Returns the number of results in the cache. */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /** Estimates the number of bytes used by a value. */
+  static long estimateSize(Object o) {
+    if (o == null) {
+      return 4;
+    }
+    if (o instanceof String) {
+      return 40 + 2 * ((String) o).length();
+    }
+    if (o instanceof Object[]) {
+      long size = 16;
+      for (Object o1 : (Object[]) o) {
+        size += 4 + estimateSize(o1);
+      }
+      return size;
+    }
+    if (o instanceof List) {
+      long size = 40;
+      for (Object o1 : (List) o) {
+        size += 4 + estimateSize(o1);
+      }
+      return size;
+    }
+    return 16;
+  }
+
+  /** Table whose data is held outside Optiq, and can be modified by other
+   * clients even though it can also be modified through Optiq. A cached
+   * result that reads such a table expires. */
+  public interface ExternalTable extends Table {
+  }
+
+  /** Key of a cached result. */
+  private static class Key {
+    final OptiqRootSchema rootSchema;
+    final String sql;
+    final int maxRowCount;
+    final List<Object> parameterValues;
+
+    Key(OptiqRootSchema rootSchema, String sql, int maxRowCount,
+        List<Object> parameterValues) {
+      this.rootSchema = rootSchema;
+      this.sql = sql;
+      this.maxRowCount = maxRowCount;
+      this.parameterValues = new ArrayList<Object>(parameterValues);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(
+          new Object[] {
+            System.identityHashCode(rootSchema), sql, maxRowCount,
+            parameterValues
+          });
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj == this
+          || obj instanceof Key
+          && rootSchema == ((Key) obj).rootSchema
+          && sql.equals(((Key) obj).sql)
+          && maxRowCount == ((Key) obj).maxRowCount
+          && parameterValues.equals(((Key) obj).parameterValues);
+    }
+  }
+
+  /** Cached result. */
+  private static class Entry {
+    final long version;
+    final List<Table> tables;
+    final List<Object> rows;
+    final long bytes;
+    /** Whether the result reads a table that is not a
+     * {@link ModifiableTable}, and therefore expires. */
+    final boolean expires;
+    final long createdMillis;
+
+    Entry(long version, List<Table> tables, List<Object> rows, long bytes,
+        boolean expires, long createdMillis) {
+      this.version = version;
+      this.tables = tables;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.expires = expires;
+      this.createdMillis = createdMillis;
+    }
+  }
+
+  /** Enumerator that remembers the rows it returns, and adds them to the
+   * cache when it reaches the end. Stops remembering if the result becomes
+   * too large to cache. */
+  private class RecordingEnumerator<T> implements Enumerator<T> {
+    private final Enumerator<T> enumerator;
+    private final Key key;
+    private final long version;
+    private final List<Table> tables;
+    private final long modificationCount;
+    private List<Object> rows = new ArrayList<Object>();
+    private long bytes = ENTRY_BYTES;
+
+    RecordingEnumerator(Enumerator<T> enumerator, Key key, long version,
+        List<Table> tables, long modificationCount) {
+      this.enumerator = enumerator;
+      this.key = key;
+      this.version = version;
+      this.tables = tables;
+      this.modificationCount = modificationCount;
+    }
+
+    public T current() {
+      return enumerator.current();
+    }
+
+    public boolean moveNext() {
+      if (enumerator.moveNext()) {
+        if (rows != null) {
+          final T current = enumerator.current();
+          bytes += estimateSize(current);
+          if (bytes > maxBytes) {
+            rows = null;
+          } else {
+            rows.add(current);
+          }
+        }
+        return true;
+      }
+      if (rows != null) {
+        put(key, version, tables, rows, bytes, modificationCount);
+        rows = null;
+      }
+      return false;
+    }
+
+    public void reset() {
+      enumerator.reset();
+      rows = null;
+    }
+
+    public void close() {
+      enumerator.close();
+    }
+  }
+}
+
+// End ResultCache.java
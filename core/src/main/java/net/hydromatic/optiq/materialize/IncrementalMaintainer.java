@@ -0,0 +1,504 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.materialize;
+
+import net.hydromatic.linq4j.*;
+
+import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.impl.AbstractSchema;
+import net.hydromatic.optiq.impl.AbstractTableQueryable;
+import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
+import net.hydromatic.optiq.jdbc.*;
+
+import org.eigenbase.reltype.*;
+import org.eigenbase.sql.*;
+import org.eigenbase.sql.fun.*;
+import org.eigenbase.sql.parser.SqlParseException;
+import org.eigenbase.sql.parser.SqlParser;
+import org.eigenbase.sql.parser.SqlParserPos;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Keeps a materialized table up to date as rows are inserted into the table
+ * that its query reads, without re-executing the whole query.
+ *
+ * <p>The query must read from a single {@link ModifiableTable}, and may
+ * filter, project, and aggregate using SUM, COUNT, MIN and MAX. For
+ * example:</p>
+ *
+ * <blockquote><pre>SELECT deptno, COUNT(*) AS c, SUM(sal) AS s
+ * FROM emp
+ * WHERE job &lt;&gt; 'CLERK'
+ * GROUP BY deptno</pre></blockquote>
+ *
+ * <p>When rows are inserted into {@code emp}, the maintainer runs the same
+ * query over just the new rows (the "delta"). The delta is held in a table in
+ * a private connection, so it is not visible in the user's schema. The
+ * maintainer appends the resulting rows to the materialized rows or, if the
+ * query aggregates, combines them with the rows that have the same
+ * GROUP BY key. The rows, and the position of each GROUP BY key, are updated
+ * in place, so applying an insert takes time proportional to the number of
+ * inserted rows, not the size of the materialized table.</p>
+ *
+ * <p>The maintainer is not thread-safe; the caller must ensure that only one
+ * thread calls it at a time.</p>
+ */
+class IncrementalMaintainer {
+  /** Table whose modifications this maintainer applies. */
+  final Table sourceTable;
+  private final DeltaTable deltaTable;
+  private final OptiqConnection deltaConnection;
+  private final OptiqPrepare.PrepareResult<Object> deltaPrepareResult;
+  private final int fieldCount;
+
+  /** How each column of the materialized table is combined; null if the
+   * query does not aggregate, and delta rows are simply appended. */
+  private final List<Combine> combines;
+
+  /** Rows of the materialized table, modified in place; null until
+   * {@link #reset} is called. */
+  private List<Object> rows;
+
+  /** Position in {@link #rows} of the row for each GROUP BY key; null if the
+   * query does not aggregate. */
+  private Map<List<Object>, Integer> index;
+
+  private IncrementalMaintainer(Table sourceTable, DeltaTable deltaTable,
+      OptiqConnection deltaConnection,
+      OptiqPrepare.PrepareResult<Object> deltaPrepareResult, int fieldCount,
+      List<Combine> combines) {
+    this.sourceTable = sourceTable;
+    this.deltaTable = deltaTable;
+    this.deltaConnection = deltaConnection;
+    this.deltaPrepareResult = deltaPrepareResult;
+    this.fieldCount = fieldCount;
+    this.combines = combines;
+  }
+
+  /** Creates a maintainer for a materialized query, or returns null if the
+   * query cannot be maintained incrementally.
+   *
+   * @param connection Connection
+   * @param schema Schema that contains the materialized table
+   * @param schemaPath Schema path of the query, or null
+   * @param sql Query
+   * @param tableName Name of materialized table
+   */
+  static IncrementalMaintainer create(OptiqConnection connection,
+      OptiqSchema schema, List<String> schemaPath, String sql,
+      String tableName) {
+    final SqlNode validated =
+        Schemas.parse(connection, schema, schemaPath, sql).sqlNode;
+    if (!(validated instanceof SqlSelect)) {
+      return null;
+    }
+    final SqlSelect select = (SqlSelect) validated;
+    if (select.isDistinct()
+        || select.getHaving() != null
+        || select.getOffset() != null
+        || select.getFetch() != null
+        || select.getOrderList() != null
+           && select.getOrderList().size() > 0) {
+      return null;
+    }
+    final SqlIdentifier from = tableIdentifier(select.getFrom());
+    if (from == null) {
+      return null;
+    }
+    final Table sourceTable = resolveTable(schema, schemaPath, from.names);
+    if (!(sourceTable instanceof ModifiableTable)) {
+      return null;
+    }
+
+    // Decide how to combine each column.
+    final List<Combine> combines = new ArrayList<Combine>();
+    final Set<String> groupKeys = new HashSet<String>();
+    if (select.getGroup() != null) {
+      for (SqlNode node : select.getGroup()) {
+        groupKeys.add(node.toString());
+      }
+    }
+    final Set<String> projectedKeys = new HashSet<String>();
+    boolean aggregate = !groupKeys.isEmpty();
+    for (SqlNode node : select.getSelectList()) {
+      if (node.getKind() == SqlKind.AS) {
+        node = ((SqlCall) node).operand(0);
+      }
+      final Combine combine = combine(node);
+      if (combine != null) {
+        aggregate = true;
+        combines.add(combine);
+      } else if (groupKeys.contains(node.toString())) {
+        projectedKeys.add(node.toString());
+        combines.add(Combine.KEY);
+      } else {
+        combines.add(null);
+      }
+    }
+    if (aggregate) {
+      // Every column must be a key or an aggregate we can combine, and
+      // every key must be projected, otherwise we cannot tell which row to
+      // combine a delta row with.
+      if (combines.contains(null) || !projectedKeys.equals(groupKeys)) {
+        return null;
+      }
+    } else if (containsAggregate(select.getSelectList())) {
+      return null;
+    }
+
+    // Re-parse the query (the validated query may not unparse) and make it
+    // read from the delta table.
+    final SqlSelect deltaSelect;
+    try {
+      deltaSelect = (SqlSelect) SqlParser.create(sql).parseQuery();
+    } catch (SqlParseException e) {
+      throw new RuntimeException("parse failed", e);
+    } catch (ClassCastException e) {
+      return null;
+    }
+    final SqlNode deltaFrom = deltaSelect.getFrom();
+    final SqlIdentifier deltaFromId = tableIdentifier(deltaFrom);
+    if (deltaFromId == null) {
+      return null;
+    }
+    final String alias = deltaFrom.getKind() == SqlKind.AS
+        ? ((SqlIdentifier) ((SqlCall) deltaFrom).operand(1)).getSimple()
+        : deltaFromId.names.get(deltaFromId.names.size() - 1);
+
+    // The delta table lives in a schema of a private connection, so that it
+    // is not visible in the user's schema, and adding it does not change the
+    // version of the user's root schema.
+    final DeltaTable deltaTable =
+        new DeltaTable((QueryableTable) sourceTable);
+    final OptiqConnection deltaConnection =
+        MetaImpl.connect(null, connection.getTypeFactory());
+    final SchemaPlus deltaSchema =
+        deltaConnection.getRootSchema().add("delta", new AbstractSchema());
+    deltaSchema.add(tableName, deltaTable);
+    deltaSelect.setFrom(
+        SqlStdOperatorTable.AS.createCall(SqlParserPos.ZERO,
+            new SqlIdentifier(Arrays.asList("delta", tableName),
+                SqlParserPos.ZERO),
+            new SqlIdentifier(alias, SqlParserPos.ZERO)));
+    final OptiqPrepare.PrepareResult<Object> deltaPrepareResult;
+    try {
+      deltaPrepareResult =
+          Schemas.prepare(deltaConnection, OptiqSchema.from(deltaSchema),
+              null, deltaSelect.toSqlString(SqlDialect.EIGENBASE).getSql());
+    } catch (RuntimeException e) {
+      // For example, the query calls a function that is only visible from
+      // the user's schema.
+      return null;
+    }
+    return new IncrementalMaintainer(sourceTable, deltaTable,
+        deltaConnection, deltaPrepareResult, combines.size(),
+        aggregate ? combines : null);
+  }
+
+  /** Returns the identifier of a table in a FROM clause, or null if the
+   * clause is not a single table. */
+  private static SqlIdentifier tableIdentifier(SqlNode from) {
+    if (from != null && from.getKind() == SqlKind.AS) {
+      from = ((SqlCall) from).operand(0);
+    }
+    return from instanceof SqlIdentifier ? (SqlIdentifier) from : null;
+  }
+
+  /** Looks up a table, first relative to the schema path, then relative to
+   * the root schema. */
+  static Table resolveTable(OptiqSchema schema, List<String> schemaPath,
+      List<String> names) {
+    OptiqSchema start = schema;
+    if (schemaPath != null) {
+      start = schema.root();
+      for (String name : schemaPath) {
+        start = start == null ? null : start.getSubSchema(name, true);
+      }
+    }
+    for (OptiqSchema s : Arrays.asList(start, schema.root())) {
+      for (String name : names.subList(0, names.size() - 1)) {
+        if (s == null) {
+          break;
+        }
+        s = s.getSubSchema(name, true);
+      }
+      if (s != null) {
+        final Table table = s.getTable(names.get(names.size() - 1), true);
+        if (table != null) {
+          return table;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Adds to a set the tables read in FROM clauses of a query. */
+  static void collectTables(OptiqSchema schema, List<String> schemaPath,
+      SqlNode node, Set<Table> tables) {
+    if (node == null) {
+      return;
+    }
+    switch (node.getKind()) {
+    case IDENTIFIER:
+      final Table table =
+          resolveTable(schema, schemaPath, ((SqlIdentifier) node).names);
+      if (table != null) {
+        tables.add(table);
+      }
+      return;
+    case SELECT:
+      collectTables(schema, schemaPath, ((SqlSelect) node).getFrom(), tables);
+      return;
+    case JOIN:
+      collectTables(schema, schemaPath, ((SqlJoin) node).getLeft(), tables);
+      collectTables(schema, schemaPath, ((SqlJoin) node).getRight(), tables);
+      return;
+    case AS:
+      collectTables(schema, schemaPath, ((SqlCall) node).operand(0), tables);
+      return;
+    default:
+      if (node instanceof SqlCall) {
+        for (SqlNode operand : ((SqlCall) node).getOperandList()) {
+          if (operand != null && !(operand instanceof SqlIdentifier)) {
+            collectTables(schema, schemaPath, operand, tables);
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns how to combine values of an aggregate expression, or null if it
+   * is not a simple call to an aggregate function that we know how to
+   * combine. */
+  private static Combine combine(SqlNode node) {
+    if (!(node instanceof SqlCall)) {
+      return null;
+    }
+    final SqlCall call = (SqlCall) node;
+    if (call.getFunctionQuantifier() != null) {
+      // COUNT(DISTINCT x) cannot be combined
+      return null;
+    }
+    final SqlOperator op = call.getOperator();
+    if (op instanceof SqlCountAggFunction) {
+      return Combine.COUNT;
+    } else if (op instanceof SqlSumAggFunction
+        || op instanceof SqlSumEmptyIsZeroAggFunction) {
+      return Combine.SUM;
+    } else if (op instanceof SqlMinMaxAggFunction) {
+      return ((SqlMinMaxAggFunction) op).isMin() ? Combine.MIN : Combine.MAX;
+    }
+    return null;
+  }
+
+  private static boolean containsAggregate(SqlNodeList selectList) {
+    for (SqlNode node : selectList) {
+      if (node.getKind() == SqlKind.AS) {
+        node = ((SqlCall) node).operand(0);
+      }
+      if (node instanceof SqlCall
+          && ((SqlCall) node).getOperator().isAggregator()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Starts maintaining a materialized table that contains the given rows,
+   * which have just been read by executing its query. From now on,
+   * {@link #apply} modifies the list in place. */
+  void reset(List<Object> rows) {
+    this.rows = rows;
+    if (combines != null) {
+      index = new HashMap<List<Object>, Integer>();
+      for (int i = 0; i < rows.size(); i++) {
+        index.put(key(toArray(rows.get(i))), i);
+      }
+    }
+  }
+
+  /** Applies {@code delta} rows, just inserted into the source table, to the
+   * materialized rows. */
+  void apply(List delta) {
+    assert rows != null : "reset has not been called";
+    final List<Object> deltaRows = evaluate(delta);
+    if (combines == null) {
+      rows.addAll(deltaRows);
+      return;
+    }
+    for (Object deltaRow : deltaRows) {
+      final Object[] values = toArray(deltaRow);
+      final List<Object> key = key(values);
+      final Integer i = index.get(key);
+      if (i == null) {
+        index.put(key, rows.size());
+        rows.add(deltaRow);
+      } else {
+        final Object[] oldValues = toArray(rows.get(i));
+        final Object[] newValues = new Object[fieldCount];
+        for (int j = 0; j < fieldCount; j++) {
+          newValues[j] = combines.get(j).combine(oldValues[j], values[j]);
+        }
+        rows.set(i, fieldCount == 1 ? newValues[0] : newValues);
+      }
+    }
+  }
+
+  /** Releases the private connection. Called when the materialization stops
+   * being maintained incrementally. */
+  void close() {
+    try {
+      deltaConnection.close();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Runs the query over the delta rows. */
+  private List<Object> evaluate(List delta) {
+    deltaTable.rows = delta;
+    final List<Object> list = new ArrayList<Object>();
+    final Enumerator<Object> enumerator =
+        deltaPrepareResult.enumerator(
+            Schemas.createDataContext(deltaConnection));
+    try {
+      while (enumerator.moveNext()) {
+        list.add(enumerator.current());
+      }
+    } finally {
+      enumerator.close();
+      deltaTable.rows = Collections.emptyList();
+    }
+    return list;
+  }
+
+  private Object[] toArray(Object row) {
+    return fieldCount == 1 ? new Object[] {row} : (Object[]) row;
+  }
+
+  private List<Object> key(Object[] values) {
+    final List<Object> key = new ArrayList<Object>();
+    for (int i = 0; i < fieldCount; i++) {
+      if (combines.get(i) == Combine.KEY) {
+        key.add(values[i]);
+      }
+    }
+    return key;
+  }
+
+  /** How to combine two values of a column. */
+  private enum Combine {
+    KEY {
+      Object combine(Object v0, Object v1) {
+        return v0;
+      }
+    },
+    SUM {
+      Object combine(Object v0, Object v1) {
+        return plus(v0, v1);
+      }
+    },
+    COUNT {
+      Object combine(Object v0, Object v1) {
+        return plus(v0, v1);
+      }
+    },
+    MIN {
+      Object combine(Object v0, Object v1) {
+        return v0 == null || v1 != null && compare(v1, v0) < 0 ? v1 : v0;
+      }
+    },
+    MAX {
+      Object combine(Object v0, Object v1) {
+        return v0 == null || v1 != null && compare(v1, v0) > 0 ? v1 : v0;
+      }
+    };
+
+    abstract Object combine(Object v0, Object v1);
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object v0, Object v1) {
+      return ((Comparable) v0).compareTo(v1);
+    }
+
+    /** Adds two numbers, returning a value of the same type as the first.
+     * Null values are ignored, as in SUM. */
+    private static Object plus(Object v0, Object v1) {
+      if (v0 == null) {
+        return v1;
+      }
+      if (v1 == null) {
+        return v0;
+      }
+      final Number n0 = (Number) v0;
+      final Number n1 = (Number) v1;
+      if (v0 instanceof Integer) {
+        return n0.intValue() + n1.intValue();
+      } else if (v0 instanceof Long) {
+        return n0.longValue() + n1.longValue();
+      } else if (v0 instanceof Short) {
+        return (short) (n0.shortValue() + n1.shortValue());
+      } else if (v0 instanceof Byte) {
+        return (byte) (n0.byteValue() + n1.byteValue());
+      } else if (v0 instanceof Float) {
+        return n0.floatValue() + n1.floatValue();
+      } else if (v0 instanceof Double) {
+        return n0.doubleValue() + n1.doubleValue();
+      } else if (v0 instanceof BigDecimal) {
+        return ((BigDecimal) v0).add(
+            v1 instanceof BigDecimal
+                ? (BigDecimal) v1
+                : new BigDecimal(n1.toString()));
+      } else {
+        throw new AssertionError("cannot add " + v0.getClass());
+      }
+    }
+  }
+
+  /** Table that contains the rows being applied to a materialization. It has
+   * the same row type and element type as the source table. */
+  private static class DeltaTable extends AbstractQueryableTable {
+    private final RelProtoDataType protoRowType;
+    volatile List rows = Collections.emptyList();
+
+    DeltaTable(QueryableTable sourceTable) {
+      super(sourceTable.getElementType());
+      this.protoRowType = Schemas.proto(sourceTable);
+    }
+
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+      return protoRowType.apply(typeFactory);
+    }
+
+    public <T> Queryable<T> asQueryable(QueryProvider queryProvider,
+        SchemaPlus schema, String tableName) {
+      return new AbstractTableQueryable<T>(queryProvider, schema, this,
+          tableName) {
+        public Enumerator<T> enumerator() {
+          //noinspection unchecked
+          return (Enumerator<T>) Linq4j.enumerator(rows);
+        }
+      };
+    }
+  }
+}
+
+// End IncrementalMaintainer.java
@@ -17,12 +17,13 @@
 */
 package net.hydromatic.optiq.materialize;
 
-import net.hydromatic.optiq.jdbc.OptiqRootSchema;
-import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.jdbc.*;
 
 import org.eigenbase.reltype.RelDataType;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Actor that manages the state of materializations in the system.
@@ -31,8 +32,10 @@ class MaterializationActor {
   // Not an actor yet -- TODO make members private and add request/response
   // queues
 
+  /** Materializations by key. Concurrent, because background threads read it
+   * while they populate and refresh tables. */
   final Map<MaterializationKey, Materialization> keyMap =
-      new HashMap<MaterializationKey, Materialization>();
+      new ConcurrentHashMap<MaterializationKey, Materialization>();
 
   /** A query materialized in a table, so that reading from the table gives the
    * same results as executing the query. */
@@ -43,6 +46,37 @@ static class Materialization {
     final String sql;
     final RelDataType rowType;
 
+    /** Prepared query that populates the table; null if the table was not
+     * populated by the materialization service. */
+    OptiqPrepare.PrepareResult<Object> prepareResult;
+    OptiqConnection connection;
+
+    /** Current contents of the table; null if the table has not been
+     * populated yet. Once the table is maintained incrementally, the
+     * maintainer modifies the list in place, while holding the lock on this
+     * materialization. */
+    List<Object> rows;
+
+    /** Tables that the query reads. */
+    final Set<Table> sourceTables =
+        Collections.newSetFromMap(new IdentityHashMap<Table, Boolean>());
+
+    /** Applies inserts to the table; null if the query cannot be maintained
+     * incrementally. */
+    IncrementalMaintainer maintainer;
+
+    /** State of the table. Only a {@link MaterializationService.State#VALID}
+     * materialization is used by the planner. */
+    volatile MaterializationService.State state =
+        MaterializationService.State.PENDING;
+
+    /** Whether a table that the query reads was modified while the table was
+     * being built, so that the build may have missed the changes. */
+    boolean modifiedDuringBuild;
+
+    /** Whether a refresh has been scheduled. */
+    boolean refreshScheduled;
+
     /** Creates a materialization.
      *
      * @param key  Unique identifier of this materialization
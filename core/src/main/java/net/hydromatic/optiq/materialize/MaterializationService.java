@@ -20,42 +20,79 @@
 import net.hydromatic.avatica.ColumnMetaData;
 
 import net.hydromatic.linq4j.*;
-import net.hydromatic.linq4j.expressions.Expression;
 import net.hydromatic.linq4j.function.Function1;
 import net.hydromatic.linq4j.function.Functions;
 
 import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.impl.AbstractTableQueryable;
 import net.hydromatic.optiq.impl.clone.CloneSchema;
+import net.hydromatic.optiq.impl.java.AbstractQueryableTable;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.jdbc.*;
 import net.hydromatic.optiq.prepare.Prepare;
 
 import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeFactory;
 import org.eigenbase.reltype.RelDataTypeImpl;
+import org.eigenbase.util.SaffronProperties;
 
-import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Manages the collection of materialized tables known to the system,
  * and the process by which they become valid and invalid.
  */
 public class MaterializationService {
+  private static final Logger LOGGER =
+      Logger.getLogger(MaterializationService.class.getName());
+
   private static final MaterializationService INSTANCE =
-      new MaterializationService();
+      new MaterializationService(
+          SaffronProperties.instance().materializeAsync.get());
+
+  /** Delay before a stale materialization that cannot be maintained
+   * incrementally is refreshed, in milliseconds. Changes that arrive during
+   * the delay are covered by the same refresh. */
+  public static final long REFRESH_DELAY_MILLIS = 1000L;
+
+  /** Number of threads that populate and refresh materializations in the
+   * background. */
+  public static final int THREAD_COUNT =
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private static final ScheduledExecutorService EXECUTOR =
+      Executors.newScheduledThreadPool(THREAD_COUNT,
+          new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              final Thread thread =
+                  new Thread(runnable, "materialization-populate");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
 
   /** For testing. */
   private static final ThreadLocal<MaterializationService> THREAD_INSTANCE =
       new ThreadLocal<MaterializationService>() {
         @Override
         protected MaterializationService initialValue() {
-          return new MaterializationService();
+          return new MaterializationService(
+              SaffronProperties.instance().materializeAsync.get());
         }
       };
 
   private final MaterializationActor actor = new MaterializationActor();
 
-  private MaterializationService() {
+  /** Whether tables are populated in the background. If false, a table is
+   * valid as soon as it is defined, and is populated when it is first
+   * read. False unless the "saffron.materialize.async" property is set. */
+  private final boolean async;
+
+  private MaterializationService(boolean async) {
+    this.async = async;
   }
 
   /** Defines a new materialization. Returns its key. */
@@ -67,50 +104,17 @@ public MaterializationKey defineMaterialization(final OptiqSchema schema,
     Table materializedTable;
     RelDataType rowType = null;
     OptiqSchema.TableEntry tableEntry;
+    OptiqPrepare.PrepareResult<Object> prepareResult = null;
     if (tableName != null) {
       materializedTable = schema.getTable(tableName, true);
       if (materializedTable == null) {
-        final OptiqPrepare.PrepareResult<Object> prepareResult =
+        prepareResult =
             Schemas.prepare(connection, schema, viewSchemaPath, viewSql);
         rowType = prepareResult.rowType;
-        final JavaTypeFactory typeFactory = connection.getTypeFactory();
-        materializedTable =
-            CloneSchema.createCloneTable(typeFactory,
-                RelDataTypeImpl.proto(prepareResult.rowType),
-                Functions.adapt(prepareResult.columnList,
-                    new Function1<ColumnMetaData, ColumnMetaData.Rep>() {
-                      public ColumnMetaData.Rep apply(ColumnMetaData column) {
-                        return column.representation;
-                      }
-                    }),
-                new AbstractQueryable<Object>() {
-                  public Enumerator<Object> enumerator() {
-                    final DataContext dataContext =
-                        Schemas.createDataContext(connection);
-                    return prepareResult.enumerator(dataContext);
-                  }
-
-                  public Type getElementType() {
-                    return Object.class;
-                  }
-
-                  public Expression getExpression() {
-                    throw new UnsupportedOperationException();
-                  }
-
-                  public QueryProvider getProvider() {
-                    return connection;
-                  }
-
-                  public Iterator<Object> iterator() {
-                    final DataContext dataContext =
-                        Schemas.createDataContext(connection);
-                    return prepareResult.iterator(dataContext);
-                  }
-                });
-        schema.add(tableName, materializedTable);
       }
-      tableEntry = schema.add(tableName, materializedTable);
+      tableEntry = materializedTable == null
+          ? null
+          : schema.add(tableName, materializedTable);
     } else {
       tableEntry = null;
     }
@@ -123,21 +127,287 @@ public Iterator<Object> iterator() {
     final MaterializationActor.Materialization materialization =
         new MaterializationActor.Materialization(key, schema.root(),
             tableEntry, viewSql, rowType);
-    actor.keyMap.put(materialization.key, materialization);
+    if (prepareResult != null) {
+      // We populate the table, so we know how to keep it up to date.
+      materialization.prepareResult = prepareResult;
+      materialization.connection = connection;
+      final Table table = populate(materialization);
+      materialization.materializedTable = schema.add(tableName, table);
+      final OptiqPrepare.ParseResult parse =
+          Schemas.parse(connection, schema, viewSchemaPath, viewSql);
+      IncrementalMaintainer.collectTables(schema, viewSchemaPath,
+          parse.sqlNode, materialization.sourceTables);
+      materialization.maintainer =
+          IncrementalMaintainer.create(connection, schema, viewSchemaPath,
+              viewSql, tableName);
+      actor.keyMap.put(materialization.key, materialization);
+      if (async) {
+        EXECUTOR.execute(
+            new Runnable() {
+              public void run() {
+                try {
+                  build(materialization, table);
+                } catch (RuntimeException e) {
+                  LOGGER.log(Level.WARNING,
+                      "Error while populating materialization "
+                      + materialization.materializedTable.name,
+                      e);
+                }
+              }
+            });
+      } else {
+        materialization.state = State.VALID;
+      }
+    } else {
+      materialization.state = State.VALID;
+      actor.keyMap.put(materialization.key, materialization);
+    }
     return key;
   }
 
+  /** Populates a materialization's table, and marks the materialization
+   * valid, or failed if the query throws. Does nothing if the materialization
+   * has since been given a different table. A query that reads the table
+   * directly while it is being built waits until it is complete. */
+  private void build(MaterializationActor.Materialization materialization,
+      Table table) {
+    synchronized (materialization) {
+      if (materialization.materializedTable.getTable() != table) {
+        return;
+      }
+      materialization.state = State.BUILDING;
+      materialization.modifiedDuringBuild = false;
+    }
+    boolean populated = false;
+    try {
+      // Reading the statistic loads the table's contents.
+      table.getStatistic();
+      populated = true;
+    } finally {
+      synchronized (materialization) {
+        if (materialization.materializedTable.getTable() == table) {
+          if (!populated) {
+            materialization.state = State.FAILED;
+          } else if (!materialization.modifiedDuringBuild) {
+            materialization.state = State.VALID;
+          } else {
+            materialization.state = State.STALE;
+            scheduleRefresh(materialization);
+          }
+        }
+        materialization.notifyAll();
+      }
+    }
+  }
+
+  /** Creates a table that, when first read, executes a materialization's
+   * query and remembers the rows. */
+  private Table populate(
+      final MaterializationActor.Materialization materialization) {
+    return createTable(materialization,
+        new AbstractEnumerable<Object>() {
+          public Enumerator<Object> enumerator() {
+            final DataContext dataContext =
+                Schemas.createDataContext(materialization.connection);
+            final List<Object> rows = new ArrayList<Object>();
+            final Enumerator<Object> enumerator =
+                materialization.prepareResult.enumerator(dataContext);
+            try {
+              while (enumerator.moveNext()) {
+                rows.add(enumerator.current());
+              }
+            } finally {
+              enumerator.close();
+            }
+            materialization.rows = rows;
+            return Linq4j.enumerator(rows);
+          }
+        });
+  }
+
+  private static Table createTable(
+      MaterializationActor.Materialization materialization,
+      Enumerable<Object> source) {
+    final JavaTypeFactory typeFactory =
+        materialization.connection.getTypeFactory();
+    return CloneSchema.createCloneTable(typeFactory,
+        RelDataTypeImpl.proto(materialization.prepareResult.rowType),
+        Functions.adapt(materialization.prepareResult.columnList,
+            new Function1<ColumnMetaData, ColumnMetaData.Rep>() {
+              public ColumnMetaData.Rep apply(ColumnMetaData column) {
+                return column.representation;
+              }
+            }),
+        source);
+  }
+
+  /** Replaces the table of a materialization with one that contains the
+   * given rows. */
+  private void replace(MaterializationActor.Materialization materialization,
+      Table table) {
+    final OptiqSchema.TableEntry tableEntry =
+        materialization.materializedTable;
+    materialization.materializedTable =
+        tableEntry.schema.add(tableEntry.name, table);
+  }
+
   /** Checks whether a materialization is valid, and if so, returns the table
    * where the data are stored. */
   public OptiqSchema.TableEntry checkValid(MaterializationKey key) {
     final MaterializationActor.Materialization materialization =
         actor.keyMap.get(key);
-    if (materialization != null) {
+    if (materialization != null
+        && materialization.state == State.VALID) {
       return materialization.materializedTable;
     }
     return null;
   }
 
+  /** Returns the state of a materialization, or null if there is no such
+   * materialization. */
+  public State getState(MaterializationKey key) {
+    final MaterializationActor.Materialization materialization =
+        actor.keyMap.get(key);
+    return materialization == null ? null : materialization.state;
+  }
+
+  /** Waits until a materialization is valid. Returns false if it does not
+   * become valid within the timeout, if it failed, or if it is stale and no
+   * refresh is scheduled. */
+  public boolean awaitValid(MaterializationKey key, long timeoutMillis)
+    throws InterruptedException {
+    final MaterializationActor.Materialization materialization =
+        actor.keyMap.get(key);
+    if (materialization == null) {
+      return false;
+    }
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (materialization) {
+      while (materialization.state != State.VALID) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0
+            || materialization.state == State.FAILED
+            || materialization.state == State.STALE
+            && !materialization.refreshScheduled) {
+          return false;
+        }
+        materialization.wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /** Called after rows have been inserted into a table. Applies the rows to
+   * materializations that can be maintained incrementally, and marks other
+   * materializations that read the table as stale. */
+  public static void onInsert(ModifiableTable table, List rows) {
+    instance().tableModified(table, rows);
+  }
+
+  private void tableModified(Table table, List rows) {
+    for (MaterializationActor.Materialization materialization
+        : new ArrayList<MaterializationActor.Materialization>(
+            actor.keyMap.values())) {
+      if (!materialization.sourceTables.contains(table)) {
+        continue;
+      }
+      synchronized (materialization) {
+        switch (materialization.state) {
+        case PENDING:
+        case BUILDING:
+          // The build may or may not see the new rows. Refresh after it
+          // finishes.
+          materialization.modifiedDuringBuild = true;
+          continue;
+        case FAILED:
+          // Stays failed until it is explicitly refreshed.
+          continue;
+        }
+        if (materialization.maintainer != null
+            && materialization.maintainer.sourceTable == table
+            && materialization.state == State.VALID) {
+          if (materialization.rows == null) {
+            // Not populated yet. When it is, it will see the new rows.
+            continue;
+          }
+          try {
+            if (!(materialization.materializedTable.getTable()
+                instanceof MaintainedTable)) {
+              // First insert since the table was populated. From now on,
+              // the maintainer changes the rows in place, and the table
+              // reads them, so later inserts do not replace the table.
+              materialization.maintainer.reset(materialization.rows);
+              replace(materialization, new MaintainedTable(materialization));
+            }
+            materialization.maintainer.apply(rows);
+            ((MaintainedTable) materialization.materializedTable.getTable())
+                .invalidate();
+            continue;
+          } catch (RuntimeException e) {
+            // The rows may be partly applied. Stop maintaining the table
+            // incrementally, and refresh it from scratch.
+            LOGGER.log(Level.WARNING,
+                "Error while maintaining materialization "
+                + materialization.materializedTable.name
+                + "; it will be refreshed",
+                e);
+            materialization.maintainer.close();
+            materialization.maintainer = null;
+          }
+        }
+        materialization.state = State.STALE;
+        scheduleRefresh(materialization);
+      }
+    }
+  }
+
+  /** Schedules a full refresh of a stale materialization. */
+  private void scheduleRefresh(
+      final MaterializationActor.Materialization materialization) {
+    if (materialization.refreshScheduled) {
+      return;
+    }
+    materialization.refreshScheduled = true;
+    EXECUTOR.schedule(
+        new Runnable() {
+          public void run() {
+            try {
+              refresh(materialization);
+            } catch (RuntimeException e) {
+              LOGGER.log(Level.WARNING,
+                  "Error while refreshing materialization "
+                  + materialization.materializedTable.name,
+                  e);
+            }
+          }
+        },
+        REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /** Refreshes a materialization now, on the calling thread, re-executing
+   * its query. */
+  public void refresh(MaterializationKey key) {
+    final MaterializationActor.Materialization materialization =
+        actor.keyMap.get(key);
+    if (materialization != null) {
+      refresh(materialization);
+    }
+  }
+
+  private void refresh(MaterializationActor.Materialization materialization) {
+    final Table table;
+    synchronized (materialization) {
+      materialization.refreshScheduled = false;
+      if (materialization.prepareResult == null) {
+        return;
+      }
+      materialization.rows = null;
+      table = populate(materialization);
+      replace(materialization, table);
+    }
+    build(materialization, table);
+  }
+
   /** Gathers a list of all materialized tables known within a given root
    * schema. (Each root schema defines a disconnected namespace, with no overlap
    * with the current schema. Especially in a test run, the contents of two
@@ -148,7 +418,8 @@ public List<Prepare.Materialization> query(OptiqSchema rootSchema) {
     for (MaterializationActor.Materialization materialization
         : actor.keyMap.values()) {
       if (materialization.rootSchema == rootSchema
-          && materialization.materializedTable != null) {
+          && materialization.materializedTable != null
+          && materialization.state == State.VALID) {
         list.add(
             new Prepare.Materialization(materialization.materializedTable,
                 materialization.sql));
@@ -159,12 +430,30 @@ public List<Prepare.Materialization> query(OptiqSchema rootSchema) {
 
   /** De-registers all materialized tables in the system. */
   public void clear() {
+    for (MaterializationActor.Materialization materialization
+        : actor.keyMap.values()) {
+      synchronized (materialization) {
+        if (materialization.maintainer != null) {
+          materialization.maintainer.close();
+          materialization.maintainer = null;
+        }
+      }
+    }
     actor.keyMap.clear();
   }
 
-  /** Used by tests, to ensure that they see their own service. */
+  /** Used by tests, to ensure that they see their own service. Tables are
+   * populated synchronously, so that the planner sees materializations as
+   * soon as they are defined, regardless of the "saffron.materialize.async"
+   * property. */
   public static void setThreadLocal() {
-    THREAD_INSTANCE.set(new MaterializationService());
+    setThreadLocal(false);
+  }
+
+  /** Used by tests, to ensure that they see their own service, populating
+   * tables in the background or not. */
+  public static void setThreadLocal(boolean async) {
+    THREAD_INSTANCE.set(new MaterializationService(async));
   }
 
   /** Returns the instance of the materialization service. Usually the global
@@ -178,6 +467,86 @@ public static MaterializationService instance() {
     return INSTANCE;
   }
 
+  /** State of a materialization.
+   *
+   * <p>A materialization starts {@link #PENDING}, becomes {@link #BUILDING}
+   * when its table starts being populated, and {@link #VALID} when the table
+   * is complete. It becomes {@link #STALE} if the tables it reads change in
+   * a way that cannot be applied incrementally, and valid again when it has
+   * been refreshed. It becomes {@link #FAILED} if its query throws while the
+   * table is being populated; the error is logged, and the materialization
+   * stays failed until it is refreshed. The planner only uses valid
+   * materializations; until then, queries read the base tables. */
+  public enum State {
+    PENDING,
+    BUILDING,
+    VALID,
+    STALE,
+    FAILED
+  }
+
+  /** Table that reads the rows of a materialization that is being maintained
+   * incrementally.
+   *
+   * <p>Scans read an immutable snapshot, a columnar table built from the
+   * rows, without holding the lock on the materialization. Applying an
+   * insert discards the snapshot, and the next scan builds a new one, so the
+   * rows are copied at most once per insert, however many scans there
+   * are.</p> */
+  private static class MaintainedTable extends AbstractQueryableTable {
+    private final MaterializationActor.Materialization materialization;
+    private volatile QueryableTable snapshot;
+
+    MaintainedTable(MaterializationActor.Materialization materialization) {
+      super(Object[].class);
+      this.materialization = materialization;
+    }
+
+    /** Discards the snapshot. Called, while holding the lock on the
+     * materialization, after rows have been modified. */
+    void invalidate() {
+      snapshot = null;
+    }
+
+    /** Returns the snapshot of the current rows, building it if necessary. */
+    private QueryableTable snapshot() {
+      QueryableTable table = snapshot;
+      if (table == null) {
+        synchronized (materialization) {
+          table = snapshot;
+          if (table == null) {
+            table = (QueryableTable) createTable(materialization,
+                Linq4j.asEnumerable(materialization.rows));
+            // Reading the statistic loads the columns, copying the rows
+            // while no insert is being applied.
+            table.getStatistic();
+            snapshot = table;
+          }
+        }
+      }
+      return table;
+    }
+
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+      return RelDataTypeImpl.proto(materialization.prepareResult.rowType)
+          .apply(typeFactory);
+    }
+
+    @Override public Statistic getStatistic() {
+      return snapshot().getStatistic();
+    }
+
+    public <T> Queryable<T> asQueryable(final QueryProvider queryProvider,
+        final SchemaPlus schema, final String tableName) {
+      return new AbstractTableQueryable<T>(queryProvider, schema, this,
+          tableName) {
+        public Enumerator<T> enumerator() {
+          return snapshot().<T>asQueryable(queryProvider, schema, tableName)
+              .enumerator();
+        }
+      };
+    }
+  }
 }
 
 // End MaterializationService.java
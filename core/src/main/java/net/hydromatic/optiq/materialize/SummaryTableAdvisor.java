@@ -0,0 +1,447 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.materialize;
+
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.Table;
+import net.hydromatic.optiq.impl.StarTable;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.tools.Frameworks;
+
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.rel.TableAccessRel;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.relopt.RelOptCluster;
+import org.eigenbase.relopt.RelOptSchema;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.sql.*;
+import org.eigenbase.sql.parser.SqlParseException;
+import org.eigenbase.sql.parser.SqlParser;
+import org.eigenbase.util.Util;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.*;
+
+/**
+ * Recommends which summary tables to build over a {@link StarTable}.
+ *
+ * <p>Each summary table is the star's measures aggregated by a subset of its
+ * dimension columns; together, the subsets form a lattice. The advisor
+ * estimates the number of rows of each subset from the row counts and
+ * distinct-value counts that {@link RelMetadataQuery} returns for the
+ * star's tables, then greedily chooses the subset with the greatest benefit
+ * per byte until the memory budget is spent. The benefit of a subset is the
+ * number of rows that queries no longer need to read, summed over all of the
+ * queries it can answer by rolling up; queries are weighted by how often they
+ * occur in the query log, or equally if there is no log.</p>
+ *
+ * <p>{@link #materialize} defines each summary table via
+ * {@link MaterializationService}. The planner then rolls up from the nearest
+ * summary table using
+ * {@link org.eigenbase.relopt.SubstitutionVisitor}'s aggregate rule.</p>
+ *
+ * <p>A star table does not record the conditions that join its tables, so
+ * the advisor also needs a query that joins the tables. Its columns must be
+ * named as in the star table's row type, which is what
+ * "SELECT * FROM fact JOIN dim ON ..." does.</p>
+ */
+public class SummaryTableAdvisor {
+  /** Maximum number of dimensions. The lattice has 2<sup>n</sup> nodes. */
+  public static final int MAX_DIMENSIONS = 16;
+
+  /** Assumed width, in bytes, of a column whose width is not known. */
+  private static final int DEFAULT_WIDTH = 8;
+
+  private final StarTable star;
+  private final String starSql;
+  private final ImmutableList<String> dimensions;
+  private final ImmutableList<String> measures;
+  private final long budgetBytes;
+  private final ImmutableList<String> queryLog;
+
+  /**
+   * Creates a SummaryTableAdvisor.
+   *
+   * @param star Star table
+   * @param starSql Query that joins the star's tables
+   * @param dimensions Names of columns of the star to group by
+   * @param measures Names of columns of the star to sum
+   * @param budgetBytes Memory to spend on summary tables, in bytes
+   * @param queryLog Queries whose GROUP BY clauses weight the lattice, or null
+   */
+  public SummaryTableAdvisor(StarTable star, String starSql,
+      List<String> dimensions, List<String> measures, long budgetBytes,
+      List<String> queryLog) {
+    if (dimensions.size() > MAX_DIMENSIONS) {
+      throw new IllegalArgumentException("too many dimensions: "
+          + dimensions.size() + " (maximum is " + MAX_DIMENSIONS + ")");
+    }
+    this.star = star;
+    this.starSql = starSql;
+    this.dimensions = ImmutableList.copyOf(dimensions);
+    this.measures = ImmutableList.copyOf(measures);
+    this.budgetBytes = budgetBytes;
+    this.queryLog =
+        queryLog == null ? ImmutableList.<String>of()
+            : ImmutableList.copyOf(queryLog);
+  }
+
+  /** Chooses summary tables, in the order that they were chosen. */
+  public List<Summary> advise() {
+    return Frameworks.withPlanner(
+        new Frameworks.PlannerAction<List<Summary>>() {
+          public List<Summary> apply(RelOptCluster cluster,
+              RelOptSchema relOptSchema, SchemaPlus rootSchema) {
+            return advise(cluster, relOptSchema, rootSchema);
+          }
+        });
+  }
+
+  private List<Summary> advise(RelOptCluster cluster,
+      RelOptSchema relOptSchema, SchemaPlus rootSchema) {
+    final RelDataType rowType = star.getRowType(cluster.getTypeFactory());
+    final int n = dimensions.size();
+    final int[] ordinals = new int[n];
+    final int[] widths = new int[n];
+    for (int i = 0; i < n; i++) {
+      final RelDataTypeField field = field(rowType, dimensions.get(i));
+      ordinals[i] = field.getIndex();
+      widths[i] = width(field.getType());
+    }
+    for (String measure : measures) {
+      field(rowType, measure);
+    }
+
+    // Scan each of the star's tables, so that we can ask for its row count
+    // and distinct-value counts.
+    final List<RelNode> scans = new ArrayList<RelNode>();
+    for (Table table : star.tables) {
+      final String name = "t" + scans.size();
+      rootSchema.add(name, table);
+      scans.add(
+          new TableAccessRel(cluster,
+              relOptSchema.getTableForMember(ImmutableList.of(name))));
+    }
+    final double factRowCount = rowCount(scans.get(0));
+
+    // Estimate the size of each node in the lattice. Bit i of a node is set
+    // if it groups by dimension i. The top node, which groups by every
+    // dimension, is as large as the fact table.
+    final int nodeCount = 1 << n;
+    final double[] rows = new double[nodeCount];
+    final double[] bytes = new double[nodeCount];
+    final int measureWidth = DEFAULT_WIDTH * (1 + measures.size());
+    for (int node = 0; node < nodeCount; node++) {
+      rows[node] = estimateRowCount(node, ordinals, scans, factRowCount);
+      int width = measureWidth;
+      for (int i = 0; i < n; i++) {
+        if ((node & (1 << i)) != 0) {
+          width += widths[i];
+        }
+      }
+      bytes[node] = rows[node] * width;
+    }
+
+    final double[] weights = weights(nodeCount);
+
+    // Until a summary table is built, each query reads the star.
+    final double[] cost = new double[nodeCount];
+    Arrays.fill(cost, factRowCount);
+    final boolean[] chosen = new boolean[nodeCount];
+    final List<Summary> summaries = new ArrayList<Summary>();
+    double remaining = budgetBytes;
+    for (;;) {
+      int best = -1;
+      double bestBenefit = 0;
+      double bestRatio = 0;
+      for (int node = 0; node < nodeCount; node++) {
+        if (chosen[node] || bytes[node] > remaining) {
+          continue;
+        }
+        final double benefit = benefit(node, rows[node], cost, weights);
+        if (benefit <= 0) {
+          continue;
+        }
+        final double ratio = benefit / Math.max(bytes[node], 1d);
+        if (ratio > bestRatio) {
+          best = node;
+          bestBenefit = benefit;
+          bestRatio = ratio;
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+      chosen[best] = true;
+      remaining -= bytes[best];
+      for (int w = best;; w = (w - 1) & best) {
+        cost[w] = Math.min(cost[w], rows[best]);
+        if (w == 0) {
+          break;
+        }
+      }
+      summaries.add(
+          new Summary(columns(best), rows[best], bytes[best], bestBenefit));
+    }
+    return summaries;
+  }
+
+  /** Returns the number of rows saved, weighted by query frequency, if
+   * {@code node} is materialized and answers every query that groups by a
+   * subset of its columns. */
+  private static double benefit(int node, double rowCount, double[] cost,
+      double[] weights) {
+    double benefit = 0;
+    for (int w = node;; w = (w - 1) & node) {
+      if (cost[w] > rowCount) {
+        benefit += weights[w] * (cost[w] - rowCount);
+      }
+      if (w == 0) {
+        return benefit;
+      }
+    }
+  }
+
+  /** Returns how often each node occurs in the query log. If there is no
+   * log, or no query in it groups by the dimensions, every node has weight
+   * 1. */
+  private double[] weights(int nodeCount) {
+    final double[] weights = new double[nodeCount];
+    int matched = 0;
+    for (String sql : queryLog) {
+      final int node = groupNode(sql);
+      if (node >= 0) {
+        ++weights[node];
+        ++matched;
+      }
+    }
+    if (matched == 0) {
+      Arrays.fill(weights, 1d);
+    }
+    return weights;
+  }
+
+  /** Returns the lattice node that a query groups by, or -1 if it cannot be
+   * parsed, is not an aggregate query, or groups by something that is not a
+   * dimension. */
+  private int groupNode(String sql) {
+    final SqlNode node;
+    try {
+      node = SqlParser.create(sql).parseQuery();
+    } catch (SqlParseException e) {
+      return -1;
+    }
+    if (!(node instanceof SqlSelect)) {
+      return -1;
+    }
+    final SqlNodeList group = ((SqlSelect) node).getGroup();
+    if (group == null) {
+      return -1;
+    }
+    int bits = 0;
+    for (SqlNode e : group) {
+      if (!(e instanceof SqlIdentifier)) {
+        return -1;
+      }
+      final List<String> names = ((SqlIdentifier) e).names;
+      final int i = indexOfIgnoreCase(dimensions, Util.last(names));
+      if (i < 0) {
+        return -1;
+      }
+      bits |= 1 << i;
+    }
+    return bits;
+  }
+
+  /** Estimates the number of rows in a summary table: the product of the
+   * number of distinct combinations of its columns in each of the star's
+   * tables, but no more than the number of rows in the fact table. */
+  private double estimateRowCount(int node, int[] ordinals,
+      List<RelNode> scans, double factRowCount) {
+    final List<BitSet> columnsByTable = new ArrayList<BitSet>();
+    for (int t = 0; t < scans.size(); t++) {
+      columnsByTable.add(new BitSet());
+    }
+    for (int i = 0; i < ordinals.length; i++) {
+      if ((node & (1 << i)) != 0) {
+        int ordinal = ordinals[i];
+        int t = 0;
+        while (ordinal >= star.fieldCounts.get(t)) {
+          ordinal -= star.fieldCounts.get(t++);
+        }
+        columnsByTable.get(t).set(ordinal);
+      }
+    }
+    double rowCount = 1d;
+    for (int t = 0; t < scans.size(); t++) {
+      final BitSet columns = columnsByTable.get(t);
+      if (!columns.isEmpty()) {
+        rowCount *= distinctRowCount(scans.get(t), columns);
+      }
+    }
+    return Math.min(rowCount, factRowCount);
+  }
+
+  /** Returns the number of distinct values of a set of columns. If the
+   * metadata does not know, assumes that each column has as many distinct
+   * values as the square root of the table's row count, and that columns are
+   * independent. */
+  private static double distinctRowCount(RelNode scan, BitSet columns) {
+    final Double d =
+        RelMetadataQuery.getDistinctRowCount(scan, columns, null);
+    if (d != null) {
+      return d;
+    }
+    final double rowCount = rowCount(scan);
+    return Math.min(rowCount,
+        Math.pow(Math.sqrt(rowCount), columns.cardinality()));
+  }
+
+  private static double rowCount(RelNode rel) {
+    final Double rowCount = RelMetadataQuery.getRowCount(rel);
+    return rowCount == null ? 1d : Math.max(rowCount, 1d);
+  }
+
+  /** Returns the estimated average width, in bytes, of a value of a given
+   * type. */
+  private static int width(RelDataType type) {
+    switch (type.getSqlTypeName()) {
+    case BOOLEAN:
+    case TINYINT:
+      return 1;
+    case SMALLINT:
+      return 2;
+    case INTEGER:
+    case REAL:
+    case DATE:
+    case TIME:
+      return 4;
+    case CHAR:
+    case VARCHAR:
+    case BINARY:
+    case VARBINARY:
+      final int precision = type.getPrecision();
+      return precision > 0 ? precision : 20;
+    default:
+      return DEFAULT_WIDTH;
+    }
+  }
+
+  private static RelDataTypeField field(RelDataType rowType, String name) {
+    final RelDataTypeField field = rowType.getField(name, true);
+    if (field == null) {
+      throw new IllegalArgumentException("star table has no column '"
+          + name + "'; columns are " + rowType.getFieldNames());
+    }
+    return field;
+  }
+
+  private static int indexOfIgnoreCase(List<String> list, String s) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i).equalsIgnoreCase(s)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private List<String> columns(int node) {
+    final ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (int i = 0; i < dimensions.size(); i++) {
+      if ((node & (1 << i)) != 0) {
+        builder.add(dimensions.get(i));
+      }
+    }
+    return builder.build();
+  }
+
+  /** Returns the SQL that populates a summary table. It has a column for
+   * each of the summary's dimensions, a column "c" that counts rows, and a
+   * column "sum_m" for each measure "m". */
+  public String sql(Summary summary) {
+    final SqlDialect dialect = SqlDialect.EIGENBASE;
+    final StringBuilder buf = new StringBuilder("select ");
+    for (String column : summary.columns) {
+      buf.append(dialect.quoteIdentifier(column)).append(", ");
+    }
+    buf.append("count(*) as ").append(dialect.quoteIdentifier("c"));
+    for (String measure : measures) {
+      buf.append(", sum(")
+          .append(dialect.quoteIdentifier(measure))
+          .append(") as ")
+          .append(dialect.quoteIdentifier("sum_" + measure));
+    }
+    buf.append("\nfrom (").append(starSql).append(") as ")
+        .append(dialect.quoteIdentifier("s"));
+    if (!summary.columns.isEmpty()) {
+      buf.append("\ngroup by ");
+      for (int i = 0; i < summary.columns.size(); i++) {
+        if (i > 0) {
+          buf.append(", ");
+        }
+        buf.append(dialect.quoteIdentifier(summary.columns.get(i)));
+      }
+    }
+    return buf.toString();
+  }
+
+  /** Defines a materialization for each summary table, naming the tables
+   * {@code prefix + 0}, {@code prefix + 1}, and so forth. */
+  public List<MaterializationKey> materialize(OptiqSchema schema,
+      String prefix, List<Summary> summaries) {
+    final MaterializationService service = MaterializationService.instance();
+    final List<MaterializationKey> keys = new ArrayList<MaterializationKey>();
+    for (Summary summary : summaries) {
+      keys.add(
+          service.defineMaterialization(schema, sql(summary), null,
+              prefix + keys.size()));
+    }
+    return keys;
+  }
+
+  /** Summary table recommended by a {@link SummaryTableAdvisor}. */
+  public static class Summary {
+    /** Dimension columns that the summary table groups by. */
+    public final List<String> columns;
+    /** Estimated number of rows. */
+    public final double rowCount;
+    /** Estimated size, in bytes. */
+    public final double bytes;
+    /** Estimated number of rows that queries no longer need to read, at the
+     * time the summary table was chosen. */
+    public final double benefit;
+
+    public Summary(List<String> columns, double rowCount, double bytes,
+        double benefit) {
+      this.columns = columns;
+      this.rowCount = rowCount;
+      this.bytes = bytes;
+      this.benefit = benefit;
+    }
+
+    @Override
+    public String toString() {
+      return "Summary(columns: " + columns + ", rowCount: " + rowCount
+          + ", bytes: " + bytes + ", benefit: " + benefit + ")";
+    }
+  }
+}
+
+// End SummaryTableAdvisor.java
@@ -30,6 +30,41 @@ public class JsonJdbcSchema extends JsonSchema {
   public String jdbcCatalog;
   public String jdbcSchema;
 
+  /** Interval, in seconds, at which the schema's tables and columns are
+   * re-read from the database. Connections with the same interval share
+   * the metadata. If null or not positive, each connection reads them once
+   * and does not share them. */
+  public Integer metadataCacheTtl;
+
+  /** Minimum number of idle connections kept in the connection pool. */
+  public Integer poolMinIdle;
+
+  /** Maximum number of idle connections kept in the connection pool. */
+  public Integer poolMaxIdle;
+
+  /** Maximum number of connections open at once. */
+  public Integer poolMaxActive;
+
+  /** Query used to validate a connection before it is borrowed from the
+   * pool, for example "SELECT 1". If null, connections are not validated. */
+  public String poolValidationQuery;
+
+  /** Number of prepared statements cached per connection. If null or not
+   * positive, prepared statements are not cached. */
+  public Integer poolMaxOpenPreparedStatements;
+
+  /** Maximum number of statements that may run concurrently against this
+   * backend (same JDBC URL and user), summed over all schemas and
+   * connections. If null or not positive, there is no limit. Should be at
+   * least the number of connections that one statement opens to the
+   * backend; see {@link net.hydromatic.optiq.impl.jdbc.JdbcBackendLimiter}.
+   */
+  public Integer maxConcurrentQueries;
+
+  /** Maximum time, in milliseconds, that a statement waits when the backend
+   * is at its {@link #maxConcurrentQueries limit}. Default 30,000. */
+  public Integer queueTimeout;
+
   @Override
   public void accept(ModelHandler handler) {
     handler.visit(this);
@@ -128,10 +128,21 @@ public void visit(JsonJdbcSchema jsonSchema) {
         JdbcSchema.dataSource(jsonSchema.jdbcUrl,
             jsonSchema.jdbcDriver,
             jsonSchema.jdbcUser,
-            jsonSchema.jdbcPassword);
+            jsonSchema.jdbcPassword,
+            new JdbcSchema.PoolConfig(
+                jsonSchema.poolMinIdle,
+                jsonSchema.poolMaxIdle,
+                jsonSchema.poolMaxActive,
+                jsonSchema.poolValidationQuery,
+                jsonSchema.poolMaxOpenPreparedStatements,
+                jsonSchema.maxConcurrentQueries,
+                jsonSchema.queueTimeout));
     JdbcSchema schema =
         JdbcSchema.create(parentSchema, jsonSchema.name, dataSource,
-            jsonSchema.jdbcCatalog, jsonSchema.jdbcSchema);
+            jsonSchema.jdbcCatalog, jsonSchema.jdbcSchema,
+            jsonSchema.metadataCacheTtl == null
+                ? 0
+                : jsonSchema.metadataCacheTtl * 1000L);
     final SchemaPlus optiqSchema = parentSchema.add(jsonSchema.name, schema);
     populateSchema(jsonSchema, optiqSchema);
   }
@@ -0,0 +1,161 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.prepare;
+
+import net.hydromatic.optiq.runtime.Bindable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of classes compiled from generated code, shared by all connections.
+ *
+ * <p>A class is keyed by the Java source from which it was compiled. A
+ * statement whose plan generates the same code as an earlier statement
+ * skips compilation, which is the most expensive part of preparing a simple
+ * statement. Each statement gets its own instance of the class, because a
+ * {@link Bindable} holds the state of an execution in its fields.</p>
+ *
+ * <p>Janino loads each class in its own class loader. The cache holds the
+ * class, and evicts the least recently used class when it holds more than
+ * its maximum number of classes. Once no statement is using an evicted
+ * class, the class and its class loader can be unloaded.</p>
+ *
+ * <p>The cache is used only by connections whose
+ * {@link net.hydromatic.optiq.config.OptiqConnectionProperty#CODE_CACHE}
+ * property is true.</p>
+ */
+public class CodeCache {
+  /** Default maximum number of classes in the cache. */
+  public static final int DEFAULT_MAX_SIZE = 256;
+
+  private static final CodeCache INSTANCE = new CodeCache(DEFAULT_MAX_SIZE);
+
+  /** For testing. */
+  private static final ThreadLocal<CodeCache> THREAD_INSTANCE =
+      new ThreadLocal<CodeCache>();
+
+  private final LinkedHashMap<String, Class<?>> map =
+      new LinkedHashMap<String, Class<?>>(16, 0.75f, true);
+  private int maxSize;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  CodeCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Used by tests, to ensure that they see their own cache, and that its
+   * statistics are not affected by statements that other tests prepare. */
+  public static void setThreadLocal() {
+    THREAD_INSTANCE.set(new CodeCache(DEFAULT_MAX_SIZE));
+  }
+
+  /** Removes the cache created by {@link #setThreadLocal()}, so that the
+   * current thread uses the global cache again. */
+  public static void clearThreadLocal() {
+    THREAD_INSTANCE.remove();
+  }
+
+  /** Returns the cache. Usually the global one, but returns a thread-local
+   * one during testing (when {@link #setThreadLocal()} has been called by the
+   * current thread). */
+  public static CodeCache instance() {
+    final CodeCache codeCache = THREAD_INSTANCE.get();
+    if (codeCache != null) {
+      return codeCache;
+    }
+    return INSTANCE;
+  }
+
+  /** Returns a new instance of the class compiled from the given source, or
+   * null if there is no such class in the cache. */
+  public Bindable get(String source) {
+    final Class<?> clazz;
+    synchronized (this) {
+      clazz = map.get(source);
+    }
+    if (clazz == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    try {
+      return (Bindable) clazz.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Adds the class of a {@link Bindable} that has just been compiled from
+   * the given source. */
+  public synchronized void put(String source, Bindable bindable) {
+    map.put(source, bindable.getClass());
+    evict();
+  }
+
+  /** Removes all classes. */
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  /** Sets the maximum number of classes in the cache, evicting classes if
+   * necessary. */
+  public synchronized void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  /** Removes least recently used classes until the cache is within its
+   * size limit. */
+  private void evict() {
+    final Iterator<Class<?>> iterator = map.values().iterator();
+    while (map.size() > maxSize && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  /** Returns the number of statements whose class was found in the
+   * cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of statements whose class was not in the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of classes removed to make space. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the number of classes in the cache. */
+  public synchronized int size() {
+    return map.size();
+  }
+}
+
+// End CodeCache.java
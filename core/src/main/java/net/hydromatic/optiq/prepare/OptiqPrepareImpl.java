@@ -23,12 +23,15 @@
 
 import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.*;
+import net.hydromatic.linq4j.function.Function0;
 import net.hydromatic.linq4j.function.Function1;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.Table;
 import net.hydromatic.optiq.config.OptiqConnectionConfig;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.interpreter.Interpreter;
+import net.hydromatic.optiq.interpreter.TieredBindable;
 import net.hydromatic.optiq.jdbc.OptiqPrepare;
 import net.hydromatic.optiq.jdbc.OptiqSchema;
 import net.hydromatic.optiq.materialize.MaterializationService;
@@ -51,6 +54,7 @@
 import org.eigenbase.sql.parser.impl.SqlParserImpl;
 import org.eigenbase.sql.type.*;
 import org.eigenbase.sql.util.ChainedSqlOperatorTable;
+import org.eigenbase.sql.util.SqlBasicVisitor;
 import org.eigenbase.sql.validate.*;
 import org.eigenbase.sql2rel.SqlToRelConverter;
 import org.eigenbase.util.Util;
@@ -155,6 +159,11 @@ protected RelOptPlanner createPlanner(Context context) {
     }
     RelOptUtil.registerAbstractRels(planner);
     planner.addRule(JavaRules.ENUMERABLE_JOIN_RULE);
+    if (ENABLE_COLLATION_TRAIT) {
+      planner.addRule(JavaRules.ENUMERABLE_MERGE_JOIN_RULE);
+      planner.addRule(JavaRules.ENUMERABLE_SORTED_AGGREGATE_RULE);
+      planner.addRule(JavaRules.ENUMERABLE_SORTED_TABLE_ACCESS_RULE);
+    }
     planner.addRule(JavaRules.ENUMERABLE_PROJECT_RULE);
     planner.addRule(JavaRules.ENUMERABLE_FILTER_RULE);
     planner.addRule(JavaRules.ENUMERABLE_AGGREGATE_RULE);
@@ -302,6 +311,7 @@ <T> PrepareResult<T> prepare2_(
 
     final RelDataType x;
     final Prepare.PreparedResult preparedResult;
+    List<Table> tables = null;
     if (sql != null) {
       assert queryable == null;
       final OptiqConnectionConfig config = context.config();
@@ -342,6 +352,7 @@ <T> PrepareResult<T> prepare2_(
       default:
         x = validator.getValidatedNodeType(sqlNode);
       }
+      tables = cacheableTables(sqlNode, preparedResult, materializations);
     } else {
       assert queryable != null;
       x = context.getTypeFactory().createType(elementType);
@@ -379,7 +390,84 @@ <T> PrepareResult<T> prepare2_(
         columns,
         maxRowCount,
         preparedResult.getBindable(),
-        resultClazz);
+        resultClazz,
+        tables);
+  }
+
+  /** Returns the tables read by a query whose result may be cached, or null
+   * if its result may not be cached.
+   *
+   * <p>A result may be cached if the statement is a query, it calls only
+   * deterministic built-in functions, and it reads only tables. If the plan
+   * reads a materialized table, the tables that the materialization is
+   * derived from are included, so that modifying them invalidates the
+   * result.</p> */
+  private static List<Table> cacheableTables(SqlNode sqlNode,
+      Prepare.PreparedResult preparedResult,
+      List<Prepare.Materialization> materializations) {
+    if (!sqlNode.getKind().belongsTo(SqlKind.QUERY)
+        || !(preparedResult instanceof Prepare.PreparedResultImpl)) {
+      return null;
+    }
+    try {
+      sqlNode.accept(
+          new SqlBasicVisitor<Void>() {
+            public Void visit(SqlCall call) {
+              final SqlOperator operator = call.getOperator();
+              if (operator.isDynamicFunction()
+                  || !operator.isDeterministic()
+                  || operator instanceof SqlUserDefinedFunction
+                  || operator instanceof SqlFunction
+                     && ((SqlFunction) operator).getFunctionType() == null) {
+                throw Util.FoundOne.NULL;
+              }
+              return super.visit(call);
+            }
+          });
+    } catch (Util.FoundOne e) {
+      return null;
+    }
+    final RelNode rootRel =
+        ((Prepare.PreparedResultImpl) preparedResult).getRootRel();
+    final Set<Table> tables = new LinkedHashSet<Table>();
+    if (!addTables(rootRel, tables)) {
+      return null;
+    }
+    for (Prepare.Materialization materialization : materializations) {
+      if (materialization.queryRel != null
+          && tables.contains(materialization.materializedTable.getTable())
+          && !addTables(materialization.queryRel, tables)) {
+        return null;
+      }
+    }
+    return ImmutableList.copyOf(tables);
+  }
+
+  /** Adds the tables read by a relational expression to a collection.
+   * Returns false if the expression reads something other than a table, such
+   * as a table function. */
+  private static boolean addTables(RelNode rel,
+      final Collection<Table> tables) {
+    try {
+      new RelVisitor() {
+        public void visit(RelNode node, int ordinal, RelNode parent) {
+          if (node instanceof TableFunctionRelBase) {
+            throw Util.FoundOne.NULL;
+          }
+          if (node instanceof TableAccessRelBase) {
+            final Table table = node.getTable().unwrap(Table.class);
+            if (table == null) {
+              throw Util.FoundOne.NULL;
+            }
+            tables.add(table);
+          }
+          super.visit(node, ordinal, parent);
+        }
+      }.go(rel);
+      return true;
+    } catch (Util.FoundOne e) {
+      return false;
+    }
   }
 
   private List<ColumnMetaData> getColumnMetaDataList(
@@ -693,28 +781,33 @@ protected PreparedResult implement(
         SqlKind sqlKind) {
       RelDataType resultType = rootRel.getRowType();
       boolean isDml = sqlKind.belongsTo(SqlKind.DML);
-      EnumerableRelImplementor relImplementor =
-          getRelImplementor(rootRel.getCluster().getRexBuilder());
-      ClassDeclaration expr =
-          relImplementor.implementRoot((EnumerableRel) rootRel, prefer);
-      String s = Expressions.toString(expr.memberDeclarations, "\n", false);
-
-      if (DEBUG) {
-        System.out.println();
-        System.out.println(s);
+      final OptiqConnectionConfig config = context.config();
+      Bindable bindable = null;
+      if (config.interpreter()
+          && !isDml
+          && prefer == EnumerableRel.Prefer.ARRAY
+          && !context.spark().enabled()) {
+        // Interpret the plan, if possible, and generate code only when the
+        // statement has been used enough.
+        final Bindable<Object> interpreted = Interpreter.bindable(rootRel);
+        if (interpreted != null) {
+          final RelNode rel = rootRel;
+          bindable =
+              new TieredBindable(interpreted,
+                  new Function0<Bindable>() {
+                    public Bindable apply() {
+                      return compile(rel);
+                    }
+                  },
+                  resultType,
+                  config.interpreterCompileExecutions(),
+                  config.interpreterCompileRows());
+        }
       }
-
-      Hook.JAVA_PLAN.run(s);
-
-      final Bindable bindable;
-      try {
-        bindable = getBindable(expr, s);
-      } catch (Exception e) {
-        throw Helper.INSTANCE.wrap(
-            "Error while compiling generated Java code:\n"
-            + s,
-            e);
+      if (bindable == null) {
+        bindable = compile(rootRel);
       }
+      final Bindable bindable0 = bindable;
 
       if (timingTracer != null) {
         timingTracer.traceTime("end codegen");
@@ -736,26 +829,67 @@ public String getCode() {
         }
 
         public Bindable getBindable() {
-          return bindable;
+          return bindable0;
         }
 
         public Type getElementType() {
-          return ((Typed) bindable).getElementType();
+          return ((Typed) bindable0).getElementType();
         }
       };
     }
 
+    /** Generates and compiles code for a plan. */
+    private Bindable compile(RelNode rootRel) {
+      EnumerableRelImplementor relImplementor =
+          getRelImplementor(rootRel.getCluster().getRexBuilder());
+      if (context.config().spool()) {
+        // Compute each expression that has several consumers only once.
+        rootRel = JavaRules.EnumerableSpoolRel.addSpools(rootRel);
+      }
+      ClassDeclaration expr =
+          relImplementor.implementRoot((EnumerableRel) rootRel, prefer);
+      String s = Expressions.toString(expr.memberDeclarations, "\n", false);
+
+      if (DEBUG) {
+        System.out.println();
+        System.out.println(s);
+      }
+
+      Hook.JAVA_PLAN.run(s);
+
+      try {
+        return getBindable(expr, s);
+      } catch (Exception e) {
+        throw Helper.INSTANCE.wrap(
+            "Error while compiling generated Java code:\n"
+            + s,
+            e);
+      }
+    }
+
     private Bindable getBindable(ClassDeclaration expr,
         String s) throws CompileException, IOException {
       if (context.spark().enabled()) {
         return context.spark().compile(expr, s);
       }
-      return (Bindable) ClassBodyEvaluator.createFastClassBodyEvaluator(
-          new Scanner(null, new StringReader(s)),
-          expr.name,
-          Utilities.class,
-          new Class[]{Bindable.class, Typed.class},
-          getClass().getClassLoader());
+      final boolean codeCache = context.config().codeCache();
+      if (codeCache) {
+        final Bindable bindable = CodeCache.instance().get(s);
+        if (bindable != null) {
+          return bindable;
+        }
+      }
+      final Bindable bindable =
+          (Bindable) ClassBodyEvaluator.createFastClassBodyEvaluator(
+              new Scanner(null, new StringReader(s)),
+              expr.name,
+              Utilities.class,
+              new Class[]{Bindable.class, Typed.class},
+              getClass().getClassLoader());
+      if (codeCache) {
+        CodeCache.instance().put(s, bindable);
+      }
+      return bindable;
     }
   }
 
@@ -824,7 +958,7 @@ public <T> T unwrap(
       if (clazz.isInstance(tableEntry)) {
         return clazz.cast(tableEntry);
       }
-      if (clazz.isInstance(tableEntry.getTable())) {
+      if (tableEntry != null && clazz.isInstance(tableEntry.getTable())) {
         return clazz.cast(tableEntry.getTable());
       }
       return null;
@@ -883,6 +1017,13 @@ private Class deduceElementType(Table table) {
     }
 
     public List<RelCollation> getCollationList() {
+      if (tableEntry != null) {
+        final List<RelCollation> collations =
+            tableEntry.getTable().getStatistic().getCollations();
+        if (collations != null) {
+          return collations;
+        }
+      }
       return Collections.emptyList();
     }
 
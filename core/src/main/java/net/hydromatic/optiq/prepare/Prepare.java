@@ -108,6 +108,7 @@ public void visit(RelNode node, int ordinal, RelNode parent) {
 
     planner.setRoot(rootRel);
     for (Materialization materialization : materializations) {
+      visitor.go(materialization.tableRel);
       planner.addMaterialization(
           new RelOptMaterialization(materialization.tableRel,
               materialization.queryRel, materialization.starRelOptTable));
@@ -125,7 +126,7 @@ public void visit(RelNode node, int ordinal, RelNode parent) {
 
     // Second planner pass to do physical "tweaks". This the first time that
     // EnumerableCalcRel is introduced.
-    final HepProgram program = HepProgram.builder()
+    final HepProgramBuilder programBuilder = HepProgram.builder()
         .addRuleInstance(JavaRules.ENUMERABLE_CALC_RULE)
         .addRuleInstance(JavaRules.ENUMERABLE_FILTER_TO_CALC_RULE)
         .addRuleInstance(JavaRules.ENUMERABLE_PROJECT_TO_CALC_RULE)
@@ -140,10 +141,20 @@ public void visit(RelNode node, int ordinal, RelNode parent) {
             // combination of MergeCalcRule, FilterToCalcRule, and
             // ProjectToCalcRule have the same effect?
         .addRuleInstance(MergeFilterOntoCalcRule.INSTANCE)
-        .addRuleInstance(MergeProjectOntoCalcRule.INSTANCE)
-        .build();
+        .addRuleInstance(MergeProjectOntoCalcRule.INSTANCE);
+    if (context.config().scaledDecimals()) {
+      // Sum decimals as longs first, so that the calcs the rule creates are
+      // then reduced too.
+      programBuilder.addRuleInstance(
+          JavaRules.ENUMERABLE_REDUCE_DECIMAL_SUM_RULE);
+      programBuilder.addRuleInstance(
+          JavaRules.ENUMERABLE_REDUCE_DECIMALS_RULE);
+    }
+    final HepProgram program = programBuilder.build();
+    // If spools are enabled, allow a DAG, so that expressions that the first
+    // pass shared (because they came from the same subset) remain shared.
     final HepPlanner planner3 =
-        new HepPlanner(program, true,
+        new HepPlanner(program, !context.config().spool(),
             Functions.<RelNode, RelNode, Void>ignore2(),
             RelOptCostImpl.FACTORY);
     planner3.setRoot(rootRel3);
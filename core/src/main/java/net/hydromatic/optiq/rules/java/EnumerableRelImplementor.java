@@ -26,7 +26,9 @@
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
 import net.hydromatic.optiq.runtime.*;
 
+import org.eigenbase.rel.RelNode;
 import org.eigenbase.rex.RexBuilder;
+import org.eigenbase.util.Pair;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -41,13 +43,45 @@
  * operators of {@link EnumerableConvention} calling convention.
  */
 public class EnumerableRelImplementor extends JavaRelImplementor {
+  /** Maximum size, in expression nodes, of the code that a relational
+   * expression should generate into one method. HotSpot does not compile
+   * methods of more than 8000 bytes of bytecode, and a row of a few hundred
+   * expressions can easily exceed that. Allowing about 25 bytes per node,
+   * this budget keeps methods within the limit. */
+  public static final int METHOD_SIZE_BUDGET = 250;
+
   public final Map<String, Queryable> map =
       new LinkedHashMap<String, Queryable>();
 
+  /** Result of each spool that has been implemented, so that a spool that
+   * occurs more than once in the plan is implemented once. */
+  private final Map<JavaRules.EnumerableSpoolRel, EnumerableRel.Result>
+  spoolResults =
+      new IdentityHashMap<JavaRules.EnumerableSpoolRel, EnumerableRel.Result>();
+
+  /** Field that holds each spool, and the code that computes its input.
+   * Inner spools occur before the spools that read them. */
+  private final List<Pair<ParameterExpression, BlockStatement>> spools =
+      new ArrayList<Pair<ParameterExpression, BlockStatement>>();
+
+  /** Static final fields of the generated class, keyed by the Java source
+   * of their initializer, so that equal constants share a field. */
+  private final Map<String, Pair<ParameterExpression, Expression>>
+  staticFields =
+      new LinkedHashMap<String, Pair<ParameterExpression, Expression>>();
+
   public EnumerableRelImplementor(RexBuilder rexBuilder) {
     super(rexBuilder);
   }
 
+  /** Runtime filters to apply to inputs, keyed by the consuming relational
+   * expression and the ordinal of the input. */
+  private final Map<RelNode, Map<Integer, List<RuntimeFilterUse>>>
+  runtimeFilters =
+      new IdentityHashMap<RelNode, Map<Integer, List<RuntimeFilterUse>>>();
+
+  private int runtimeFilterCount;
+
   public EnumerableRel.Result visitChild(
       EnumerableRel parent,
       int ordinal,
@@ -57,7 +91,93 @@ public EnumerableRel.Result visitChild(
       assert child == parent.getInputs().get(ordinal);
     }
     createFrame(parent, ordinal, child);
-    return child.implement(this, prefer);
+    final EnumerableRel.Result result = child.implement(this, prefer);
+    final Map<Integer, List<RuntimeFilterUse>> filterMap =
+        runtimeFilters.get(parent);
+    if (filterMap == null || !filterMap.containsKey(ordinal)) {
+      return result;
+    }
+    // Discard rows whose keys cannot match the build side of a join above.
+    final BlockBuilder builder = new BlockBuilder();
+    Expression input = builder.append("input", result.block);
+    for (RuntimeFilterUse use : filterMap.get(ordinal)) {
+      input =
+          Expressions.call(input,
+              BuiltinMethod.WHERE.method,
+              Expressions.call(use.filter,
+                  BuiltinMethod.RUNTIME_FILTER_PREDICATE.method,
+                  result.physType.generateAccessor(use.keys)));
+    }
+    builder.add(input);
+    return new EnumerableRel.Result(builder.toBlock(), result.physType,
+        result.format);
+  }
+
+  /** Declares a variable that will hold a
+   * {@link net.hydromatic.optiq.runtime.RuntimeFilter}. */
+  public Expression declareRuntimeFilter(BlockBuilder builder) {
+    return builder.append("runtimeFilter" + runtimeFilterCount++,
+        Expressions.new_(RuntimeFilter.class), false);
+  }
+
+  /** Registers a runtime filter to be applied to the {@code ordinal}th input
+   * of {@code parent}, using the given fields of that input as the key. Must
+   * be called before {@code parent} is implemented. */
+  public void addRuntimeFilter(RelNode parent, int ordinal, Expression filter,
+      List<Integer> keys) {
+    Map<Integer, List<RuntimeFilterUse>> filterMap =
+        runtimeFilters.get(parent);
+    if (filterMap == null) {
+      filterMap = new HashMap<Integer, List<RuntimeFilterUse>>();
+      runtimeFilters.put(parent, filterMap);
+    }
+    List<RuntimeFilterUse> uses = filterMap.get(ordinal);
+    if (uses == null) {
+      uses = new ArrayList<RuntimeFilterUse>();
+      filterMap.put(ordinal, uses);
+    }
+    uses.add(new RuntimeFilterUse(filter, keys));
+  }
+
+  /** Implements a spool. The first time a given spool is seen, generates
+   * code that computes its input and stores it in a field; every time,
+   * returns code that reads the field. */
+  public EnumerableRel.Result visitSpool(JavaRules.EnumerableSpoolRel spool,
+      EnumerableRel.Prefer prefer) {
+    EnumerableRel.Result result = spoolResults.get(spool);
+    if (result == null) {
+      final EnumerableRel.Result inputResult =
+          visitChild(spool, 0, (EnumerableRel) spool.getChild(), prefer);
+      final ParameterExpression spool_ =
+          Expressions.parameter(Spool.class, "spool" + spools.size());
+      spools.add(Pair.of(spool_, inputResult.block));
+      result =
+          new EnumerableRel.Result(
+              Expressions.block(Expressions.return_(null, spool_)),
+              inputResult.physType,
+              inputResult.format);
+      spoolResults.put(spool, result);
+    }
+    return result;
+  }
+
+  /** Declares a static final field in the generated class, and returns an
+   * expression that reads it. The initializer is evaluated once, when the
+   * class is loaded, rather than each time the code that reads the field is
+   * executed. A field is shared by all callers with the same
+   * initializer. */
+  public ParameterExpression declareStatic(Type type, String name,
+      Expression initializer) {
+    final String key = initializer.toString();
+    Pair<ParameterExpression, Expression> pair = staticFields.get(key);
+    if (pair == null) {
+      pair =
+          Pair.of(
+              Expressions.parameter(type, name + "$" + staticFields.size()),
+              initializer);
+      staticFields.put(key, pair);
+    }
+    return pair.left;
   }
 
   public ClassDeclaration implementRoot(EnumerableRel rootRel,
@@ -65,7 +185,6 @@ public ClassDeclaration implementRoot(EnumerableRel rootRel,
     final EnumerableRel.Result result = rootRel.implement(this, prefer);
     List<MemberDeclaration> memberDeclarations =
         new ArrayList<MemberDeclaration>();
-    declareSyntheticClasses(result.block, memberDeclarations);
 
     // The following is a workaround to
     // http://jira.codehaus.org/browse/JANINO-169. Otherwise we'd remove the
@@ -73,12 +192,48 @@ public ClassDeclaration implementRoot(EnumerableRel rootRel,
     // directly from inner classes.
     final ParameterExpression root0_ =
         Expressions.parameter(Modifier.FINAL, DataContext.class, "root0");
-    final BlockStatement block = Expressions.block(
-        Iterables.concat(
-            ImmutableList.of(
-                Expressions.statement(
-                    Expressions.assign(DataContext.ROOT, root0_))),
-            result.block.statements));
+    final Statement rootAssign =
+        Expressions.statement(Expressions.assign(DataContext.ROOT, root0_));
+    final BlockStatement block;
+    if (spools.isEmpty()) {
+      block = Expressions.block(
+          Iterables.concat(
+              ImmutableList.of(rootAssign),
+              result.block.statements));
+    } else {
+      // Populate each spool's field before the main code runs. Spools are
+      // held in fields, like "root", for the same reason.
+      final BlockBuilder builder = new BlockBuilder();
+      builder.add(rootAssign);
+      for (Pair<ParameterExpression, BlockStatement> pair : spools) {
+        builder.add(
+            Expressions.statement(
+                Expressions.assign(pair.left,
+                    Expressions.new_(Spool.class,
+                        builder.append(pair.left.name + "Input",
+                            pair.right)))));
+        memberDeclarations.add(Expressions.fieldDecl(0, pair.left, null));
+      }
+      // Delete the spools' files when the consumer closes the result.
+      final List<Expression> spoolFields = new ArrayList<Expression>();
+      for (Pair<ParameterExpression, BlockStatement> pair : spools) {
+        spoolFields.add(pair.left);
+      }
+      builder.add(
+          Expressions.return_(null,
+              Expressions.call(
+                  BuiltinMethod.SPOOL_CLOSING.method,
+                  builder.append("result", result.block),
+                  Expressions.newArrayInit(Spool.class, spoolFields))));
+      block = builder.toBlock();
+    }
+    declareSyntheticClasses(block, memberDeclarations);
+    for (Pair<ParameterExpression, Expression> pair : staticFields.values()) {
+      memberDeclarations.add(
+          Expressions.fieldDecl(
+              Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL,
+              pair.left, pair.right));
+    }
     memberDeclarations.add(
         Expressions.fieldDecl(0, DataContext.ROOT, null));
 
@@ -352,6 +507,18 @@ public EnumerableRel.Result result(PhysType physType, BlockStatement block) {
         block, physType, ((PhysTypeImpl) physType).format);
   }
 
+  /** Application of a runtime filter to the input of a relational
+   * expression. */
+  private static class RuntimeFilterUse {
+    final Expression filter;
+    final List<Integer> keys;
+
+    RuntimeFilterUse(Expression filter, List<Integer> keys) {
+      this.filter = filter;
+      this.keys = keys;
+    }
+  }
+
   /** Visitor that finds types in an {@link Expression} tree. */
   private static class TypeFinder extends Visitor {
     private final LinkedHashSet<Type> types;
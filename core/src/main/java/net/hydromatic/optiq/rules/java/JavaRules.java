@@ -26,16 +26,25 @@
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.prepare.Prepare;
 import net.hydromatic.optiq.runtime.SortedMultiMap;
+import net.hydromatic.optiq.runtime.SqlFunctions;
 import net.hydromatic.optiq.util.BitSets;
 
 import org.eigenbase.rel.*;
 import org.eigenbase.rel.convert.ConverterRule;
 import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.rel.rules.ReduceDecimalsRule;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.*;
 import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlAggFunction;
+import org.eigenbase.sql.SqlFunctionCategory;
+import org.eigenbase.sql.SqlKind;
 import org.eigenbase.sql.SqlWindow;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.type.OperandTypes;
+import org.eigenbase.sql.type.ReturnTypes;
+import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.sql.type.SqlTypeUtil;
 import org.eigenbase.trace.EigenbaseTrace;
 import org.eigenbase.util.*;
 
@@ -64,11 +73,35 @@ public class JavaRules {
   public static final RelOptRule ENUMERABLE_JOIN_RULE =
       new EnumerableJoinRule();
 
+  public static final RelOptRule ENUMERABLE_MERGE_JOIN_RULE =
+      new EnumerableMergeJoinRule();
+
   public static final String[] LEFT_RIGHT = new String[]{"left", "right"};
 
   private JavaRules() {
   }
 
+  /** Converts a relational expression to enumerable convention, sorted on a
+   * given collation.
+   *
+   * <p>Asks for a {@link SortRel} rather than for the collation directly, so
+   * that {@link org.eigenbase.rel.rules.RemoveSortRule} and
+   * {@link org.eigenbase.rel.rules.PushSortPastProjectRule} can find an
+   * input that is already sorted, such as a projection of a table that
+   * declares the collation. Otherwise the sort becomes an
+   * {@link EnumerableSortRel}. */
+  static RelNode convertSorted(RelNode input, RelCollation collation) {
+    final RelOptCluster cluster = input.getCluster();
+    final SortRel sort =
+        new SortRel(
+            cluster,
+            cluster.traitSetOf(Convention.NONE, collation),
+            input,
+            collation);
+    return RelOptRule.convert(
+        sort, sort.getTraitSet().replace(EnumerableConvention.INSTANCE));
+  }
+
   private static class EnumerableJoinRule extends ConverterRule {
     private EnumerableJoinRule() {
       super(
@@ -113,8 +146,8 @@ public RelNode convert(RelNode rel) {
   public static class EnumerableJoinRel
       extends JoinRelBase
       implements EnumerableRel {
-    final ImmutableIntList leftKeys;
-    final ImmutableIntList rightKeys;
+    protected final ImmutableIntList leftKeys;
+    protected final ImmutableIntList rightKeys;
 
     protected EnumerableJoinRel(
         RelOptCluster cluster,
@@ -193,7 +226,7 @@ public RelOptCost computeSelfCost(RelOptPlanner planner) {
       return planner.getCostFactory().makeCost(rowCount, 0, 0);
     }
 
-    private double addEpsilon(double d) {
+    protected double addEpsilon(double d) {
       assert d >= 0d;
       final double d0 = d;
       if (d < 10) {
@@ -234,6 +267,11 @@ public double getRows() {
 
     public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       BlockBuilder builder = new BlockBuilder();
+      // The join reads all of its right input (the build side) before it
+      // reads its left input (the probe side). If the build side is smaller,
+      // build a filter from its keys, and apply the filter to the probe side
+      // as close to the scan as possible.
+      final Expression filter = addRuntimeFilter(implementor, builder);
       final Result leftResult =
           implementor.visitChild(this, 0, (EnumerableRel) left, pref);
       Expression leftExpression =
@@ -250,6 +288,14 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       final PhysType keyPhysType =
           leftResult.physType.project(
               leftKeys, JavaRowFormat.LIST);
+      if (filter != null) {
+        rightExpression =
+            builder.append("right",
+                Expressions.call(filter,
+                    BuiltinMethod.RUNTIME_FILTER_BUILD.method,
+                    rightExpression,
+                    rightResult.physType.generateAccessor(rightKeys)));
+      }
       return implementor.result(
           physType,
           builder.append(
@@ -267,7 +313,97 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
                       .appendIfNotNull(keyPhysType.comparer()))).toBlock());
     }
 
-    Expression generateSelector(PhysType physType,
+    /** If it is worth applying a runtime filter to the left input, declares
+     * the filter, registers where it is to be applied, and returns it;
+     * otherwise returns null.
+     *
+     * <p>Starting from the left input, descends through relational
+     * expressions that pass the key columns through unchanged and do not
+     * limit the number of rows. The filter is applied to the input of the
+     * last such expression. Shared expressions (spools) are not descended
+     * into, because their other consumers need all rows.</p> */
+    private Expression addRuntimeFilter(EnumerableRelImplementor implementor,
+        BlockBuilder builder) {
+      if (joinType != JoinRelType.INNER
+          || leftKeys.isEmpty()
+          || !(RelMetadataQuery.getRowCount(right)
+               < RelMetadataQuery.getRowCount(left))) {
+        return null;
+      }
+      // Composite keys that need a custom comparer (arrays, for instance)
+      // do not have a suitable hash code.
+      for (int key : leftKeys) {
+        final Type type = implementor.getTypeFactory().getJavaClass(
+            left.getRowType().getFieldList().get(key).getType());
+        if (type instanceof Class && ((Class) type).isArray()) {
+          return null;
+        }
+      }
+      RelNode parent = this;
+      int ordinal = 0;
+      List<Integer> keys = leftKeys;
+      for (;;) {
+        final RelNode child = parent.getInputs().get(ordinal);
+        final List<Integer> childKeys = new ArrayList<Integer>();
+        int childOrdinal = 0;
+        if (child instanceof EnumerableCalcRel) {
+          final RexProgram program = ((EnumerableCalcRel) child).getProgram();
+          for (int key : keys) {
+            final RexNode e =
+                program.expandLocalRef(program.getProjectList().get(key));
+            if (!(e instanceof RexInputRef)) {
+              break;
+            }
+            childKeys.add(((RexInputRef) e).getIndex());
+          }
+        } else if (child instanceof EnumerableProjectRel) {
+          for (int key : keys) {
+            final RexNode e = ((EnumerableProjectRel) child).getProjects()
+                .get(key);
+            if (!(e instanceof RexInputRef)) {
+              break;
+            }
+            childKeys.add(((RexInputRef) e).getIndex());
+          }
+        } else if (child instanceof EnumerableFilterRel
+            || child instanceof EnumerableSortRel
+               && ((EnumerableSortRel) child).offset == null
+               && ((EnumerableSortRel) child).fetch == null) {
+          childKeys.addAll(keys);
+        } else if (child instanceof EnumerableJoinRel
+            && ((EnumerableJoinRel) child).joinType == JoinRelType.INNER) {
+          final int leftCount =
+              ((EnumerableJoinRel) child).left.getRowType().getFieldCount();
+          for (int key : keys) {
+            childKeys.add(key < leftCount ? key : key - leftCount);
+          }
+          childOrdinal = keys.get(0) < leftCount ? 0 : 1;
+          for (int key : keys) {
+            if (key < leftCount != (childOrdinal == 0)) {
+              // Keys come from both inputs.
+              childKeys.clear();
+              break;
+            }
+          }
+        }
+        if (childKeys.size() < keys.size()) {
+          break;
+        }
+        parent = child;
+        ordinal = childOrdinal;
+        keys = childKeys;
+      }
+      if (parent == this) {
+        // Applying the filter to the join's own input would not save
+        // anything.
+        return null;
+      }
+      final Expression filter = implementor.declareRuntimeFilter(builder);
+      implementor.addRuntimeFilter(parent, ordinal, filter, keys);
+      return filter;
+    }
+
+    protected Expression generateSelector(PhysType physType,
         List<PhysType> inputPhysTypes) {
       // A parameter for each input.
       final List<ParameterExpression> parameters =
@@ -297,6 +433,152 @@ Expression generateSelector(PhysType physType,
     }
   }
 
+  /** Rule that converts an inner equi-join into a merge join, requiring each
+   * of its inputs to be sorted on its join keys. */
+  private static class EnumerableMergeJoinRule extends RelOptRule {
+    private EnumerableMergeJoinRule() {
+      super(
+          operand(JoinRel.class, Convention.NONE, any()),
+          "EnumerableMergeJoinRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final JoinRel join = call.rel(0);
+      if (join.getJoinType() != JoinRelType.INNER) {
+        return;
+      }
+      final List<Integer> leftKeys = new ArrayList<Integer>();
+      final List<Integer> rightKeys = new ArrayList<Integer>();
+      RexNode remaining =
+          RelOptUtil.splitJoinCondition(
+              join.getLeft(),
+              join.getRight(),
+              join.getCondition(),
+              leftKeys,
+              rightKeys);
+      if (!remaining.isAlwaysTrue() || leftKeys.isEmpty()) {
+        return;
+      }
+      final List<RelNode> newInputs = new ArrayList<RelNode>();
+      final List<RelCollation> collations = new ArrayList<RelCollation>();
+      for (Ord<RelNode> input : Ord.zip(join.getInputs())) {
+        final List<RelFieldCollation> fieldCollations =
+            new ArrayList<RelFieldCollation>();
+        for (int key : input.i == 0 ? leftKeys : rightKeys) {
+          fieldCollations.add(new RelFieldCollation(key));
+        }
+        final RelCollation collation = RelCollationImpl.of(fieldCollations);
+        collations.add(collation);
+        newInputs.add(convertSorted(input.e, collation));
+      }
+      try {
+        // Output is sorted on the left keys.
+        call.transformTo(
+            new EnumerableMergeJoinRel(
+                join.getCluster(),
+                join.getTraitSet()
+                    .replace(EnumerableConvention.INSTANCE)
+                    .replace(collations.get(0)),
+                newInputs.get(0),
+                newInputs.get(1),
+                join.getCondition(),
+                join.getJoinType(),
+                join.getVariablesStopped()));
+      } catch (InvalidRelException e) {
+        LOGGER.fine(e.toString());
+      }
+    }
+  }
+
+  /** Implementation of {@link org.eigenbase.rel.JoinRel} in
+   * {@link EnumerableConvention enumerable calling convention} that merges
+   * inputs that are sorted on their join keys.
+   *
+   * <p>Supports inner equi-joins only. It does not need to read either
+   * input into a hash table, so it is cheaper than {@link EnumerableJoinRel}
+   * if its inputs are already sorted, for example because they come from
+   * tables whose {@link Statistic} declares a collation.</p> */
+  public static class EnumerableMergeJoinRel extends EnumerableJoinRel {
+    protected EnumerableMergeJoinRel(
+        RelOptCluster cluster,
+        RelTraitSet traits,
+        RelNode left,
+        RelNode right,
+        RexNode condition,
+        JoinRelType joinType,
+        Set<String> variablesStopped)
+      throws InvalidRelException {
+      super(cluster, traits, left, right, condition, joinType,
+          variablesStopped);
+      if (joinType != JoinRelType.INNER) {
+        throw new InvalidRelException(
+            "EnumerableMergeJoinRel only supports inner join");
+      }
+    }
+
+    @Override
+    public EnumerableMergeJoinRel copy(RelTraitSet traitSet,
+        RexNode conditionExpr, RelNode left, RelNode right,
+        JoinRelType joinType) {
+      try {
+        return new EnumerableMergeJoinRel(getCluster(), traitSet, left, right,
+            conditionExpr, joinType, variablesStopped);
+      } catch (InvalidRelException e) {
+        // Semantic error not possible. Must be a bug. Convert to
+        // internal error.
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      double rowCount = RelMetadataQuery.getRowCount(this);
+      if (left.getId() > right.getId()) {
+        rowCount = addEpsilon(rowCount);
+      }
+      // Unlike a hash join, it does not matter which input is smaller. The
+      // cost of sorting the inputs, if they are not already sorted, is borne
+      // by the sorts.
+      rowCount *= 0.9d;
+      return planner.getCostFactory().makeCost(rowCount, 0, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+      BlockBuilder builder = new BlockBuilder();
+      final Result leftResult =
+          implementor.visitChild(this, 0, (EnumerableRel) left, pref);
+      Expression leftExpression =
+          builder.append(
+              "left", leftResult.block);
+      final Result rightResult =
+          implementor.visitChild(this, 1, (EnumerableRel) right, pref);
+      Expression rightExpression =
+          builder.append(
+              "right", rightResult.block);
+      final PhysType physType =
+          PhysTypeImpl.of(
+              implementor.getTypeFactory(), getRowType(), pref.preferArray());
+      return implementor.result(
+          physType,
+          builder.append(
+              Expressions.call(
+                  BuiltinMethod.MERGE_JOIN.method,
+                  Expressions.list(
+                      leftExpression,
+                      rightExpression,
+                      leftResult.physType.generateAccessor(leftKeys),
+                      rightResult.physType.generateAccessor(rightKeys),
+                      generateSelector(
+                          physType,
+                          ImmutableList.of(
+                              leftResult.physType,
+                              rightResult.physType)))))
+              .toBlock());
+    }
+  }
+
   /**
    * Utilities for generating programs in the Enumerable (functional)
    * style.
@@ -365,6 +647,37 @@ static List<RexImpTable.AggImplementor2> getImplementors(
     }
   }
 
+  public static final RelOptRule ENUMERABLE_SORTED_TABLE_ACCESS_RULE =
+      new EnumerableSortedTableAccessRule();
+
+  /** Rule that, for a table whose {@link Statistic} declares collations,
+   * registers a table scan for each collation, so that the planner knows
+   * that the table can deliver rows in that order without a sort. */
+  private static class EnumerableSortedTableAccessRule extends RelOptRule {
+    private EnumerableSortedTableAccessRule() {
+      super(
+          operand(EnumerableTableAccessRel.class, none()),
+          "EnumerableSortedTableAccessRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final EnumerableTableAccessRel rel = call.rel(0);
+      final RelTraitSet traitSet = rel.getTraitSet();
+      if (traitSet.getTrait(RelCollationTraitDef.INSTANCE)
+          != RelCollationImpl.EMPTY) {
+        // Already sorted; don't fire on the scans this rule creates.
+        return;
+      }
+      for (RelCollation collation : rel.getCollationList()) {
+        if (!collation.getFieldCollations().isEmpty()) {
+          call.transformTo(
+              rel.copy(traitSet.replace(collation), rel.getInputs()));
+        }
+      }
+    }
+  }
+
   /** Implementation of {@link org.eigenbase.rel.TableAccessRel} in
    * {@link EnumerableConvention enumerable calling convention}. */
   public static class EnumerableTableAccessRel
@@ -687,7 +1000,8 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
                 builder2,
                 new RexToLixTranslator.InputGetterImpl(
                     Collections.singletonList(
-                        Pair.of(input, result.physType))));
+                        Pair.of(input, result.physType))),
+                implementor);
         builder2.add(
             Expressions.ifThen(
                 condition,
@@ -706,61 +1020,150 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       }
 
       final BlockBuilder builder3 = new BlockBuilder();
-      List<Expression> expressions =
-          RexToLixTranslator.translateProjects(
-              program,
-              typeFactory,
-              builder3,
-              new RexToLixTranslator.InputGetterImpl(
-                  Collections.singletonList(
-                      Pair.of(input, result.physType))));
-      builder3.add(
-          Expressions.return_(
-              null, physType.record(expressions)));
+      final List<MemberDeclaration> projectors =
+          new ArrayList<MemberDeclaration>();
+      final List<List<RexLocalRef>> chunks = chunkProjects();
+      if (chunks.size() <= 1) {
+        List<Expression> expressions =
+            RexToLixTranslator.translateProjects(
+                program,
+                typeFactory,
+                builder3,
+                new RexToLixTranslator.InputGetterImpl(
+                    Collections.singletonList(
+                        Pair.of(input, result.physType))),
+                implementor);
+        builder3.add(
+            Expressions.return_(
+                null, physType.record(expressions)));
+      } else {
+        // The projections are too large for one method. Hot methods larger
+        // than 8000 bytes of bytecode are not compiled by HotSpot, and
+        // methods larger than 64KB cannot be generated at all. Each chunk
+        // of projections goes into its own method:
+        //
+        //   public final Function2 projector0 = new Function2() {
+        //     public Object[] apply(Object[] values, Employee in) {
+        //       values[0] = in.empid + 1;
+        //       ...
+        //       return values;
+        //     }
+        //   };
+        //   ...
+        //   public Object current() {
+        //     final Employee in = (Employee) inputEnumerator.current();
+        //     final Object[] values = new Object[300];
+        //     projector0.apply(values, in);
+        //     projector1.apply(values, in);
+        //     return values;
+        //   }
+        final ParameterExpression values_ =
+            Expressions.parameter(Object[].class, "values");
+        final ParameterExpression in_ =
+            Expressions.parameter(inputJavaType, "in");
+        final Expression input_ = builder3.append("in", input);
+        builder3.add(
+            Expressions.declare(Modifier.FINAL, values_,
+                Expressions.newArrayBounds(Object.class, 1,
+                    Expressions.constant(program.getProjectList().size()))));
+        int start = 0;
+        for (Ord<List<RexLocalRef>> chunk : Ord.zip(chunks)) {
+          final BlockBuilder builder4 = new BlockBuilder();
+          final List<Expression> expressions =
+              RexToLixTranslator.translateProjects(
+                  program,
+                  typeFactory,
+                  builder4,
+                  new RexToLixTranslator.InputGetterImpl(
+                      Collections.singletonList(
+                          Pair.of((Expression) in_, result.physType))),
+                  implementor,
+                  chunk.e);
+          for (Expression expression : expressions) {
+            builder4.add(
+                Expressions.statement(
+                    Expressions.assign(
+                        Expressions.arrayIndex(values_,
+                            Expressions.constant(start++)),
+                        expression)));
+          }
+          builder4.add(Expressions.return_(null, values_));
+          final ParameterExpression projector_ =
+              Expressions.parameter(Function2.class, "projector" + chunk.i);
+          projectors.add(
+              Expressions.fieldDecl(
+                  Modifier.PUBLIC | Modifier.FINAL,
+                  projector_,
+                  Expressions.lambda(Function2.class, builder4.toBlock(),
+                      values_, in_)));
+          builder3.add(
+              Expressions.statement(
+                  Expressions.call(projector_,
+                      BuiltinMethod.FUNCTION2_APPLY.method, values_,
+                      input_)));
+        }
+        if (physType.getFormat() == JavaRowFormat.ARRAY) {
+          builder3.add(Expressions.return_(null, values_));
+        } else {
+          final List<Expression> expressions = new ArrayList<Expression>();
+          for (int i = 0; i < start; i++) {
+            expressions.add(
+                RexToLixTranslator.convert(
+                    Expressions.arrayIndex(values_, Expressions.constant(i)),
+                    physType.fieldClass(i)));
+          }
+          builder3.add(
+              Expressions.return_(
+                  null, physType.record(expressions)));
+        }
+      }
       BlockStatement currentBody =
           builder3.toBlock();
 
       final Expression inputEnumerable =
           builder.append(
               "inputEnumerable", result.block, false);
-      final Expression body =
-          Expressions.new_(
-              enumeratorType,
-              NO_EXPRS,
-              Expressions.<MemberDeclaration>list(
-                  Expressions.fieldDecl(
-                      Modifier.PUBLIC
-                      | Modifier.FINAL,
-                      inputEnumerator,
+      final List<MemberDeclaration> memberDeclarations =
+          new ArrayList<MemberDeclaration>();
+      memberDeclarations.add(
+          Expressions.fieldDecl(
+              Modifier.PUBLIC
+              | Modifier.FINAL,
+              inputEnumerator,
+              Expressions.call(
+                  inputEnumerable,
+                  BuiltinMethod.ENUMERABLE_ENUMERATOR.method)));
+      memberDeclarations.addAll(projectors);
+      memberDeclarations.addAll(
+          Arrays.<MemberDeclaration>asList(
+              EnumUtil.overridingMethodDecl(
+                  BuiltinMethod.ENUMERATOR_RESET.method,
+                  NO_PARAMS,
+                  Blocks.toFunctionBlock(
+                      Expressions.call(
+                          inputEnumerator,
+                          BuiltinMethod.ENUMERATOR_RESET.method))),
+              EnumUtil.overridingMethodDecl(
+                  BuiltinMethod.ENUMERATOR_MOVE_NEXT.method,
+                  NO_PARAMS,
+                  moveNextBody),
+              EnumUtil.overridingMethodDecl(
+                  BuiltinMethod.ENUMERATOR_CLOSE.method,
+                  NO_PARAMS,
+                  Blocks.toFunctionBlock(
                       Expressions.call(
-                          inputEnumerable,
-                          BuiltinMethod.ENUMERABLE_ENUMERATOR.method)),
-                  EnumUtil.overridingMethodDecl(
-                      BuiltinMethod.ENUMERATOR_RESET.method,
-                      NO_PARAMS,
-                      Blocks.toFunctionBlock(
-                          Expressions.call(
-                              inputEnumerator,
-                              BuiltinMethod.ENUMERATOR_RESET.method))),
-                  EnumUtil.overridingMethodDecl(
-                      BuiltinMethod.ENUMERATOR_MOVE_NEXT.method,
-                      NO_PARAMS,
-                      moveNextBody),
-                  EnumUtil.overridingMethodDecl(
-                      BuiltinMethod.ENUMERATOR_CLOSE.method,
-                      NO_PARAMS,
-                      Blocks.toFunctionBlock(
-                          Expressions.call(
-                              inputEnumerator,
-                              BuiltinMethod.ENUMERATOR_CLOSE.method))),
-                  Expressions.methodDecl(
-                      Modifier.PUBLIC,
-                      BRIDGE_METHODS
-                          ? Object.class
-                          : outputJavaType,
-                      "current",
-                      NO_PARAMS,
-                      currentBody)));
+                          inputEnumerator,
+                          BuiltinMethod.ENUMERATOR_CLOSE.method))),
+              Expressions.methodDecl(
+                  Modifier.PUBLIC,
+                  BRIDGE_METHODS
+                      ? Object.class
+                      : outputJavaType,
+                  "current",
+                  NO_PARAMS,
+                  currentBody)));
+      final Expression body =
+          Expressions.new_(enumeratorType, NO_EXPRS, memberDeclarations);
       builder.add(
           Expressions.return_(
               null,
@@ -782,6 +1185,54 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
     public RexProgram getProgram() {
       return program;
     }
+
+    /** Divides the projections into chunks, each small enough to be
+     * implemented in one method. A projection larger than the budget gets a
+     * chunk to itself. */
+    private List<List<RexLocalRef>> chunkProjects() {
+      final List<List<RexLocalRef>> chunks = new ArrayList<List<RexLocalRef>>();
+      List<RexLocalRef> chunk = new ArrayList<RexLocalRef>();
+      int size = 0;
+      for (RexLocalRef project : program.getProjectList()) {
+        final int projectSize = size(program.expandLocalRef(project));
+        if (!chunk.isEmpty() && size + projectSize
+            > EnumerableRelImplementor.METHOD_SIZE_BUDGET) {
+          chunks.add(chunk);
+          chunk = new ArrayList<RexLocalRef>();
+          size = 0;
+        }
+        chunk.add(project);
+        size += projectSize;
+      }
+      if (!chunk.isEmpty()) {
+        chunks.add(chunk);
+      }
+      return chunks;
+    }
+
+    /** Returns the number of nodes in an expression, a rough measure of the
+     * size of the code generated to evaluate it. */
+    private static int size(RexNode node) {
+      final int[] size = {0};
+      node.accept(
+          new RexVisitorImpl<Void>(true) {
+            @Override public Void visitCall(RexCall call) {
+              ++size[0];
+              return super.visitCall(call);
+            }
+
+            @Override public Void visitInputRef(RexInputRef inputRef) {
+              ++size[0];
+              return null;
+            }
+
+            @Override public Void visitLiteral(RexLiteral literal) {
+              ++size[0];
+              return null;
+            }
+          });
+      return size[0];
+    }
   }
 
   public static final EnumerableAggregateRule ENUMERABLE_AGGREGATE_RULE =
@@ -829,7 +1280,8 @@ public RelNode convert(RelNode rel) {
             SqlStdOperatorTable.COUNT,
             SqlStdOperatorTable.MIN,
             SqlStdOperatorTable.MAX,
-            SqlStdOperatorTable.SUM);
+            SqlStdOperatorTable.SUM,
+            UnscaledSumAggFunction.INSTANCE);
 
     public EnumerableAggregateRel(
         RelOptCluster cluster,
@@ -971,18 +1423,40 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       //             return new Object[] {0, 0};
       //         }
       //     };
+      //
+      // An aggregate whose result is a nullable primitive, such as SUM of a
+      // nullable INTEGER column, accumulates into a primitive field rather
+      // than a boxed one. A bit in an extra "long" field, initially all
+      // ones, records that the aggregate has not yet seen a value. There is
+      // one such field for every 64 aggregates.
       final List<Expression> initExpressions =
           new ArrayList<Expression>();
+      final List<Integer> nullBits = new ArrayList<Integer>();
+      int nullBitCount = 0;
       for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
           : Ord.zip(Pair.zip(aggCalls, implementors))) {
+        final Type type = physType.fieldClass(keyArity + ord.i);
+        final Primitive primitive = nullBitPrimitive(ord.e.left, type);
+        if (primitive != null) {
+          nullBits.add(nullBitCount++);
+          initExpressions.add(
+              Expressions.constant(primitive.number(0),
+                  primitive.primitiveClass));
+          continue;
+        }
+        nullBits.add(-1);
         initExpressions.add(
             ord.e.right.implementInit(
                 ord.e.left.getAggregation(),
-                physType.fieldClass(keyArity + ord.i),
+                type,
                 EnumUtil.fieldTypes(typeFactory,
                     inputRowType,
                     ord.e.left.getArgList())));
       }
+      final int nullsField = initExpressions.size();
+      for (int i = 0; i < nullBitCount; i += 64) {
+        initExpressions.add(Expressions.constant(-1L));
+      }
 
       final PhysType accPhysType =
           PhysTypeImpl.of(
@@ -1032,15 +1506,59 @@ public int size() {
                     Expressions.constant(null)));
           }
         }
-        final Statement assign =
-            Expressions.statement(
-                Expressions.assign(
-                    accumulator,
-                    ord.e.right.implementAdd(
-                        ord.e.left.getAggregation(),
-                        Types.castIfNecessary(type, accumulator),
-                        inputPhysType.accessors(
-                            inParameter, ord.e.left.getArgList()))));
+        final List<Expression> arguments =
+            inputPhysType.accessors(inParameter, ord.e.left.getArgList());
+        final Aggregation aggregation = ord.e.left.getAggregation();
+        final int nullBit = nullBits.get(ord.i);
+        final Expression add;
+        if (nullBit >= 0
+            && (aggregation == SqlStdOperatorTable.MIN
+                || aggregation == SqlStdOperatorTable.MAX)) {
+          // The null bit ensures that the primitive accumulator already
+          // holds a value, so MIN and MAX need not check for null.
+          add =
+              Expressions.call(
+                  SqlFunctions.class,
+                  aggregation == SqlStdOperatorTable.MIN
+                      ? "lesser"
+                      : "greater",
+                  accumulator,
+                  RexToLixTranslator.convert(arguments.get(0), type));
+        } else {
+          add =
+              ord.e.right.implementAdd(
+                  aggregation,
+                  Types.castIfNecessary(type, accumulator),
+                  arguments);
+        }
+        Statement assign =
+            Expressions.statement(Expressions.assign(accumulator, add));
+        if (nullBit >= 0) {
+          // if ((acc.nulls & 4L) != 0L) {
+          //   acc.f2 = in.commission.intValue();
+          //   acc.nulls &= -5L;
+          // } else {
+          //   acc.f2 = acc.f2 + in.commission.intValue();
+          // }
+          final Expression nulls =
+              accPhysType.fieldReference(acc_, nullsField + nullBit / 64);
+          final long mask = 1L << nullBit % 64;
+          assign =
+              Expressions.ifThenElse(
+                  isNull(nulls, mask),
+                  Expressions.block(
+                      Expressions.statement(
+                          Expressions.assign(
+                              accumulator,
+                              RexToLixTranslator.convert(
+                                  arguments.get(0), type))),
+                      Expressions.statement(
+                          Expressions.assign(
+                              nulls,
+                              Expressions.and(
+                                  nulls, Expressions.constant(~mask))))),
+                  assign);
+        }
         if (conditions.isEmpty()) {
           builder2.add(assign);
         } else {
@@ -1079,11 +1597,25 @@ public int size() {
       }
       for (Ord<Pair<AggregateCall, RexImpTable.AggImplementor2>> ord
           : Ord.zip(Pair.zip(aggCalls, implementors))) {
-        results.add(
+        final Expression aggResult =
             ord.e.right.implementResult(
                 ord.e.left.getAggregation(),
                 accPhysType.fieldReference(
-                    acc_, ord.i)));
+                    acc_, ord.i));
+        final int nullBit = nullBits.get(ord.i);
+        if (nullBit < 0) {
+          results.add(aggResult);
+        } else {
+          final Type type = physType.fieldClass(keyArity + ord.i);
+          results.add(
+              Expressions.condition(
+                  isNull(
+                      accPhysType.fieldReference(acc_,
+                          nullsField + nullBit / 64),
+                      1L << nullBit % 64),
+                  Types.castIfNecessary(type, RexImpTable.NULL_EXPR),
+                  Expressions.box(aggResult)));
+        }
       }
       final PhysType resultPhysType = physType;
       if (keyArity == 0) {
@@ -1109,12 +1641,7 @@ public int size() {
         builder.add(
             Expressions.return_(
                 null,
-                Expressions.call(
-                    childExp,
-                    BuiltinMethod.DISTINCT.method,
-                    Expressions.<Expression>list()
-                        .appendIfNotNull(
-                            keyPhysType.comparer()))));
+                distinct(childExp, keySelector, keyPhysType)));
       } else {
         final Expression resultSelector =
             builder.append(
@@ -1127,20 +1654,200 @@ public int size() {
         builder.add(
             Expressions.return_(
                 null,
-                Expressions.call(
-                    childExp,
-                    BuiltinMethod.GROUP_BY2.method,
-                    Expressions
-                        .list(
-                            keySelector,
-                            accumulatorInitializer,
-                            accumulatorAdder,
-                            resultSelector)
-                        .appendIfNotNull(
-                            keyPhysType.comparer()))));
+                groupBy(childExp, keySelector, accumulatorInitializer,
+                    accumulatorAdder, resultSelector, keyPhysType)));
       }
       return implementor.result(physType, builder.toBlock());
     }
+
+    /** Returns the primitive type in which to accumulate an aggregate, with
+     * a null bit, or null if the aggregate should be accumulated as is.
+     *
+     * <p>Applies to aggregates whose accumulator, once it has seen one value,
+     * is that value, and whose result is a boxed numeric type.</p> */
+    private static Primitive nullBitPrimitive(AggregateCall aggCall,
+        Type type) {
+      final Aggregation aggregation = aggCall.getAggregation();
+      if (aggregation != SqlStdOperatorTable.SUM
+          && aggregation != UnscaledSumAggFunction.INSTANCE
+          && aggregation != SqlStdOperatorTable.MIN
+          && aggregation != SqlStdOperatorTable.MAX
+          || aggCall.getArgList().size() != 1) {
+        return null;
+      }
+      final Primitive primitive = Primitive.ofBox(type);
+      if (primitive == null) {
+        return null;
+      }
+      switch (primitive) {
+      case BYTE:
+      case SHORT:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return primitive;
+      default:
+        return null;
+      }
+    }
+
+    /** Generates a test of whether an aggregate's null bit is set. */
+    private static Expression isNull(Expression nulls, long mask) {
+      return Expressions.notEqual(
+          Expressions.and(nulls, Expressions.constant(mask)),
+          Expressions.constant(0L));
+    }
+
+    /** Generates an expression that removes duplicate rows from the
+     * input. */
+    protected Expression distinct(Expression childExp, Expression keySelector,
+        PhysType keyPhysType) {
+      return Expressions.call(
+          childExp,
+          BuiltinMethod.DISTINCT.method,
+          Expressions.<Expression>list()
+              .appendIfNotNull(
+                  keyPhysType.comparer()));
+    }
+
+    /** Generates an expression that groups the input and computes an
+     * accumulator for each group. */
+    protected Expression groupBy(Expression childExp, Expression keySelector,
+        Expression accumulatorInitializer, Expression accumulatorAdder,
+        Expression resultSelector, PhysType keyPhysType) {
+      return Expressions.call(
+          childExp,
+          BuiltinMethod.GROUP_BY2.method,
+          Expressions
+              .list(
+                  keySelector,
+                  accumulatorInitializer,
+                  accumulatorAdder,
+                  resultSelector)
+              .appendIfNotNull(
+                  keyPhysType.comparer()));
+    }
+  }
+
+  public static final RelOptRule ENUMERABLE_SORTED_AGGREGATE_RULE =
+      new EnumerableSortedAggregateRule();
+
+  /**
+   * Rule to convert an {@link org.eigenbase.rel.AggregateRel} to an
+   * {@link EnumerableSortedAggregateRel}, requiring its input to be sorted
+   * on the group key.
+   */
+  private static class EnumerableSortedAggregateRule extends RelOptRule {
+    private EnumerableSortedAggregateRule() {
+      super(
+          operand(AggregateRel.class, Convention.NONE, any()),
+          "EnumerableSortedAggregateRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final AggregateRel agg = call.rel(0);
+      if (agg.getGroupSet().isEmpty()) {
+        return;
+      }
+      final List<RelFieldCollation> inputFieldCollations =
+          new ArrayList<RelFieldCollation>();
+      final List<RelFieldCollation> fieldCollations =
+          new ArrayList<RelFieldCollation>();
+      for (int key : BitSets.toIter(agg.getGroupSet())) {
+        inputFieldCollations.add(new RelFieldCollation(key));
+        fieldCollations.add(
+            new RelFieldCollation(fieldCollations.size()));
+      }
+      try {
+        // Output is sorted on the group key, which is its leading fields.
+        call.transformTo(
+            new EnumerableSortedAggregateRel(
+                agg.getCluster(),
+                agg.getTraitSet()
+                    .replace(EnumerableConvention.INSTANCE)
+                    .replace(RelCollationImpl.of(fieldCollations)),
+                convertSorted(
+                    agg.getChild(),
+                    RelCollationImpl.of(inputFieldCollations)),
+                agg.getGroupSet(),
+                agg.getAggCallList()));
+      } catch (InvalidRelException e) {
+        LOGGER.fine(e.toString());
+      }
+    }
+  }
+
+  /** Implementation of {@link org.eigenbase.rel.AggregateRel} in
+   * {@link EnumerableConvention enumerable calling convention} whose input
+   * is sorted on the group key.
+   *
+   * <p>Emits each group as soon as a row with a different key arrives, so
+   * it uses constant memory and returns its first row early. It is cheaper
+   * than {@link EnumerableAggregateRel} if its input is already sorted.</p> */
+  public static class EnumerableSortedAggregateRel
+      extends EnumerableAggregateRel {
+    public EnumerableSortedAggregateRel(
+        RelOptCluster cluster,
+        RelTraitSet traitSet,
+        RelNode child,
+        BitSet groupSet,
+        List<AggregateCall> aggCalls)
+      throws InvalidRelException {
+      super(cluster, traitSet, child, groupSet, aggCalls);
+    }
+
+    @Override public EnumerableSortedAggregateRel copy(RelTraitSet traitSet,
+        RelNode input, BitSet groupSet, List<AggregateCall> aggCalls) {
+      try {
+        return new EnumerableSortedAggregateRel(getCluster(), traitSet, input,
+            groupSet, aggCalls);
+      } catch (InvalidRelException e) {
+        // Semantic error not possible. Must be a bug. Convert to
+        // internal error.
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner) {
+      // No hash table. The cost of sorting the input, if it is not already
+      // sorted, is borne by the sort.
+      final double rowCount = RelMetadataQuery.getRowCount(this) * 0.9d;
+      return planner.getCostFactory().makeCost(rowCount, 0, 0);
+    }
+
+    @Override
+    protected Expression distinct(Expression childExp, Expression keySelector,
+        PhysType keyPhysType) {
+      return Expressions.call(
+          BuiltinMethod.SORTED_DISTINCT.method,
+          childExp,
+          keySelector,
+          comparer(keyPhysType));
+    }
+
+    @Override
+    protected Expression groupBy(Expression childExp, Expression keySelector,
+        Expression accumulatorInitializer, Expression accumulatorAdder,
+        Expression resultSelector, PhysType keyPhysType) {
+      return Expressions.call(
+          BuiltinMethod.SORTED_GROUP_BY.method,
+          childExp,
+          keySelector,
+          accumulatorInitializer,
+          accumulatorAdder,
+          resultSelector,
+          comparer(keyPhysType));
+    }
+
+    private static Expression comparer(PhysType keyPhysType) {
+      final Expression comparer = keyPhysType.comparer();
+      return comparer != null
+          ? comparer
+          : Expressions.constant(null, EqualityComparer.class);
+    }
   }
 
   public static final EnumerableSortRule ENUMERABLE_SORT_RULE =
@@ -1628,6 +2335,89 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
     }
   }
 
+  /** Relational expression that computes its input once, however many
+   * consumers it has, using a {@link net.hydromatic.optiq.runtime.Spool}.
+   *
+   * <p>A plan uses the same spool instance wherever the shared expression
+   * occurs; see {@link #addSpools(RelNode)}. {@link EnumerableRelImplementor}
+   * generates the code for the input only once.</p> */
+  public static class EnumerableSpoolRel
+      extends SingleRel
+      implements EnumerableRel {
+    public EnumerableSpoolRel(
+        RelOptCluster cluster,
+        RelTraitSet traitSet,
+        RelNode child) {
+      super(cluster, traitSet, child);
+      assert getConvention() instanceof EnumerableConvention;
+      assert getConvention() == child.getConvention();
+    }
+
+    @Override
+    public EnumerableSpoolRel copy(
+        RelTraitSet traitSet,
+        List<RelNode> newInputs) {
+      return new EnumerableSpoolRel(
+          getCluster(),
+          traitSet,
+          sole(newInputs));
+    }
+
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+      return implementor.visitSpool(this, pref);
+    }
+
+    /** Returns a plan in which every relational expression that is an input
+     * to more than one consumer (other than a leaf, such as a table scan,
+     * which is cheap to read again) is wrapped in a spool.
+     *
+     * <p>The planner returns the same relational expression object each time
+     * it uses the same subset, so sharing is detected by identity.</p> */
+    public static RelNode addSpools(RelNode rootRel) {
+      final Map<RelNode, Integer> useCounts =
+          new IdentityHashMap<RelNode, Integer>();
+      countUses(rootRel, useCounts);
+      return addSpools(rootRel, useCounts,
+          new IdentityHashMap<RelNode, RelNode>());
+    }
+
+    private static void countUses(RelNode rel,
+        Map<RelNode, Integer> useCounts) {
+      final Integer count = useCounts.get(rel);
+      useCounts.put(rel, count == null ? 1 : count + 1);
+      if (count == null) {
+        for (RelNode input : rel.getInputs()) {
+          countUses(input, useCounts);
+        }
+      }
+    }
+
+    private static RelNode addSpools(RelNode rel,
+        Map<RelNode, Integer> useCounts, Map<RelNode, RelNode> newRels) {
+      RelNode newRel = newRels.get(rel);
+      if (newRel != null) {
+        return newRel;
+      }
+      final List<RelNode> inputs = rel.getInputs();
+      final List<RelNode> newInputs = new ArrayList<RelNode>();
+      for (RelNode input : inputs) {
+        newInputs.add(addSpools(input, useCounts, newRels));
+      }
+      newRel = Util.equalShallow(inputs, newInputs)
+          ? rel
+          : rel.copy(rel.getTraitSet(), newInputs);
+      if (useCounts.get(rel) > 1
+          && !inputs.isEmpty()
+          && newRel instanceof EnumerableRel) {
+        newRel =
+            new EnumerableSpoolRel(newRel.getCluster(), newRel.getTraitSet(),
+                newRel);
+      }
+      newRels.put(rel, newRel);
+      return newRel;
+    }
+  }
+
   public static final EnumerableTableModificationRule
   ENUMERABLE_TABLE_MODIFICATION_RULE =
       new EnumerableTableModificationRule();
@@ -1668,6 +2458,9 @@ public RelNode convert(RelNode rel) {
   public static class EnumerableTableModificationRel
       extends TableModificationRelBase
       implements EnumerableRel {
+    /** Number of rows added to the table's collection at a time. */
+    static final int INSERT_CHUNK_SIZE = 1000;
+
     public EnumerableTableModificationRel(
         RelOptCluster cluster,
         RelTraitSet traits,
@@ -1715,35 +2508,23 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       Expression childExp =
           builder.append(
               "child", result.block);
-      final ParameterExpression collectionParameter =
-          Expressions.parameter(Collection.class,
-              builder.newName("collection"));
       final Expression expression = table.getExpression(ModifiableTable.class);
       assert expression != null; // TODO: user error in validator
       assert ModifiableTable.class.isAssignableFrom(
           Types.toClass(expression.getType())) : expression.getType();
-      builder.add(
-          Expressions.declare(
-              0,
-              collectionParameter,
-              Expressions.call(
-                  expression,
-                  BuiltinMethod.MODIFIABLE_TABLE_GET_MODIFIABLE_COLLECTION
-                      .method)));
-      final Expression countParameter =
-          builder.append(
-              "count",
-              Expressions.call(collectionParameter, "size"),
-              false);
       Expression convertedChildExp;
       if (!getChild().getRowType().equals(getRowType())) {
         final JavaTypeFactory typeFactory =
             (JavaTypeFactory) getCluster().getTypeFactory();
+        final ModifiableTable modifiableTable =
+            table.unwrap(ModifiableTable.class);
         PhysType physType =
             PhysTypeImpl.of(
                 typeFactory,
                 table.getRowType(),
-                JavaRowFormat.CUSTOM);
+                modifiableTable.getElementType() == Object[].class
+                    ? JavaRowFormat.ARRAY
+                    : JavaRowFormat.CUSTOM);
         List<Expression> expressionList = new ArrayList<Expression>();
         final PhysType childPhysType = result.physType;
         final ParameterExpression o_ =
@@ -1764,21 +2545,34 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
       } else {
         convertedChildExp = childExp;
       }
-      builder.add(
-          Expressions.statement(
-              Expressions.call(
-                  convertedChildExp, "into", collectionParameter)));
+      // Hand the rows to the collection in chunks. Collections that write to
+      // a remote store (for example a JDBC table) can send each chunk as a
+      // batch rather than one row at a time. If the rows are computed from
+      // the table, read them all before adding any. If they are computed from
+      // no table (say from parameters), a prepared statement executing a
+      // batch may buffer them and add the rows of the whole batch at once.
+      final Expression chunkSizeExp =
+          Expressions.constant(
+              readsTable(getChild(), table)
+                  ? Integer.MAX_VALUE
+                  : INSERT_CHUNK_SIZE);
       builder.add(
           Expressions.return_(
               null,
               Expressions.call(
                   BuiltinMethod.SINGLETON_ENUMERABLE.method,
-                  Expressions.convert_(
-                      Expressions.subtract(
-                          Expressions.call(
-                              collectionParameter, "size"),
-                          countParameter),
-                      long.class))));
+                  readsTable(getChild(), null)
+                      ? Expressions.call(
+                          BuiltinMethod.INSERT.method,
+                          expression,
+                          convertedChildExp,
+                          chunkSizeExp)
+                      : Expressions.call(
+                          BuiltinMethod.INSERT_OR_BUFFER.method,
+                          implementor.getRootExpression(),
+                          expression,
+                          convertedChildExp,
+                          chunkSizeExp))));
       final PhysType physType =
           PhysTypeImpl.of(
               implementor.getTypeFactory(),
@@ -1787,6 +2581,24 @@ public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
                   ? JavaRowFormat.ARRAY : JavaRowFormat.SCALAR);
       return implementor.result(physType, builder.toBlock());
     }
+
+    /** Returns whether a relational expression reads a given table, or,
+     * if {@code table} is null, any table. */
+    private static boolean readsTable(RelNode rel, RelOptTable table) {
+      final RelOptTable relTable = rel.getTable();
+      if (relTable != null
+          && (table == null
+              || relTable.getQualifiedName().equals(
+                  table.getQualifiedName()))) {
+        return true;
+      }
+      for (RelNode input : rel.getInputs()) {
+        if (readsTable(input, table)) {
+          return true;
+        }
+      }
+      return false;
+    }
   }
 
   public static final EnumerableValuesRule ENUMERABLE_VALUES_RULE =
@@ -2465,6 +3277,323 @@ public void onMatch(RelOptRuleCall call) {
     }
   }
 
+  public static final EnumerableReduceDecimalsRule
+  ENUMERABLE_REDUCE_DECIMALS_RULE =
+      new EnumerableReduceDecimalsRule();
+
+  /** Variant of {@link org.eigenbase.rel.rules.ReduceDecimalsRule} for
+   * {@link EnumerableConvention enumerable calling convention}.
+   *
+   * <p>Rewrites a calc so that arithmetic and comparisons on DECIMAL values
+   * operate on their unscaled values, as {@code long}, rather than allocating
+   * a {@link BigDecimal} for every intermediate result. A value is converted
+   * back to a {@code BigDecimal} only if it is an output of the calc.</p>
+   *
+   * <p>The rule applies only if every such expression is exact and its
+   * operands, scaled to a common scale, have at most 18 digits, so that
+   * the arithmetic cannot overflow a {@code long}. Division, for instance,
+   * would be approximate, and is left as it is.</p> */
+  public static class EnumerableReduceDecimalsRule extends RelOptRule {
+    /** Maximum number of decimal digits that always fit in a {@code long}. */
+    static final int MAX_DIGITS = 18;
+
+    private EnumerableReduceDecimalsRule() {
+      super(operand(EnumerableCalcRel.class, any()));
+    }
+
+    public void onMatch(RelOptRuleCall call) {
+      final EnumerableCalcRel calc = call.rel(0);
+      final RexProgram program = calc.getProgram();
+      if (!RexUtil.requiresDecimalExpansion(program, true)) {
+        return;
+      }
+
+      // Expand each expression into a tree, so that a decimal result that
+      // is the operand of another expression need not be converted to a
+      // BigDecimal and back.
+      final List<RexNode> projects = new ArrayList<RexNode>();
+      for (RexLocalRef ref : program.getProjectList()) {
+        projects.add(program.expandLocalRef(ref));
+      }
+      final RexNode condition =
+          program.getCondition() == null
+              ? null
+              : program.expandLocalRef(program.getCondition());
+      if (!canReduce(projects)
+          || condition != null
+          && !canReduce(Collections.singletonList(condition))) {
+        return;
+      }
+
+      final RexBuilder rexBuilder = calc.getCluster().getRexBuilder();
+      final RexShuttle shuttle =
+          ReduceDecimalsRule.INSTANCE.new DecimalShuttle(rexBuilder);
+      final RexProgramBuilder programBuilder =
+          new RexProgramBuilder(calc.getChild().getRowType(), rexBuilder);
+      for (Pair<RexNode, String> pair
+          : Pair.zip(projects, program.getOutputRowType().getFieldNames())) {
+        programBuilder.addProject(pair.left.accept(shuttle), pair.right);
+      }
+      if (condition != null) {
+        programBuilder.addCondition(condition.accept(shuttle));
+      }
+      final RexProgram newProgram = programBuilder.getProgram();
+      if (RexUtil.requiresDecimalExpansion(newProgram, true)) {
+        // Some expression could not be rewritten.
+        return;
+      }
+      call.transformTo(
+          new EnumerableCalcRel(
+              calc.getCluster(),
+              calc.getTraitSet(),
+              calc.getChild(),
+              newProgram.getOutputRowType(),
+              newProgram,
+              calc.getCollationList()));
+    }
+
+    /** Returns whether every call in a list of expressions that operates on
+     * DECIMAL values can be rewritten to operate on {@code long} values. */
+    private static boolean canReduce(List<RexNode> nodes) {
+      try {
+        for (RexNode node : nodes) {
+          node.accept(
+              new RexVisitorImpl<Void>(true) {
+                @Override public Void visitCall(RexCall call) {
+                  if (RexUtil.requiresDecimalExpansion(call, false)
+                      && !canReduce(call)) {
+                    throw Util.FoundOne.NULL;
+                  }
+                  return super.visitCall(call);
+                }
+              });
+        }
+        return true;
+      } catch (Util.FoundOne e) {
+        return false;
+      }
+    }
+
+    private static boolean canReduce(RexCall call) {
+      final RelDataType type = call.getType();
+      final List<RexNode> operands = call.getOperands();
+      switch (call.getKind()) {
+      case PLUS:
+      case MINUS:
+        return fits(operands, type.getScale());
+      case TIMES:
+        // The product of the unscaled values has as many digits as the
+        // operands combined.
+        return fits(operands, 0)
+            && operands.get(0).getType().getPrecision()
+               + operands.get(1).getType().getPrecision() <= MAX_DIGITS;
+      case EQUALS:
+      case NOT_EQUALS:
+      case LESS_THAN:
+      case LESS_THAN_OR_EQUAL:
+      case GREATER_THAN:
+      case GREATER_THAN_OR_EQUAL:
+        int scale = 0;
+        for (RexNode operand : operands) {
+          scale = Math.max(scale, operand.getType().getScale());
+        }
+        return fits(operands, scale);
+      case MINUS_PREFIX:
+        return fits(operands, 0);
+      case CAST:
+        // Only casts to DECIMAL are exact; a cast from DECIMAL to INTEGER,
+        // say, rounds rather than truncates.
+        return SqlTypeUtil.isDecimal(type)
+            && type.getPrecision() <= MAX_DIGITS
+            && fits(operands, type.getScale());
+      case CASE:
+        if (!SqlTypeUtil.isDecimal(type)
+            || type.getPrecision() > MAX_DIGITS) {
+          return false;
+        }
+        // Check the values, not the conditions.
+        for (Ord<RexNode> operand : Ord.zip(operands)) {
+          if ((operand.i % 2 == 1 || operand.i == operands.size() - 1)
+              && !fits(Collections.singletonList(operand.e),
+                  type.getScale())) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return (call.getOperator() == SqlStdOperatorTable.ABS
+            || call.getOperator() == SqlStdOperatorTable.IS_NOT_NULL)
+            && fits(operands, 0);
+      }
+    }
+
+    /** Returns whether each of a list of operands is an exact numeric value
+     * whose unscaled value, at the given scale or its own scale if greater,
+     * fits in a {@code long}. */
+    private static boolean fits(List<RexNode> operands, int scale) {
+      for (RexNode operand : operands) {
+        final RelDataType type = operand.getType();
+        if (!SqlTypeUtil.isExactNumeric(type)) {
+          return false;
+        }
+        if (type.getPrecision() - type.getScale()
+            + Math.max(scale, type.getScale()) > MAX_DIGITS) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  public static final EnumerableReduceDecimalSumRule
+  ENUMERABLE_REDUCE_DECIMAL_SUM_RULE =
+      new EnumerableReduceDecimalSumRule();
+
+  /** Rule that rewrites an aggregate so that it sums DECIMAL values as
+   * their unscaled values, as {@code long}, rather than adding a
+   * {@link BigDecimal} for every row.
+   *
+   * <p>A calc below the aggregate converts each argument of a SUM to its
+   * unscaled value, and a calc above converts each sum back to a DECIMAL,
+   * once per group. If the argument is itself a DECIMAL expression that
+   * {@link EnumerableReduceDecimalsRule} then reduces, no
+   * {@code BigDecimal} is created for a row at all.</p>
+   *
+   * <p>The rule applies to SUM of a DECIMAL with at most 18 digits. The sum
+   * has the same type as its argument, and is not checked against that
+   * precision, as the sum of {@code BigDecimal} values is not; but it
+   * throws if it would overflow a {@code long}.</p> */
+  public static class EnumerableReduceDecimalSumRule extends RelOptRule {
+    private EnumerableReduceDecimalSumRule() {
+      super(operand(EnumerableAggregateRel.class, any()));
+    }
+
+    public void onMatch(RelOptRuleCall call) {
+      final EnumerableAggregateRel aggregate = call.rel(0);
+      final RelNode child = aggregate.getChild();
+      final RexBuilder rexBuilder = aggregate.getCluster().getRexBuilder();
+      final RelDataTypeFactory typeFactory = rexBuilder.getTypeFactory();
+      final List<RelDataTypeField> fields = child.getRowType().getFieldList();
+
+      // Bottom program: the fields of the child, then the unscaled value of
+      // each argument of a rewritten SUM.
+      final List<RexNode> bottomProjects = new ArrayList<RexNode>();
+      for (RelDataTypeField field : fields) {
+        bottomProjects.add(rexBuilder.makeInputRef(child, field.getIndex()));
+      }
+      final List<AggregateCall> aggCalls = new ArrayList<AggregateCall>();
+      final BitSet reduced = new BitSet();
+      for (Ord<AggregateCall> aggCall : Ord.zip(aggregate.getAggCallList())) {
+        if (canReduce(aggCall.e, fields)) {
+          final int arg = aggCall.e.getArgList().get(0);
+          final RelDataType type =
+              typeFactory.createTypeWithNullability(
+                  typeFactory.createSqlType(SqlTypeName.BIGINT),
+                  fields.get(arg).getType().isNullable());
+          aggCalls.add(
+              new AggregateCall(UnscaledSumAggFunction.INSTANCE, false,
+                  ImmutableList.of(bottomProjects.size()), type,
+                  aggCall.e.name));
+          bottomProjects.add(
+              rexBuilder.makeReinterpretCast(type,
+                  rexBuilder.makeInputRef(child, arg),
+                  rexBuilder.makeLiteral(false)));
+          reduced.set(aggCall.i);
+        } else {
+          aggCalls.add(aggCall.e);
+        }
+      }
+      if (reduced.isEmpty()) {
+        return;
+      }
+
+      RelNode input = child;
+      RexProgram bottomProgram =
+          RexProgram.create(child.getRowType(), bottomProjects, null,
+              (List<String>) null, rexBuilder);
+      if (child instanceof EnumerableCalcRel) {
+        final EnumerableCalcRel calc = (EnumerableCalcRel) child;
+        input = calc.getChild();
+        bottomProgram =
+            RexProgramBuilder.mergePrograms(bottomProgram, calc.getProgram(),
+                rexBuilder);
+      }
+      final EnumerableCalcRel bottomCalc =
+          new EnumerableCalcRel(aggregate.getCluster(), child.getTraitSet(),
+              input, bottomProgram.getOutputRowType(), bottomProgram,
+              Collections.<RelCollation>emptyList());
+      final EnumerableAggregateRel newAggregate =
+          aggregate.copy(aggregate.getTraitSet(), bottomCalc,
+              aggregate.getGroupSet(), aggCalls);
+
+      // Top program: the group keys, and each aggregate, converting reduced
+      // sums back to DECIMAL.
+      final int groupCount = aggregate.getGroupSet().cardinality();
+      final List<RexNode> topProjects = new ArrayList<RexNode>();
+      for (int i = 0; i < groupCount; i++) {
+        topProjects.add(rexBuilder.makeInputRef(newAggregate, i));
+      }
+      for (Ord<AggregateCall> aggCall : Ord.zip(aggregate.getAggCallList())) {
+        final RexNode ref =
+            rexBuilder.makeInputRef(newAggregate, groupCount + aggCall.i);
+        topProjects.add(
+            reduced.get(aggCall.i)
+                ? rexBuilder.makeReinterpretCast(aggCall.e.type, ref,
+                    rexBuilder.makeLiteral(false))
+                : ref);
+      }
+      final RexProgram topProgram =
+          RexProgram.create(newAggregate.getRowType(), topProjects, null,
+              aggregate.getRowType(), rexBuilder);
+      call.transformTo(
+          new EnumerableCalcRel(aggregate.getCluster(),
+              aggregate.getTraitSet(), newAggregate, aggregate.getRowType(),
+              topProgram, Collections.<RelCollation>emptyList()));
+    }
+
+    /** Returns whether an aggregate call is a SUM of a DECIMAL whose
+     * unscaled value fits in a {@code long}. */
+    private static boolean canReduce(AggregateCall aggCall,
+        List<RelDataTypeField> fields) {
+      if (aggCall.getAggregation() != SqlStdOperatorTable.SUM
+          || aggCall.isDistinct()
+          || aggCall.getArgList().size() != 1) {
+        return false;
+      }
+      final RelDataType type =
+          fields.get(aggCall.getArgList().get(0)).getType();
+      return SqlTypeUtil.isDecimal(type)
+          && type.getPrecision() <= EnumerableReduceDecimalsRule.MAX_DIGITS;
+    }
+  }
+
+  /** Aggregate function that sums the unscaled values of DECIMAL values as a
+   * BIGINT, and throws rather than overflow. Created by
+   * {@link EnumerableReduceDecimalSumRule}; not available in SQL. */
+  public static class UnscaledSumAggFunction extends SqlAggFunction {
+    public static final UnscaledSumAggFunction INSTANCE =
+        new UnscaledSumAggFunction();
+
+    private UnscaledSumAggFunction() {
+      super(
+          "$SUM_UNSCALED",
+          SqlKind.OTHER_FUNCTION,
+          ReturnTypes.ARG0,
+          null,
+          OperandTypes.NUMERIC,
+          SqlFunctionCategory.NUMERIC);
+    }
+
+    public List<RelDataType> getParameterTypes(
+        RelDataTypeFactory typeFactory) {
+      return ImmutableList.of(getReturnType(typeFactory));
+    }
+
+    public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+      return typeFactory.createSqlType(SqlTypeName.BIGINT);
+    }
+  }
+
   public interface AggCallContext {
     BlockBuilder builder();
     Expression index();
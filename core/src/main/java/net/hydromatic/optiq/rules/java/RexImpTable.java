@@ -23,6 +23,7 @@
 import net.hydromatic.optiq.BuiltinMethod;
 import net.hydromatic.optiq.Function;
 import net.hydromatic.optiq.impl.ScalarFunctionImpl;
+import net.hydromatic.optiq.runtime.Like;
 import net.hydromatic.optiq.runtime.SqlFunctions;
 
 import org.eigenbase.rel.Aggregation;
@@ -40,6 +41,7 @@
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.regex.Pattern;
 
 import static net.hydromatic.linq4j.expressions.ExpressionType.*;
 
@@ -147,13 +149,13 @@ public Expression implement(RexToLixTranslator translator,
     map.put(IS_NOT_FALSE, new IsXxxImplementor(false, true));
 
     // LIKE and SIMILAR
-    final MethodImplementor likeImplementor =
-        new MethodImplementor(BuiltinMethod.LIKE.method);
+    final NotNullImplementor likeImplementor =
+        new LikeImplementor(BuiltinMethod.LIKE.method, false);
     defineImplementor(LIKE, NullPolicy.STRICT, likeImplementor, false);
     defineImplementor(NOT_LIKE, NullPolicy.STRICT,
         NotImplementor.of(likeImplementor), false);
-    final MethodImplementor similarImplementor =
-        new MethodImplementor(BuiltinMethod.SIMILAR.method);
+    final NotNullImplementor similarImplementor =
+        new LikeImplementor(BuiltinMethod.SIMILAR.method, true);
     defineImplementor(SIMILAR_TO, NullPolicy.STRICT, similarImplementor, false);
     defineImplementor(NOT_SIMILAR_TO, NullPolicy.STRICT,
         NotImplementor.of(similarImplementor), false);
@@ -195,6 +197,8 @@ public Expression implement(RexToLixTranslator translator,
     agg2Map.put(COUNT, new CountImplementor2());
     agg2Map.put(SUM, new SumImplementor2());
     agg2Map.put(SUM0, new SumImplementor2());
+    agg2Map.put(JavaRules.UnscaledSumAggFunction.INSTANCE,
+        new UnscaledSumImplementor2());
     final MinMaxImplementor2 minMax =
         new MinMaxImplementor2();
     agg2Map.put(MIN, minMax);
@@ -852,6 +856,24 @@ public Expression implementResult(
     }
   }
 
+  /** Implementor for {@link JavaRules.UnscaledSumAggFunction}, which sums
+   * the unscaled values of DECIMAL values in a {@code long} and throws
+   * rather than overflow. */
+  static class UnscaledSumImplementor2 extends SumImplementor2 {
+    @Override public Expression implementAdd(
+        Aggregation aggregation,
+        Expression accumulator,
+        List<Expression> arguments) {
+      assert arguments.size() == 1;
+      return Types.castIfNecessary(
+          accumulator.type,
+          Expressions.call(
+              BuiltinMethod.PLUS_EXACT.method,
+              RexToLixTranslator.convert(accumulator, long.class),
+              RexToLixTranslator.convert(arguments.get(0), long.class)));
+    }
+  }
+
   static class MinMaxImplementor2 implements AggImplementor2 {
     public boolean callOnNull() {
       return false;
@@ -974,6 +996,138 @@ public Expression implement(
     }
   }
 
+  /** Implementor for the {@code LIKE} and {@code SIMILAR TO} operators.
+   *
+   * <p>If the pattern is a literal, work that would otherwise be done for
+   * each row is done once, when code is generated. A {@code LIKE} pattern
+   * whose only wildcards are {@code %} at its start or end becomes a call to
+   * {@link String#equals}, {@link String#startsWith},
+   * {@link String#endsWith} or {@link String#contains}. Any other literal
+   * pattern is compiled once, into a static field of the generated class.
+   * Patterns that are not literals are compiled when the query is executed,
+   * via a cache.</p> */
+  private static class LikeImplementor implements NotNullImplementor {
+    private final Method method;
+    private final boolean similar;
+
+    LikeImplementor(Method method, boolean similar) {
+      this.method = method;
+      this.similar = similar;
+    }
+
+    public Expression implement(
+        RexToLixTranslator translator,
+        RexCall call,
+        List<Expression> translatedOperands) {
+      final List<RexNode> operands = call.getOperands();
+      final String pattern = stringValue(operands.get(1));
+      final String escape =
+          operands.size() > 2 ? stringValue(operands.get(2)) : null;
+      if (pattern == null || operands.size() > 2 && escape == null) {
+        return Expressions.call(method, translatedOperands);
+      }
+      final Expression operand = translatedOperands.get(0);
+      if (!similar) {
+        final Expression expression = simpleLike(operand, pattern, escape);
+        if (expression != null) {
+          return expression;
+        }
+      }
+      if (translator.implementor == null) {
+        return Expressions.call(method, translatedOperands);
+      }
+      final String regex;
+      try {
+        regex = similar
+            ? Like.sqlToRegexSimilar(pattern, escape)
+            : Like.sqlToRegexLike(pattern, escape);
+      } catch (RuntimeException e) {
+        // Invalid pattern. Report the error when the query is executed.
+        return Expressions.call(method, translatedOperands);
+      }
+      final ParameterExpression pattern_ =
+          translator.implementor.declareStatic(Pattern.class, "pattern",
+              Expressions.call(BuiltinMethod.LIKE_COMPILE.method,
+                  Expressions.constant(regex)));
+      return Expressions.call(
+          Expressions.call(pattern_, BuiltinMethod.PATTERN_MATCHER.method,
+              operand),
+          BuiltinMethod.MATCHER_MATCHES.method);
+    }
+
+    /** Returns the value of a character literal, or null. */
+    private static String stringValue(RexNode node) {
+      if (node instanceof RexLiteral) {
+        final Object value = ((RexLiteral) node).getValue2();
+        if (value instanceof String) {
+          return (String) value;
+        }
+      }
+      return null;
+    }
+
+    /** Generates a match of a {@code LIKE} pattern that contains no
+     * wildcards except {@code %} at its start or end, without using a
+     * regular expression; returns null if the pattern is not of that
+     * form. */
+    private static Expression simpleLike(Expression operand, String pattern,
+        String escape) {
+      final char escapeChar;
+      if (escape == null) {
+        escapeChar = 0;
+      } else if (escape.length() == 1
+          && escape.charAt(0) != '%'
+          && escape.charAt(0) != '_') {
+        escapeChar = escape.charAt(0);
+      } else {
+        return null;
+      }
+      final StringBuilder buf = new StringBuilder();
+      boolean leading = false;
+      boolean trailing = false;
+      int i = 0;
+      while (i < pattern.length() && pattern.charAt(i) == '%') {
+        leading = true;
+        ++i;
+      }
+      for (; i < pattern.length(); i++) {
+        final char c = pattern.charAt(i);
+        if (c == '%') {
+          trailing = true;
+        } else if (trailing || c == '_') {
+          return null;
+        } else if (c == escapeChar) {
+          if (i + 1 == pattern.length()) {
+            return null;
+          }
+          final char next = pattern.charAt(++i);
+          if (next != '%' && next != '_' && next != escapeChar) {
+            return null;
+          }
+          buf.append(next);
+        } else {
+          buf.append(c);
+        }
+      }
+      final Expression literal = Expressions.constant(buf.toString());
+      if (buf.length() == 0 && (leading || trailing)) {
+        return TRUE_EXPR;
+      } else if (leading && trailing) {
+        return Expressions.call(operand, BuiltinMethod.STRING_CONTAINS.method,
+            literal);
+      } else if (leading) {
+        return Expressions.call(operand,
+            BuiltinMethod.STRING_ENDS_WITH.method, literal);
+      } else if (trailing) {
+        return Expressions.call(operand,
+            BuiltinMethod.STRING_STARTS_WITH.method, literal);
+      } else {
+        return Expressions.call(operand, BuiltinMethod.STRING_EQUALS.method,
+            literal);
+      }
+    }
+  }
+
   private static class MethodNameImplementor implements NotNullImplementor {
     private final String methodName;
 
@@ -1272,12 +1426,50 @@ public Expression implement(
     }
   }
 
+  /** Implementor for REINTERPRET, which converts between a DECIMAL value and
+   * its unscaled value as a BIGINT; for example, 12.34 as DECIMAL(4, 2) and
+   * 1234. Other reinterpretations (such as between an INTERVAL and its
+   * value) do not change the representation. */
   private static class ReinterpretImplementor implements NotNullImplementor {
     public Expression implement(
         RexToLixTranslator translator,
         RexCall call,
         List<Expression> translatedOperands) {
-      assert call.getOperands().size() == 1;
+      final RexNode operand = call.getOperands().get(0);
+      final RelDataType fromType = operand.getType();
+      final RelDataType toType = call.getType();
+      final boolean fromDecimal =
+          fromType.getSqlTypeName() == SqlTypeName.DECIMAL;
+      final boolean toDecimal =
+          toType.getSqlTypeName() == SqlTypeName.DECIMAL;
+      if (fromDecimal && !toDecimal) {
+        if (operand instanceof RexLiteral
+            && !RexLiteral.isNullLiteral(operand)) {
+          return Expressions.constant(
+              SqlFunctions.toUnscaledLong(
+                  (BigDecimal) ((RexLiteral) operand).getValue(),
+                  fromType.getScale()));
+        }
+        return Expressions.call(
+            BuiltinMethod.TO_UNSCALED_LONG.method,
+            translatedOperands.get(0),
+            Expressions.constant(fromType.getScale()));
+      }
+      if (toDecimal && !fromDecimal) {
+        final Expression value =
+            RexToLixTranslator.convert(translatedOperands.get(0), long.class);
+        if (RexUtil.canReinterpretOverflow(call)) {
+          return Expressions.call(
+              BuiltinMethod.FROM_UNSCALED_LONG_CHECKED.method,
+              value,
+              Expressions.constant(toType.getPrecision()),
+              Expressions.constant(toType.getScale()));
+        }
+        return Expressions.call(
+            BuiltinMethod.FROM_UNSCALED_LONG.method,
+            value,
+            Expressions.constant(toType.getScale()));
+      }
       return translatedOperands.get(0);
     }
   }
@@ -64,6 +64,9 @@ public class RexToLixTranslator {
   private final RexToLixTranslator.InputGetter inputGetter;
   private final BlockBuilder list;
   private final Map<RexNode, Boolean> exprNullableMap;
+  /** Implementor of the enclosing relational expression, which can declare
+   * members of the generated class; or null. */
+  final EnumerableRelImplementor implementor;
 
   private static Method findMethod(
       Class<?> clazz, String name, Class... parameterTypes) {
@@ -78,11 +81,12 @@ private RexToLixTranslator(
       RexProgram program,
       JavaTypeFactory typeFactory,
       InputGetter inputGetter,
-      BlockBuilder list) {
+      BlockBuilder list,
+      EnumerableRelImplementor implementor) {
     this(
         program, typeFactory, inputGetter, list,
         Collections.<RexNode, Boolean>emptyMap(),
-        new RexBuilder(typeFactory));
+        new RexBuilder(typeFactory), implementor);
   }
 
   private RexToLixTranslator(
@@ -91,13 +95,15 @@ private RexToLixTranslator(
       InputGetter inputGetter,
       BlockBuilder list,
       Map<RexNode, Boolean> exprNullableMap,
-      RexBuilder builder) {
+      RexBuilder builder,
+      EnumerableRelImplementor implementor) {
     this.program = program;
     this.typeFactory = typeFactory;
     this.inputGetter = inputGetter;
     this.list = list;
     this.exprNullableMap = exprNullableMap;
     this.builder = builder;
+    this.implementor = implementor;
   }
 
   /**
@@ -115,8 +121,44 @@ public static List<Expression> translateProjects(
       JavaTypeFactory typeFactory,
       BlockBuilder list,
       InputGetter inputGetter) {
-    return new RexToLixTranslator(program, typeFactory, inputGetter, list)
-        .translateList(program.getProjectList());
+    return translateProjects(program, typeFactory, list, inputGetter, null);
+  }
+
+  /**
+   * Translates a {@link RexProgram} to a sequence of expressions and
+   * declarations, allowing the translation to declare members, such as
+   * constants that are expensive to create, in the generated class.
+   *
+   * @param program Program to be translated
+   * @param typeFactory Type factory
+   * @param list List of statements, populated with declarations
+   * @param inputGetter Generates expressions for inputs
+   * @param implementor Implementor of the relational expression, or null
+   * @return Sequence of expressions, optional condition
+   */
+  public static List<Expression> translateProjects(
+      RexProgram program,
+      JavaTypeFactory typeFactory,
+      BlockBuilder list,
+      InputGetter inputGetter,
+      EnumerableRelImplementor implementor) {
+    return translateProjects(program, typeFactory, list, inputGetter,
+        implementor, program.getProjectList());
+  }
+
+  /** Translates some of the projections of a {@link RexProgram}. The
+   * projections are translated independently of any others in the program,
+   * so that each subset can be placed in a separate method. */
+  public static List<Expression> translateProjects(
+      RexProgram program,
+      JavaTypeFactory typeFactory,
+      BlockBuilder list,
+      InputGetter inputGetter,
+      EnumerableRelImplementor implementor,
+      List<RexLocalRef> projects) {
+    return new RexToLixTranslator(program, typeFactory, inputGetter, list,
+        implementor)
+        .translateList(projects);
   }
 
   Expression translate(RexNode expr) {
@@ -464,11 +506,24 @@ public static Expression translateCondition(
       JavaTypeFactory typeFactory,
       BlockBuilder list,
       InputGetter inputGetter) {
+    return translateCondition(program, typeFactory, list, inputGetter, null);
+  }
+
+  /** Translates the condition of a {@link RexProgram}, allowing the
+   * translation to declare members, such as constants that are expensive to
+   * create, in the generated class. {@code implementor} may be null. */
+  public static Expression translateCondition(
+      RexProgram program,
+      JavaTypeFactory typeFactory,
+      BlockBuilder list,
+      InputGetter inputGetter,
+      EnumerableRelImplementor implementor) {
     if (program.getCondition() == null) {
       return RexImpTable.TRUE_EXPR;
     }
     final RexToLixTranslator translator =
-        new RexToLixTranslator(program, typeFactory, inputGetter, list);
+        new RexToLixTranslator(program, typeFactory, inputGetter, list,
+            implementor);
     return translator.translate(
         program.getCondition(),
         RexImpTable.NullAs.FALSE);
@@ -710,7 +765,7 @@ public RexToLixTranslator setNullable(RexNode e, boolean nullable) {
         new HashMap<RexNode, Boolean>(exprNullableMap);
     map.put(e, nullable);
     return new RexToLixTranslator(
-        program, typeFactory, inputGetter, list, map, builder);
+        program, typeFactory, inputGetter, list, map, builder, implementor);
   }
 
   public RelDataType nullifyType(RelDataType type, boolean nullable) {
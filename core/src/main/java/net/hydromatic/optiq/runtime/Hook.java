@@ -43,10 +43,23 @@ public enum Hook {
   /** Called when a constant expression is being reduced. */
   EXPRESSION_REDUCER,
 
+  /** Called when the planner has chosen which materializations to try to
+   * use, with an {@code int} array containing the number of
+   * materializations, the number that use a table in the query, and the
+   * number of those rejected because their signature shows that they cannot
+   * answer the query. */
+  MATERIALIZATION_FILTER,
+
   /** Called with a query that has been generated to send to a back-end system.
    * The query might be a SQL string (for the JDBC adapter), a list of Mongo
    * pipeline expressions (for the MongoDB adapter), et cetera. */
-  QUERY_PLAN;
+  QUERY_PLAN,
+
+  /** Called when a scan of a cloned table has used zone maps to skip blocks
+   * of rows, with an {@code int} array containing the number of blocks, the
+   * number of blocks skipped, the number of rows, and the number of rows
+   * skipped. */
+  ZONE_MAP_SCAN;
 
   private final List<Function1<Object, Object>> handlers =
       new CopyOnWriteArrayList<Function1<Object, Object>>();
@@ -0,0 +1,81 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Linq4j;
+
+import net.hydromatic.optiq.ModifiableTable;
+
+import java.util.*;
+
+/**
+ * Rows to be inserted into tables, collected while a prepared statement
+ * executes a batch of parameter values.
+ *
+ * <p>Each execution of a statement such as
+ * {@code INSERT INTO t VALUES (?, ?)} adds its rows to the buffer rather than
+ * to the table. When the batch is complete, {@link #flush()} adds the rows
+ * of each table in chunks, as a single statement would, so a table that
+ * writes to a remote store (for example a JDBC table) receives them in a few
+ * large batches rather than one round trip per row.</p>
+ *
+ * <p>The buffer is available to generated code as the
+ * {@link net.hydromatic.optiq.DataContext.Variable#INSERT_BUFFER} variable.
+ * Only statements whose rows do not come from a table use it, because a
+ * later statement in the batch might otherwise read a table before the
+ * rows of an earlier statement have been added to it.</p>
+ */
+public class InsertBuffer {
+  private final Map<ModifiableTable, List<Object>> rowsByTable =
+      new LinkedHashMap<ModifiableTable, List<Object>>();
+  private final Map<ModifiableTable, Integer> chunkSizes =
+      new HashMap<ModifiableTable, Integer>();
+
+  /** Adds rows that are to be inserted into a table, and returns the number
+   * of rows. */
+  public long add(ModifiableTable table, Enumerable<?> rows, int chunkSize) {
+    List<Object> list = rowsByTable.get(table);
+    if (list == null) {
+      list = new ArrayList<Object>();
+      rowsByTable.put(table, list);
+      chunkSizes.put(table, chunkSize);
+    }
+    final int size = list.size();
+    //noinspection unchecked
+    ((Enumerable<Object>) rows).into(list);
+    return list.size() - size;
+  }
+
+  /** Inserts the buffered rows into their tables, and empties the buffer. */
+  public void flush() {
+    try {
+      for (Map.Entry<ModifiableTable, List<Object>> entry
+          : rowsByTable.entrySet()) {
+        Utilities.insert(entry.getKey(),
+            Linq4j.asEnumerable(entry.getValue()),
+            chunkSizes.get(entry.getKey()));
+      }
+    } finally {
+      rowsByTable.clear();
+      chunkSizes.clear();
+    }
+  }
+}
+
+// End InsertBuffer.java
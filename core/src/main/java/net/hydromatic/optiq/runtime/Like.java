@@ -17,12 +17,19 @@
 */
 package net.hydromatic.optiq.runtime;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
 /**
  * Utilities for converting SQL {@code LIKE} and {@code SIMILAR} operators
  * to regular expressions.
  */
 public class Like {
-  private static final String JAVA_REGEX_SPECIALS = "[]()|^-+*?{}$\\";
+  private static final String JAVA_REGEX_SPECIALS = "[]()|^-+*?{}$\\.";
   private static final String SQL_SIMILAR_SPECIALS = "[]()|^-+*_%?{}";
   private static final String [] REG_CHAR_CLASSES = {
     "[:ALPHA:]", "\\p{Alpha}",
@@ -41,14 +48,55 @@ public class Like {
     "[:alnum:]", "\\p{Alnum}"
   };
 
+  /** Maximum number of patterns in {@link #PATTERN_CACHE}. */
+  private static final int PATTERN_CACHE_SIZE = 256;
+
+  /** Compiled patterns of {@code LIKE} and {@code SIMILAR} calls whose
+   * pattern is not known until the query is executed. Bounded, so that a
+   * query whose pattern differs on every row cannot exhaust memory. */
+  private static final Cache<List<Object>, Pattern> PATTERN_CACHE =
+      CacheBuilder.newBuilder().maximumSize(PATTERN_CACHE_SIZE).build();
+
   private Like() {
   }
 
+  /** Compiles a regular expression that has been translated from a SQL
+   * pattern. As in SQL, a wildcard matches any character, including a line
+   * terminator. */
+  public static Pattern compile(String regex) {
+    return Pattern.compile(regex, Pattern.DOTALL);
+  }
+
+  /** Returns a compiled regular expression for a SQL {@code LIKE}
+   * pattern, with optional escape string, using a cache. */
+  public static Pattern likePattern(String sqlPattern, String escape) {
+    final List<Object> key = Arrays.<Object>asList("LIKE", sqlPattern, escape);
+    Pattern pattern = PATTERN_CACHE.getIfPresent(key);
+    if (pattern == null) {
+      pattern = compile(sqlToRegexLike(sqlPattern, escape));
+      PATTERN_CACHE.put(key, pattern);
+    }
+    return pattern;
+  }
+
+  /** Returns a compiled regular expression for a SQL {@code SIMILAR}
+   * pattern, with optional escape string, using a cache. */
+  public static Pattern similarPattern(String sqlPattern, String escape) {
+    final List<Object> key =
+        Arrays.<Object>asList("SIMILAR", sqlPattern, escape);
+    Pattern pattern = PATTERN_CACHE.getIfPresent(key);
+    if (pattern == null) {
+      pattern = compile(sqlToRegexSimilar(sqlPattern, escape));
+      PATTERN_CACHE.put(key, pattern);
+    }
+    return pattern;
+  }
+
   /**
    * Translates a SQL LIKE pattern to Java regex pattern, with optional
    * escape string.
    */
-  static String sqlToRegexLike(
+  public static String sqlToRegexLike(
       String sqlPattern,
       CharSequence escapeStr) {
     final char escapeChar;
@@ -209,7 +257,7 @@ private static int sqlSimilarRewriteCharEnumeration(
    * Translates a SQL SIMILAR pattern to Java regex pattern, with optional
    * escape string.
    */
-  static String sqlToRegexSimilar(
+  public static String sqlToRegexSimilar(
       String sqlPattern,
       CharSequence escapeStr) {
     final char escapeChar;
@@ -0,0 +1,189 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inner join of two inputs that are sorted on their join keys.
+ *
+ * <p>Unlike a hash join, a merge join does not read either of its inputs
+ * into memory, except for the rows of the inner input that share a key.
+ * Its output is sorted on the keys of the outer input.</p>
+ *
+ * <p>Keys must be {@link Comparable}; composite keys are
+ * {@link FlatLists.ComparableList}s. Rows whose key is null, or contains a
+ * null, do not match any row.</p>
+ */
+public class MergeJoin {
+  private MergeJoin() {
+  }
+
+  /** Joins two inputs, each sorted on its key. */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      final Enumerable<TSource> outer, final Enumerable<TInner> inner,
+      final Function1<TSource, TKey> outerKeySelector,
+      final Function1<TInner, TKey> innerKeySelector,
+      final Function2<TSource, TInner, TResult> resultSelector) {
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        return new MergeJoinEnumerator<TSource, TInner, TKey, TResult>(
+            outer.enumerator(), inner.enumerator(), outerKeySelector,
+            innerKeySelector, resultSelector);
+      }
+    };
+  }
+
+  private static boolean isNull(Object key) {
+    if (key == null) {
+      return true;
+    }
+    if (key instanceof List) {
+      for (Object o : (List) key) {
+        if (o == null) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int compare(Object key0, Object key1) {
+    //noinspection unchecked
+    return ((Comparable) key0).compareTo(key1);
+  }
+
+  /** Enumerator that merges two sorted inputs. */
+  private static class MergeJoinEnumerator<TSource, TInner, TKey, TResult>
+      implements Enumerator<TResult> {
+    private final Enumerator<TSource> outers;
+    private final Enumerator<TInner> inners;
+    private final Function1<TSource, TKey> outerKeySelector;
+    private final Function1<TInner, TKey> innerKeySelector;
+    private final Function2<TSource, TInner, TResult> resultSelector;
+
+    /** Inner rows whose key is {@link #groupKey}. */
+    private final List<TInner> group = new ArrayList<TInner>();
+    private TKey groupKey;
+
+    /** Inner row that has been read but whose key is greater than the
+     * current group; null if there is none. */
+    private TInner nextInner;
+    private TKey nextInnerKey;
+    private boolean innerDone;
+
+    private TSource outer;
+    private int i;
+    private TResult current;
+
+    MergeJoinEnumerator(Enumerator<TSource> outers, Enumerator<TInner> inners,
+        Function1<TSource, TKey> outerKeySelector,
+        Function1<TInner, TKey> innerKeySelector,
+        Function2<TSource, TInner, TResult> resultSelector) {
+      this.outers = outers;
+      this.inners = inners;
+      this.outerKeySelector = outerKeySelector;
+      this.innerKeySelector = innerKeySelector;
+      this.resultSelector = resultSelector;
+    }
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      for (;;) {
+        if (outer != null && i < group.size()) {
+          current = resultSelector.apply(outer, group.get(i++));
+          return true;
+        }
+        if (!outers.moveNext()) {
+          outer = null;
+          return false;
+        }
+        outer = outers.current();
+        i = 0;
+        final TKey key = outerKeySelector.apply(outer);
+        if (isNull(key)) {
+          outer = null;
+          continue;
+        }
+        if (groupKey != null && compare(groupKey, key) == 0) {
+          // Same key as the previous outer row; re-use the group.
+          continue;
+        }
+        group.clear();
+        groupKey = null;
+        for (;;) {
+          if (nextInner == null) {
+            if (innerDone || !inners.moveNext()) {
+              innerDone = true;
+              break;
+            }
+            nextInner = inners.current();
+            nextInnerKey = innerKeySelector.apply(nextInner);
+            if (isNull(nextInnerKey)) {
+              nextInner = null;
+              continue;
+            }
+          }
+          final int c = compare(nextInnerKey, key);
+          if (c > 0) {
+            break;
+          }
+          if (c == 0) {
+            group.add(nextInner);
+            groupKey = nextInnerKey;
+          }
+          nextInner = null;
+        }
+        if (group.isEmpty() && innerDone) {
+          // No more inner rows, so no more output.
+          outer = null;
+          return false;
+        }
+      }
+    }
+
+    public void reset() {
+      outers.reset();
+      inners.reset();
+      group.clear();
+      groupKey = null;
+      nextInner = null;
+      nextInnerKey = null;
+      innerDone = false;
+      outer = null;
+      current = null;
+    }
+
+    public void close() {
+      outers.close();
+      inners.close();
+    }
+  }
+}
+
+// End MergeJoin.java
@@ -20,13 +20,19 @@
 import net.hydromatic.linq4j.AbstractEnumerable;
 import net.hydromatic.linq4j.Enumerable;
 import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.Linq4j;
 import net.hydromatic.linq4j.expressions.Primitive;
 import net.hydromatic.linq4j.function.Function0;
 import net.hydromatic.linq4j.function.Function1;
 
+import net.hydromatic.optiq.ModifiableTable;
+import net.hydromatic.optiq.jdbc.ResultCache;
+
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
@@ -123,6 +129,101 @@ public static <T> Enumerable<T> of(
     return new ResultSetEnumerable<T>(dataSource, sql, rowBuilderFactory);
   }
 
+  /** Creates an enumerable that, each time it is enumerated, executes a DML
+   * statement (such as INSERT) and returns one row: the number of rows
+   * affected. */
+  public static Enumerable<Long> ofUpdate(final DataSource dataSource,
+      final String sql) {
+    return ofUpdate(dataSource, sql, null);
+  }
+
+  /** Creates an enumerable that executes a DML statement that modifies a
+   * given table, and afterwards removes cached results that read the table.
+   * The table may be null. */
+  public static Enumerable<Long> ofUpdate(final DataSource dataSource,
+      final String sql, final ModifiableTable table) {
+    return new AbstractEnumerable<Long>() {
+      public Enumerator<Long> enumerator() {
+        Connection connection = null;
+        Statement statement = null;
+        try {
+          connection = dataSource.getConnection();
+          statement = connection.createStatement();
+          final long updateCount = statement.executeUpdate(sql);
+          statement.close();
+          statement = null;
+          connection.close();
+          connection = null;
+          if (table != null) {
+            ResultCache.onModify(table);
+          }
+          return Linq4j.singletonEnumerator(updateCount);
+        } catch (SQLException e) {
+          throw new RuntimeException("while executing SQL [" + sql + "]", e);
+        } finally {
+          if (statement != null) {
+            try {
+              statement.close();
+            } catch (SQLException e) {
+              // ignore
+            }
+          }
+          if (connection != null) {
+            try {
+              connection.close();
+            } catch (SQLException e) {
+              // ignore
+            }
+          }
+        }
+      }
+    };
+  }
+
+  /** Creates an enumerable that returns the rows of a query that match a
+   * collection of keys. Executes one statement per batch of distinct keys;
+   * null keys never match, so they are skipped.
+   *
+   * <p>The statement is {@code sql} followed by {@code keyPredicate} once per
+   * key in the batch, joined by "OR". The predicate has one parameter per key
+   * column; if there is more than one key column, each key must be a
+   * {@link List}. The last batch is padded by repeating its last key, so that
+   * every batch can use the same prepared statement.</p>
+   *
+   * @param dataSource Data source
+   * @param sql Query, ending in "WHERE "
+   * @param keyPredicate Predicate that matches one key, for example
+   *                     "(a = ? AND b = ?)"
+   * @param keyCount Number of key columns
+   * @param keys Keys to look up; may contain duplicates
+   * @param batchSize Maximum number of keys per statement
+   * @param rowBuilderFactory Converts JDBC column values into rows
+   */
+  public static <T> Enumerable<T> ofLookup(
+      final DataSource dataSource,
+      final String sql,
+      final String keyPredicate,
+      final int keyCount,
+      final Enumerable<Object> keys,
+      final int batchSize,
+      final Function1<ResultSet, Function0<T>> rowBuilderFactory) {
+    assert keyCount > 0 && batchSize > 0;
+    final StringBuilder buf = new StringBuilder(sql);
+    for (int i = 0; i < batchSize; i++) {
+      if (i > 0) {
+        buf.append(" OR ");
+      }
+      buf.append(keyPredicate);
+    }
+    final String batchSql = buf.toString();
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        return new LookupEnumerator<T>(dataSource, batchSql, keyCount,
+            keys.enumerator(), batchSize, rowBuilderFactory);
+      }
+    };
+  }
+
   public Enumerator<T> enumerator() {
     Connection connection = null;
     Statement statement = null;
@@ -137,9 +238,12 @@ public Enumerator<T> enumerator() {
         }
       }
       final ResultSet resultSet = statement.executeQuery(sql);
+      final ResultSetEnumerator<T> enumerator =
+          new ResultSetEnumerator<T>(connection, statement, resultSet,
+              rowBuilderFactory);
       statement = null;
       connection = null;
-      return new ResultSetEnumerator<T>(resultSet, rowBuilderFactory);
+      return enumerator;
     } catch (SQLException e) {
       throw new RuntimeException("while executing SQL [" + sql + "]", e);
     } finally {
@@ -164,11 +268,20 @@ public Enumerator<T> enumerator() {
    * {@link ResultSet}. */
   private static class ResultSetEnumerator<T> implements Enumerator<T> {
     private final Function0<T> rowBuilder;
+    // Keep the connection and statement, rather than get them from the
+    // result set when closing. The data source may have wrapped the
+    // connection (see JdbcBackendLimiter) and must see it being closed.
+    private final Connection connection;
+    private final Statement statement;
     private ResultSet resultSet;
 
     public ResultSetEnumerator(
+        Connection connection,
+        Statement statement,
         ResultSet resultSet,
         Function1<ResultSet, Function0<T>> rowBuilderFactory) {
+      this.connection = connection;
+      this.statement = statement;
       this.resultSet = resultSet;
       this.rowBuilder = rowBuilderFactory.apply(resultSet);
     }
@@ -196,21 +309,148 @@ public void reset() {
     public void close() {
       ResultSet savedResultSet = resultSet;
       if (savedResultSet != null) {
+        resultSet = null;
         try {
-          resultSet = null;
-          final Statement statement = savedResultSet.getStatement();
           savedResultSet.close();
-          if (statement != null) {
-            final Connection connection = statement.getConnection();
-            statement.close();
-            if (connection != null) {
-              connection.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /** Implementation of {@link Enumerator} that reads distinct keys from an
+   * enumerator, a batch at a time, and for each batch executes a prepared
+   * statement and returns its rows. Opens a connection on first use, and
+   * keeps it until closed. */
+  private static class LookupEnumerator<T> implements Enumerator<T> {
+    private final DataSource dataSource;
+    private final String sql;
+    private final int keyCount;
+    private final Enumerator<Object> keys;
+    private final int batchSize;
+    private final Function1<ResultSet, Function0<T>> rowBuilderFactory;
+    private final Set<Object> seenKeys = new HashSet<Object>();
+    private final List<Object> batch = new ArrayList<Object>();
+    private Connection connection;
+    private PreparedStatement statement;
+    private ResultSet resultSet;
+    private Function0<T> rowBuilder;
+
+    LookupEnumerator(DataSource dataSource, String sql, int keyCount,
+        Enumerator<Object> keys, int batchSize,
+        Function1<ResultSet, Function0<T>> rowBuilderFactory) {
+      this.dataSource = dataSource;
+      this.sql = sql;
+      this.keyCount = keyCount;
+      this.keys = keys;
+      this.batchSize = batchSize;
+      this.rowBuilderFactory = rowBuilderFactory;
+    }
+
+    public T current() {
+      return rowBuilder.apply();
+    }
+
+    public boolean moveNext() {
+      try {
+        for (;;) {
+          if (resultSet != null) {
+            if (resultSet.next()) {
+              return true;
+            }
+            resultSet.close();
+            resultSet = null;
+          }
+          if (!nextBatch()) {
+            return false;
+          }
+          if (statement == null) {
+            connection = dataSource.getConnection();
+            statement = connection.prepareStatement(sql);
+          }
+          int p = 0;
+          for (int i = 0; i < batchSize; i++) {
+            final Object key = batch.get(Math.min(i, batch.size() - 1));
+            if (keyCount == 1) {
+              statement.setObject(++p, key);
+            } else {
+              for (Object o : (List) key) {
+                statement.setObject(++p, o);
+              }
             }
           }
+          resultSet = statement.executeQuery();
+          rowBuilder = rowBuilderFactory.apply(resultSet);
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException("while executing SQL [" + sql + "]", e);
+      }
+    }
+
+    /** Reads the next batch of distinct, non-null keys. Returns false if
+     * there are no more keys. */
+    private boolean nextBatch() {
+      batch.clear();
+      while (batch.size() < batchSize && keys.moveNext()) {
+        final Object key = keys.current();
+        if (key == null
+            || keyCount > 1 && ((List) key).contains(null)) {
+          continue;
+        }
+        if (seenKeys.add(key)) {
+          batch.add(key);
+        }
+      }
+      return !batch.isEmpty();
+    }
+
+    public void reset() {
+      closeResultSet();
+      keys.reset();
+      seenKeys.clear();
+    }
+
+    private void closeResultSet() {
+      if (resultSet != null) {
+        try {
+          resultSet.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+        resultSet = null;
+      }
+    }
+
+    public void close() {
+      closeResultSet();
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+        statement = null;
+      }
+      if (connection != null) {
+        try {
+          connection.close();
         } catch (SQLException e) {
           // ignore
         }
+        connection = null;
       }
+      keys.close();
     }
   }
 
@@ -0,0 +1,202 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Predicate1;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Filter that a hash join builds from the keys on its build side, and applies
+ * to rows on its probe side, as close to the scan as possible.
+ *
+ * <p>The filter consists of a Bloom filter over the hash codes of the keys
+ * and, if the keys are comparable, their minimum and maximum values. It may
+ * accept a key that is not on the build side, but never rejects one that
+ * is.</p>
+ *
+ * <p>The join wraps its build side in {@link #build}, and the filter is
+ * populated as the join reads the build side. The build side is read before
+ * the probe side; until it has been read completely, or if it has too many
+ * keys, the filter accepts every row.</p>
+ */
+public class RuntimeFilter {
+  /** Maximum number of keys. If the build side has more keys, the filter
+   * would be too large or too inaccurate to be worthwhile. */
+  public static final int MAX_KEYS = 1 << 20;
+
+  /** Number of bits in the Bloom filter per key. With 3 hash functions, gives
+   * a false positive rate of about 3%. */
+  private static final int BITS_PER_KEY = 8;
+
+  private static final int HASH_COUNT = 3;
+
+  /** Hash codes of keys seen so far, while building. */
+  private int[] hashes = new int[16];
+  private int keyCount;
+  private boolean comparable = true;
+  private Comparable min;
+  private Comparable max;
+
+  /** Bloom filter; null if not ready. */
+  private volatile long[] bits;
+  private int mask;
+
+  /** Returns the build side of a join, wrapped so that reading it populates
+   * this filter. */
+  public <T, K> Enumerable<T> build(final Enumerable<T> source,
+      final Function1<T, K> keySelector) {
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        final Enumerator<T> enumerator = source.enumerator();
+        clear();
+        return new Enumerator<T>() {
+          public T current() {
+            return enumerator.current();
+          }
+
+          public boolean moveNext() {
+            if (enumerator.moveNext()) {
+              add(keySelector.apply(enumerator.current()));
+              return true;
+            }
+            finish();
+            return false;
+          }
+
+          public void reset() {
+            enumerator.reset();
+            clear();
+          }
+
+          public void close() {
+            enumerator.close();
+          }
+        };
+      }
+    };
+  }
+
+  /** Returns a predicate that evaluates this filter on the key of a row on
+   * the probe side. */
+  public <T, K> Predicate1<T> predicate(final Function1<T, K> keySelector) {
+    return new Predicate1<T>() {
+      public boolean apply(T v1) {
+        return mightContain(keySelector.apply(v1));
+      }
+    };
+  }
+
+  private synchronized void clear() {
+    bits = null;
+    keyCount = 0;
+    comparable = true;
+    min = max = null;
+  }
+
+  private synchronized void add(Object key) {
+    if (keyCount > MAX_KEYS) {
+      return;
+    }
+    if (keyCount == hashes.length) {
+      hashes = Arrays.copyOf(hashes, keyCount * 2);
+    }
+    hashes[keyCount++] = hash(key);
+    if (comparable) {
+      // Composite keys are lists, and their elements may not be comparable
+      // with the elements of keys on the probe side; do not use a range.
+      if (key instanceof Comparable
+          && !(key instanceof List)
+          && (min == null || min.getClass() == key.getClass())) {
+        //noinspection unchecked
+        if (min == null || min.compareTo(key) > 0) {
+          min = (Comparable) key;
+        }
+        //noinspection unchecked
+        if (max == null || max.compareTo(key) < 0) {
+          max = (Comparable) key;
+        }
+      } else {
+        comparable = false;
+        min = max = null;
+      }
+    }
+  }
+
+  private synchronized void finish() {
+    if (bits != null || keyCount > MAX_KEYS) {
+      return;
+    }
+    int bitCount = 64;
+    while (bitCount < keyCount * BITS_PER_KEY) {
+      bitCount <<= 1;
+    }
+    final long[] bits = new long[bitCount / 64];
+    mask = bitCount - 1;
+    for (int i = 0; i < keyCount; i++) {
+      int h = hashes[i];
+      final int h2 = (h >>> 16) | 1;
+      for (int j = 0; j < HASH_COUNT; j++) {
+        final int bit = h & mask;
+        bits[bit >>> 6] |= 1L << bit;
+        h += h2;
+      }
+    }
+    hashes = new int[16];
+    this.bits = bits;
+  }
+
+  /** Returns whether a key might have occurred on the build side. Returns
+   * true if the filter is not ready. */
+  public boolean mightContain(Object key) {
+    final long[] bits = this.bits;
+    if (bits == null) {
+      return true;
+    }
+    if (min != null && key != null && key.getClass() == min.getClass()) {
+      //noinspection unchecked
+      if (min.compareTo(key) > 0 || max.compareTo(key) < 0) {
+        return false;
+      }
+    }
+    int h = hash(key);
+    final int h2 = (h >>> 16) | 1;
+    for (int j = 0; j < HASH_COUNT; j++) {
+      final int bit = h & mask;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+      h += h2;
+    }
+    return true;
+  }
+
+  /** Spreads the bits of a key's hash code. */
+  private static int hash(Object key) {
+    int h = key == null ? 0 : key.hashCode();
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 15);
+  }
+}
+
+// End RuntimeFilter.java
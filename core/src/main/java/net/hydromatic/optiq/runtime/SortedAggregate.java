@@ -0,0 +1,199 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.linq4j.function.*;
+
+/**
+ * Aggregation of an input that is sorted on its group key.
+ *
+ * <p>Rows with the same key are adjacent, so each group is complete as soon
+ * as a row with a different key arrives. Groups are emitted as they are
+ * completed, and only one accumulator is held at a time, whereas a hash
+ * aggregate must read its whole input, and holds an accumulator for every
+ * group.</p>
+ */
+public class SortedAggregate {
+  private SortedAggregate() {
+  }
+
+  /** Groups adjacent rows with the same key, and applies a result selector
+   * to each group's key and accumulated value.
+   *
+   * @param source Input, sorted on the key
+   * @param keySelector Computes the key of a row
+   * @param accumulatorInitializer Creates an accumulator for a group
+   * @param accumulatorAdder Adds a row to an accumulator
+   * @param resultSelector Creates a result from a key and accumulator
+   * @param comparer Compares keys, or null to use {@link Object#equals}
+   */
+  public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+  groupBy(final Enumerable<TSource> source,
+      final Function1<TSource, TKey> keySelector,
+      final Function0<TAccumulate> accumulatorInitializer,
+      final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      final Function2<TKey, TAccumulate, TResult> resultSelector,
+      final EqualityComparer<TKey> comparer) {
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        return new GroupByEnumerator<TSource, TKey, TAccumulate, TResult>(
+            source.enumerator(), keySelector, accumulatorInitializer,
+            accumulatorAdder, resultSelector, comparer);
+      }
+    };
+  }
+
+  /** Returns the first of each run of adjacent rows with the same key.
+   *
+   * @param source Input, sorted on the key
+   * @param keySelector Computes the key of a row
+   * @param comparer Compares keys, or null to use {@link Object#equals}
+   */
+  public static <TSource, TKey> Enumerable<TSource> distinct(
+      final Enumerable<TSource> source,
+      final Function1<TSource, TKey> keySelector,
+      final EqualityComparer<TKey> comparer) {
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        final Enumerator<TSource> enumerator = source.enumerator();
+        return new Enumerator<TSource>() {
+          boolean first = true;
+          TSource current;
+          TKey key;
+
+          public TSource current() {
+            return current;
+          }
+
+          public boolean moveNext() {
+            while (enumerator.moveNext()) {
+              final TSource row = enumerator.current();
+              final TKey rowKey = keySelector.apply(row);
+              if (first || !equal(comparer, key, rowKey)) {
+                first = false;
+                current = row;
+                key = rowKey;
+                return true;
+              }
+            }
+            return false;
+          }
+
+          public void reset() {
+            enumerator.reset();
+            first = true;
+            current = null;
+            key = null;
+          }
+
+          public void close() {
+            enumerator.close();
+          }
+        };
+      }
+    };
+  }
+
+  private static <T> boolean equal(EqualityComparer<T> comparer, T v0,
+      T v1) {
+    return comparer == null
+        ? Utilities.equal(v0, v1)
+        : comparer.equal(v0, v1);
+  }
+
+  /** Enumerator that accumulates adjacent rows with the same key. */
+  private static class GroupByEnumerator<TSource, TKey, TAccumulate, TResult>
+      implements Enumerator<TResult> {
+    private final Enumerator<TSource> enumerator;
+    private final Function1<TSource, TKey> keySelector;
+    private final Function0<TAccumulate> accumulatorInitializer;
+    private final Function2<TAccumulate, TSource, TAccumulate>
+    accumulatorAdder;
+    private final Function2<TKey, TAccumulate, TResult> resultSelector;
+    private final EqualityComparer<TKey> comparer;
+
+    /** Row that has been read but belongs to the next group. */
+    private TSource next;
+    private boolean hasNext;
+    private boolean done;
+    private TResult current;
+
+    GroupByEnumerator(Enumerator<TSource> enumerator,
+        Function1<TSource, TKey> keySelector,
+        Function0<TAccumulate> accumulatorInitializer,
+        Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        Function2<TKey, TAccumulate, TResult> resultSelector,
+        EqualityComparer<TKey> comparer) {
+      this.enumerator = enumerator;
+      this.keySelector = keySelector;
+      this.accumulatorInitializer = accumulatorInitializer;
+      this.accumulatorAdder = accumulatorAdder;
+      this.resultSelector = resultSelector;
+      this.comparer = comparer;
+    }
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (!hasNext) {
+        if (done || !enumerator.moveNext()) {
+          done = true;
+          return false;
+        }
+        next = enumerator.current();
+      }
+      final TKey key = keySelector.apply(next);
+      TAccumulate accumulator =
+          accumulatorAdder.apply(accumulatorInitializer.apply(), next);
+      hasNext = false;
+      while (enumerator.moveNext()) {
+        final TSource row = enumerator.current();
+        if (!equal(comparer, key, keySelector.apply(row))) {
+          next = row;
+          hasNext = true;
+          break;
+        }
+        accumulator = accumulatorAdder.apply(accumulator, row);
+      }
+      if (!hasNext) {
+        done = true;
+      }
+      current = resultSelector.apply(key, accumulator);
+      return true;
+    }
+
+    public void reset() {
+      enumerator.reset();
+      next = null;
+      hasNext = false;
+      done = false;
+      current = null;
+    }
+
+    public void close() {
+      enumerator.close();
+    }
+  }
+}
+
+// End SortedAggregate.java
@@ -0,0 +1,318 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.runtime;
+
+import net.hydromatic.linq4j.AbstractEnumerable;
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Enumerable that reads its source at most once, and allows any number of
+ * consumers to read the rows.
+ *
+ * <p>Rows are read from the source only when a consumer asks for a row that
+ * no consumer has asked for before, so consumers that run in lock-step do not
+ * cause the whole source to be buffered. The first {@code maxRows} rows are
+ * held in memory; subsequent rows are serialized to a temporary file, and
+ * each consumer reads them back independently.</p>
+ *
+ * <p>If a row cannot be serialized (for instance, an object from a
+ * {@link net.hydromatic.optiq.impl.java.ReflectiveSchema} that does not
+ * implement {@link Serializable}), the spool reads back the rows it has
+ * written and holds all rows in memory from then on.</p>
+ *
+ * <p>Call {@link #close()} when no consumer will read the rows again, to
+ * delete the file. Generated code does this via {@link #closing} when the
+ * statement's result is closed.</p>
+ *
+ * @param <T> Element type
+ */
+public class Spool<T> extends AbstractEnumerable<T> implements Closeable {
+  /** Default maximum number of rows held in memory. */
+  public static final int DEFAULT_MAX_ROWS = 100000;
+
+  private final Enumerable<T> source;
+  private final int maxRows;
+
+  private Enumerator<T> sourceEnumerator;
+  private boolean done;
+  private final List<T> rows = new ArrayList<T>();
+  private int spillCount;
+  private boolean spillable = true;
+  private File file;
+  private ObjectOutputStream out;
+
+  /** Classes of the objects written to the file, so that they can be read
+   * back even if they were generated, and are not visible to the class loader
+   * that loads this class. */
+  private final Map<String, Class<?>> classes =
+      new ConcurrentHashMap<String, Class<?>>();
+
+  public Spool(Enumerable<T> source) {
+    this(source, DEFAULT_MAX_ROWS);
+  }
+
+  public Spool(Enumerable<T> source, int maxRows) {
+    assert maxRows >= 0;
+    this.source = source;
+    this.maxRows = maxRows;
+  }
+
+  /** Returns an enumerable that reads from an enumerable, and closes the
+   * given spools when its enumerator is closed. Called from generated
+   * code. */
+  public static <T> Enumerable<T> closing(final Enumerable<T> enumerable,
+      final Spool<?>[] spools) {
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        final Enumerator<T> enumerator = enumerable.enumerator();
+        return new Enumerator<T>() {
+          public T current() {
+            return enumerator.current();
+          }
+
+          public boolean moveNext() {
+            return enumerator.moveNext();
+          }
+
+          public void reset() {
+            enumerator.reset();
+          }
+
+          public void close() {
+            try {
+              enumerator.close();
+            } finally {
+              for (Spool<?> spool : spools) {
+                spool.close();
+              }
+            }
+          }
+        };
+      }
+    };
+  }
+
+  public Enumerator<T> enumerator() {
+    return new SpoolEnumerator();
+  }
+
+  /** Returns the number of rows that have been written to disk. */
+  public synchronized int getSpillCount() {
+    return spillCount;
+  }
+
+  /** Releases the rows and deletes the file. If a consumer asks for rows
+   * after this, the spool reads its source again. */
+  public synchronized void close() {
+    closeOut();
+    if (sourceEnumerator != null) {
+      sourceEnumerator.close();
+      sourceEnumerator = null;
+    }
+    deleteFile();
+    done = false;
+    rows.clear();
+    spillCount = 0;
+    spillable = true;
+    classes.clear();
+  }
+
+  /** Reads rows from the source until row {@code i} is available. Returns
+   * false if the source has {@code i} rows or fewer. */
+  private synchronized boolean fill(int i) {
+    while (rows.size() + spillCount <= i) {
+      if (done) {
+        return false;
+      }
+      if (sourceEnumerator == null) {
+        sourceEnumerator = source.enumerator();
+      }
+      if (!sourceEnumerator.moveNext()) {
+        done = true;
+        sourceEnumerator.close();
+        sourceEnumerator = null;
+        closeOut();
+        return false;
+      }
+      final T row = sourceEnumerator.current();
+      if (spillCount == 0 && (rows.size() < maxRows || !spillable)) {
+        rows.add(row);
+      } else {
+        spill(row);
+      }
+    }
+    return true;
+  }
+
+  private synchronized T get(int i) {
+    return rows.get(i);
+  }
+
+  /** Returns whether row {@code i} is held in memory. */
+  private synchronized boolean inMemory(int i) {
+    return i < rows.size();
+  }
+
+  private void spill(T row) {
+    try {
+      if (out == null) {
+        file = File.createTempFile("spool", ".ser");
+        file.deleteOnExit();
+        out = new ObjectOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file))) {
+          @Override protected void annotateClass(Class<?> cl) {
+            classes.put(cl.getName(), cl);
+          }
+        };
+      }
+      out.writeObject(row);
+      // Forget the row, so that the stream does not hold a reference to
+      // every row written.
+      out.reset();
+      // Make the row visible to consumers that read the file.
+      out.flush();
+      ++spillCount;
+    } catch (NotSerializableException e) {
+      unspill();
+      rows.add(row);
+    } catch (IOException e) {
+      throw new RuntimeException("while spilling to " + file, e);
+    }
+  }
+
+  /** Reads back the rows that have been written to the file, deletes the
+   * file, and holds all rows in memory from now on. */
+  private void unspill() {
+    closeOut();
+    if (spillCount > 0) {
+      final ObjectInputStream in = openIn();
+      try {
+        for (int i = 0; i < spillCount; i++) {
+          //noinspection unchecked
+          rows.add((T) in.readObject());
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("while reading " + file, e);
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException("while reading " + file, e);
+      } finally {
+        close(in);
+      }
+    }
+    deleteFile();
+    spillCount = 0;
+    spillable = false;
+  }
+
+  private ObjectInputStream openIn() {
+    try {
+      return new ObjectInputStream(
+          new BufferedInputStream(new FileInputStream(file))) {
+        @Override protected Class<?> resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException {
+          final Class<?> clazz = classes.get(desc.getName());
+          if (clazz != null) {
+            return clazz;
+          }
+          return super.resolveClass(desc);
+        }
+      };
+    } catch (IOException e) {
+      throw new RuntimeException("while reading " + file, e);
+    }
+  }
+
+  private void closeOut() {
+    if (out != null) {
+      close(out);
+      out = null;
+    }
+  }
+
+  private void deleteFile() {
+    if (file != null) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      file = null;
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /** Enumerator that reads rows from the buffer, then from the file. */
+  private class SpoolEnumerator implements Enumerator<T> {
+    private int i = -1;
+    private T current;
+    private ObjectInputStream in;
+
+    public T current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (!fill(i + 1)) {
+        return false;
+      }
+      ++i;
+      if (inMemory(i)) {
+        current = get(i);
+        return true;
+      }
+      try {
+        if (in == null) {
+          in = openIn();
+        }
+        //noinspection unchecked
+        current = (T) in.readObject();
+        return true;
+      } catch (IOException e) {
+        throw new RuntimeException("while reading " + file, e);
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException("while reading " + file, e);
+      }
+    }
+
+    public void reset() {
+      close();
+      i = -1;
+      current = null;
+    }
+
+    public void close() {
+      if (in != null) {
+        Spool.close(in);
+        in = null;
+      }
+    }
+  }
+}
+
+// End Spool.java
@@ -27,7 +27,6 @@
 import java.sql.Timestamp;
 import java.text.DecimalFormat;
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * Helper methods to implement SQL functions in generated code.
@@ -45,6 +44,17 @@ public class SqlFunctions {
   private static final DecimalFormat DOUBLE_FORMAT =
       new DecimalFormat("0.0E0");
 
+  /** Powers of ten that fit in a {@code long}, 10<sup>0</sup> to
+   * 10<sup>18</sup>. */
+  private static final long[] POWERS_OF_TEN = new long[19];
+
+  static {
+    POWERS_OF_TEN[0] = 1L;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+    }
+  }
+
   private SqlFunctions() {
   }
 
@@ -247,26 +257,22 @@ public static ByteString overlay(ByteString s, ByteString r, int start,
 
   /** SQL {@code LIKE} function. */
   public static boolean like(String s, String pattern) {
-    final String regex = Like.sqlToRegexLike(pattern, null);
-    return Pattern.matches(regex, s);
+    return Like.likePattern(pattern, null).matcher(s).matches();
   }
 
   /** SQL {@code LIKE} function with escape. */
   public static boolean like(String s, String pattern, String escape) {
-    final String regex = Like.sqlToRegexLike(pattern, escape);
-    return Pattern.matches(regex, s);
+    return Like.likePattern(pattern, escape).matcher(s).matches();
   }
 
   /** SQL {@code SIMILAR} function. */
   public static boolean similar(String s, String pattern) {
-    final String regex = Like.sqlToRegexSimilar(pattern, null);
-    return Pattern.matches(regex, s);
+    return Like.similarPattern(pattern, null).matcher(s).matches();
   }
 
   /** SQL {@code SIMILAR} function with escape. */
   public static boolean similar(String s, String pattern, String escape) {
-    final String regex = Like.sqlToRegexSimilar(pattern, escape);
-    return Pattern.matches(regex, s);
+    return Like.similarPattern(pattern, escape).matcher(s).matches();
   }
 
   // =
@@ -994,6 +1000,49 @@ public static BigDecimal toBigDecimal(Object o) {
         : toBigDecimal(o.toString());
   }
 
+  /** Helper for REINTERPRET of a DECIMAL value as its unscaled value; for
+   * example, 12.345 at scale 2 is 1235. */
+  public static long toUnscaledLong(BigDecimal b, int scale) {
+    final BigInteger unscaled =
+        b.setScale(scale, RoundingMode.HALF_UP).unscaledValue();
+    if (unscaled.bitLength() > 63) {
+      throw new ArithmeticException("Numeric overflow: " + b);
+    }
+    return unscaled.longValue();
+  }
+
+  /** Helper for REINTERPRET of an unscaled value as a DECIMAL value; for
+   * example, 1235 at scale 2 is 12.35. */
+  public static BigDecimal fromUnscaledLong(long v, int scale) {
+    return BigDecimal.valueOf(v, scale);
+  }
+
+  /** Helper for REINTERPRET of an unscaled value as a DECIMAL value, checking
+   * that the value has no more than {@code precision} digits. */
+  public static BigDecimal fromUnscaledLong(long v, int precision,
+      int scale) {
+    if (precision < POWERS_OF_TEN.length
+        && (v >= POWERS_OF_TEN[precision]
+            || v <= -POWERS_OF_TEN[precision])) {
+      throw new ArithmeticException("Numeric overflow: "
+          + BigDecimal.valueOf(v, scale) + " does not fit in DECIMAL("
+          + precision + ", " + scale + ")");
+    }
+    return BigDecimal.valueOf(v, scale);
+  }
+
+  /** Helper for summing the unscaled values of DECIMAL values; throws
+   * rather than overflow. */
+  public static long plusExact(long v0, long v1) {
+    final long r = v0 + v1;
+    // Overflow if both operands have the opposite sign to the result.
+    if (((v0 ^ r) & (v1 ^ r)) < 0) {
+      throw new ArithmeticException("Numeric overflow: sum of " + v0
+          + " and " + v1 + " does not fit in a long");
+    }
+    return r;
+  }
+
   // Don't need shortValueOf etc. - Short.valueOf is sufficient.
 
   /** Helper for CAST(... AS VARCHAR(maxLength)). */
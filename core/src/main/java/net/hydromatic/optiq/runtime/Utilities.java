@@ -17,6 +17,16 @@
 */
 package net.hydromatic.optiq.runtime;
 
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Enumerator;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.ModifiableTable;
+import net.hydromatic.optiq.jdbc.ResultCache;
+import net.hydromatic.optiq.materialize.MaterializationService;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -169,6 +179,63 @@ public static int compareNullsLast(List v0, List v1) {
             : v1 == null ? -1
                 : FlatLists.ComparableListImpl.compare(v0, v1);
   }
+
+  /** Adds rows to a table's modifiable collection, as
+   * {@link #insert(ModifiableTable, Enumerable, int)} does, unless a prepared
+   * statement is executing a batch, in which case adds them to the batch's
+   * {@link InsertBuffer}. Returns the number of rows. */
+  public static long insert(DataContext root, ModifiableTable table,
+      Enumerable<?> rows, int chunkSize) {
+    final InsertBuffer buffer = DataContext.Variable.INSERT_BUFFER.get(root);
+    if (buffer != null) {
+      return buffer.add(table, rows, chunkSize);
+    }
+    return insert(table, rows, chunkSize);
+  }
+
+  /** Adds rows to a table's modifiable collection, {@code chunkSize} rows
+   * at a time, and returns the number of rows added.
+   *
+   * <p>Each chunk is added with one call to
+   * {@link Collection#addAll(Collection)}, so a collection that writes to a
+   * remote store (for example a JDBC table) can send it as a batch, but only
+   * one chunk is held in memory. If the rows are computed from the table
+   * itself, pass {@link Integer#MAX_VALUE}, so that every row is read before
+   * any is added.</p>
+   *
+   * <p>Materializations that read the table apply each chunk, and cached
+   * results that read the table are discarded.</p> */
+  public static long insert(ModifiableTable table, Enumerable<?> rows,
+      int chunkSize) {
+    //noinspection unchecked
+    final Collection<Object> collection = table.getModifiableCollection();
+    final Enumerator<?> enumerator = rows.enumerator();
+    long count = 0;
+    try {
+      List<Object> chunk = new ArrayList<Object>();
+      for (;;) {
+        final boolean hasNext = enumerator.moveNext();
+        if (hasNext) {
+          chunk.add(enumerator.current());
+        }
+        if (chunk.size() == chunkSize || !hasNext && !chunk.isEmpty()) {
+          collection.addAll(chunk);
+          MaterializationService.onInsert(table, chunk);
+          count += chunk.size();
+          chunk = new ArrayList<Object>();
+        }
+        if (!hasNext) {
+          break;
+        }
+      }
+    } finally {
+      enumerator.close();
+      if (count > 0) {
+        ResultCache.onModify(table);
+      }
+    }
+    return count;
+  }
 }
 
 // End Utilities.java
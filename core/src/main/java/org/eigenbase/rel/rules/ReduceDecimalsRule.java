@@ -141,17 +141,16 @@ public RexNode visitCall(RexCall call) {
         return savedResult;
       }
 
-      // permanently updates a call in place
-      List<RexNode> newOperands = apply(call.getOperands());
-      if (true) {
-        // FIXME: Operands are now immutable. Create a new call with
-        //   new operands?
-        throw new AssertionError();
-      }
-
-      RexNode newCall = call;
-      RexNode rewrite = rewriteCall(call);
-      if (rewrite != call) {
+      // Operands are immutable, so create a new call if any operand changed.
+      final List<RexNode> newOperands = apply(call.getOperands());
+      final RexCall call2 =
+          newOperands == call.getOperands()
+              ? call
+              : call.clone(call.getType(), newOperands);
+
+      RexNode newCall = call2;
+      RexNode rewrite = rewriteCall(call2);
+      if (rewrite != call2) {
         newCall = rewrite.accept(this);
       }
 
@@ -237,6 +236,7 @@ private void registerExpanders(RexBuilder rexBuilder) {
       map.put(SqlStdOperatorTable.MOD, arithmetic);
 
       map.put(SqlStdOperatorTable.EQUALS, arithmetic);
+      map.put(SqlStdOperatorTable.NOT_EQUALS, arithmetic);
       map.put(SqlStdOperatorTable.GREATER_THAN, arithmetic);
       map.put(
           SqlStdOperatorTable.GREATER_THAN_OR_EQUAL,
@@ -0,0 +1,271 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.relopt;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelColumnOrigin;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.rex.RexNode;
+import org.eigenbase.util.Pair;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.util.*;
+
+/**
+ * Summary of the tables and columns used by a relational expression, used to
+ * decide cheaply that a materialization cannot answer a query.
+ *
+ * <p>A column is identified by the qualified name of the table it comes from
+ * and its ordinal in that table. The signature records the tables read (with
+ * repetitions, for self-joins), the columns referenced by filter and join
+ * conditions, and, for each aggregate, its grouping columns and the columns
+ * that its aggregate functions read.</p>
+ *
+ * <p>{@link #mayAnswer} is conservative: if it returns false,
+ * {@link SubstitutionVisitor} would not have been able to rewrite the query
+ * to use the materialization; if it returns true, it might. Every check is
+ * a subset check. The query may read tables that the materialization does
+ * not, and may filter, group by and aggregate columns of those tables
+ * freely. It must filter on each column that the materialization filters
+ * on, but may filter on more. Values in conditions are not compared, so
+ * a materialization filtered on {@code deptno = 10} passes for a query
+ * filtered on {@code deptno = 20}, and unification rejects it later.</p>
+ */
+public class MaterializationSignature {
+  /** Tables read, with multiplicity. */
+  private final Multiset<List<String>> tables;
+
+  /** Columns referenced by filter and join conditions. */
+  private final Set<Pair<List<String>, Integer>> filterColumns;
+
+  /** Every aggregate in the expression. */
+  private final List<Block> aggregates;
+
+  /** The aggregate at the top of the expression (below any projects and
+   * filters), or null if the expression is not an aggregate. */
+  private final Block topAggregate;
+
+  private MaterializationSignature(Block block, List<Block> aggregates,
+      Block topAggregate) {
+    this.tables = block.tables;
+    this.filterColumns = block.filterColumns;
+    this.aggregates = aggregates;
+    this.topAggregate = topAggregate;
+  }
+
+  /** Computes the signature of a relational expression. Returns null if the
+   * origin of a column cannot be determined. */
+  public static MaterializationSignature of(RelNode rel) {
+    final List<Block> aggregates = new ArrayList<Block>();
+    final Block block = visit(rel, aggregates);
+    if (block == null) {
+      return null;
+    }
+    RelNode top = rel;
+    while (top instanceof ProjectRelBase || top instanceof FilterRelBase) {
+      top = top.getInput(0);
+    }
+    Block topAggregate = null;
+    if (top instanceof AggregateRelBase) {
+      // The top aggregate is the last one found, because the visitor adds an
+      // aggregate after the aggregates below it.
+      topAggregate = aggregates.get(aggregates.size() - 1);
+    }
+    return new MaterializationSignature(block, aggregates, topAggregate);
+  }
+
+  /** Returns the qualified names of the tables read. */
+  public Set<List<String>> getTables() {
+    return tables.elementSet();
+  }
+
+  /** Returns whether a materialization with this signature might be able to
+   * answer (part of) a query with the given signature. */
+  public boolean mayAnswer(MaterializationSignature query) {
+    // The query must read every table the materialization reads; it may
+    // read others.
+    if (!containsAll(query.tables, tables)) {
+      return false;
+    }
+    // The query must constrain every column that the materialization's
+    // conditions constrain; otherwise the materialization is missing rows
+    // that the query needs.
+    if (!query.filterColumns.containsAll(filterColumns)) {
+      return false;
+    }
+    if (topAggregate == null) {
+      return true;
+    }
+    // The materialization is an aggregate, so the query must contain an
+    // aggregate over the same tables that it can roll up to.
+    for (Block aggregate : query.aggregates) {
+      if (topAggregate.canRollUpTo(aggregate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether multiset {@code a} contains each element of multiset
+   * {@code b} at least as many times as {@code b} does. */
+  private static <E> boolean containsAll(Multiset<E> a, Multiset<E> b) {
+    for (Multiset.Entry<E> entry : b.entrySet()) {
+      if (a.count(entry.getElement()) < entry.getCount()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Block visit(RelNode rel, List<Block> aggregates) {
+    final Block block = new Block();
+    for (RelNode input : rel.getInputs()) {
+      final Block inputBlock = visit(input, aggregates);
+      if (inputBlock == null) {
+        return null;
+      }
+      block.tables.addAll(inputBlock.tables);
+      block.filterColumns.addAll(inputBlock.filterColumns);
+    }
+    if (rel instanceof TableAccessRelBase) {
+      block.tables.add(rel.getTable().getQualifiedName());
+    } else if (rel instanceof FilterRelBase) {
+      final FilterRelBase filter = (FilterRelBase) rel;
+      if (!addOrigins(filter.getChild(), filter.getCondition(),
+          block.filterColumns)) {
+        return null;
+      }
+    } else if (rel instanceof JoinRelBase) {
+      final JoinRelBase join = (JoinRelBase) rel;
+      final int leftCount = join.getLeft().getRowType().getFieldCount();
+      final BitSet bits =
+          RelOptUtil.InputFinder.bits(join.getCondition());
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+        final boolean ok = i < leftCount
+            ? addOrigins(join.getLeft(), i, block.filterColumns)
+            : addOrigins(join.getRight(), i - leftCount, block.filterColumns);
+        if (!ok) {
+          return null;
+        }
+      }
+    } else if (rel instanceof AggregateRelBase) {
+      final AggregateRelBase aggregate = (AggregateRelBase) rel;
+      final Block aggregateBlock = new Block();
+      aggregateBlock.tables.addAll(block.tables);
+      aggregateBlock.filterColumns.addAll(block.filterColumns);
+      final BitSet groupSet = aggregate.getGroupSet();
+      for (int i = groupSet.nextSetBit(0); i >= 0;
+           i = groupSet.nextSetBit(i + 1)) {
+        if (!addOrigins(aggregate.getChild(), i,
+            aggregateBlock.groupColumns)) {
+          return null;
+        }
+      }
+      for (AggregateCall call : aggregate.getAggCallList()) {
+        for (int arg : call.getArgList()) {
+          if (!addOrigins(aggregate.getChild(), arg,
+              aggregateBlock.measureColumns)) {
+            return null;
+          }
+        }
+      }
+      aggregates.add(aggregateBlock);
+    }
+    return block;
+  }
+
+  private static boolean addOrigins(RelNode rel, RexNode condition,
+      Set<Pair<List<String>, Integer>> columns) {
+    final BitSet bits = RelOptUtil.InputFinder.bits(condition);
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      if (!addOrigins(rel, i, columns)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean addOrigins(RelNode rel, int column,
+      Set<Pair<List<String>, Integer>> columns) {
+    final Set<RelColumnOrigin> origins =
+        RelMetadataQuery.getColumnOrigins(rel, column);
+    if (origins == null) {
+      return false;
+    }
+    for (RelColumnOrigin origin : origins) {
+      columns.add(
+          Pair.of(origin.getOriginTable().getQualifiedName(),
+              origin.getOriginColumnOrdinal()));
+    }
+    return true;
+  }
+
+  /** Tables and columns used by a sub-tree; if the sub-tree is an
+   * aggregate, also its grouping and measure columns. */
+  private static class Block {
+    final Multiset<List<String>> tables = HashMultiset.create();
+    final Set<Pair<List<String>, Integer>> filterColumns =
+        new HashSet<Pair<List<String>, Integer>>();
+    final Set<Pair<List<String>, Integer>> groupColumns =
+        new HashSet<Pair<List<String>, Integer>>();
+    final Set<Pair<List<String>, Integer>> measureColumns =
+        new HashSet<Pair<List<String>, Integer>>();
+
+    /** Returns whether the query aggregate {@code query} might be computed
+     * by rolling up this aggregate, perhaps joined to further tables. The
+     * query must read every table that this aggregate reads. Of the columns
+     * of those tables, the query may group by only columns that this
+     * aggregate groups by, filter only on columns that this aggregate groups
+     * by or filters on, and aggregate only columns that this aggregate groups
+     * by or aggregates. Columns of the further tables are not checked. */
+    boolean canRollUpTo(Block query) {
+      if (!containsAll(query.tables, tables)) {
+        return false;
+      }
+      final Set<Pair<List<String>, Integer>> available =
+          new HashSet<Pair<List<String>, Integer>>(groupColumns);
+      if (!covers(available, query.groupColumns)) {
+        return false;
+      }
+      final Set<Pair<List<String>, Integer>> measures =
+          new HashSet<Pair<List<String>, Integer>>(available);
+      measures.addAll(measureColumns);
+      if (!covers(measures, query.measureColumns)) {
+        return false;
+      }
+      available.addAll(filterColumns);
+      return covers(available, query.filterColumns);
+    }
+
+    /** Returns whether {@code columns} contains each column of
+     * {@code queryColumns} that belongs to a table this block reads. */
+    private boolean covers(Set<Pair<List<String>, Integer>> columns,
+        Set<Pair<List<String>, Integer>> queryColumns) {
+      for (Pair<List<String>, Integer> column : queryColumns) {
+        if (tables.contains(column.left) && !columns.contains(column)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
+
+// End MaterializationSignature.java
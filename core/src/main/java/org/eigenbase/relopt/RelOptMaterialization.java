@@ -37,6 +37,8 @@ public class RelOptMaterialization {
   public final StarTable starTable;
   public final RelOptTable table;
   public final RelNode queryRel;
+  private MaterializationSignature signature;
+  private boolean signatureComputed;
 
   /**
    * Creates a RelOptMaterialization.
@@ -55,6 +57,16 @@ public RelOptMaterialization(RelNode tableRel, RelNode queryRel,
     this.queryRel = queryRel;
   }
 
+  /** Returns the signature of the materialized query, computing it the
+   * first time; null if it cannot be computed. */
+  public MaterializationSignature getSignature() {
+    if (!signatureComputed) {
+      signature = MaterializationSignature.of(queryRel);
+      signatureComputed = true;
+    }
+    return signature;
+  }
+
   /**
    * Converts a relational expression to one that uses a
    * {@link net.hydromatic.optiq.impl.StarTable}.
@@ -26,7 +26,7 @@
 import org.eigenbase.reltype.RelDataTypeField;
 import org.eigenbase.rex.*;
 import org.eigenbase.sql.SqlKind;
-import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.fun.*;
 import org.eigenbase.trace.EigenbaseTrace;
 import org.eigenbase.util.IntList;
 import org.eigenbase.util.Pair;
@@ -41,6 +41,7 @@
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 /**
@@ -86,6 +87,7 @@ public class SubstitutionVisitor {
           FilterToProjectUnifyRule.INSTANCE,
 //          ProjectToFilterUnifyRule.INSTANCE,
           FilterToFilterUnifyRule.INSTANCE,
+          JoinToJoinUnifyRule.INSTANCE,
           AggregateToAggregateUnifyRule.INSTANCE,
           AggregateOnProjectToAggregateUnifyRule.INSTANCE);
 
@@ -227,7 +229,16 @@ void equiv(RelNode result, RelNode query) {
   @VisibleForTesting
   public static RexNode splitFilter(
       final RexBuilder rexBuilder, RexNode condition, RexNode target) {
-    // First, try splitting into ORs.
+    // First, try splitting into ANDs.
+    // Given target    c1 AND c2
+    // and condition   c2 AND c3 AND c1
+    // residue is      c3
+    RexNode y = splitAnd(rexBuilder, condition, target);
+    if (y != null) {
+      return y;
+    }
+
+    // Next, try splitting into ORs.
     // Given target    c1 OR c2 OR c3 OR c4
     // and condition   c2 OR c4
     // residue is      NOT c1 AND NOT c3
@@ -245,6 +256,18 @@ public static RexNode splitFilter(
     return null;
   }
 
+  private static RexNode splitAnd(
+      final RexBuilder rexBuilder, RexNode condition, RexNode target) {
+    final List<RexNode> conditions = RelOptUtil.conjunctions(condition);
+    for (RexNode e : RelOptUtil.conjunctions(target)) {
+      boolean found = removeAll(conditions, e);
+      if (!found) {
+        return null;
+      }
+    }
+    return RexUtil.composeConjunction(rexBuilder, conditions, false);
+  }
+
   private static RexNode splitOr(
       final RexBuilder rexBuilder, RexNode condition, RexNode target) {
     List<RexNode> targets = RelOptUtil.disjunctions(target);
@@ -291,9 +314,22 @@ private static boolean removeAll(List<RexNode> targets, RexNode e) {
   /** Returns whether two expressions are equivalent. */
   private static boolean equivalent(RexNode e1, RexNode e2) {
     // TODO: make broader;
-    // 1. 'x = y' should be equivalent to 'y = x'.
-    // 2. 'c2 and c1' should be equivalent to 'c1 and c2'.
-    return e1 == e2 || e1.toString().equals(e2.toString());
+    // 'c2 and c1' should be equivalent to 'c1 and c2'.
+    if (e1 == e2 || e1.toString().equals(e2.toString())) {
+      return true;
+    }
+    // 'x = y' is equivalent to 'y = x'.
+    switch (e1.getKind()) {
+    case EQUALS:
+    case NOT_EQUALS:
+      if (e2.getKind() == e1.getKind()) {
+        final List<RexNode> operands1 = ((RexCall) e1).getOperands();
+        final List<RexNode> operands2 = ((RexCall) e2).getOperands();
+        return equivalent(operands1.get(0), operands2.get(1))
+            && equivalent(operands1.get(1), operands2.get(0));
+      }
+    }
+    return false;
   }
 
   /**
@@ -455,6 +491,11 @@ private UnifyResult matchRecurse(RelNode target) {
     final List<RelNode> targetInputs = target.getInputs();
     RelNode queryParent = null;
 
+    // If several inputs of the target (say the inputs of a join) match
+    // inputs of the same query node, that node must see all of the
+    // replacements, not just the last.
+    final Map<RelNode, RelNode> replacedParents =
+        new IdentityHashMap<RelNode, RelNode>();
     for (RelNode targetInput : targetInputs) {
       UnifyResult unifyResult = matchRecurse(targetInput);
       if (unifyResult == null) {
@@ -462,9 +503,14 @@ private UnifyResult matchRecurse(RelNode target) {
       }
       Parentage parentage = parentMap.get(unifyResult.call.query);
       parentMap.put(unifyResult.result, parentage);
-      queryParent = RelOptUtil.replaceInput(parentage.parent, parentage.ordinal,
+      RelNode parent = replacedParents.get(parentage.parent);
+      if (parent == null) {
+        parent = parentage.parent;
+      }
+      queryParent = RelOptUtil.replaceInput(parent, parentage.ordinal,
           unifyResult.result);
       equiv(queryParent, parentage.parent);
+      replacedParents.put(parentage.parent, queryParent);
     }
 
     if (targetInputs.isEmpty()) {
@@ -615,6 +661,19 @@ public Parentage parent(RelNode node) {
       return parentMap.get(node);
     }
 
+    /** Returns the parent of a node, with that node as its input, or null if
+     * it is the root. */
+    public RelNode ancestor(RelNode node) {
+      final Parentage parentage = parentMap.get(node);
+      if (parentage == null || parentage.parent == null) {
+        return null;
+      }
+      final RelNode parent =
+          RelOptUtil.replaceInput(parentage.parent, parentage.ordinal, node);
+      equiv(parent, parentage.parent);
+      return parent;
+    }
+
     UnifyResult result(RelNode result) {
       assert RelOptUtil.contains(result, target);
       assert RelOptUtil.equalType("result", result, "query", query, true);
@@ -703,6 +762,13 @@ private ProjectToProjectUnifyRule() {
     public UnifyResult apply(UnifyRuleCall call) {
       final ProjectRel target = (ProjectRel) call.target;
       final ProjectRel query = (ProjectRel) call.query;
+      if (query.getChild() != target.getChild()) {
+        // Query's child is equivalent to target's child, but (say, because it
+        // was matched to a join) has extra joins or filters.
+        final RelNode result =
+            unifyProject(query, null, query.getChild(), target);
+        return result == null ? null : call.result(result);
+      }
       final RexShuttle shuttle = getRexShuttle(target);
       final List<RexNode> newProjects;
       try {
@@ -739,6 +805,21 @@ private FilterToProjectUnifyRule() {
 
     public UnifyResult apply(UnifyRuleCall call) {
       // Child of projectTarget is equivalent to child of filterQuery.
+      if (call.query.getInput(0) != call.target.getInput(0)) {
+        // The child has extra joins or filters. We can only rewrite if we
+        // also rewrite the project above the filter.
+        final Parentage queryParent = call.parent(call.query);
+        if (queryParent == null
+            || !(queryParent.parent instanceof ProjectRel)) {
+          return null;
+        }
+        final FilterRel query = (FilterRel) call.query;
+        final UnifyRuleCall in2 = call.create(call.ancestor(query));
+        final RelNode result =
+            unifyProject((ProjectRel) in2.query, query.getCondition(),
+                query.getChild(), (ProjectRel) call.target);
+        return result == null ? null : in2.result(result);
+      }
       try {
         // TODO: make sure that constants are ok
         final ProjectRel target = (ProjectRel) call.target;
@@ -858,6 +939,232 @@ public UnifyResult apply(UnifyRuleCall call) {
     }
   }
 
+  /** Implementation of {@link UnifyRule} that matches a {@link JoinRel} to a
+   * {@link JoinRel}.
+   *
+   * <p>Both must be inner joins. The query may join the target's inputs in a
+   * different order, may join further inputs (for example, dimension tables
+   * that the target does not contain), may have a stronger condition than the
+   * target, and may project or filter the target's inputs. For example:</p>
+   *
+   * <ul>
+   * <li>query: SELECT * FROM depts AS d JOIN emps AS e
+   *   ON d.deptno = e.deptno AND e.sal &gt; 100
+   *   JOIN locations AS l ON d.locid = l.locid</li>
+   * <li>target: SELECT * FROM emps AS e JOIN depts AS d
+   *   ON e.deptno = d.deptno</li>
+   * <li>result: SELECT d.*, e.*, l.* FROM (target WHERE e.sal &gt; 100)
+   *   JOIN locations AS l ON d.locid = l.locid</li>
+   * </ul>
+   *
+   * <p>The result is a projection of a left-deep tree of joins whose leftmost
+   * input is the target (or a filter on the target);
+   * {@link SubstitutionVisitor#unifyProject} can match a project above it
+   * to a target project.</p>
+   */
+  private static class JoinToJoinUnifyRule extends AbstractUnifyRule {
+    public static final JoinToJoinUnifyRule INSTANCE =
+        new JoinToJoinUnifyRule();
+
+    private JoinToJoinUnifyRule() {
+      super(RelNode.class, JoinRel.class);
+    }
+
+    public UnifyResult apply(UnifyRuleCall call) {
+      final JoinRel target = (JoinRel) call.target;
+      if (!isInner(target)) {
+        return null;
+      }
+      // The query node may be a project on one of the target's inputs, or a
+      // join that contains only some of them (if the query joins them in a
+      // different order). Climb the query until we find a join that contains
+      // them all.
+      RelNode query = call.query;
+      for (;;) {
+        if (isInner(query)) {
+          final RelNode result = unifyJoins((JoinRel) query, target);
+          if (result != null) {
+            return (query == call.query ? call : call.create(query))
+                .result(result);
+          }
+        } else if (!(query instanceof ProjectRel)
+            && !(query instanceof FilterRel)) {
+          return null;
+        }
+        query = call.ancestor(query);
+        if (query == null) {
+          return null;
+        }
+      }
+    }
+
+    /** Rewrites a tree of inner joins in terms of a target join, or returns
+     * null. */
+    private static RelNode unifyJoins(JoinRel query, JoinRel target) {
+      final RelOptCluster cluster = query.getCluster();
+      final RexBuilder rexBuilder = cluster.getRexBuilder();
+
+      // Flatten the query into a list of inputs and a list of conditions on
+      // their combined fields.
+      final List<RelNode> targetInputs = target.getInputs();
+      final List<RelNode> leaves = new ArrayList<RelNode>();
+      final List<RexNode> conditions = new ArrayList<RexNode>();
+      flatten(query, 0, targetInputs, leaves, conditions);
+
+      // Each of the target's inputs must occur exactly once, possibly
+      // projected or filtered.
+      final int[] targetOffsets = new int[targetInputs.size()];
+      int offset = 0;
+      for (Ord<RelNode> targetInput : Ord.zip(targetInputs)) {
+        targetOffsets[targetInput.i] = offset;
+        offset += targetInput.e.getRowType().getFieldCount();
+      }
+      final int targetFieldCount = offset;
+      final BitSet usedInputs = new BitSet();
+      final List<RexNode> targetConditions = new ArrayList<RexNode>();
+
+      // The result has the target's fields, then the fields of the other
+      // query inputs. Express each query field in terms of result fields.
+      final List<RexNode> fieldExprs = new ArrayList<RexNode>();
+      final List<RelNode> extras = new ArrayList<RelNode>();
+      int extraOffset = targetFieldCount;
+      for (RelNode leaf : leaves) {
+        final List<RexNode> leafConditions = new ArrayList<RexNode>();
+        final int[] ordinals = {-1};
+        final List<RexNode> exprs =
+            peel(leaf, targetInputs, leafConditions, ordinals);
+        if (exprs != null) {
+          final int i = ordinals[0];
+          if (usedInputs.get(i)) {
+            return null;
+          }
+          usedInputs.set(i);
+          for (RexNode expr : exprs) {
+            fieldExprs.add(RexUtil.shift(expr, targetOffsets[i]));
+          }
+          for (RexNode leafCondition : leafConditions) {
+            targetConditions.add(
+                RexUtil.shift(leafCondition, targetOffsets[i]));
+          }
+        } else {
+          extras.add(leaf);
+          for (RelDataTypeField field : leaf.getRowType().getFieldList()) {
+            fieldExprs.add(
+                rexBuilder.makeInputRef(field.getType(),
+                    extraOffset + field.getIndex()));
+          }
+          extraOffset += leaf.getRowType().getFieldCount();
+        }
+      }
+      if (usedInputs.cardinality() != targetInputs.size()) {
+        return null;
+      }
+      assert fieldExprs.size() == query.getRowType().getFieldCount();
+
+      // Conditions on the target's fields must imply the target's condition;
+      // what remains is the residue. Other conditions join the extra inputs.
+      final RexShuttle shuttle = substitute(fieldExprs);
+      final List<RexNode> extraConditions = new ArrayList<RexNode>();
+      for (RexNode condition : conditions) {
+        for (RexNode e : RelOptUtil.conjunctions(condition)) {
+          final RexNode e2 = e.accept(shuttle);
+          if (RelOptUtil.InputFinder.bits(e2).length() <= targetFieldCount) {
+            targetConditions.add(e2);
+          } else {
+            extraConditions.add(e2);
+          }
+        }
+      }
+      final RexNode residue =
+          splitFilter(rexBuilder,
+              RexUtil.composeConjunction(rexBuilder, targetConditions, false),
+              target.getCondition());
+      if (residue == null) {
+        return null;
+      }
+      RelNode result = residue.isAlwaysTrue()
+          ? target
+          : new FilterRel(cluster, target, residue);
+      int width = targetFieldCount;
+      for (RelNode extra : extras) {
+        width += extra.getRowType().getFieldCount();
+        final List<RexNode> joinConditions = new ArrayList<RexNode>();
+        for (Iterator<RexNode> iterator = extraConditions.iterator();
+             iterator.hasNext();) {
+          final RexNode e = iterator.next();
+          if (RelOptUtil.InputFinder.bits(e).length() <= width) {
+            joinConditions.add(e);
+            iterator.remove();
+          }
+        }
+        result = new JoinRel(cluster, result, extra,
+            RexUtil.composeConjunction(rexBuilder, joinConditions, false),
+            JoinRelType.INNER, ImmutableSet.<String>of());
+      }
+      assert extraConditions.isEmpty();
+
+      // Restore the query's fields.
+      return RelOptUtil.createCastRel(
+          CalcRel.createProject(result, fieldExprs,
+              query.getRowType().getFieldNames(), true),
+          query.getRowType(), true);
+    }
+
+    /** Adds the inputs of a tree of inner joins to {@code leaves}, and their
+     * conditions, in terms of the fields of the whole tree, to
+     * {@code conditions}. */
+    private static void flatten(RelNode rel, int offset,
+        List<RelNode> targetInputs, List<RelNode> leaves,
+        List<RexNode> conditions) {
+      if (indexOf(targetInputs, rel) < 0 && isInner(rel)) {
+        final JoinRel join = (JoinRel) rel;
+        flatten(join.getLeft(), offset, targetInputs, leaves, conditions);
+        flatten(join.getRight(),
+            offset + join.getLeft().getRowType().getFieldCount(),
+            targetInputs, leaves, conditions);
+        conditions.add(RexUtil.shift(join.getCondition(), offset));
+        return;
+      }
+      leaves.add(rel);
+    }
+
+    /** If {@code rel} is one of the target's inputs, possibly under projects
+     * and filters, returns its fields in terms of the fields of that input,
+     * adds the conditions of the filters to {@code conditions}, and sets
+     * {@code ordinals[0]} to the ordinal of the input. Otherwise returns
+     * null. */
+    private static List<RexNode> peel(RelNode rel, List<RelNode> targetInputs,
+        List<RexNode> conditions, int[] ordinals) {
+      final int i = indexOf(targetInputs, rel);
+      if (i >= 0) {
+        ordinals[0] = i;
+        final List<RexNode> exprs = new ArrayList<RexNode>();
+        for (RelDataTypeField field : rel.getRowType().getFieldList()) {
+          exprs.add(new RexInputRef(field.getIndex(), field.getType()));
+        }
+        return exprs;
+      }
+      if (rel instanceof ProjectRel) {
+        final ProjectRel project = (ProjectRel) rel;
+        final List<RexNode> exprs =
+            peel(project.getChild(), targetInputs, conditions, ordinals);
+        return exprs == null
+            ? null
+            : substitute(exprs).apply(project.getProjects());
+      }
+      if (rel instanceof FilterRel) {
+        final FilterRel filter = (FilterRel) rel;
+        final List<RexNode> exprs =
+            peel(filter.getChild(), targetInputs, conditions, ordinals);
+        if (exprs != null) {
+          conditions.add(filter.getCondition().accept(substitute(exprs)));
+        }
+        return exprs;
+      }
+      return null;
+    }
+  }
+
   /** Implementation of {@link UnifyRule} that matches a {@link AggregateRel} to
    * a {@link AggregateRel}, provided that they have the same child. */
   private static class AggregateToAggregateUnifyRule extends AbstractUnifyRule {
@@ -943,6 +1250,7 @@ public static RelNode unifyAggregates(
         groupSet.set(c2);
       }
       final List<AggregateCall> aggregateCalls = Lists.newArrayList();
+      final int targetGroupCount = target.getGroupSet().cardinality();
       for (AggregateCall aggregateCall : query.getAggCallList()) {
         if (aggregateCall.isDistinct()) {
           return null;
@@ -951,10 +1259,14 @@ public static RelNode unifyAggregates(
         if (i < 0) {
           return null;
         }
+        final Aggregation rollup = getRollup(aggregateCall.getAggregation());
+        if (rollup == null) {
+          return null;
+        }
         aggregateCalls.add(
-            new AggregateCall(getRollup(aggregateCall.getAggregation()),
+            new AggregateCall(rollup,
                 aggregateCall.isDistinct(),
-                ImmutableList.of(groupSet.cardinality() + i),
+                ImmutableList.of(targetGroupCount + i),
                 aggregateCall.type, aggregateCall.name));
       }
       result = new AggregateRel(target.getCluster(), target, groupSet,
@@ -995,9 +1307,167 @@ public UnifyResult apply(UnifyRuleCall call) {
     }
   }
 
+  /** Returns the aggregate function that combines partial results of a
+   * given aggregate function, or null if partial results cannot be combined.
+   * For example, SUM rolls up using SUM, and COUNT rolls up using SUM0 (a
+   * SUM that returns 0, not null, if there are no rows). */
   public static Aggregation getRollup(Aggregation aggregation) {
-    // TODO: count rolls up using sum; etc.
-    return aggregation;
+    if (aggregation instanceof SqlSumAggFunction
+        || aggregation instanceof SqlSumEmptyIsZeroAggFunction
+        || aggregation instanceof SqlMinMaxAggFunction) {
+      return aggregation;
+    } else if (aggregation instanceof SqlCountAggFunction) {
+      return SqlStdOperatorTable.SUM0;
+    } else {
+      return null;
+    }
+  }
+
+  /** Rewrites a project (and, if {@code condition} is not null, a filter
+   * under it) in terms of a target project.
+   *
+   * <p>{@code input} is the input of the query filter or project. It is
+   * equivalent to the target's child, but may have been compensated by an
+   * earlier rule: it may be the target's child, a filter on it, joined to
+   * further inputs, and projected. For example, given</p>
+   *
+   * <ul>
+   * <li>query: SELECT e.name, l.city FROM (input)</li>
+   * <li>input: SELECT * FROM (child WHERE e.sal &gt; 100)
+   *   JOIN locations AS l ON d.locid = l.locid</li>
+   * <li>target: SELECT e.name, e.sal, d.locid FROM (child)</li>
+   * </ul>
+   *
+   * <p>returns</p>
+   *
+   * <ul>
+   * <li>result: SELECT t.name, l.city FROM (target AS t WHERE t.sal &gt; 100)
+   *   JOIN locations AS l ON t.locid = l.locid</li>
+   * </ul>
+   *
+   * <p>Returns null if {@code input} is not of that form, or if the target
+   * does not project the fields that the query needs.</p>
+   */
+  private static RelNode unifyProject(ProjectRel query, RexNode condition,
+      RelNode input, ProjectRel target) {
+    final RelNode child = target.getChild();
+    final RelOptCluster cluster = target.getCluster();
+    final RexBuilder rexBuilder = cluster.getRexBuilder();
+
+    // Decompose "input" into projects, joins to extra inputs, and a filter,
+    // in that order, above "child".
+    RelNode rel = input;
+    List<RexNode> exprs = null;
+    while (rel instanceof ProjectRel && rel != child) {
+      final ProjectRel project = (ProjectRel) rel;
+      exprs = exprs == null
+          ? project.getProjects()
+          : substitute(project.getProjects()).apply(exprs);
+      rel = project.getChild();
+    }
+    final List<RelNode> extras = new ArrayList<RelNode>();
+    final List<RexNode> joinConditions = new ArrayList<RexNode>();
+    while (isInner(rel) && rel != child) {
+      final JoinRel join = (JoinRel) rel;
+      extras.add(0, join.getRight());
+      joinConditions.add(0, join.getCondition());
+      rel = join.getLeft();
+    }
+    final List<RexNode> conditions = new ArrayList<RexNode>();
+    if (rel instanceof FilterRel && rel != child) {
+      conditions.add(((FilterRel) rel).getCondition());
+      rel = ((FilterRel) rel).getChild();
+    }
+    if (rel != child) {
+      return null;
+    }
+
+    // Fields of the child map to fields of the target; fields of the extra
+    // inputs follow the target's fields.
+    final int childFieldCount = child.getRowType().getFieldCount();
+    final int delta = target.getRowType().getFieldCount() - childFieldCount;
+    final RexShuttle targetShuttle = getRexShuttle(target);
+    final RexShuttle shuttle = new RexShuttle() {
+      @Override public RexNode visitInputRef(RexInputRef ref) {
+        if (ref.getIndex() >= childFieldCount) {
+          return new RexInputRef(ref.getIndex() + delta, ref.getType());
+        }
+        return ref.accept(targetShuttle);
+      }
+
+      @Override public RexNode visitCall(RexCall call) {
+        if (RelOptUtil.InputFinder.bits(call).length() <= childFieldCount) {
+          return call.accept(targetShuttle);
+        }
+        return super.visitCall(call);
+      }
+    };
+    List<RexNode> projects = query.getProjects();
+    if (exprs != null) {
+      projects = substitute(exprs).apply(projects);
+      if (condition != null) {
+        condition = condition.accept(substitute(exprs));
+      }
+    }
+    if (condition != null) {
+      conditions.add(condition);
+    }
+    RelNode result = target;
+    final List<RexNode> newProjects;
+    try {
+      for (Pair<RelNode, RexNode> pair : Pair.zip(extras, joinConditions)) {
+        result = new JoinRel(cluster, result, pair.left,
+            pair.right.accept(shuttle), JoinRelType.INNER,
+            ImmutableSet.<String>of());
+      }
+      if (!conditions.isEmpty()) {
+        result = new FilterRel(cluster, result,
+            RexUtil.composeConjunction(rexBuilder, shuttle.apply(conditions),
+                false));
+      }
+      newProjects = shuttle.apply(projects);
+    } catch (MatchFailed e) {
+      return null;
+    }
+    final ProjectRel newProject =
+        new ProjectRel(
+            cluster,
+            cluster.traitSetOf(
+                query.getCollationList().isEmpty()
+                    ? RelCollationImpl.EMPTY
+                    : query.getCollationList().get(0)),
+            result,
+            newProjects,
+            query.getRowType(),
+            query.getFlags());
+    return RemoveTrivialProjectRule.strip(newProject);
+  }
+
+  /** Returns whether a relational expression is an inner join. */
+  private static boolean isInner(RelNode rel) {
+    return rel instanceof JoinRel
+        && ((JoinRel) rel).getJoinType() == JoinRelType.INNER;
+  }
+
+  /** Returns the position of a relational expression in a list, comparing
+   * by identity, or -1 if it is not present. */
+  private static int indexOf(List<RelNode> rels, RelNode rel) {
+    for (Ord<RelNode> r : Ord.zip(rels)) {
+      if (r.e == rel) {
+        return r.i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns a shuttle that replaces each reference to input field {@code i}
+   * with {@code exprs[i]}. */
+  private static RexShuttle substitute(final List<RexNode> exprs) {
+    return new RexShuttle() {
+      @Override public RexNode visitInputRef(RexInputRef ref) {
+        return exprs.get(ref.getIndex());
+      }
+    };
   }
 
   private static RexShuttle getRexShuttle(ProjectRel target) {
@@ -419,6 +419,13 @@ public List<RelNode> getRelList() {
   static class CheapestPlanReplacer {
     VolcanoPlanner planner;
 
+    /** Plan already built for each subset. If a subset is used more than
+     * once, every use gets the same relational expression, so that the
+     * result is a DAG, and an implementation can compute the shared
+     * expression only once. */
+    final Map<RelSubset, RelNode> subsetPlans =
+        new HashMap<RelSubset, RelNode>();
+
     CheapestPlanReplacer(VolcanoPlanner planner) {
       super();
       this.planner = planner;
@@ -429,27 +436,39 @@ public RelNode visit(
         int ordinal,
         RelNode parent) {
       if (p instanceof RelSubset) {
-        RelSubset subset = (RelSubset) p;
-        RelNode cheapest = subset.best;
-        if (cheapest == null) {
-          // Dump the planner's expression pool so we can figure
-          // out why we reached impasse.
-          StringWriter sw = new StringWriter();
-          final PrintWriter pw = new PrintWriter(sw);
-          pw.println(
-              "Node [" + subset.getDescription()
-              + "] could not be implemented; planner state:\n");
-          planner.dump(pw);
-          pw.flush();
-          final String dump = sw.toString();
-          RuntimeException e =
-              new RelOptPlanner.CannotPlanException(dump);
-          LOGGER.throwing(getClass().getName(), "visit", e);
-          throw e;
+        final RelSubset subset = (RelSubset) p;
+        RelNode plan = subsetPlans.get(subset);
+        if (plan == null) {
+          plan = visitSubset(subset, ordinal);
+          subsetPlans.put(subset, plan);
         }
-        p = cheapest;
+        return plan;
       }
+      return visitRel(p, ordinal);
+    }
+
+    private RelNode visitSubset(RelSubset subset, int ordinal) {
+      RelNode cheapest = subset.best;
+      if (cheapest == null) {
+        // Dump the planner's expression pool so we can figure
+        // out why we reached impasse.
+        StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        pw.println(
+            "Node [" + subset.getDescription()
+            + "] could not be implemented; planner state:\n");
+        planner.dump(pw);
+        pw.flush();
+        final String dump = sw.toString();
+        RuntimeException e =
+            new RelOptPlanner.CannotPlanException(dump);
+        LOGGER.throwing(getClass().getName(), "visit", e);
+        throw e;
+      }
+      return visitRel(cheapest, ordinal);
+    }
 
+    private RelNode visitRel(RelNode p, int ordinal) {
       if (ordinal != -1) {
         if (planner.listener != null) {
           RelOptListener.RelChosenEvent event =
@@ -34,6 +34,7 @@
 
 import net.hydromatic.linq4j.expressions.Expressions;
 
+import net.hydromatic.optiq.runtime.Hook;
 import net.hydromatic.optiq.runtime.Spaces;
 import net.hydromatic.optiq.util.graph.*;
 
@@ -344,13 +345,67 @@ private void useApplicableMaterializations() {
     final Graphs.FrozenGraph<List<String>, DefaultEdge> frozenGraph =
         Graphs.makeImmutable(usesGraph);
     final Set<RelOptTable> queryTables = findTables(originalRoot);
+    final List<RelOptMaterialization> applicable =
+        new ArrayList<RelOptMaterialization>();
     for (RelOptMaterialization materialization : materializations) {
       if (materialization.table != null) {
         if (usesTable(materialization.table, queryTables, frozenGraph)) {
-          useMaterialization(materialization);
+          applicable.add(materialization);
         }
       }
     }
+
+    // Of those, reject materializations whose signature shows that they
+    // cannot answer the query. Unification is expensive, and when there are
+    // many materializations over the same tables, most are irrelevant.
+    final MaterializationSignature querySignature =
+        applicable.isEmpty()
+            ? null
+            : MaterializationSignature.of(originalRoot);
+    final Set<List<String>> materializedTables = new HashSet<List<String>>();
+    for (RelOptMaterialization materialization : materializations) {
+      if (materialization.table != null) {
+        materializedTables.add(materialization.table.getQualifiedName());
+      }
+    }
+    int rejectedCount = 0;
+    for (RelOptMaterialization materialization : applicable) {
+      if (querySignature != null
+          && !mayAnswer(materialization, querySignature, materializedTables)) {
+        ++rejectedCount;
+        continue;
+      }
+      useMaterialization(materialization);
+    }
+    if (materializations.isEmpty()) {
+      return;
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Materializations: " + materializations.size()
+          + " defined, " + applicable.size() + " use a table in the query, "
+          + rejectedCount + " rejected by signature");
+    }
+    Hook.MATERIALIZATION_FILTER.run(
+        new int[] {materializations.size(), applicable.size(), rejectedCount});
+  }
+
+  /**
+   * Returns whether a materialization might be able to answer the query,
+   * judging by signatures. Returns true if unsure, for instance if the
+   * materialization is defined in terms of a star table or another
+   * materialization.
+   */
+  private static boolean mayAnswer(RelOptMaterialization materialization,
+      MaterializationSignature querySignature,
+      Set<List<String>> materializedTables) {
+    if (materialization.starTable != null) {
+      return true;
+    }
+    final MaterializationSignature signature =
+        materialization.getSignature();
+    return signature == null
+        || !Collections.disjoint(signature.getTables(), materializedTables)
+        || signature.mayAnswer(querySignature);
   }
 
   /**
@@ -62,6 +62,38 @@ public RexExecutorImpl(DataContext dataContext) {
 
   public void execute(RexBuilder rexBuilder, List<RexNode> constExps,
       List<RexNode> reducedValues) {
+    // Evaluate what we can without generating code; compiling a class
+    // costs far more than the expressions themselves.
+    final RexNode[] results = new RexNode[constExps.size()];
+    final List<RexNode> compileExps = new ArrayList<RexNode>();
+    final List<Integer> compileOrdinals = new ArrayList<Integer>();
+    for (int i = 0; i < constExps.size(); i++) {
+      final RexNode node = constExps.get(i);
+      try {
+        results[i] =
+            rexBuilder.makeLiteral(
+                RexInterpreter.evaluate(node), node.getType(), true);
+      } catch (RuntimeException e) {
+        // Unsupported operator, or an error such as division by zero that
+        // the generated code should raise.
+        compileExps.add(node);
+        compileOrdinals.add(i);
+      }
+    }
+    if (!compileExps.isEmpty()) {
+      final Object[] values = compile(rexBuilder, compileExps);
+      for (int i = 0; i < values.length; i++) {
+        final RexNode node = compileExps.get(i);
+        results[compileOrdinals.get(i)] =
+            rexBuilder.makeLiteral(values[i], node.getType(), true);
+      }
+    }
+    reducedValues.addAll(Arrays.asList(results));
+  }
+
+  /** Generates and compiles code to evaluate a list of expressions, and
+   * returns their values. */
+  private Object[] compile(RexBuilder rexBuilder, List<RexNode> constExps) {
     final RelDataTypeFactory typeFactory = rexBuilder.getTypeFactory();
     final RelDataType emptyRowType = typeFactory.builder().build();
     final RexProgramBuilder programBuilder =
@@ -104,12 +136,8 @@ public void execute(RexBuilder rexBuilder, List<RexNode> constExps,
               getClass().getClassLoader());
       Object[] values = function.apply(dataContext);
       assert values.length == constExps.size();
-      final List<Object> valueList = Arrays.asList(values);
-      for (Pair<RexNode, Object> value : Pair.zip(constExps, valueList)) {
-        reducedValues.add(
-            rexBuilder.makeLiteral(value.right, value.left.getType(), true));
-      }
       Hook.EXPRESSION_REDUCER.run(Pair.of(s, values));
+      return values;
     } catch (CompileException e) {
       throw new RuntimeException("While evaluating " + constExps, e);
     } catch (IOException e) {
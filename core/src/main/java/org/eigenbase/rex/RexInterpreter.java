@@ -0,0 +1,543 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.eigenbase.rex;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.sql.SqlKind;
+import org.eigenbase.sql.SqlOperator;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.util.NlsString;
+
+import net.hydromatic.optiq.DataContext;
+import net.hydromatic.optiq.runtime.SqlFunctions;
+
+/**
+ * Evaluates {@link RexNode} expressions without generating code.
+ *
+ * <p>Covers literals, input fields, parameters, and the common
+ * {@link SqlStdOperatorTable} operators: arithmetic, comparison, logical,
+ * null tests, CASE, simple CASTs, and a few string functions. Results are
+ * the same as the generated code would produce; for instance, INTEGER
+ * arithmetic overflows as Java {@code int} arithmetic does.</p>
+ *
+ * <p>{@link #scalar} translates an expression once, and throws
+ * {@link UnsupportedOperationException} if the expression contains anything
+ * else; the caller should generate code instead. Whether an expression is
+ * supported depends only on its operators and types, never on the values it
+ * is applied to.</p>
+ *
+ * <p>Values are represented loosely: a numeric value is any {@link Number},
+ * a character value is a {@link String} or {@link NlsString}, and a boolean
+ * value is a {@link Boolean}.</p>
+ */
+public class RexInterpreter {
+  private static final Set<SqlTypeName> INTEGER_TYPES =
+      EnumSet.of(SqlTypeName.TINYINT, SqlTypeName.SMALLINT,
+          SqlTypeName.INTEGER, SqlTypeName.BIGINT);
+
+  private static final Set<SqlTypeName> CHAR_TYPES =
+      EnumSet.of(SqlTypeName.CHAR, SqlTypeName.VARCHAR);
+
+  private RexInterpreter() {
+  }
+
+  /** Evaluates a constant expression.
+   *
+   * <p>The result is null, or a value that
+   * {@link RexBuilder#makeLiteral(Object, RelDataType, boolean)} accepts for
+   * the expression's type.</p>
+   *
+   * @throws UnsupportedOperationException if the expression is not
+   *   constant, or uses an operator or type that is not supported */
+  public static Object evaluate(RexNode node) {
+    return scalar(node).execute(null, null);
+  }
+
+  /** Translates an expression into a {@link Scalar}.
+   *
+   * @throws UnsupportedOperationException if the expression uses an
+   *   operator or type that is not supported */
+  public static Scalar scalar(RexNode node) {
+    if (node instanceof RexLiteral) {
+      final Object value = ((RexLiteral) node).getValue();
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          return value;
+        }
+      };
+    }
+    if (node instanceof RexInputRef) {
+      final int index = ((RexInputRef) node).getIndex();
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          return values[index];
+        }
+      };
+    }
+    if (node instanceof RexDynamicParam) {
+      final String name = "?" + ((RexDynamicParam) node).getIndex();
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          return dataContext.get(name);
+        }
+      };
+    }
+    if (node instanceof RexCall) {
+      return call((RexCall) node);
+    }
+    throw unsupported(node);
+  }
+
+  private static Scalar call(final RexCall call) {
+    final SqlOperator op = call.getOperator();
+    final List<RexNode> operands = call.getOperands();
+    final Scalar[] args = new Scalar[operands.size()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = scalar(operands.get(i));
+    }
+
+    // Operators that do not necessarily evaluate all of their operands, or
+    // that handle null operands themselves.
+    if (op == SqlStdOperatorTable.AND
+        || op == SqlStdOperatorTable.OR) {
+      final Boolean stop = op == SqlStdOperatorTable.OR;
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          boolean sawNull = false;
+          for (Scalar arg : args) {
+            final Object b = arg.execute(values, dataContext);
+            if (b == null) {
+              sawNull = true;
+            } else if (b.equals(stop)) {
+              return stop;
+            }
+          }
+          return sawNull ? null : !stop;
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.CASE) {
+      // A branch whose type differs from the result would need a
+      // conversion; leave it to generated code.
+      for (int i = 1; i < operands.size(); i += 2) {
+        checkType(call, operands.get(i));
+      }
+      checkType(call, operands.get(operands.size() - 1));
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          int i = 0;
+          for (; i + 1 < args.length; i += 2) {
+            if (Boolean.TRUE.equals(args[i].execute(values, dataContext))) {
+              return args[i + 1].execute(values, dataContext);
+            }
+          }
+          return args[i].execute(values, dataContext);
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.IS_NULL
+        || op == SqlStdOperatorTable.IS_NOT_NULL
+        || op == SqlStdOperatorTable.IS_TRUE
+        || op == SqlStdOperatorTable.IS_NOT_TRUE
+        || op == SqlStdOperatorTable.IS_FALSE
+        || op == SqlStdOperatorTable.IS_NOT_FALSE) {
+      // "x IS NOT TRUE" is "NOT (x IS TRUE)", and so forth.
+      final boolean negate = op == SqlStdOperatorTable.IS_NOT_NULL
+          || op == SqlStdOperatorTable.IS_NOT_TRUE
+          || op == SqlStdOperatorTable.IS_NOT_FALSE;
+      final Boolean seek =
+          op == SqlStdOperatorTable.IS_NULL
+          || op == SqlStdOperatorTable.IS_NOT_NULL
+              ? null
+              : Boolean.valueOf(op == SqlStdOperatorTable.IS_TRUE
+                  || op == SqlStdOperatorTable.IS_NOT_TRUE);
+      return new Scalar() {
+        public Object execute(Object[] values, DataContext dataContext) {
+          final Object b = args[0].execute(values, dataContext);
+          return negate != (seek == null ? b == null : seek.equals(b));
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.CAST) {
+      return cast(call.getType(), operands.get(0), args[0]);
+    }
+
+    // Strict operators: the result is null if any operand is null.
+    if (op == SqlStdOperatorTable.NOT) {
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          return !(Boolean) a[0];
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.EQUALS
+        || op == SqlStdOperatorTable.NOT_EQUALS
+        || op == SqlStdOperatorTable.LESS_THAN
+        || op == SqlStdOperatorTable.LESS_THAN_OR_EQUAL
+        || op == SqlStdOperatorTable.GREATER_THAN
+        || op == SqlStdOperatorTable.GREATER_THAN_OR_EQUAL) {
+      return comparison(call, args);
+    }
+    if (op == SqlStdOperatorTable.PLUS
+        || op == SqlStdOperatorTable.MINUS
+        || op == SqlStdOperatorTable.MULTIPLY
+        || op == SqlStdOperatorTable.DIVIDE
+        || op == SqlStdOperatorTable.UNARY_MINUS) {
+      return arithmetic(call, args);
+    }
+    if (op == SqlStdOperatorTable.UNARY_PLUS) {
+      checkType(call, operands.get(0));
+      return args[0];
+    }
+    if (op == SqlStdOperatorTable.CONCAT) {
+      checkChar(operands);
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          return SqlFunctions.concat(string(a[0]), string(a[1]));
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.UPPER) {
+      checkChar(operands);
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          return SqlFunctions.upper(string(a[0]));
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.LOWER) {
+      checkChar(operands);
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          return SqlFunctions.lower(string(a[0]));
+        }
+      };
+    }
+    if (op == SqlStdOperatorTable.CHAR_LENGTH
+        || op == SqlStdOperatorTable.CHARACTER_LENGTH) {
+      checkChar(operands);
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          return SqlFunctions.charLength(string(a[0]));
+        }
+      };
+    }
+    throw unsupported(call);
+  }
+
+  private static UnsupportedOperationException unsupported(RexNode node) {
+    return new UnsupportedOperationException("cannot interpret " + node);
+  }
+
+  private static boolean sameType(RelDataType type0, RelDataType type1) {
+    return type0.getSqlTypeName() == type1.getSqlTypeName()
+        && type0.getPrecision() == type1.getPrecision()
+        && type0.getScale() == type1.getScale();
+  }
+
+  /** Throws unless an operand's value can be returned as the value of a
+   * call without conversion. */
+  private static void checkType(RexCall call, RexNode operand) {
+    if (!sameType(operand.getType(), call.getType())
+        && !RexLiteral.isNullLiteral(operand)) {
+      throw unsupported(call);
+    }
+  }
+
+  private static void checkChar(List<RexNode> operands) {
+    for (RexNode operand : operands) {
+      if (!CHAR_TYPES.contains(operand.getType().getSqlTypeName())) {
+        throw unsupported(operand);
+      }
+    }
+  }
+
+  private static String string(Object o) {
+    return o instanceof NlsString ? ((NlsString) o).getValue() : (String) o;
+  }
+
+  private static boolean isExact(SqlTypeName typeName) {
+    return INTEGER_TYPES.contains(typeName) || typeName == SqlTypeName.DECIMAL;
+  }
+
+  private static BigDecimal decimal(Object o) {
+    return o instanceof BigDecimal
+        ? (BigDecimal) o
+        : BigDecimal.valueOf(((Number) o).longValue());
+  }
+
+  /** Translates a comparison. Numbers compare as the generated code would,
+   * after promoting them to a common type; strings compare as Java strings
+   * do, and FALSE is less than TRUE. */
+  private static Scalar comparison(RexCall call, Scalar[] args) {
+    final SqlTypeName t0 = call.getOperands().get(0).getType().getSqlTypeName();
+    final SqlTypeName t1 = call.getOperands().get(1).getType().getSqlTypeName();
+    final SqlKind kind = call.getKind();
+    if (isExact(t0) && isExact(t1)) {
+      return new Comparison(args, kind) {
+        int compare(Object v0, Object v1) {
+          return decimal(v0).compareTo(decimal(v1));
+        }
+      };
+    }
+    if ((isExact(t0) || t0 == SqlTypeName.DOUBLE)
+        && (isExact(t1) || t1 == SqlTypeName.DOUBLE)) {
+      return new Comparison(args, kind) {
+        int compare(Object v0, Object v1) {
+          final double d0 = ((Number) v0).doubleValue();
+          final double d1 = ((Number) v1).doubleValue();
+          return d0 < d1 ? -1 : d0 > d1 ? 1 : 0;
+        }
+      };
+    }
+    if (CHAR_TYPES.contains(t0) && CHAR_TYPES.contains(t1)) {
+      return new Comparison(args, kind) {
+        int compare(Object v0, Object v1) {
+          return string(v0).compareTo(string(v1));
+        }
+      };
+    }
+    if (t0 == SqlTypeName.BOOLEAN && t1 == SqlTypeName.BOOLEAN) {
+      return new Comparison(args, kind) {
+        int compare(Object v0, Object v1) {
+          return ((Boolean) v0).compareTo((Boolean) v1);
+        }
+      };
+    }
+    throw unsupported(call);
+  }
+
+  private static Scalar arithmetic(RexCall call, Scalar[] args) {
+    final SqlOperator op = call.getOperator();
+    final SqlTypeName typeName = call.getType().getSqlTypeName();
+    for (RexNode operand : call.getOperands()) {
+      final SqlTypeName t = operand.getType().getSqlTypeName();
+      if (!isExact(t)
+          && !(t == SqlTypeName.DOUBLE && typeName == SqlTypeName.DOUBLE)) {
+        throw unsupported(call);
+      }
+      if (INTEGER_TYPES.contains(typeName) && !INTEGER_TYPES.contains(t)) {
+        throw unsupported(call);
+      }
+    }
+    final int operator =
+        op == SqlStdOperatorTable.UNARY_MINUS ? 0
+        : op == SqlStdOperatorTable.PLUS ? 1
+        : op == SqlStdOperatorTable.MINUS ? 2
+        : op == SqlStdOperatorTable.MULTIPLY ? 3
+        : 4;
+    switch (typeName) {
+    case INTEGER:
+    case BIGINT:
+      // Compute in long, then narrow. Gives the same result as int
+      // arithmetic, including on overflow.
+      final boolean narrow = typeName == SqlTypeName.INTEGER;
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          final long l0 = ((Number) a[0]).longValue();
+          final long l;
+          switch (operator) {
+          case 0:
+            l = -l0;
+            break;
+          case 1:
+            l = l0 + ((Number) a[1]).longValue();
+            break;
+          case 2:
+            l = l0 - ((Number) a[1]).longValue();
+            break;
+          case 3:
+            l = l0 * ((Number) a[1]).longValue();
+            break;
+          default:
+            l = l0 / ((Number) a[1]).longValue();
+          }
+          return narrow ? Integer.valueOf((int) l) : Long.valueOf(l);
+        }
+      };
+    case DECIMAL:
+      if (operator == 4) {
+        // Decimal division depends on the rounding rules of the generated
+        // code.
+        throw unsupported(call);
+      }
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          final BigDecimal b0 = decimal(a[0]);
+          switch (operator) {
+          case 0:
+            return b0.negate();
+          case 1:
+            return b0.add(decimal(a[1]));
+          case 2:
+            return b0.subtract(decimal(a[1]));
+          default:
+            return b0.multiply(decimal(a[1]));
+          }
+        }
+      };
+    case DOUBLE:
+      return new Strict(args) {
+        Object apply(Object[] a) {
+          final double d0 = ((Number) a[0]).doubleValue();
+          switch (operator) {
+          case 0:
+            return -d0;
+          case 1:
+            return d0 + ((Number) a[1]).doubleValue();
+          case 2:
+            return d0 - ((Number) a[1]).doubleValue();
+          case 3:
+            return d0 * ((Number) a[1]).doubleValue();
+          default:
+            return d0 / ((Number) a[1]).doubleValue();
+          }
+        }
+      };
+    default:
+      throw unsupported(call);
+    }
+  }
+
+  private static Scalar cast(final RelDataType type, RexNode operand,
+      Scalar arg) {
+    final RelDataType fromType = operand.getType();
+    final SqlTypeName from = fromType.getSqlTypeName();
+    final SqlTypeName to = type.getSqlTypeName();
+    if (sameType(fromType, type) || RexLiteral.isNullLiteral(operand)) {
+      return arg;
+    }
+    if (INTEGER_TYPES.contains(from) && INTEGER_TYPES.contains(to)) {
+      // Narrow as a Java cast would.
+      return new Strict(arg) {
+        Object apply(Object[] a) {
+          final long l = ((Number) a[0]).longValue();
+          switch (to) {
+          case TINYINT:
+            return (byte) l;
+          case SMALLINT:
+            return (short) l;
+          case INTEGER:
+            return (int) l;
+          default:
+            return l;
+          }
+        }
+      };
+    }
+    if (INTEGER_TYPES.contains(from) && to == SqlTypeName.DOUBLE) {
+      return new Strict(arg) {
+        Object apply(Object[] a) {
+          return (double) ((Number) a[0]).longValue();
+        }
+      };
+    }
+    if (CHAR_TYPES.contains(from) && to == SqlTypeName.VARCHAR) {
+      // As generated code: going from CHAR(n), trim; and truncate unless
+      // the cast is widening.
+      final boolean trim = from == SqlTypeName.CHAR;
+      final int precision = type.getPrecision();
+      final boolean truncate = precision >= 0
+          && fromType.getPrecision() > precision;
+      return new Strict(arg) {
+        Object apply(Object[] a) {
+          String s = string(a[0]);
+          if (trim) {
+            s = SqlFunctions.rtrim(s);
+          }
+          return truncate ? SqlFunctions.truncate(s, precision) : s;
+        }
+      };
+    }
+    throw unsupported(operand);
+  }
+
+  /** Expression that has been translated by {@link #scalar} and can be
+   * evaluated many times. */
+  public interface Scalar {
+    /** Evaluates this expression.
+     *
+     * @param values Values of input fields; may be null if the expression
+     *   references no fields
+     * @param dataContext Supplies values of parameters; may be null if the
+     *   expression references no parameters
+     * @return Value of this expression
+     */
+    Object execute(Object[] values, DataContext dataContext);
+  }
+
+  /** Scalar whose value is null if any of its arguments is null. */
+  private abstract static class Strict implements Scalar {
+    private final Scalar[] args;
+
+    Strict(Scalar... args) {
+      this.args = args;
+    }
+
+    public Object execute(Object[] values, DataContext dataContext) {
+      final Object[] a = new Object[args.length];
+      for (int i = 0; i < args.length; i++) {
+        a[i] = args[i].execute(values, dataContext);
+        if (a[i] == null) {
+          return null;
+        }
+      }
+      return apply(a);
+    }
+
+    /** Computes the value, given the values of the arguments, none of
+     * which is null. */
+    abstract Object apply(Object[] a);
+  }
+
+  /** Scalar that compares two values. */
+  private abstract static class Comparison extends Strict {
+    private final SqlKind kind;
+
+    Comparison(Scalar[] args, SqlKind kind) {
+      super(args);
+      this.kind = kind;
+    }
+
+    Object apply(Object[] a) {
+      final int c = compare(a[0], a[1]);
+      switch (kind) {
+      case EQUALS:
+        return c == 0;
+      case NOT_EQUALS:
+        return c != 0;
+      case LESS_THAN:
+        return c < 0;
+      case LESS_THAN_OR_EQUAL:
+        return c <= 0;
+      case GREATER_THAN:
+        return c > 0;
+      default:
+        return c >= 0;
+      }
+    }
+
+    abstract int compare(Object v0, Object v1);
+  }
+}
+
+// End RexInterpreter.java
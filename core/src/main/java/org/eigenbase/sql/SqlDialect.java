@@ -414,6 +414,120 @@ public boolean supportsCharSet() {
     }
   }
 
+  /**
+   * Returns whether the dialect supports the standard
+   * {@code OFFSET n ROWS FETCH NEXT n ROWS ONLY} clauses, with or without an
+   * {@code ORDER BY} clause.
+   */
+  public boolean supportsOffsetFetch() {
+    switch (databaseProduct) {
+    case DB2:
+    case DERBY:
+    case HSQLDB:
+    case LUCIDDB:
+    case POSTGRESQL:
+    case SQLSTREAM:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Returns whether the dialect supports the non-standard
+   * {@code LIMIT n OFFSET n} clauses.
+   */
+  public boolean supportsLimitOffset() {
+    switch (databaseProduct) {
+    case HSQLDB:
+    case INFOBRIGHT:
+    case MYSQL:
+    case NETEZZA:
+    case PARACCEL:
+    case POSTGRESQL:
+    case VERTICA:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Writes the clauses that skip {@code offset} rows and return at most
+   * {@code fetch} rows of a query; either may be null.
+   *
+   * <p>Generates the standard {@code OFFSET n ROWS FETCH NEXT n ROWS ONLY},
+   * or {@code LIMIT n OFFSET n} if the dialect supports only that. (Callers
+   * should not generate an OFFSET without a FETCH for a dialect that does not
+   * allow OFFSET without LIMIT.) Used by both {@code SELECT} and
+   * {@code ORDER BY}.</p>
+   */
+  public void unparseOffsetFetch(SqlWriter writer, SqlNode offset,
+      SqlNode fetch) {
+    if (!supportsOffsetFetch() && supportsLimitOffset()) {
+      if (fetch != null) {
+        final SqlWriter.Frame fetchFrame =
+            writer.startList(SqlWriter.FrameTypeEnum.FETCH);
+        writer.newlineAndIndent();
+        writer.keyword("LIMIT");
+        fetch.unparse(writer, -1, -1);
+        writer.endList(fetchFrame);
+      }
+      if (offset != null) {
+        final SqlWriter.Frame offsetFrame =
+            writer.startList(SqlWriter.FrameTypeEnum.OFFSET);
+        writer.newlineAndIndent();
+        writer.keyword("OFFSET");
+        offset.unparse(writer, -1, -1);
+        writer.endList(offsetFrame);
+      }
+      return;
+    }
+    if (offset != null) {
+      final SqlWriter.Frame offsetFrame =
+          writer.startList(SqlWriter.FrameTypeEnum.OFFSET);
+      writer.newlineAndIndent();
+      writer.keyword("OFFSET");
+      offset.unparse(writer, -1, -1);
+      writer.keyword("ROWS");
+      writer.endList(offsetFrame);
+    }
+    if (fetch != null) {
+      final SqlWriter.Frame fetchFrame =
+          writer.startList(SqlWriter.FrameTypeEnum.FETCH);
+      writer.newlineAndIndent();
+      writer.keyword("FETCH");
+      writer.keyword("NEXT");
+      fetch.unparse(writer, -1, -1);
+      writer.keyword("ROWS");
+      writer.keyword("ONLY");
+      writer.endList(fetchFrame);
+    }
+  }
+
+  /**
+   * Returns whether the dialect supports windowed aggregate functions, for
+   * instance {@code SUM(x) OVER (PARTITION BY y ORDER BY z)}.
+   */
+  public boolean supportsWindowFunctions() {
+    switch (databaseProduct) {
+    case DB2:
+    case HIVE:
+    case LUCIDDB:
+    case MSSQL:
+    case NETEZZA:
+    case ORACLE:
+    case PARACCEL:
+    case POSTGRESQL:
+    case SQLSTREAM:
+    case TERADATA:
+    case VERTICA:
+      return true;
+    default:
+      return false;
+    }
+  }
+
   /**
    * A few utility functions copied from org.eigenbase.util.Util. We have
    * copied them because we wish to keep SqlDialect's dependencies to a
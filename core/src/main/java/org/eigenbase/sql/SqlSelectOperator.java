@@ -239,6 +239,8 @@ public void unparse(
       unparseListClause(writer, select.orderBy);
       writer.endList(orderFrame);
     }
+    writer.getDialect().unparseOffsetFetch(writer, select.offset,
+        select.fetch);
     writer.endList(selectFrame);
   }
 
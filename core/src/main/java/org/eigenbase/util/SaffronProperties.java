@@ -234,6 +234,16 @@ public String getDefaultValue() {
   public final BooleanProperty generateCalcProgramComments =
       new BooleanProperty(this, "saffron.calc.comments.generate", true);
 
+  /**
+   * The boolean property "saffron.materialize.async" determines whether
+   * materialized tables are populated in the background, so that defining a
+   * materialization does not wait for its query to execute. The default is
+   * "false". Used in {@link
+   * net.hydromatic.optiq.materialize.MaterializationService}.
+   */
+  public final BooleanProperty materializeAsync =
+      new BooleanProperty(this, "saffron.materialize.async", false);
+
   //~ Constructors -----------------------------------------------------------
 
   /**
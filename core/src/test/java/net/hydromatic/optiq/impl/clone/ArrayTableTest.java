@@ -19,15 +19,23 @@
 
 import net.hydromatic.linq4j.Enumerable;
 import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Predicate1;
 
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
+import net.hydromatic.optiq.runtime.Hook;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeImpl;
 
 import org.junit.Test;
 
+import com.google.common.base.Suppliers;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -350,6 +358,151 @@ public class ArrayTableTest {
         "Column(representation=ObjectArray(ordinal=2), value=[Bill, Sebastian, Theodore, Eric])");
   }
 
+  /** Tests evaluating conditions on the codes of a dictionary-encoded
+   * column, rather than on its values. */
+  @Test public void testDictionaryFilter() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("city", typeFactory.createType(String.class))
+            .build();
+    final String[] cities = {"Paris", "London", null, "Berlin", "Rome"};
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 3000; i++) {
+      rows.add(new Object[]{i, cities[i % cities.length]});
+    }
+    final ColumnLoader<Object[]> loader =
+        new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+            RelDataTypeImpl.proto(rowType), null);
+    final ArrayTable table =
+        new ArrayTable(Object[].class, RelDataTypeImpl.proto(rowType),
+            Suppliers.ofInstance(
+                new ArrayTable.Content(loader.representationValues,
+                    loader.size(), loader.sortField)));
+    assertEquals(ArrayTable.RepresentationType.OBJECT_DICTIONARY,
+        table.representationType(1));
+
+    // Dictionary is sorted, with null last: Berlin, London, Paris, Rome,
+    // null. The predicate is evaluated once per value.
+    final int[] count = {0};
+    final BitSet codes =
+        table.codes(1,
+            new Predicate1<Object>() {
+              public boolean apply(Object v) {
+                ++count[0];
+                return v != null && ((String) v).contains("o");
+              }
+            });
+    assertEquals(5, count[0]);
+    assertEquals("{1, 3}", codes.toString());
+
+    // "city >= 'C' and city < 'Rome'" and "city > 'Rome'"
+    final BitSet codes2 =
+        table.codeRanges(1,
+            new Object[] {"C", "Rome", "Rome", null},
+            new int[] {ArrayTable.CLOSED, ArrayTable.OPEN,
+                ArrayTable.OPEN, ArrayTable.UNBOUNDED});
+    assertEquals("{1, 2}", codes2.toString());
+
+    int n = 0;
+    for (Object row : table.filter(new int[] {1}, new BitSet[] {codes2})) {
+      final String city = (String) ((Object[]) row)[1];
+      assertTrue(city, city.equals("London") || city.equals("Paris"));
+      ++n;
+    }
+    assertEquals(1200, n);
+  }
+
+  /** Tests that zone maps are built when a table is loaded, and that a
+   * scan skips blocks that cannot satisfy a condition. */
+  @Test public void testZoneMap() {
+    final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory.builder()
+            .add("id", typeFactory.createType(int.class))
+            .add("v", typeFactory.createType(int.class))
+            .add("n", typeFactory.createType(Integer.class))
+            .build();
+    // Column "v" increases with "id"; column "n" is null in the last 1,000
+    // rows only.
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 10000; i++) {
+      rows.add(new Object[]{i, i / 100, i >= 9000 ? null : i % 7});
+    }
+    final ColumnLoader<Object[]> loader =
+        new ColumnLoader<Object[]>(typeFactory, Linq4j.asEnumerable(rows),
+            RelDataTypeImpl.proto(rowType), null);
+    final ArrayTable.ZoneMap zoneMap =
+        loader.representationValues.get(1).zoneMap;
+    assertEquals(3, zoneMap.blockCount());
+    assertEquals(40, zoneMap.mins[1]);
+    assertEquals(81, zoneMap.maxes[1]);
+    assertEquals(99, zoneMap.maxes[2]);
+    assertEquals(1000, loader.representationValues.get(2).zoneMap
+        .nullCounts[2]);
+
+    final ArrayTable table =
+        new ArrayTable(Object[].class, RelDataTypeImpl.proto(rowType),
+            Suppliers.ofInstance(
+                new ArrayTable.Content(loader.representationValues,
+                    loader.size(), loader.sortField)));
+
+    // "v between 50 and 60" reads only the second block.
+    final int[] counts = {-1, -1, -1, -1};
+    final Hook.Closeable hook = Hook.ZONE_MAP_SCAN.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            System.arraycopy((int[]) a0, 0, counts, 0, counts.length);
+            return null;
+          }
+        });
+    try {
+      int n = 0;
+      for (Object row
+          : table.blocks(new int[] {1}, new Object[][] {{50, 60}},
+              new int[][] {{ArrayTable.CLOSED, ArrayTable.CLOSED}},
+              new boolean[] {false})) {
+        final int v = (Integer) ((Object[]) row)[1];
+        assertTrue(v >= 40 && v <= 81);
+        ++n;
+      }
+      assertEquals(4096, n);
+      assertEquals("[3, 2, 10000, 5904]", Arrays.toString(counts));
+    } finally {
+      hook.close();
+    }
+
+    // "v < 20" reads the first block; "n < 3 or n is null" reads every
+    // block, as one range.
+    assertEquals("[0, 4096]",
+        Arrays.toString(
+            table.blockRanges(new int[] {1},
+                new Object[][] {{null, 20}},
+                new int[][] {{ArrayTable.UNBOUNDED, ArrayTable.OPEN}},
+                new boolean[] {false})));
+    assertEquals("[0, 10000]",
+        Arrays.toString(
+            table.blockRanges(new int[] {2},
+                new Object[][] {{null, 3}},
+                new int[][] {{ArrayTable.UNBOUNDED, ArrayTable.OPEN}},
+                new boolean[] {true})));
+
+    // "v > 20 and n is null" reads the last block; "v > 99" reads none.
+    assertEquals("[8192, 10000]",
+        Arrays.toString(
+            table.blockRanges(new int[] {1, 2},
+                new Object[][] {{20, null}, {}},
+                new int[][] {{ArrayTable.OPEN, ArrayTable.UNBOUNDED}, {}},
+                new boolean[] {false, true})));
+    assertEquals("[]",
+        Arrays.toString(
+            table.blockRanges(new int[] {1},
+                new Object[][] {{99, null}},
+                new int[][] {{ArrayTable.OPEN, ArrayTable.UNBOUNDED}},
+                new boolean[] {false})));
+  }
+
   private void checkColumn(ArrayTable.Column x,
       ArrayTable.RepresentationType expectedRepresentationType,
       String expectedString) {
@@ -17,12 +17,98 @@
 */
 package net.hydromatic.optiq.test;
 
+import net.hydromatic.linq4j.function.Function1;
+
+import net.hydromatic.optiq.ModifiableTable;
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.Schemas;
+import net.hydromatic.optiq.impl.java.JavaTypeFactory;
+import net.hydromatic.optiq.impl.jdbc.*;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.ResultCache;
+import net.hydromatic.optiq.rules.java.EnumerableConvention;
+import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.tools.Frameworks;
+
+import org.eigenbase.rel.RelNode;
+import org.eigenbase.rel.rules.SemiJoinRel;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.RexBuilder;
+import org.eigenbase.rex.RexNode;
+import org.eigenbase.sql.SqlDialect;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.util14.DateTimeUtil;
+
+import org.hsqldb.jdbcDriver;
 import org.junit.Test;
 
+import java.sql.*;
+import java.util.*;
+import javax.sql.DataSource;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
 /**
  * Tests for the {@code net.hydromatic.optiq.impl.jdbc} package.
  */
 public class JdbcAdapterTest {
+  /** Creates an in-memory HSQLDB database with tables EMP and DEPT, similar
+   * to those of the SCOTT schema, and returns its URL. Unlike the FoodMart
+   * database, it can be modified. */
+  static String createScottDatabase(String name) throws SQLException {
+    final String url = "jdbc:hsqldb:mem:" + name;
+    final Connection connection = DriverManager.getConnection(url, "sa", "");
+    final Statement statement = connection.createStatement();
+    statement.execute(
+        "CREATE TABLE DEPT (DEPTNO INTEGER, DNAME VARCHAR(14))");
+    statement.execute(
+        "CREATE TABLE EMP (EMPNO INTEGER, ENAME VARCHAR(10), DEPTNO INTEGER)");
+    statement.execute(
+        "INSERT INTO DEPT VALUES (10, 'ACCOUNTING'), (20, 'RESEARCH')");
+    statement.execute(
+        "INSERT INTO EMP VALUES (7782, 'CLARK', 10), (7839, 'KING', 10),\n"
+        + " (7369, 'SMITH', 20)");
+    statement.close();
+    connection.close();
+    return url;
+  }
+
+  /** Returns a model with a JDBC schema "SCOTT" over the database at the
+   * given URL, and the reflective schema "hr". */
+  static String scottModel(String url) {
+    return "{\n"
+        + "  version: '1.0',\n"
+        + "  defaultSchema: 'SCOTT',\n"
+        + "  schemas: [\n"
+        + "     {\n"
+        + "       type: 'jdbc',\n"
+        + "       name: 'SCOTT',\n"
+        + "       jdbcDriver: '" + jdbcDriver.class.getName() + "',\n"
+        + "       jdbcUser: 'sa',\n"
+        + "       jdbcPassword: '',\n"
+        + "       jdbcUrl: '" + url + "',\n"
+        + "       jdbcCatalog: null,\n"
+        + "       jdbcSchema: null\n"
+        + "     },\n"
+        + JdbcTest.HR_SCHEMA
+        + "  ]\n"
+        + "}";
+  }
+
+  /** Opens a connection to a model, with connection properties given as
+   * name-value pairs. */
+  static Connection connect(String model, String... properties)
+      throws SQLException {
+    final Properties info = new Properties();
+    info.put("model", "inline:" + model);
+    for (int i = 0; i < properties.length; i += 2) {
+      info.put(properties[i], properties[i + 1]);
+    }
+    return DriverManager.getConnection("jdbc:optiq:", info);
+  }
+
   @Test public void testUnionPlan() {
     OptiqAssert.that()
         .withModel(JdbcTest.FOODMART_MODEL)
@@ -88,6 +174,481 @@ public class JdbcAdapterTest {
             + "store_id=16; store_name=Store 16\n"
             + "store_id=24; store_name=Store 24\n");
   }
+
+  /** Tests that ORDER BY ... OFFSET ... FETCH is pushed down to the
+   * database, so that only the requested rows are returned. */
+  @Test public void testOffsetFetchPlan() {
+    OptiqAssert.that()
+        .withModel(JdbcTest.FOODMART_MODEL)
+        .query(
+            "select \"store_id\", \"store_name\" from \"store\"\n"
+            + "where \"store_id\" < 10\n"
+            + "order by 1 offset 2 rows fetch next 3 rows only")
+        .explainContains(
+            "JdbcSortRel(sort0=[$0], dir0=[ASC], offset=[2], fetch=[3])")
+        .returns(
+            "store_id=2; store_name=Store 2\n"
+            + "store_id=3; store_name=Store 3\n"
+            + "store_id=4; store_name=Store 4\n");
+  }
+
+  /** Tests that a window function is not pushed down to HSQLDB, which does
+   * not support windowed aggregates, but is pushed down to a database that
+   * does. */
+  @Test public void testWindowPlan() throws Exception {
+    final String url = createScottDatabase("testWindowPlan");
+    final String sql =
+        "select empno, count(*) over (partition by deptno) as c\n"
+        + "from scott.emp";
+    OptiqAssert.that()
+        .withModel(scottModel(url))
+        .query(sql)
+        .explainContains("EnumerableWindowRel")
+        .returnsUnordered(
+            "EMPNO=7369; C=1",
+            "EMPNO=7782; C=2",
+            "EMPNO=7839; C=2");
+
+    // The same database, described as PostgreSQL. Prepare the statement
+    // (which generates the SQL for the database) but do not execute it.
+    final DataSource dataSource =
+        JdbcSchema.dataSource(url, jdbcDriver.class.getName(), "sa", "");
+    final OptiqConnection connection =
+        DriverManager.getConnection("jdbc:optiq:")
+            .unwrap(OptiqConnection.class);
+    final SchemaPlus rootSchema = connection.getRootSchema();
+    final SqlDialect dialect =
+        SqlDialect.DatabaseProduct.POSTGRESQL.getDialect();
+    rootSchema.add("SCOTT",
+        new JdbcSchema(dataSource, dialect,
+            JdbcConvention.of(dialect,
+                Schemas.subSchemaExpression(rootSchema, "SCOTT",
+                    JdbcSchema.class),
+                "SCOTT"),
+            null, null));
+    final ResultSet resultSet =
+        connection.createStatement().executeQuery("explain plan for " + sql);
+    final String plan = OptiqAssert.toString(resultSet);
+    assertThat(plan, containsString("JdbcWindowRel"));
+    assertThat(plan, not(containsString("EnumerableWindowRel")));
+    final List<String> sqls = new ArrayList<String>();
+    final Hook.Closeable hook = Hook.QUERY_PLAN.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            sqls.add((String) a0);
+            return null;
+          }
+        });
+    try {
+      connection.prepareStatement(sql).close();
+    } finally {
+      hook.close();
+    }
+    assertThat(sqls.toString(), containsString("OVER (PARTITION BY "));
+    connection.close();
+  }
+
+  /** Tests that a semi-join between two tables of the same JDBC schema is
+   * executed by HSQLDB as "WHERE k IN (SELECT ...)".
+   *
+   * <p>The SQL-to-relational converter does not generate a
+   * {@link SemiJoinRel}, so the test builds one, plans it, and executes the
+   * SQL that the plan generates.</p> */
+  @Test public void testSemiJoinPlan() throws Exception {
+    final String url = createScottDatabase("testSemiJoinPlan");
+    final Connection hsqldbConnection =
+        DriverManager.getConnection(url, "sa", "");
+    final Statement hsqldbStatement = hsqldbConnection.createStatement();
+    // An employee whose department does not exist.
+    hsqldbStatement.execute("INSERT INTO EMP VALUES (7499, 'ALLEN', 30)");
+    final DataSource dataSource =
+        JdbcSchema.dataSource(url, jdbcDriver.class.getName(), "sa", "");
+    final String[] sql = {null};
+    final String plan = Frameworks.withPlanner(
+        new Frameworks.PlannerAction<String>() {
+          public String apply(RelOptCluster cluster,
+              RelOptSchema relOptSchema, SchemaPlus rootSchema) {
+            rootSchema.add("SCOTT",
+                JdbcSchema.create(rootSchema, "SCOTT", dataSource, null,
+                    null));
+            final RelNode emp = scan(cluster, relOptSchema, "EMP");
+            final RelNode dept = scan(cluster, relOptSchema, "DEPT");
+
+            // EMP semi-join DEPT on EMP.DEPTNO = DEPT.DEPTNO
+            final RexBuilder rexBuilder = cluster.getRexBuilder();
+            final RexNode condition =
+                rexBuilder.makeCall(SqlStdOperatorTable.EQUALS,
+                    rexBuilder.makeInputRef(emp, 2),
+                    rexBuilder.makeInputRef(
+                        dept.getRowType().getFieldList().get(0).getType(),
+                        emp.getRowType().getFieldCount()));
+            final RelNode semiJoin =
+                new SemiJoinRel(cluster, emp, dept, condition,
+                    Arrays.asList(2), Arrays.asList(0));
+            final RelOptPlanner planner = cluster.getPlanner();
+            planner.setRoot(
+                planner.changeTraits(semiJoin,
+                    semiJoin.getTraitSet()
+                        .replace(EnumerableConvention.INSTANCE)));
+            final RelNode best = planner.findBestExp();
+
+            final RelNode jdbcRel = best.getInput(0);
+            final SqlDialect dialect =
+                ((JdbcConvention) jdbcRel.getConvention()).dialect;
+            sql[0] =
+                new JdbcImplementor(dialect,
+                    (JavaTypeFactory) cluster.getTypeFactory())
+                    .visitChild(0, jdbcRel)
+                    .asStatement()
+                    .toSqlString(dialect)
+                    .getSql();
+            return RelOptUtil.toString(best);
+          }
+        });
+    assertThat(plan, containsString("JdbcToEnumerableConverter\n"
+        + "  JdbcSemiJoinRel("));
+    assertThat(sql[0], containsString(" IN (SELECT "));
+
+    final String[] rows =
+        OptiqAssert.toString(hsqldbStatement.executeQuery(sql[0]))
+            .split("\n");
+    Arrays.sort(rows);
+    assertEquals("[EMPNO=7369; ENAME=SMITH; DEPTNO=20, "
+        + "EMPNO=7782; ENAME=CLARK; DEPTNO=10, "
+        + "EMPNO=7839; ENAME=KING; DEPTNO=10]",
+        Arrays.toString(rows));
+    hsqldbStatement.close();
+    hsqldbConnection.close();
+  }
+
+  /** Creates a scan of a table in the "SCOTT" schema. */
+  private static RelNode scan(final RelOptCluster cluster,
+      RelOptSchema relOptSchema, String tableName) {
+    final RelOptTable table =
+        relOptSchema.getTableForMember(Arrays.asList("SCOTT", tableName));
+    return table.toRel(
+        new RelOptTable.ToRelContext() {
+          public RelOptCluster getCluster() {
+            return cluster;
+          }
+
+          public RelNode expandView(RelDataType rowType, String queryString,
+              List<String> schemaPath) {
+            throw new UnsupportedOperationException();
+          }
+        });
+  }
+
+  /** Tests that a join between a small in-memory table and a JDBC table
+   * looks up the join keys in the database, rather than reading the whole
+   * JDBC table. */
+  @Test public void testBindJoinPlan() {
+    OptiqAssert.that()
+        .withModel(
+            "{\n"
+            + "  version: '1.0',\n"
+            + "  defaultSchema: 'foodmart',\n"
+            + "   schemas: [\n"
+            + JdbcTest.FOODMART_SCHEMA
+            + "     ,\n"
+            + JdbcTest.HR_SCHEMA
+            + "   ]\n"
+            + "}")
+        .query(
+            "select e.\"empid\", f.\"employee_id\"\n"
+            + "from \"hr\".\"emps\" as e\n"
+            + "join \"foodmart\".\"employee\" as f\n"
+            + "on e.\"empid\" = f.\"employee_id\"")
+        .explainContains("JdbcBindJoinRel(")
+        .returnsCount(4);
+  }
+
+  /** Tests that a data source with a concurrency limit makes connections
+   * wait, and times out if none is released. A thread that already holds
+   * every permit fails at once, because waiting would deadlock. */
+  @Test public void testBackendLimiter() throws Exception {
+    final String url = "jdbc:hsqldb:mem:testBackendLimiter";
+    final DataSource dataSource =
+        JdbcSchema.dataSource(url, "org.hsqldb.jdbcDriver", "sa", "",
+            new JdbcSchema.PoolConfig(null, null, null, null, null, 1, 100));
+    final JdbcBackendLimiter limiter =
+        JdbcBackendLimiter.of(url, "sa", 1, 100);
+    assertSame(limiter, JdbcBackendLimiter.of(url, "sa", 1, 100));
+
+    // Different settings for the same backend give a separate limiter,
+    // rather than being silently ignored.
+    final JdbcBackendLimiter limiter2 =
+        JdbcBackendLimiter.of(url, "sa", 2, 100);
+    assertNotSame(limiter, limiter2);
+    assertEquals(2, limiter2.metrics().maxConcurrent);
+
+    final Connection connection = dataSource.getConnection();
+    assertEquals(1, limiter.metrics().runningCount);
+    try {
+      final Connection connection2 = dataSource.getConnection();
+      connection2.close();
+      fail("expected error");
+    } catch (SQLException e) {
+      assertTrue(e.getMessage(),
+          e.getMessage().contains("waiting would deadlock"));
+    }
+    assertEquals(1, limiter.metrics().rejectedCount);
+
+    // Another thread waits for the permit, and times out.
+    final String[] messages = {null};
+    final Thread thread = new Thread() {
+      public void run() {
+        try {
+          dataSource.getConnection().close();
+        } catch (SQLException e) {
+          messages[0] = e.getMessage();
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertTrue(messages[0], messages[0].startsWith("Timed out"));
+    assertEquals(2, limiter.metrics().rejectedCount);
+
+    // Closing the connection obtained from a statement releases the permit.
+    connection.createStatement().getConnection().close();
+    connection.close();
+    assertEquals(0, limiter.metrics().runningCount);
+    final Connection connection3 = dataSource.getConnection();
+    connection3.close();
+    assertEquals(2, limiter.metrics().admittedCount);
+  }
+
+  /** Tests INSERT into a JDBC table. If the rows come from the same JDBC
+   * schema, the whole statement is executed by the database; otherwise
+   * Optiq sends the rows in batches. */
+  @Test public void testJdbcInsert() throws Exception {
+    final String url = createScottDatabase("testJdbcInsert");
+    final OptiqAssert.AssertThat with =
+        OptiqAssert.that().withModel(scottModel(url));
+
+    // INSERT ... VALUES, executed by the database
+    with.query("insert into dept values (30, 'SALES'), (40, 'OPERATIONS')")
+        .explainContains(
+            "JdbcTableModificationRel(table=[[SCOTT, DEPT]], "
+            + "operation=[INSERT]")
+        .planContains("ResultSetEnumerable.ofUpdate(")
+        .returns("ROWCOUNT=2\n");
+    with.query("select count(*) as c from dept")
+        .returns("C=4\n");
+
+    // INSERT ... SELECT from the same schema, executed by the database
+    with.query("insert into dept select deptno + 100, dname from dept")
+        .explainContains(
+            "JdbcTableModificationRel(table=[[SCOTT, DEPT]], "
+            + "operation=[INSERT]")
+        .planContains("ResultSetEnumerable.ofUpdate(")
+        .returns("ROWCOUNT=4\n");
+    with.query("select count(*) as c from dept")
+        .returns("C=8\n");
+
+    // INSERT ... SELECT from another schema; rows are sent in chunks
+    with.query(
+        "insert into emp\n"
+        + "select \"empid\", \"name\", \"deptno\" from \"hr\".\"emps\"")
+        .explainContains(
+            "EnumerableTableModificationRel(table=[[SCOTT, EMP]], "
+            + "operation=[INSERT]")
+        .planContains("Utilities.insert(")
+        .planContains(", 1000)")
+        .returns("ROWCOUNT=4\n");
+    with.query("select count(*) as c from emp")
+        .returns("C=7\n");
+
+    // INSERT ... SELECT that reads the target table and another schema;
+    // every row is read before any is added
+    with.query(
+        "insert into dept\n"
+        + "select d.deptno + 1000, h.\"name\"\n"
+        + "from dept as d\n"
+        + "join \"hr\".\"depts\" as h on d.deptno = h.\"deptno\"")
+        .explainContains(
+            "EnumerableTableModificationRel(table=[[SCOTT, DEPT]], "
+            + "operation=[INSERT]")
+        .planContains(", 2147483647)")
+        .returns("ROWCOUNT=3\n");
+    with.query("select count(*) as c from dept")
+        .returns("C=11\n");
+  }
+
+  /** Tests a batch of parameterized INSERT statements into a JDBC table. The
+   * rows of the whole batch reach the database through one connection, as
+   * one JDBC batch, not one round trip per set of parameter values. */
+  @Test public void testJdbcPreparedBatchInsert() throws Exception {
+    final String url = createScottDatabase("testJdbcPreparedBatchInsert");
+    final String model = scottModel(url)
+        .replace("jdbcSchema: null\n",
+            "jdbcSchema: null,\n       maxConcurrentQueries: 10\n");
+    final Connection connection = connect(model);
+    final PreparedStatement statement =
+        connection.prepareStatement("insert into dept values (?, ?)");
+    final String[] names = {"SALES", "OPERATIONS", "MARKETING"};
+    for (int i = 0; i < names.length; i++) {
+      statement.setInt(1, 30 + i * 10);
+      statement.setString(2, names[i]);
+      statement.addBatch();
+    }
+    final JdbcBackendLimiter limiter =
+        JdbcBackendLimiter.of(url, "sa", 10, 30000);
+    final long admittedCount = limiter.metrics().admittedCount;
+    assertArrayEquals(new int[] {1, 1, 1}, statement.executeBatch());
+    assertEquals(admittedCount + 1, limiter.metrics().admittedCount);
+    statement.close();
+    final ResultSet resultSet = connection.createStatement().executeQuery(
+        "select deptno, dname from dept where deptno >= 30 order by deptno");
+    assertThat(OptiqAssert.toStringList(resultSet, new ArrayList<String>()),
+        equalTo(
+            Arrays.asList("DEPTNO=30; DNAME=SALES",
+                "DEPTNO=40; DNAME=OPERATIONS",
+                "DEPTNO=50; DNAME=MARKETING")));
+    connection.close();
+  }
+
+  /** Tests the modifiable collection of a JDBC table: iterating over a
+   * table with one column, counting rows, and adding rows. */
+  @Test public void testJdbcModifiableCollection() throws Exception {
+    final String url = createScottDatabase("testJdbcModifiableCollection");
+    final Connection hsqldbConnection =
+        DriverManager.getConnection(url, "sa", "");
+    hsqldbConnection.createStatement()
+        .execute("CREATE TABLE BONUS (SAL INTEGER)");
+    hsqldbConnection.createStatement()
+        .execute("INSERT INTO BONUS VALUES (100), (200)");
+    hsqldbConnection.close();
+    final Connection connection = connect(scottModel(url));
+    final OptiqConnection optiqConnection =
+        connection.unwrap(OptiqConnection.class);
+    final ModifiableTable table =
+        (ModifiableTable) optiqConnection.getRootSchema()
+            .getSubSchema("SCOTT").getTable("BONUS");
+    //noinspection unchecked
+    final Collection<Object[]> collection =
+        table.getModifiableCollection();
+    assertEquals(2, collection.size());
+    final List<Integer> values = new ArrayList<Integer>();
+    for (Object[] row : collection) {
+      assertEquals(1, row.length);
+      values.add((Integer) row[0]);
+    }
+    Collections.sort(values);
+    assertEquals("[100, 200]", values.toString());
+    assertTrue(
+        collection.addAll(
+            Arrays.asList(new Object[] {300}, new Object[] {400})));
+    assertEquals(4, collection.size());
+    connection.close();
+  }
+
+  /** Tests that DATE, TIME and TIMESTAMP values added to a JDBC table through
+   * its modifiable collection are stored as the same wall-clock values, and
+   * read back unchanged, in a JVM whose time zone is not UTC. */
+  @Test public void testJdbcInsertDateTime() throws Exception {
+    final TimeZone timeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+    try {
+      final String url = createScottDatabase("testJdbcInsertDateTime");
+      final Connection hsqldbConnection =
+          DriverManager.getConnection(url, "sa", "");
+      hsqldbConnection.createStatement().execute(
+          "CREATE TABLE EVENTS (D DATE, T TIME, TS TIMESTAMP(0))");
+      final Connection connection = connect(scottModel(url));
+      final ModifiableTable table =
+          (ModifiableTable) connection.unwrap(OptiqConnection.class)
+              .getRootSchema().getSubSchema("SCOTT").getTable("EVENTS");
+      //noinspection unchecked
+      final Collection<Object[]> collection =
+          table.getModifiableCollection();
+
+      // 2014-03-15 10:20:30, in Optiq's representation
+      final Calendar calendar =
+          Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+      calendar.clear();
+      calendar.set(2014, Calendar.MARCH, 15, 10, 20, 30);
+      final long timestamp = calendar.getTimeInMillis();
+      final int date = (int) (timestamp / DateTimeUtil.MILLIS_PER_DAY);
+      final int time = (int) (timestamp % DateTimeUtil.MILLIS_PER_DAY);
+      collection.add(new Object[] {date, time, timestamp});
+
+      final ResultSet resultSet = hsqldbConnection.createStatement()
+          .executeQuery("SELECT D, T, TS FROM EVENTS");
+      assertTrue(resultSet.next());
+      assertEquals("2014-03-15", resultSet.getString(1));
+      assertEquals("10:20:30", resultSet.getString(2));
+      assertEquals("2014-03-15 10:20:30", resultSet.getString(3));
+      resultSet.close();
+      hsqldbConnection.close();
+
+      final Object[] row = collection.iterator().next();
+      assertEquals(date * DateTimeUtil.MILLIS_PER_DAY,
+          ((java.sql.Date) row[0]).getTime());
+      assertEquals(time, ((Time) row[1]).getTime());
+      assertEquals(timestamp, ((Timestamp) row[2]).getTime());
+      connection.close();
+    } finally {
+      TimeZone.setDefault(timeZone);
+    }
+  }
+
+  /** Tests that cached results that read a JDBC table are discarded when
+   * rows are inserted through Optiq, whether the INSERT is executed by the
+   * database or rows are sent from Optiq, and that they expire because the
+   * table may also be modified by other clients. */
+  @Test public void testResultCacheJdbcInsert() throws Exception {
+    final String url = createScottDatabase("testResultCacheJdbcInsert");
+    final Connection connection =
+        connect(scottModel(url), "resultCache", "true",
+            "resultCacheTtl", "600000");
+    final ResultCache cache = ResultCache.instance();
+    final Statement statement = connection.createStatement();
+    final String sql = "select count(*) as c from emp";
+    assertEquals("C=3\n",
+        OptiqAssert.toString(statement.executeQuery(sql)));
+    final long hitCount0 = cache.getHitCount();
+    assertEquals("C=3\n",
+        OptiqAssert.toString(statement.executeQuery(sql)));
+    assertEquals(hitCount0 + 1, cache.getHitCount());
+
+    // INSERT executed by the database.
+    assertEquals(1,
+        statement.executeUpdate("insert into emp values (7900, 'JAMES', 30)"));
+    assertEquals("C=4\n",
+        OptiqAssert.toString(statement.executeQuery(sql)));
+
+    // INSERT whose rows come from another schema, sent in a batch.
+    assertEquals(4,
+        statement.executeUpdate(
+            "insert into emp\n"
+            + "select \"empid\", \"name\", \"deptno\" from \"hr\".\"emps\""));
+    assertEquals("C=8\n",
+        OptiqAssert.toString(statement.executeQuery(sql)));
+    assertEquals(hitCount0 + 1, cache.getHitCount());
+    statement.close();
+    connection.close();
+
+    // A change made by another client is seen once the result expires.
+    final Connection connection2 =
+        connect(scottModel(url), "resultCache", "true",
+            "resultCacheTtl", "0");
+    final Statement statement2 = connection2.createStatement();
+    final String sql2 = "select count(*) as c from dept";
+    assertEquals("C=2\n",
+        OptiqAssert.toString(statement2.executeQuery(sql2)));
+    final Connection hsqldbConnection =
+        DriverManager.getConnection(url, "sa", "");
+    hsqldbConnection.createStatement()
+        .execute("INSERT INTO DEPT VALUES (30, 'SALES')");
+    hsqldbConnection.close();
+    Thread.sleep(10);
+    assertEquals("C=3\n",
+        OptiqAssert.toString(statement2.executeQuery(sql2)));
+    statement2.close();
+    connection2.close();
+  }
 }
 
 // End JdbcAdapterTest.java
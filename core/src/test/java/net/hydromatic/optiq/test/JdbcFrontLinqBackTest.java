@@ -22,11 +22,16 @@
 import net.hydromatic.linq4j.QueryProvider;
 import net.hydromatic.linq4j.Queryable;
 import net.hydromatic.linq4j.expressions.Expression;
+import net.hydromatic.linq4j.function.Function1;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.*;
 import net.hydromatic.optiq.impl.java.JavaTypeFactory;
 import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
+import net.hydromatic.optiq.jdbc.ResultCache;
+import net.hydromatic.optiq.materialize.MaterializationKey;
+import net.hydromatic.optiq.materialize.MaterializationService;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
@@ -35,12 +40,13 @@
 import org.junit.Test;
 
 import java.lang.reflect.Type;
-import java.sql.Connection;
+import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 import static net.hydromatic.optiq.test.OptiqAssert.that;
+import static org.junit.Assert.*;
 
 /**
  * Tests for a JDBC front-end (with some quite complex SQL) and Linq4j back-end
@@ -328,6 +334,243 @@ public Collection getModifiableCollection() {
         + " (1, 5, 'fifth ', 3)")
         .throws_("Incompatible types");
   }
+
+  /** Inserts rows using {@link java.sql.Statement#executeBatch()} and
+   * {@link java.sql.PreparedStatement#executeBatch()}. */
+  @Test public void testInsertBatch() throws Exception {
+    final List<JdbcTest.Employee> employees =
+        new ArrayList<JdbcTest.Employee>();
+    mutable(employees).doWithConnection(
+        new Function1<OptiqConnection, Object>() {
+          public Object apply(OptiqConnection connection) {
+            try {
+              final Statement statement = connection.createStatement();
+              statement.addBatch(
+                  "insert into \"foo\".\"bar\" values (1, 1, 'second', 2, 2)");
+              statement.addBatch(
+                  "insert into \"foo\".\"bar\"\n"
+                  + "values (1, 3, 'third', 0, 3), (1, 4, 'fourth', 0, 4)");
+              assertArrayEquals(new int[] {1, 2}, statement.executeBatch());
+              statement.close();
+
+              final PreparedStatement preparedStatement =
+                  connection.prepareStatement(
+                      "insert into \"foo\".\"bar\" values (1, ?, ?, 0, 0)");
+              for (int i = 5; i < 8; i++) {
+                preparedStatement.setInt(1, i);
+                preparedStatement.setString(2, "name" + i);
+                preparedStatement.addBatch();
+              }
+              assertArrayEquals(new int[] {1, 1, 1},
+                  preparedStatement.executeBatch());
+              preparedStatement.close();
+              assertEquals(7, employees.size());
+              assertEquals("name7", employees.get(6).name);
+              return null;
+            } catch (SQLException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
+
+  /** Tests that a materialization that aggregates a modifiable table is
+   * kept up to date as rows are inserted, and that a materialization that
+   * cannot be maintained incrementally becomes stale until it is
+   * refreshed. */
+  @Test public void testInsertMaintainsMaterialization() throws Exception {
+    final List<JdbcTest.Employee> employees =
+        new ArrayList<JdbcTest.Employee>();
+    MaterializationService.setThreadLocal();
+    mutable(employees).doWithConnection(
+        new Function1<OptiqConnection, Object>() {
+          public Object apply(OptiqConnection connection) {
+            try {
+              final OptiqSchema schema =
+                  OptiqSchema.from(
+                      connection.getRootSchema().getSubSchema("foo"));
+              final MaterializationService service =
+                  MaterializationService.instance();
+              final MaterializationKey key =
+                  service.defineMaterialization(schema,
+                      "select \"deptno\", count(*) as c, sum(\"empid\") as s\n"
+                      + "from \"foo\".\"bar\"\n"
+                      + "group by \"deptno\"",
+                      null, "m0");
+              final MaterializationKey key1 =
+                  service.defineMaterialization(schema,
+                      "select \"deptno\" from \"foo\".\"bar\"\n"
+                      + "group by \"deptno\" having count(*) > 1",
+                      null, "m1");
+              final Statement statement = connection.createStatement();
+              final String sql =
+                  "select * from \"foo\".\"m0\" order by \"deptno\"";
+              assertEquals("deptno=0; C=1; S=0\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+
+              statement.executeUpdate(
+                  "insert into \"foo\".\"bar\"\n"
+                  + "values (1, 10, 'second', 0, 0), (2, 10, 'third', 0, 0),\n"
+                  + " (3, 0, 'fourth', 0, 0)");
+              assertEquals(4, employees.size());
+              assertEquals("deptno=0; C=2; S=3\n"
+                  + "deptno=10; C=2; S=3\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+              assertNotNull(service.checkValid(key));
+
+              // A second insert is applied to the same rows; the table of
+              // delta rows is not visible in the user's schema.
+              statement.executeUpdate(
+                  "insert into \"foo\".\"bar\"\n"
+                  + "values (4, 10, 'fifth', 0, 0)");
+              assertEquals("deptno=0; C=2; S=3\n"
+                  + "deptno=10; C=3; S=7\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+              assertNotNull(service.checkValid(key));
+              assertFalse(
+                  connection.getRootSchema().getSubSchema("foo")
+                      .getTableNames().contains("bar$delta"));
+
+              // HAVING cannot be maintained incrementally
+              assertNull(service.checkValid(key1));
+              service.refresh(key1);
+              assertNotNull(service.checkValid(key1));
+              statement.close();
+              return null;
+            } catch (SQLException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
+
+  /** Tests that a materialization is populated in the background, and that
+   * it is valid when population has finished. */
+  @Test public void testAsyncMaterialization() throws Exception {
+    final List<JdbcTest.Employee> employees =
+        new ArrayList<JdbcTest.Employee>();
+    MaterializationService.setThreadLocal(true);
+    mutable(employees).doWithConnection(
+        new Function1<OptiqConnection, Object>() {
+          public Object apply(OptiqConnection connection) {
+            try {
+              final OptiqSchema schema =
+                  OptiqSchema.from(
+                      connection.getRootSchema().getSubSchema("foo"));
+              final MaterializationService service =
+                  MaterializationService.instance();
+              final MaterializationKey key =
+                  service.defineMaterialization(schema,
+                      "select \"deptno\", count(*) as c\n"
+                      + "from \"foo\".\"bar\"\n"
+                      + "group by \"deptno\"",
+                      null, "m0");
+              assertNotNull(service.getState(key));
+              assertTrue(service.awaitValid(key, 10000));
+              assertEquals(MaterializationService.State.VALID,
+                  service.getState(key));
+              assertNotNull(service.checkValid(key));
+
+              // Changes that can be applied incrementally leave the
+              // materialization valid.
+              final Statement statement = connection.createStatement();
+              statement.executeUpdate(
+                  "insert into \"foo\".\"bar\"\n"
+                  + "values (1, 10, 'second', 0, 0)");
+              assertEquals(MaterializationService.State.VALID,
+                  service.getState(key));
+              assertEquals("deptno=0; C=1\n"
+                  + "deptno=10; C=1\n",
+                  OptiqAssert.toString(
+                      statement.executeQuery(
+                          "select * from \"foo\".\"m0\"\n"
+                          + "order by \"deptno\"")));
+              statement.close();
+              return null;
+            } catch (SQLException e) {
+              throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
+
+  /** Tests that a materialization whose query throws while it is being
+   * populated in the background is marked as failed, and is not used. */
+  @Test public void testAsyncMaterializationFailure() throws Exception {
+    final List<JdbcTest.Employee> employees =
+        new ArrayList<JdbcTest.Employee>();
+    MaterializationService.setThreadLocal(true);
+    mutable(employees).doWithConnection(
+        new Function1<OptiqConnection, Object>() {
+          public Object apply(OptiqConnection connection) {
+            try {
+              final OptiqSchema schema =
+                  OptiqSchema.from(
+                      connection.getRootSchema().getSubSchema("foo"));
+              final MaterializationService service =
+                  MaterializationService.instance();
+              // The only employee has empid 0, so the query divides by zero.
+              final MaterializationKey key =
+                  service.defineMaterialization(schema,
+                      "select 1 / \"empid\" as x from \"foo\".\"bar\"",
+                      null, "m0");
+              assertFalse(service.awaitValid(key, 10000));
+              assertEquals(MaterializationService.State.FAILED,
+                  service.getState(key));
+              assertNull(service.checkValid(key));
+              return null;
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
+
+  /** Tests that the result cache reuses the result of a query, and discards
+   * it when rows are inserted into a table that the query reads. */
+  @Test public void testResultCache() throws Exception {
+    final List<JdbcTest.Employee> employees =
+        new ArrayList<JdbcTest.Employee>();
+    mutable(employees).doWithConnection(
+        new Function1<OptiqConnection, Object>() {
+          public Object apply(OptiqConnection connection) {
+            try {
+              connection.getProperties().setProperty("resultCache", "true");
+              final ResultCache cache = ResultCache.instance();
+              final String sql = "select count(*) as c from \"foo\".\"bar\"";
+              final Statement statement = connection.createStatement();
+              final long hitCount0 = cache.getHitCount();
+              assertEquals("C=0\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+              assertEquals("C=0\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+              assertEquals(hitCount0 + 1, cache.getHitCount());
+
+              final long missCount0 = cache.getMissCount();
+              statement.executeUpdate(
+                  "insert into \"foo\".\"bar\"\n"
+                  + "values (1, 10, 'second', 0, 0)");
+              assertEquals("C=1\n",
+                  OptiqAssert.toString(statement.executeQuery(sql)));
+              assertEquals(missCount0 + 1, cache.getMissCount());
+              assertEquals(hitCount0 + 1, cache.getHitCount());
+
+              // Non-deterministic queries are not cached.
+              final String sql2 =
+                  "select current_timestamp from \"foo\".\"bar\"";
+              statement.executeQuery(sql2).close();
+              statement.executeQuery(sql2).close();
+              assertEquals(missCount0 + 1, cache.getMissCount());
+              statement.close();
+              return null;
+            } catch (SQLException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+  }
 }
 
 // End JdbcFrontLinqBackTest.java
@@ -21,7 +21,9 @@
 
 import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.Types;
+import net.hydromatic.linq4j.function.Function0;
 import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
 
 import net.hydromatic.optiq.*;
 import net.hydromatic.optiq.impl.*;
@@ -34,8 +36,13 @@
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
 import net.hydromatic.optiq.jdbc.*;
 import net.hydromatic.optiq.jdbc.Driver;
+import net.hydromatic.optiq.prepare.CodeCache;
 import net.hydromatic.optiq.prepare.Prepare;
 import net.hydromatic.optiq.runtime.Hook;
+import net.hydromatic.optiq.runtime.MergeJoin;
+import net.hydromatic.optiq.runtime.RuntimeFilter;
+import net.hydromatic.optiq.runtime.SortedAggregate;
+import net.hydromatic.optiq.runtime.Spool;
 import net.hydromatic.optiq.runtime.SqlFunctions;
 
 import org.eigenbase.rel.*;
@@ -45,6 +52,7 @@
 import org.eigenbase.reltype.RelProtoDataType;
 import org.eigenbase.sql.*;
 import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.util.Benchmark;
 import org.eigenbase.util.Bug;
 import org.eigenbase.util.Pair;
 import org.eigenbase.util.Util;
@@ -63,6 +71,8 @@
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.sql.DataSource;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -586,6 +596,48 @@ public Object apply(OptiqConnection c) {
             + "the_year=1998; C=365; M=April\n");
   }
 
+  /** Tests that a filter on the sort column of a cloned table is evaluated
+   * by binary search. The rows of "emps" are sorted on "empid", which is
+   * stored in a bit-sliced array. */
+  @Test public void testCloneRange() {
+    final OptiqAssert.AssertThat with = OptiqAssert.that()
+        .with(
+            new OptiqAssert.ConnectionFactory() {
+              public OptiqConnection createConnection() throws Exception {
+                final OptiqConnection connection =
+                    OptiqAssert.getConnection("hr");
+                final SchemaPlus rootSchema = connection.getRootSchema();
+                rootSchema.add("hr2",
+                    new CloneSchema(rootSchema.getSubSchema("hr")));
+                return connection;
+              }
+            });
+    with.query(
+        "select \"empid\", \"name\" from \"hr2\".\"emps\"\n"
+        + "where \"empid\" between 105 and 150")
+        .explainContains("ArrayTableRangeRel(table=[[hr2, emps]], field=[0]")
+        .returns(
+            "empid=110; name=Theodore\n"
+            + "empid=150; name=Sebastian\n");
+    with.query(
+        "select \"empid\", \"name\" from \"hr2\".\"emps\"\n"
+        + "where \"empid\" = 200 or \"empid\" < 105")
+        .returns(
+            "empid=100; name=Bill\n"
+            + "empid=200; name=Eric\n");
+    with.query(
+        "select \"empid\", \"name\" from \"hr2\".\"emps\"\n"
+        + "where \"empid\" > 100 and \"deptno\" = 10")
+        .explainContains("ArrayTableRangeRel(table=[[hr2, emps]], field=[0]")
+        .returns(
+            "empid=110; name=Theodore\n"
+            + "empid=150; name=Sebastian\n");
+    with.query(
+        "select \"empid\" from \"hr2\".\"emps\"\n"
+        + "where \"empid\" = 120")
+        .returns("");
+  }
+
   @Ignore
   @Test public void testCloneGroupBy2() {
     OptiqAssert.that()
@@ -1013,6 +1065,407 @@ public Object apply(OptiqConnection c) {
             + "full_name=Terry Anderson\n");
   }
 
+  /** Tests that a sub-query that occurs twice is computed once, and both
+   * consumers read its result from a spool. */
+  @Test public void testSelfJoinSpool() {
+    final String subQuery =
+        "(select \"deptno\", count(*) as c from \"hr\".\"emps\"\n"
+        + "  group by \"deptno\")";
+    OptiqAssert.that()
+        .with(spoolConnectionFactory("hr", new HrSchema()))
+        .query(
+            "select a.\"deptno\", a.c, b.c as c2\n"
+            + "from " + subQuery + " as a\n"
+            + "join " + subQuery + " as b on a.\"deptno\" = b.\"deptno\"")
+        .planContains("net.hydromatic.optiq.runtime.Spool spool0")
+        .returnsUnordered(
+            "deptno=10; C=3; C2=3",
+            "deptno=20; C=1; C2=1");
+  }
+
+  /** Tests a spool that holds more rows than fit in memory. The rows beyond
+   * the limit are instances of a generated class, and must be read back
+   * from the file. */
+  @Test public void testSelfJoinSpoolLarge() {
+    final int n = Spool.DEFAULT_MAX_ROWS + 10;
+    final BigSchema schema = new BigSchema(n);
+    final String subQuery =
+        "(select \"empid\", \"name\" from \"big\".\"emps\"\n"
+        + "  where \"salary\" > 500)";
+    OptiqAssert.that()
+        .with(spoolConnectionFactory("big", schema))
+        .query(
+            "select count(*) as c, max(b.\"name\") as m\n"
+            + "from " + subQuery + " as a\n"
+            + "join " + subQuery + " as b on a.\"empid\" = b.\"empid\"")
+        .planContains("net.hydromatic.optiq.runtime.Spool spool0")
+        .returns("C=" + n + "; M=E99999\n");
+  }
+
+  /** Returns a connection factory that adds a reflective schema to a
+   * connection whose "spool" property is true. */
+  private static OptiqAssert.ConnectionFactory spoolConnectionFactory(
+      final String name, final Object target) {
+    return new OptiqAssert.ConnectionFactory() {
+      public OptiqConnection createConnection() throws Exception {
+        Class.forName("net.hydromatic.optiq.jdbc.Driver");
+        final Properties info = new Properties();
+        info.setProperty("spool", "true");
+        final Connection connection =
+            DriverManager.getConnection("jdbc:optiq:", info);
+        final OptiqConnection optiqConnection =
+            connection.unwrap(OptiqConnection.class);
+        optiqConnection.getRootSchema().add(name,
+            new ReflectiveSchema(name, target));
+        return optiqConnection;
+      }
+    };
+  }
+
+  /** Tests that a join builds a filter from the keys of its (smaller) build
+   * side and applies it to its probe side, below the expression that reads
+   * the probe side. */
+  @Test public void testJoinRuntimeFilter() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select e.\"name\"\n"
+            + "from \"hr\".\"emps\" as e\n"
+            + "join \"hr\".\"depts\" as d on e.\"deptno\" = d.\"deptno\"\n"
+            + "where d.\"name\" = 'Sales' and e.\"salary\" > 0")
+        .planContains("new net.hydromatic.optiq.runtime.RuntimeFilter()")
+        .returnsUnordered(
+            "name=Bill",
+            "name=Sebastian",
+            "name=Theodore");
+  }
+
+  /** Unit test for {@link RuntimeFilter}. */
+  @Test public void testRuntimeFilter() {
+    final RuntimeFilter filter = new RuntimeFilter();
+    final Function1<Integer, Integer> identity =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer a0) {
+            return a0;
+          }
+        };
+
+    // Until the build side has been read, every key is accepted.
+    assertTrue(filter.mightContain(1000));
+    final Enumerable<Integer> build =
+        filter.build(Linq4j.asEnumerable(Arrays.asList(10, 20, 30)),
+            identity);
+    assertEquals(3, build.count());
+    assertTrue(filter.mightContain(10));
+    assertTrue(filter.mightContain(20));
+    assertTrue(filter.mightContain(30));
+
+    // Outside the range of the build keys.
+    assertFalse(filter.mightContain(5));
+    assertFalse(filter.mightContain(1000));
+    assertEquals(3,
+        Linq4j.asEnumerable(Arrays.asList(5, 10, 20, 30, 1000))
+            .where(filter.predicate(identity))
+            .count());
+
+    // An empty build side rejects everything.
+    assertEquals(0,
+        filter.build(Linq4j.asEnumerable(Collections.<Integer>emptyList()),
+            identity).count());
+    assertFalse(filter.mightContain(10));
+  }
+
+  /** Tests that a join of two tables that are sorted on the join key uses a
+   * merge join, and that a query sorted on a table's collation does not
+   * sort. */
+  @Test public void testMergeJoin() {
+    final OptiqAssert.AssertThat with =
+        OptiqAssert.that().with(SORTED_HR_CONNECTION_FACTORY);
+    with.query(
+        "select e.\"name\", d.\"name\" as \"dname\"\n"
+        + "from \"s\".\"emps\" as e\n"
+        + "join \"s\".\"depts\" as d on e.\"deptno\" = d.\"deptno\"")
+        .planContains("net.hydromatic.optiq.runtime.MergeJoin.join(")
+        .returnsUnordered(
+            "name=Bill; dname=Sales",
+            "name=Sebastian; dname=Sales",
+            "name=Theodore; dname=Sales");
+    with.query(
+        "select \"empid\", \"deptno\" from \"s\".\"emps\"\n"
+        + "order by \"deptno\"")
+        .explainMatches(
+            new Function1<ResultSet, Void>() {
+              public Void apply(ResultSet resultSet) {
+                try {
+                  assertTrue(resultSet.next());
+                  final String plan = resultSet.getString(1);
+                  assertThat(plan, not(containsString("SortRel")));
+                  return null;
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            })
+        .returns(
+            "empid=100; deptno=10\n"
+            + "empid=110; deptno=10\n"
+            + "empid=150; deptno=10\n"
+            + "empid=200; deptno=20\n");
+  }
+
+  /** Unit test for {@link MergeJoin}: duplicate keys on both sides, keys
+   * that occur on one side only, and null keys. */
+  @Test public void testMergeJoinEnumerable() {
+    final Function1<String, String> key =
+        new Function1<String, String>() {
+          public String apply(String a0) {
+            return a0.startsWith("null") ? null : a0.substring(0, 1);
+          }
+        };
+    final Function2<String, String, String> concat =
+        new Function2<String, String, String>() {
+          public String apply(String v0, String v1) {
+            return v0 + "-" + v1;
+          }
+        };
+    assertThat(
+        MergeJoin.join(
+            Linq4j.asEnumerable(
+                Arrays.asList("null0", "a0", "b0", "b1", "d0", "e0")),
+            Linq4j.asEnumerable(
+                Arrays.asList("null1", "b2", "b3", "c0", "e1", "f0")),
+            key, key, concat).toList().toString(),
+        equalTo("[b0-b2, b0-b3, b1-b2, b1-b3, e0-e1]"));
+    assertThat(
+        MergeJoin.join(
+            Linq4j.asEnumerable(Arrays.asList("a0", "b0")),
+            Linq4j.asEnumerable(Collections.<String>emptyList()),
+            key, key, concat).count(),
+        equalTo(0));
+  }
+
+  /** Tests that an aggregate whose input is sorted on the group key
+   * streams. */
+  @Test public void testSortedAggregate() {
+    final OptiqAssert.AssertThat with =
+        OptiqAssert.that().with(SORTED_HR_CONNECTION_FACTORY);
+    with.query(
+        "select \"deptno\", count(*) as c, sum(\"salary\") as s\n"
+        + "from \"s\".\"emps\"\n"
+        + "group by \"deptno\"")
+        .planContains("net.hydromatic.optiq.runtime.SortedAggregate.groupBy(")
+        .returns(
+            "deptno=10; C=3; S=28500.0\n"
+            + "deptno=20; C=1; S=8000.0\n");
+    with.query(
+        "select distinct \"deptno\" from \"s\".\"emps\"")
+        .planContains("net.hydromatic.optiq.runtime.SortedAggregate.distinct(")
+        .returns(
+            "deptno=10\n"
+            + "deptno=20\n");
+  }
+
+  /** Unit test for {@link SortedAggregate}. */
+  @Test public void testSortedAggregateEnumerable() {
+    final Function1<String, String> key =
+        new Function1<String, String>() {
+          public String apply(String a0) {
+            return a0.substring(0, 1);
+          }
+        };
+    final Enumerable<String> source =
+        Linq4j.asEnumerable(Arrays.asList("a0", "a1", "b0", "c0", "c1"));
+    assertThat(
+        SortedAggregate.groupBy(source, key,
+            new Function0<String>() {
+              public String apply() {
+                return "";
+              }
+            },
+            new Function2<String, String, String>() {
+              public String apply(String v0, String v1) {
+                return v0 + v1;
+              }
+            },
+            new Function2<String, String, String>() {
+              public String apply(String v0, String v1) {
+                return v0 + ":" + v1;
+              }
+            },
+            null).toList().toString(),
+        equalTo("[a:a0a1, b:b0, c:c0c1]"));
+    assertThat(
+        SortedAggregate.distinct(source, key, null).toList().toString(),
+        equalTo("[a0, b0, c0]"));
+  }
+
+  /** Tests that a simple query is interpreted, that it is compiled after it
+   * has been executed enough times, and that a query the interpreter cannot
+   * handle is compiled straight away. */
+  @Test public void testInterpreter() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .doWithConnection(
+            new Function1<OptiqConnection, Object>() {
+              public Object apply(OptiqConnection connection) {
+                final CountDownLatch latch = new CountDownLatch(1);
+                final Hook.Closeable hook = Hook.JAVA_PLAN.add(
+                    new Function1<Object, Object>() {
+                      public Object apply(Object a0) {
+                        if (((String) a0).contains("12345")) {
+                          latch.countDown();
+                        }
+                        return null;
+                      }
+                    });
+                try {
+                  final Properties properties = connection.getProperties();
+                  properties.setProperty("interpreter", "true");
+                  properties.setProperty("interpreterCompileExecutions", "2");
+                  final PreparedStatement statement =
+                      connection.prepareStatement(
+                          "select \"empid\", \"name\", \"empid\" + 12345 as e\n"
+                          + "from \"hr\".\"emps\"\n"
+                          + "where \"deptno\" = ?");
+                  final String expected10 =
+                      "empid=100; name=Bill; E=12445\n"
+                      + "empid=150; name=Sebastian; E=12495\n"
+                      + "empid=110; name=Theodore; E=12455\n";
+                  statement.setInt(1, 10);
+                  assertEquals(expected10,
+                      OptiqAssert.toString(statement.executeQuery()));
+                  assertEquals(1, latch.getCount());
+
+                  // Second execution reaches the threshold, and starts
+                  // compilation in the background.
+                  statement.setInt(1, 20);
+                  assertEquals("empid=200; name=Eric; E=12545\n",
+                      OptiqAssert.toString(statement.executeQuery()));
+                  assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+                  // Results are the same, whichever tier produces them.
+                  for (int i = 0; i < 3; i++) {
+                    statement.setInt(1, 10);
+                    assertEquals(expected10,
+                        OptiqAssert.toString(statement.executeQuery()));
+                  }
+                  statement.close();
+
+                  final Statement statement2 = connection.createStatement();
+                  assertEquals("deptno=10; C=3\n"
+                      + "deptno=20; C=1\n",
+                      OptiqAssert.toString(
+                          statement2.executeQuery(
+                              "select \"deptno\", count(*) as c\n"
+                              + "from \"hr\".\"emps\"\n"
+                              + "group by \"deptno\"\n"
+                              + "order by \"deptno\"")));
+                  statement2.close();
+                  return null;
+                } catch (Exception e) {
+                  throw new RuntimeException(e);
+                } finally {
+                  hook.close();
+                }
+              }
+            });
+  }
+
+  /** Unit test for {@link Spool}: consumers that read at different rates,
+   * with rows beyond the limit held on disk. */
+  @Test public void testSpool() {
+    final List<Integer> list = new ArrayList<Integer>();
+    for (int i = 0; i < 10; i++) {
+      list.add(i);
+    }
+    final int[] readCount = {0};
+    final Enumerable<Integer> source =
+        Linq4j.asEnumerable(list).select(
+            new Function1<Integer, Integer>() {
+              public Integer apply(Integer a0) {
+                ++readCount[0];
+                return a0;
+              }
+            });
+    final Spool<Integer> spool = new Spool<Integer>(source, 4);
+    final Enumerator<Integer> e0 = spool.enumerator();
+    final Enumerator<Integer> e1 = spool.enumerator();
+    assertTrue(e0.moveNext());
+    assertEquals(0, (int) e0.current());
+    assertEquals(1, readCount[0]);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(e1.moveNext());
+      assertEquals(i, (int) e1.current());
+    }
+    assertFalse(e1.moveNext());
+    for (int i = 1; i < 10; i++) {
+      assertTrue(e0.moveNext());
+      assertEquals(i, (int) e0.current());
+    }
+    assertFalse(e0.moveNext());
+    assertEquals(10, readCount[0]);
+    assertEquals(6, spool.getSpillCount());
+    e0.close();
+    e1.close();
+
+    // A new consumer reads from the spool, not from the source.
+    assertEquals(10, spool.count());
+    assertEquals(10, readCount[0]);
+  }
+
+  /** Unit test for {@link Spool} whose rows cannot all be serialized. The
+   * spool reads back the rows it has written and holds every row in
+   * memory. */
+  @Test public void testSpoolNotSerializable() {
+    final List<Object> list = new ArrayList<Object>();
+    for (int i = 0; i < 10; i++) {
+      list.add(
+          i == 6
+              ? new Employee(1, 10, "Sam", 1000, null)
+              : (Object) i);
+    }
+    final int[] readCount = {0};
+    final Enumerable<Object> source =
+        Linq4j.asEnumerable(list).select(
+            new Function1<Object, Object>() {
+              public Object apply(Object a0) {
+                ++readCount[0];
+                return a0;
+              }
+            });
+    final Spool<Object> spool = new Spool<Object>(source, 4);
+    final Enumerator<Object> e0 = spool.enumerator();
+    final Enumerator<Object> e1 = spool.enumerator();
+
+    // Rows 4 and 5 are serializable, and are written to the file.
+    for (int i = 0; i < 6; i++) {
+      assertTrue(e0.moveNext());
+      assertEquals(i, e0.current());
+    }
+    assertEquals(2, spool.getSpillCount());
+
+    // Row 6 is not serializable. All rows are now in memory.
+    for (int i = 6; i < 10; i++) {
+      assertTrue(e0.moveNext());
+      assertSame(list.get(i), e0.current());
+    }
+    assertFalse(e0.moveNext());
+    assertEquals(0, spool.getSpillCount());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(e1.moveNext());
+      assertEquals(list.get(i), e1.current());
+    }
+    assertFalse(e1.moveNext());
+    assertEquals(10, readCount[0]);
+    e0.close();
+    e1.close();
+
+    // After the spool is closed, a new consumer reads the source again.
+    spool.close();
+    assertEquals(10, spool.count());
+    assertEquals(20, readCount[0]);
+  }
+
   /** Test case for
    * <a href="https://github.com/julianhyde/optiq/issues/35">issue #35</a>. */
   @Ignore
@@ -2129,6 +2582,267 @@ private static ImmutableMultimap<Class, Integer> x() {
             + "empid=150; deptno=10; name=Sebastian; salary=7000.0; commission=null\n");
   }
 
+  /** Tests that LIKE and SIMILAR TO with a literal pattern do not translate
+   * and compile the pattern for each row. Simple patterns use methods of
+   * {@link String}; others are compiled once, into a static field. */
+  @Test public void testLikeLiteralPattern() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\"\n"
+            + "where \"name\" like 'B%' or \"name\" like '%dor%'")
+        .planContains(".startsWith(\"B\")")
+        .planContains(".contains(\"dor\")")
+        .returns("name=Bill\nname=Theodore\n");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\"\n"
+            + "where \"name\" like '%c' or \"name\" not like '%i%'")
+        .planContains(".endsWith(\"c\")")
+        .returns("name=Eric\nname=Theodore\n");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\"\n"
+            + "where \"name\" like 'E_ic' or \"name\" similar to 'B(i|o)ll'")
+        .planContains("Like.compile(\"E.ic\")")
+        .planContains("Like.compile(\"B(i|o)ll\")")
+        .returns("name=Bill\nname=Eric\n");
+    // In LIKE, '.' is not a wildcard.
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\" from \"hr\".\"emps\"\n"
+            + "where \"name\" like 'B.l_'")
+        .returns("");
+  }
+
+  /** Tests the "scaledDecimals" connection property. Arithmetic on DECIMAL
+   * values is performed on their unscaled values, and results have the
+   * scale of their type. */
+  @Test public void testScaledDecimals() {
+    final OptiqAssert.AssertThat with = OptiqAssert.that()
+        .with(
+            new OptiqAssert.ConnectionFactory() {
+              public OptiqConnection createConnection() throws Exception {
+                final OptiqConnection connection =
+                    OptiqAssert.getConnection("hr");
+                connection.getProperties()
+                    .setProperty("scaledDecimals", "true");
+                return connection;
+              }
+            });
+    with.query(
+        "select \"empid\",\n"
+        + "  cast(\"commission\" as decimal(10, 2)) * 1.5 + 0.25 as c\n"
+        + "from \"hr\".\"emps\"\n"
+        + "where cast(\"commission\" as decimal(10, 2)) > 500.5")
+        .planContains("SqlFunctions.toUnscaledLong(")
+        .planContains("SqlFunctions.fromUnscaledLong(")
+        .returns("empid=100; C=1500.250\n");
+    // SUM adds unscaled values, and converts to DECIMAL once per group.
+    with.query(
+        "select \"deptno\",\n"
+        + "  sum(cast(\"commission\" as decimal(10, 2)) + 0.25) as s\n"
+        + "from \"hr\".\"emps\"\n"
+        + "group by \"deptno\"\n"
+        + "order by \"deptno\"")
+        .planContains("SqlFunctions.plusExact(")
+        .planContains("SqlFunctions.fromUnscaledLong(")
+        .returns("deptno=10; S=1250.50\n"
+            + "deptno=20; S=500.25\n");
+    // An explicit cast checks that the value fits.
+    with.query(
+        "select cast(\"empid\" as decimal(2, 0)) from \"hr\".\"emps\"")
+        .throws_("Numeric overflow");
+  }
+
+  /** Tests aggregates of a nullable column, which accumulate into primitive
+   * fields with null bits. A group whose values are all null returns
+   * null. */
+  @Test public void testAggregateNullBits() {
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\", sum(\"commission\") as s,\n"
+            + "  min(\"commission\") as mi, max(\"commission\") as ma,\n"
+            + "  count(\"commission\") as c\n"
+            + "from \"hr\".\"emps\"\n"
+            + "group by \"name\"")
+        .returnsUnordered(
+            "name=Bill; S=1000; MI=1000; MA=1000; C=1",
+            "name=Eric; S=500; MI=500; MA=500; C=1",
+            "name=Sebastian; S=null; MI=null; MA=null; C=0",
+            "name=Theodore; S=250; MI=250; MA=250; C=1");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"deptno\", sum(\"commission\") as s,\n"
+            + "  min(\"commission\") as mi, max(\"commission\") as ma\n"
+            + "from \"hr\".\"emps\"\n"
+            + "group by \"deptno\"")
+        .returnsUnordered(
+            "deptno=10; S=1250; MI=250; MA=1000",
+            "deptno=20; S=500; MI=500; MA=500");
+    // MIN and MAX of a NOT NULL column alongside a nullable one, in a group
+    // whose nullable values are all null.
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(
+            "select \"name\", min(\"empid\") as mie, max(\"empid\") as mae,\n"
+            + "  min(\"commission\") as mic, max(\"commission\") as mac\n"
+            + "from \"hr\".\"emps\"\n"
+            + "where \"deptno\" = 10\n"
+            + "group by \"name\"")
+        .returnsUnordered(
+            "name=Bill; MIE=100; MAE=100; MIC=1000; MAC=1000",
+            "name=Sebastian; MIE=150; MAE=150; MIC=null; MAC=null",
+            "name=Theodore; MIE=110; MAE=110; MIC=250; MAC=250");
+    // More than 64 nullable aggregates need more than one word of null
+    // bits; the last aggregate is still null for an all-null group.
+    final StringBuilder sql = new StringBuilder("select \"name\"");
+    for (int i = 0; i < 70; i++) {
+      sql.append(", sum(\"commission\" + ").append(i).append(") as s")
+          .append(i);
+    }
+    sql.append("\nfrom \"hr\".\"emps\"\n"
+        + "where \"name\" in ('Bill', 'Sebastian')\n"
+        + "group by \"name\"");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(sql.toString())
+        .returns(
+            new Function1<ResultSet, Void>() {
+              public Void apply(ResultSet resultSet) {
+                try {
+                  int n = 0;
+                  while (resultSet.next()) {
+                    ++n;
+                    final String name = resultSet.getString(1);
+                    for (int i = 0; i < 70; i++) {
+                      final Object s = resultSet.getObject(i + 2);
+                      if (name.equals("Bill")) {
+                        assertEquals(1000 + i, ((Number) s).intValue());
+                      } else {
+                        assertNull(s);
+                      }
+                    }
+                  }
+                  assertEquals(2, n);
+                  return null;
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            });
+  }
+
+  /** Tests that a statement whose plan generates the same code as an earlier
+   * statement reuses its compiled class. */
+  @Test public void testCodeCache() throws Exception {
+    final OptiqConnection connection = OptiqAssert.getConnection("hr");
+    connection.getProperties().setProperty("codeCache", "true");
+    CodeCache.setThreadLocal();
+    try {
+      final CodeCache cache = CodeCache.instance();
+      final String sql =
+          "select \"empid\", \"name\" from \"hr\".\"emps\"\n"
+          + "where \"deptno\" = 10 and \"empid\" < 150";
+      final Statement statement = connection.createStatement();
+      assertEquals("empid=100; name=Bill\n",
+          OptiqAssert.toString(statement.executeQuery(sql)));
+      final Statement statement2 = connection.createStatement();
+      assertEquals("empid=100; name=Bill\n",
+          OptiqAssert.toString(statement2.executeQuery(sql)));
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getHitCount());
+      assertEquals(1, cache.size());
+
+      // Each statement has its own instance of the class, so statements can
+      // be executed concurrently.
+      final ResultSet resultSet = statement.executeQuery(sql);
+      final ResultSet resultSet2 = statement2.executeQuery(sql);
+      assertEquals("empid=100; name=Bill\n", OptiqAssert.toString(resultSet));
+      assertEquals("empid=100; name=Bill\n", OptiqAssert.toString(resultSet2));
+
+      // A different literal generates different code.
+      assertEquals("",
+          OptiqAssert.toString(
+              statement.executeQuery(sql.replace("150", "50"))));
+      assertEquals(2, cache.getMissCount());
+      assertEquals(2, cache.size());
+      statement.close();
+      statement2.close();
+      connection.close();
+    } finally {
+      CodeCache.clearThreadLocal();
+    }
+  }
+
+  /** Benchmark that compares the time to prepare a statement with and
+   * without the code cache. */
+  @Test public void testCodeCacheBenchmark() throws Exception {
+    // Run a much quicker form of the test during regular testing.
+    final int limit = Benchmark.enabled() ? 100 : 2;
+    CodeCache.setThreadLocal();
+    try {
+      for (final boolean codeCache : new boolean[] {false, true}) {
+        final OptiqConnection connection = OptiqAssert.getConnection("hr");
+        connection.getProperties()
+            .setProperty("codeCache", Boolean.toString(codeCache));
+        new Benchmark("prepare (codeCache=" + codeCache + ")",
+            new Function1<Benchmark.Statistician, Void>() {
+              public Void apply(Benchmark.Statistician statistician) {
+                try {
+                  final long nanos = System.nanoTime();
+                  for (int i = 0; i < limit; i++) {
+                    connection.prepareStatement(
+                        "select \"empid\", \"name\" from \"hr\".\"emps\"\n"
+                        + "where \"deptno\" = 20 and \"empid\" < 250")
+                        .close();
+                  }
+                  statistician.record(nanos);
+                  return null;
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            },
+            5).run();
+        connection.close();
+      }
+    } finally {
+      CodeCache.clearThreadLocal();
+    }
+  }
+
+  /** Tests a query with so many projected expressions that the generated
+   * code is split into several methods. */
+  @Test public void testWideProject() {
+    final StringBuilder sql = new StringBuilder("select ");
+    final StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      if (i > 0) {
+        sql.append(",\n  ");
+        expected.append("; ");
+      }
+      sql.append("case when \"empid\" > ").append(i)
+          .append(" then \"empid\" + ").append(i)
+          .append(" else \"deptno\" - ").append(i)
+          .append(" end as c").append(i);
+      expected.append("C").append(i).append("=")
+          .append(i < 100 ? 100 + i : 10 - i);
+    }
+    sql.append("\nfrom \"hr\".\"emps\" where \"empid\" = 100");
+    expected.append("\n");
+    OptiqAssert.that()
+        .with(OptiqAssert.Config.REGULAR)
+        .query(sql.toString())
+        .returns(expected.toString())
+        .planContains("projector1.apply(");
+  }
+
   /** Tests array index. */
   @Test public void testArrayIndexing() {
     OptiqAssert.that()
@@ -3265,6 +3979,18 @@ public RelDataType apply(RelDataTypeFactory typeFactory) {
     }
   }
 
+  /** Schema with a large number of employees. */
+  public static class BigSchema {
+    public final Employee[] emps;
+
+    public BigSchema(int n) {
+      emps = new Employee[n];
+      for (int i = 0; i < n; i++) {
+        emps[i] = new Employee(i, 10 + i % 2 * 10, "E" + i, 1000, null);
+      }
+    }
+  }
+
   public static class Employee {
     public final int empid;
     public final int deptno;
@@ -3393,6 +4119,70 @@ public TableModificationRelBase toModificationRel(
     }
   }
 
+  /** Connection with a schema "s" whose tables "emps" and "depts" are
+   * sorted on "deptno", and whose statistics say so. */
+  private static final OptiqAssert.ConnectionFactory
+  SORTED_HR_CONNECTION_FACTORY =
+      new OptiqAssert.ConnectionFactory() {
+        public OptiqConnection createConnection() throws Exception {
+          Class.forName("net.hydromatic.optiq.jdbc.Driver");
+          final Connection connection =
+              DriverManager.getConnection("jdbc:optiq:");
+          final OptiqConnection optiqConnection =
+              connection.unwrap(OptiqConnection.class);
+          final SchemaPlus schema =
+              optiqConnection.getRootSchema().add("s", new AbstractSchema());
+          final Employee[] emps = new HrSchema().emps.clone();
+          Arrays.sort(emps,
+              new Comparator<Employee>() {
+                public int compare(Employee o1, Employee o2) {
+                  return o1.deptno != o2.deptno
+                      ? o1.deptno - o2.deptno
+                      : o1.empid - o2.empid;
+                }
+              });
+          schema.add("emps", new SortedTable(Employee.class, emps, 1));
+          schema.add("depts",
+              new SortedTable(Department.class, new HrSchema().depts, 0));
+          return optiqConnection;
+        }
+      };
+
+  /** Table whose rows are sorted on one column, and whose
+   * {@link Statistic} declares the collation. */
+  public static class SortedTable extends AbstractQueryableTable {
+    private final Object[] array;
+    private final RelCollation collation;
+
+    public SortedTable(Class clazz, Object[] array, int field) {
+      super(clazz);
+      this.array = array;
+      this.collation = RelCollationImpl.of(new RelFieldCollation(field));
+    }
+
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+      return ((JavaTypeFactory) typeFactory).createType(elementType);
+    }
+
+    @Override
+    public Statistic getStatistic() {
+      return Statistics.of(array.length, ImmutableList.<BitSet>of(),
+          ImmutableList.of(collation));
+    }
+
+    public <T> Queryable<T> asQueryable(QueryProvider queryProvider,
+        SchemaPlus schema, String tableName) {
+      return new AbstractTableQueryable<T>(queryProvider, schema, this,
+          tableName) {
+        public Enumerator<T> enumerator() {
+          @SuppressWarnings("unchecked") final List<T> list =
+              (List) Arrays.asList(array);
+          return Linq4j.enumerator(list);
+        }
+      };
+    }
+  }
+
   public static class EmpDeptTableFactory implements TableFactory<Table> {
     public Table create(
         SchemaPlus schema,
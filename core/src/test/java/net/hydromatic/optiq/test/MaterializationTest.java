@@ -19,20 +19,32 @@
 
 import net.hydromatic.linq4j.function.Function1;
 
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.impl.StarTable;
 import net.hydromatic.optiq.jdbc.JavaTypeFactoryImpl;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
+import net.hydromatic.optiq.jdbc.OptiqSchema;
 import net.hydromatic.optiq.materialize.MaterializationService;
+import net.hydromatic.optiq.materialize.SummaryTableAdvisor;
 import net.hydromatic.optiq.prepare.Prepare;
+import net.hydromatic.optiq.runtime.Hook;
 
 import org.eigenbase.relopt.SubstitutionVisitor;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.rex.*;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
 
+import com.google.common.collect.ImmutableList;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -47,6 +59,12 @@ public class MaterializationTest {
       OptiqAssert.checkResultContains(
           "EnumerableTableAccessRel(table=[[hr, m0]])");
 
+  /** As {@link JdbcTest#HR_MODEL}, but the "hr" schema also has a table of
+   * employees' dependents. */
+  private static final String HR_DEPENDENTS_MODEL =
+      JdbcTest.HR_MODEL.replace(JdbcTest.HrSchema.class.getName(),
+          HrDependentsSchema.class.getName());
+
   final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
   final RexBuilder rexBuilder = new RexBuilder(typeFactory);
 
@@ -235,7 +253,7 @@ private void checkNoMaterialize(String materialize, String query,
         JdbcTest.HR_MODEL,
         OptiqAssert.checkResultContains(
             "EnumerableCalcRel(expr#0..1=[{inputs}], expr#2=[1], expr#3=[+($t1, $t2)], C=[$t3], deptno=[$t0])\n"
-            + "  EnumerableAggregateRel(group=[{1}], agg#0=[COUNT($1)])\n"
+            + "  EnumerableAggregateRel(group=[{1}], agg#0=[$SUM0($2)])\n"
             + "    EnumerableTableAccessRel(table=[[hr, m0]])"));
   }
 
@@ -252,12 +270,203 @@ private void checkNoMaterialize(String materialize, String query,
             "xxx"));
   }
 
-  @Ignore
+  /** Query joins the same tables as the materialization, but in a different
+   * order. */
   @Test public void testSwapJoin() {
-    String q1 =
-        "select count(*) as c from \"foodmart\".\"sales_fact_1997\" as s join \"foodmart\".\"time_by_day\" as t on s.\"time_id\" = t.\"time_id\"";
-    String q2 =
-        "select count(*) as c from \"foodmart\".\"time_by_day\" as t join \"foodmart\".\"sales_fact_1997\" as s on t.\"time_id\" = s.\"time_id\"";
+    checkMaterialize(
+        "select \"emps\".\"empid\", \"depts\".\"name\" from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"",
+        "select \"depts\".\"name\", \"emps\".\"empid\" from \"depts\"\n"
+        + "join \"emps\" on \"depts\".\"deptno\" = \"emps\".\"deptno\"");
+  }
+
+  /** Query has a stronger condition than the join materialization; the
+   * extra condition is applied to the materialization. */
+  @Test public void testJoinFilter() {
+    checkMaterialize(
+        "select \"emps\".\"empid\", \"emps\".\"salary\", \"depts\".\"name\"\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"",
+        "select \"emps\".\"empid\", \"depts\".\"name\"\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"\n"
+        + "where \"emps\".\"salary\" > 8000");
+  }
+
+  /** Query aggregates a join materialization to a coarser level. */
+  @Test public void testJoinAggregateRollUp() {
+    checkMaterialize(
+        "select \"emps\".\"deptno\", \"depts\".\"name\", count(*) as c,\n"
+        + "  sum(\"emps\".\"salary\") as s\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"\n"
+        + "group by \"emps\".\"deptno\", \"depts\".\"name\"",
+        "select \"depts\".\"name\", count(*) as c\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"\n"
+        + "group by \"depts\".\"name\"");
+  }
+
+  /** Tests that materializations that cannot answer the query, judging by
+   * their signature, are rejected before the planner tries to unify them. */
+  @Test public void testSignatureFilter() {
+    final int[] counts = {-1, -1, -1};
+    final Hook.Closeable hook = Hook.MATERIALIZATION_FILTER.addThread(
+        new Function1<Object, Object>() {
+          public Object apply(Object a0) {
+            System.arraycopy((int[]) a0, 0, counts, 0, counts.length);
+            return null;
+          }
+        });
+    try {
+      Prepare.trim = true;
+      MaterializationService.setThreadLocal();
+      OptiqAssert.that()
+          .with(OptiqAssert.Config.REGULAR)
+          .withMaterializations(
+              JdbcTest.HR_MODEL,
+              // can answer the query
+              "m0",
+              "select \"deptno\", count(*) as c, sum(\"salary\") as s\n"
+              + "from \"emps\" group by \"deptno\"",
+              // does not group by "deptno"
+              "m1",
+              "select \"name\", count(*) as c from \"emps\"\n"
+              + "group by \"name\"",
+              // filters on a column that the query does not filter on
+              "m2",
+              "select * from \"emps\" where \"empid\" = 100")
+          .query(
+              "select \"deptno\", count(*) as c from \"emps\"\n"
+              + "group by \"deptno\"")
+          .enableMaterializations(true)
+          .explainContains("EnumerableTableAccessRel(table=[[hr, m0]])")
+          .sameResultWithMaterializationsDisabled();
+      assertEquals("[3, 3, 2]", Arrays.toString(counts));
+    } finally {
+      Prepare.trim = false;
+      hook.close();
+    }
+  }
+
+  /** Tests that {@link SummaryTableAdvisor} chooses the grand total first,
+   * never chooses a summary table that is as large as the star, and
+   * populates the summary tables it chooses. */
+  @Test public void testSummaryTableAdvisor() {
+    MaterializationService.setThreadLocal();
+    OptiqAssert.that()
+        .withModel(JdbcTest.HR_MODEL)
+        .doWithConnection(
+            new Function1<OptiqConnection, Void>() {
+              public Void apply(OptiqConnection connection) {
+                final SchemaPlus hr =
+                    connection.getRootSchema().getSubSchema("hr");
+                final StarTable star =
+                    StarTable.of(
+                        ImmutableList.of(hr.getTable("emps"),
+                            hr.getTable("depts")));
+                final String starSql =
+                    "select * from \"hr\".\"emps\"\n"
+                    + "join \"hr\".\"depts\"\n"
+                    + "on \"emps\".\"deptno\" = \"depts\".\"deptno\"";
+                final List<String> dimensions =
+                    Arrays.asList("deptno", "name0");
+                final List<String> measures = Arrays.asList("salary");
+
+                // No budget, no summary tables.
+                assertTrue(
+                    new SummaryTableAdvisor(star, starSql, dimensions,
+                        measures, 0, null).advise().isEmpty());
+
+                final SummaryTableAdvisor advisor =
+                    new SummaryTableAdvisor(star, starSql, dimensions,
+                        measures, 1000000, null);
+                final List<SummaryTableAdvisor.Summary> summaries =
+                    advisor.advise();
+                assertFalse(summaries.isEmpty());
+                assertEquals(0, summaries.get(0).columns.size());
+                for (SummaryTableAdvisor.Summary summary : summaries) {
+                  assertTrue(summary.toString(), summary.columns.size() < 2);
+                }
+                advisor.materialize(OptiqSchema.from(hr), "summary",
+                    summaries);
+                try {
+                  final ResultSet resultSet =
+                      connection.createStatement().executeQuery(
+                          "select * from \"hr\".\"summary0\"");
+                  // Eric's department, 20, does not exist, so the join
+                  // has three rows.
+                  assertEquals("c=3; sum_salary=28500.0\n",
+                      OptiqAssert.toString(resultSet));
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                }
+                return null;
+              }
+            });
+  }
+
+  /** Tests that the planner answers a query from a summary table chosen by
+   * {@link SummaryTableAdvisor}, rolling it up to a coarser level. The query
+   * log only groups by department, so the advisor chooses just that summary
+   * table, and the grand total must be computed from it. */
+  @Test public void testSummaryTableAdvisorRollUp() {
+    try {
+      Prepare.trim = true;
+      MaterializationService.setThreadLocal();
+      OptiqAssert.that()
+          .withModel(JdbcTest.HR_MODEL)
+          .doWithConnection(
+              new Function1<OptiqConnection, Void>() {
+                public Void apply(OptiqConnection connection) {
+                  final SchemaPlus hr =
+                      connection.getRootSchema().getSubSchema("hr");
+                  final StarTable star =
+                      StarTable.of(
+                          ImmutableList.of(hr.getTable("emps"),
+                              hr.getTable("depts")));
+                  final String starSql =
+                      "select * from \"hr\".\"emps\"\n"
+                      + "join \"hr\".\"depts\"\n"
+                      + "on \"emps\".\"deptno\" = \"depts\".\"deptno\"";
+                  final SummaryTableAdvisor advisor =
+                      new SummaryTableAdvisor(star, starSql,
+                          Arrays.asList("deptno", "name0"),
+                          Arrays.asList("salary"), 1000000,
+                          Arrays.asList(
+                              "select \"deptno\", sum(\"salary\")\n"
+                              + "from \"emps\" group by \"deptno\""));
+                  final List<SummaryTableAdvisor.Summary> summaries =
+                      advisor.advise();
+                  assertEquals(1, summaries.size());
+                  assertEquals(Arrays.asList("deptno"),
+                      summaries.get(0).columns);
+                  advisor.materialize(OptiqSchema.from(hr), "summary",
+                      summaries);
+                  try {
+                    final String sql =
+                        "select sum(\"salary\") as s\n"
+                        + "from (" + starSql + ") as s";
+                    final Statement statement = connection.createStatement();
+                    final String plan =
+                        OptiqAssert.toString(
+                            statement.executeQuery("explain plan for " + sql));
+                    assertThat(plan,
+                        containsString("EnumerableAggregateRel("));
+                    assertThat(plan, containsString("[[hr, summary0]]"));
+                    assertThat(plan, not(containsString("[[hr, emps]]")));
+                    assertEquals("S=28500.0\n",
+                        OptiqAssert.toString(statement.executeQuery(sql)));
+                    statement.close();
+                  } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                  }
+                  return null;
+                }
+              });
+    } finally {
+      Prepare.trim = false;
+    }
   }
 
   @Ignore
@@ -572,6 +781,37 @@ private void checkSatisfiable(RexNode e, String s) {
         CONTAINS_M0);
   }
 
+  /** Query joins a further (dimension) table to the tables of a join
+   * materialization; the extra join is applied to the materialization. */
+  @Test public void testJoinExtraDimension() {
+    checkMaterialize(
+        "select \"emps\".\"empid\", \"depts\".\"name\"\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"",
+        "select \"depts\".\"name\", \"dependents\".\"name\" as d\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"\n"
+        + "join \"dependents\"\n"
+        + "  on \"emps\".\"empid\" = \"dependents\".\"empid\"",
+        HR_DEPENDENTS_MODEL,
+        CONTAINS_M0);
+  }
+
+  /** As {@link #testJoinExtraDimension()}, but the query does not read one
+   * of the materialization's tables, so the materialization cannot be
+   * used. */
+  @Test public void testJoinMissingInput() {
+    checkNoMaterialize(
+        "select \"emps\".\"empid\", \"depts\".\"name\"\n"
+        + "from \"emps\"\n"
+        + "join \"depts\" on \"emps\".\"deptno\" = \"depts\".\"deptno\"",
+        "select \"emps\".\"empid\", \"dependents\".\"name\"\n"
+        + "from \"emps\"\n"
+        + "join \"dependents\"\n"
+        + "  on \"emps\".\"empid\" = \"dependents\".\"empid\"",
+        HR_DEPENDENTS_MODEL);
+  }
+
   /** Simpler than {@link #testFilterGroupQueryOnStar()}, tests a query on a
    * materialization that is just a join. */
   @Ignore
@@ -598,6 +838,27 @@ private void checkSatisfiable(RexNode e, String s) {
         + "join \"depts\" using (\"deptno\")";
     checkNoMaterialize(q, q, JdbcTest.HR_MODEL);
   }
+
+  /** Schema that has the tables of {@link JdbcTest.HrSchema}, and also a
+   * table of dependents. */
+  public static class HrDependentsSchema extends JdbcTest.HrSchema {
+    public final Dependent[] dependents = {
+      new Dependent(100, "Michael"),
+      new Dependent(150, "Jane"),
+      new Dependent(160, "Nobody"),
+    };
+  }
+
+  /** Dependent of an employee. */
+  public static class Dependent {
+    public final int empid;
+    public final String name;
+
+    public Dependent(int empid, String name) {
+      this.empid = empid;
+      this.name = name;
+    }
+  }
 }
 
 // End MaterializationTest.java
@@ -17,15 +17,22 @@
 */
 package net.hydromatic.optiq.test;
 
+import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.impl.jdbc.JdbcMetadataCache;
+import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
 import net.hydromatic.optiq.model.*;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.hsqldb.jdbcDriver;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.sql.*;
 import java.util.*;
+import javax.sql.DataSource;
 
 import static org.junit.Assert.*;
 
@@ -99,7 +106,8 @@ private ObjectMapper mapper() {
         + "       jdbcPassword: 'p_baz',\n"
         + "       jdbcUrl: 'jdbc:baz',\n"
         + "       jdbcCatalog: 'cat_baz',\n"
-        + "       jdbcSchema: ''\n"
+        + "       jdbcSchema: '',\n"
+        + "       metadataCacheTtl: 60\n"
         + "     }\n"
         + "   ]\n"
         + "}",
@@ -108,6 +116,7 @@ private ObjectMapper mapper() {
     assertEquals(1, root.schemas.size());
     final JsonJdbcSchema schema = (JsonJdbcSchema) root.schemas.get(0);
     assertEquals("FoodMart", schema.name);
+    assertEquals(60, schema.metadataCacheTtl.intValue());
   }
 
   /** Reads a custom schema. */
@@ -176,6 +185,94 @@ private ObjectMapper mapper() {
         "Cannot define materialization; parent schema 'adhoc' is not a "
         + "SemiMutableSchema");
   }
+
+  /** Creates a JDBC schema over the SCOTT-like database at the given URL,
+   * with the given metadata time-to-live. */
+  private static JdbcSchema scottSchema(String url, long ttlMillis)
+      throws SQLException {
+    final Connection connection =
+        DriverManager.getConnection("jdbc:optiq:");
+    final SchemaPlus rootSchema =
+        connection.unwrap(OptiqConnection.class).getRootSchema();
+    final DataSource dataSource =
+        JdbcSchema.dataSource(url, jdbcDriver.class.getName(), "sa", "");
+    return JdbcSchema.create(rootSchema, "SCOTT", dataSource, null,
+        "PUBLIC", ttlMillis);
+  }
+
+  /** Executes a statement against the database at the given URL. */
+  private static void execute(String url, String sql) throws SQLException {
+    final Connection connection = DriverManager.getConnection(url, "sa", "");
+    connection.createStatement().execute(sql);
+    connection.close();
+  }
+
+  /** Tests that a JDBC schema with no metadata time-to-live reads its
+   * metadata once, does not share it with other schemas, and re-reads it
+   * after {@link JdbcSchema#invalidateMetadata()}. */
+  @Test public void testJdbcMetadataInvalidate() throws Exception {
+    final String url =
+        JdbcAdapterTest.createScottDatabase("testJdbcMetadataInvalidate");
+    final JdbcSchema schema = scottSchema(url, 0);
+    assertEquals(-1, schema.getMetadataMetrics().stalenessMillis);
+    assertTrue(schema.getTableNames().contains("EMP"));
+    assertFalse(schema.getTableNames().contains("BONUS"));
+    assertTrue(schema.getMetadataMetrics().stalenessMillis >= 0);
+
+    execute(url, "CREATE TABLE BONUS (ENAME VARCHAR(10), SAL INTEGER)");
+    assertFalse(schema.getTableNames().contains("BONUS"));
+
+    // A new schema does not share the first schema's metadata.
+    final JdbcSchema schema2 = scottSchema(url, 0);
+    assertTrue(schema2.getTableNames().contains("BONUS"));
+
+    schema.invalidateMetadata();
+    assertEquals(-1, schema.getMetadataMetrics().stalenessMillis);
+    assertTrue(schema.getTableNames().contains("BONUS"));
+    assertNotNull(schema.getTable("BONUS"));
+    assertEquals(0, schema.getMetadataMetrics().refreshCount);
+    assertEquals(0, schema.getMetadataMetrics().failureCount);
+  }
+
+  /** Tests that JDBC schemas with a metadata time-to-live share metadata,
+   * and that invalidating it via one schema affects the other. */
+  @Test public void testJdbcMetadataShared() throws Exception {
+    final String url =
+        JdbcAdapterTest.createScottDatabase("testJdbcMetadataShared");
+    final JdbcSchema schema = scottSchema(url, 3600000);
+    assertTrue(schema.getTableNames().contains("EMP"));
+
+    execute(url, "CREATE TABLE BONUS (ENAME VARCHAR(10), SAL INTEGER)");
+    final JdbcSchema schema2 = scottSchema(url, 3600000);
+    assertFalse(schema2.getTableNames().contains("BONUS"));
+
+    schema2.invalidateMetadata();
+    assertTrue(schema.getTableNames().contains("BONUS"));
+  }
+
+  /** Tests that the background refresh of a JDBC schema's metadata sees a
+   * new table, and is counted in the schema's metrics. */
+  @Test public void testJdbcMetadataRefresh() throws Exception {
+    final String url =
+        JdbcAdapterTest.createScottDatabase("testJdbcMetadataRefresh");
+    final JdbcSchema schema = scottSchema(url, 100);
+    assertTrue(schema.getTableNames().contains("EMP"));
+    assertFalse(schema.getTableNames().contains("BONUS"));
+    assertEquals(0, schema.getMetadataMetrics().refreshCount);
+
+    execute(url, "CREATE TABLE BONUS (ENAME VARCHAR(10), SAL INTEGER)");
+    final long start = System.currentTimeMillis();
+    while (!schema.getTableNames().contains("BONUS")) {
+      assertTrue("timed out waiting for refresh",
+          System.currentTimeMillis() - start < 10000);
+      Thread.sleep(20);
+    }
+    final JdbcMetadataCache.Metrics metrics = schema.getMetadataMetrics();
+    assertTrue(metrics.toString(), metrics.refreshCount >= 1);
+    assertEquals(0, metrics.failureCount);
+    assertTrue(metrics.toString(), metrics.totalRefreshMillis >= 0);
+    assertTrue(metrics.toString(), metrics.stalenessMillis >= 0);
+  }
 }
 
 // End ModelTest.java
@@ -104,6 +104,74 @@ public void check(RexBuilder rexBuilder, RexExecutorImpl executor) {
     });
   }
 
+  /** Tests expressions that are evaluated by {@link RexInterpreter}, without
+   * generating code. */
+  @Test public void testInterpreted() throws Exception {
+    check(new Action() {
+      public void check(RexBuilder rexBuilder, RexExecutorImpl executor) {
+        final List<RexNode> reducedValues = new ArrayList<RexNode>();
+        final RexLiteral two =
+            rexBuilder.makeExactLiteral(BigDecimal.valueOf(2));
+        final RexLiteral three =
+            rexBuilder.makeExactLiteral(BigDecimal.valueOf(3));
+        final RexNode times =
+            rexBuilder.makeCall(SqlStdOperatorTable.MULTIPLY, two, three);
+        final RexNode lessThan =
+            rexBuilder.makeCall(SqlStdOperatorTable.LESS_THAN, times, three);
+        final RexNode caseExp =
+            rexBuilder.makeCall(SqlStdOperatorTable.CASE, lessThan, two,
+                three);
+        final RexNode upper =
+            rexBuilder.makeCall(SqlStdOperatorTable.UPPER,
+                rexBuilder.makeLiteral("abc"));
+        executor.execute(rexBuilder,
+            ImmutableList.of(times, lessThan, caseExp, upper),
+            reducedValues);
+        assertThat(reducedValues.size(), equalTo(4));
+        assertThat(((RexLiteral) reducedValues.get(0)).getValue2(),
+            equalTo((Object) 6L));
+        assertThat(((RexLiteral) reducedValues.get(1)).getValue2(),
+            equalTo((Object) false));
+        assertThat(((RexLiteral) reducedValues.get(2)).getValue2(),
+            equalTo((Object) 3L));
+        assertThat(((RexLiteral) reducedValues.get(3)).getValue2(),
+            equalTo((Object) "ABC"));
+      }
+    });
+  }
+
+  /** Tests that interpreted INTEGER arithmetic overflows the same way as
+   * generated code, and that interpreted and compiled expressions can be
+   * mixed. */
+  @Test public void testInterpretedOverflow() throws Exception {
+    check(new Action() {
+      public void check(RexBuilder rexBuilder, RexExecutorImpl executor) {
+        final List<RexNode> reducedValues = new ArrayList<RexNode>();
+        final RexLiteral max =
+            rexBuilder.makeExactLiteral(BigDecimal.valueOf(Integer.MAX_VALUE));
+        final RexNode plus =
+            rexBuilder.makeCall(SqlStdOperatorTable.PLUS, max,
+                rexBuilder.makeExactLiteral(BigDecimal.ONE));
+        final RexNode isNull =
+            rexBuilder.makeCall(SqlStdOperatorTable.IS_NULL,
+                rexBuilder.constantNull());
+        final RexNode substring =
+            rexBuilder.makeCall(SqlStdOperatorTable.SUBSTRING,
+                rexBuilder.makeLiteral("Hello"),
+                rexBuilder.makeExactLiteral(BigDecimal.valueOf(2)));
+        executor.execute(rexBuilder,
+            ImmutableList.of(plus, substring, isNull), reducedValues);
+        assertThat(reducedValues.size(), equalTo(3));
+        assertThat(((RexLiteral) reducedValues.get(0)).getValue2(),
+            equalTo((Object) (long) Integer.MIN_VALUE));
+        assertThat(((RexLiteral) reducedValues.get(1)).getValue2(),
+            equalTo((Object) "ello"));
+        assertThat(((RexLiteral) reducedValues.get(2)).getValue2(),
+            equalTo((Object) true));
+      }
+    });
+  }
+
   /** Callback for {@link #check}. Test code will typically use {@code builder}
    * to create some expressions, call
    * {@link org.eigenbase.rex.RexExecutorImpl#execute} to evaluate them into
@@ -1460,6 +1460,22 @@ protected void checkExpFails(
         + "OFFSET 1 ROWS");
   }
 
+  /** Tests that OFFSET and FETCH are unparsed as "LIMIT ... OFFSET ..." for
+   * a dialect that does not support the standard syntax, whether or not the
+   * query has an ORDER BY clause. */
+  @Test public void testLimitDialect() throws SqlParseException {
+    final SqlDialect mysql = SqlDialect.DatabaseProduct.MYSQL.getDialect();
+    final String orderBySql = Util.toLinux(
+        parseStmt("select a from foo order by b limit 2 offset 1")
+            .toSqlString(mysql, false).getSql());
+    assertTrue(orderBySql, orderBySql.endsWith("\nLIMIT 2\nOFFSET 1"));
+    assertFalse(orderBySql, orderBySql.contains("FETCH"));
+    final String sql = Util.toLinux(
+        parseStmt("select a from foo limit 2")
+            .toSqlString(mysql, false).getSql());
+    assertTrue(sql, sql.endsWith("\nLIMIT 2"));
+  }
+
   @Test public void testSqlInlineComment() {
     check(
         "select 1 from t --this is a comment\n",